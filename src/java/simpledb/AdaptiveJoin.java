@@ -0,0 +1,296 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * AdaptiveJoin runs the joins of a query one at a time, and orders the joins
+ * that have not run yet again when an intermediate result turns out to be much
+ * larger or smaller than estimated.
+ * <p>
+ * When it is opened, the result of each join but the last is
+ * {@link Materialize materialized}, and the number of tuples the join produced
+ * is compared with the cardinality {@link JoinOptimizer} estimates for it from
+ * the sizes of its inputs.  If they differ by more than the
+ * {@link JoinOptimizer#setReoptimizationFactor re-optimization factor}, the
+ * remaining joins are passed to {@link JoinOptimizer#orderJoins} again, with
+ * the tables joined so far standing for one table of the observed
+ * cardinality.  The statistics of that table are used for its own fields; the
+ * fields of the other tables of the group are taken to have no statistics,
+ * even if that table has fields of the same names.  The new order is only
+ * approximate, but it no longer builds on an estimate that is known to be
+ * wrong.  The tuples are returned with the fields in the order of the plan
+ * the joins were first ordered for.
+ * <p>
+ * {@link LogicalPlan#physicalPlan} uses this operator for queries with more
+ * than one join and no subqueries, once a re-optimization factor is set; by
+ * default the joins are not ordered again.
+ */
+public class AdaptiveJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final LogicalPlan lp;
+    private final Vector<LogicalJoinNode> joins;
+    private final HashMap<String, OpIterator> scans;
+    private final HashMap<String, TableStats> stats;
+    private final HashMap<String, Double> filterSelectivities;
+    private OpIterator plan;
+    private final TupleDesc td;
+
+    private OpIterator root;
+    private int reoptimizations = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param lp
+     *            the logical plan of the query
+     * @param joins
+     *            the joins, in the order they were first ordered in
+     * @param scans
+     *            the (filtered) scan of each table, referenced by alias
+     * @param stats
+     *            the statistics of each table, referenced by base table name
+     * @param filterSelectivities
+     *            the selectivity of the filters on each table, referenced by
+     *            alias
+     * @param plan
+     *            the plan that performs the joins in the order given; its
+     *            fields are the fields of this operator
+     */
+    public AdaptiveJoin(LogicalPlan lp, Vector<LogicalJoinNode> joins,
+            HashMap<String, OpIterator> scans,
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities, OpIterator plan) {
+        this.lp = lp;
+        this.joins = new Vector<LogicalJoinNode>(joins);
+        this.scans = new HashMap<String, OpIterator>(scans);
+        this.stats = stats;
+        this.filterSelectivities = filterSelectivities;
+        this.plan = plan;
+        this.td = plan.getTupleDesc();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of times the remaining joins were ordered again the
+     *         last time this operator was opened
+     */
+    public int getReoptimizations() {
+        return reoptimizations;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        reoptimizations = 0;
+        double factor = JoinOptimizer.getReoptimizationFactor();
+        HashMap<String, OpIterator> subplans = new HashMap<String, OpIterator>(scans);
+        // 已经连接到一起的表：别名 -> 代表这一组的别名
+        HashMap<String, String> groups = new HashMap<String, String>();
+        HashMap<String, Integer> observed = new HashMap<String, Integer>();
+        Vector<LogicalJoinNode> remaining = new Vector<LogicalJoinNode>(joins);
+
+        try {
+            while (remaining.size() > 1) {
+                LogicalJoinNode lj = remaining.remove(0);
+                String t1 = group(groups, lj.t1Alias);
+                String t2 = group(groups, lj.t2Alias);
+                int estimate = estimateJoin(lj, cardinality(t1, observed),
+                        cardinality(t2, observed));
+                Operator j = (Operator) JoinOptimizer.instantiateJoin(lj,
+                        subplans.get(t1), subplans.get(t2));
+                Materialize m = new Materialize(HashEquiJoin.MAP_SIZE, j);
+                m.open();
+                int actual = j.getActualCardinality();
+                subplans.put(t1, m);
+                subplans.remove(t2);
+                observed.put(t1, actual);
+                observed.remove(t2);
+                for (Map.Entry<String, String> e : groups.entrySet()) {
+                    if (e.getValue().equals(t2))
+                        e.setValue(t1);
+                }
+                groups.put(t2, t1);
+
+                // 没读完的结果只知道下界
+                boolean diverged = actual > factor * estimate
+                        || (m.isComplete() && Math.max(actual, 1) * factor < estimate);
+                if (factor > 0 && diverged) {
+                    Vector<LogicalJoinNode> reordered = reorder(remaining, groups, observed);
+                    if (reordered != remaining) {
+                        remaining = reordered;
+                        reoptimizations++;
+                    }
+                }
+            }
+            LogicalJoinNode lj = remaining.get(0);
+            root = JoinOptimizer.instantiateJoin(lj,
+                    subplans.get(group(groups, lj.t1Alias)),
+                    subplans.get(group(groups, lj.t2Alias)));
+        } catch (ParsingException e) {
+            throw new DbException("could not re-order joins: " + e.getMessage());
+        }
+        root = reorderFields(root);
+        root.open();
+        super.open();
+    }
+
+    private static String group(HashMap<String, String> groups, String alias) {
+        String g = groups.get(alias);
+        return g == null ? alias : g;
+    }
+
+    // 执行过的组用实际基数，基表用统计信息估计
+    private int cardinality(String alias, HashMap<String, Integer> observed) {
+        Integer card = observed.get(alias);
+        if (card != null)
+            return card;
+        TableStats s = stats.get(Database.getCatalog().getTableName(
+                lp.getTableId(alias)));
+        Double sel = filterSelectivities.get(alias);
+        return s.estimateTableCardinality(sel == null ? 1.0 : sel);
+    }
+
+    private int estimateJoin(LogicalJoinNode lj, int card1, int card2) {
+        Catalog c = Database.getCatalog();
+        boolean t1pkey = c.getPrimaryKey(lp.getTableId(lj.t1Alias)).equals(lj.f1PureName);
+        boolean t2pkey = c.getPrimaryKey(lp.getTableId(lj.t2Alias)).equals(lj.f2PureName);
+        return JoinOptimizer.estimateTableJoinCardinality(lj.p, lj.t1Alias,
+                lj.t2Alias, lj.f1PureName, lj.f2PureName, card1, card2,
+                t1pkey, t2pkey, stats, lp.getTableAliasToIdMapping());
+    }
+
+    /**
+     * Order the remaining joins again, with each group of tables joined so far
+     * standing for the table of its first alias, filtered to the observed
+     * cardinality of the group.  Fields of the other tables of a group are
+     * renamed, so that they are not looked up in the statistics of that table.
+     *
+     * @return the joins in the new order, or the given vector if they cannot
+     *         be ordered again
+     */
+    private Vector<LogicalJoinNode> reorder(Vector<LogicalJoinNode> remaining,
+            HashMap<String, String> groups, HashMap<String, Integer> observed)
+            throws ParsingException {
+        Vector<LogicalJoinNode> rewritten = new Vector<LogicalJoinNode>();
+        for (LogicalJoinNode lj : remaining) {
+            String t1 = group(groups, lj.t1Alias);
+            String t2 = group(groups, lj.t2Alias);
+            if (t1.equals(t2)) {
+                // 两侧已经在同一组里（环状的连接），无法当作两个表之间的连接
+                return remaining;
+            }
+            rewritten.add(new LogicalJoinNode(t1, t2, groupField(lj.t1Alias, t1, lj.f1PureName),
+                    groupField(lj.t2Alias, t2, lj.f2PureName), lj.p));
+        }
+
+        HashMap<String, Double> selectivities = new HashMap<String, Double>(filterSelectivities);
+        for (Map.Entry<String, Integer> e : observed.entrySet()) {
+            TableStats s = stats.get(Database.getCatalog().getTableName(
+                    lp.getTableId(e.getKey())));
+            int total = s.totalTuples();
+            selectivities.put(e.getKey(), total > 0 ? (double) e.getValue() / total : 1.0);
+        }
+        Vector<LogicalJoinNode> ordered = new JoinOptimizer(lp, rewritten)
+                .orderJoins(stats, selectivities, false);
+
+        // 新顺序中的join可能交换了内外两侧，换回原来的别名
+        Vector<LogicalJoinNode> result = new Vector<LogicalJoinNode>();
+        boolean[] used = new boolean[rewritten.size()];
+        for (LogicalJoinNode o : ordered) {
+            int i = indexOf(rewritten, o);
+            if (i >= 0) {
+                result.add(remaining.get(i));
+            } else {
+                i = swappedIndexOf(rewritten, o, used);
+                if (i < 0)
+                    return remaining;
+                result.add(remaining.get(i).swapInnerOuter());
+            }
+            used[i] = true;
+        }
+        return result.size() == remaining.size() ? result : remaining;
+    }
+
+    // 组里其他表的字段不能用代表表的统计信息（同名字段是另一列），换成任何表都没有的名字
+    private static String groupField(String alias, String group, String field) {
+        return alias.equals(group) ? field : alias + "#" + field;
+    }
+
+    // LogicalJoinNode.equals不区分内外两侧，这里按引用查找
+    private static int indexOf(Vector<LogicalJoinNode> v, LogicalJoinNode o) {
+        for (int i = 0; i < v.size(); i++) {
+            if (v.get(i) == o)
+                return i;
+        }
+        return -1;
+    }
+
+    private static int swappedIndexOf(Vector<LogicalJoinNode> v, LogicalJoinNode o, boolean[] used) {
+        for (int i = 0; i < v.size(); i++) {
+            LogicalJoinNode w = v.get(i);
+            if (!used[i] && w.t1Alias.equals(o.t2Alias) && w.t2Alias.equals(o.t1Alias)
+                    && w.f1PureName.equals(o.f2PureName) && w.f2PureName.equals(o.f1PureName))
+                return i;
+        }
+        return -1;
+    }
+
+    // 换了连接顺序后字段的顺序也变了，按名字投影回原来的顺序
+    private OpIterator reorderFields(OpIterator j) {
+        TupleDesc jtd = j.getTupleDesc();
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        ArrayList<Type> types = new ArrayList<Type>();
+        boolean same = true;
+        for (int i = 0; i < td.numFields(); i++) {
+            int f = jtd.fieldNameToIndex(td.getFieldName(i));
+            same = same && f == i;
+            fields.add(f);
+            types.add(td.getFieldType(i));
+        }
+        return same ? j : new Project(fields, types, j);
+    }
+
+    public void close() {
+        super.close();
+        if (root != null) {
+            root.close();
+            root = null;
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        root.rewind();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the tuples of the joins
+     *
+     * @return The next tuple, or null if there are no more tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (root.hasNext())
+            return root.next();
+        else
+            return null;
+    }
+
+    /**
+     * @return the plan the joins were first ordered for; the joins that run
+     *         may be ordered differently
+     */
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.plan };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.plan = children[0];
+    }
+
+}
@@ -1,7 +1,11 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import simpledb.Predicate.Op;
 
@@ -23,7 +27,28 @@ public class BTreeFile implements DbFile {
     private final File f;
     private final TupleDesc td;
     private final int tableid;
-    private int keyField;
+    private final int[] keyFields;
+    // opened on first use and kept open until close(); positional reads and
+    // writes on a FileChannel are safe to issue from several threads at once
+    private FileChannel channel;
+    // one page-sized read buffer per thread, see pooledReadBuffer()
+    private static final ThreadLocal<ByteBuffer> readBuffers = new ThreadLocal<ByteBuffer>();
+    // sampleLeaves() gives up after this many tries per leaf page asked for
+    private static final int SAMPLE_TRIES = 100;
+    // latches on the root pointer and internal pages, which searches use
+    // instead of transaction locks, see findLeafPage()
+    private final PageLatches latches = new PageLatches();
+    // splits and merges of this tree run one at a time
+    private final ReentrantLock structureLock = new ReentrantLock();
+    // pages latched for writing by the split or merge holding structureLock
+    private final List<BTreePageId> writeLatched = new ArrayList<BTreePageId>();
+    // incremented whenever a merge or redistribution of leaf pages starts and ends; these
+    // can move keys to the left, which a search cannot recover from by moving right
+    private final AtomicLong mergeVersion = new AtomicLong();
+    // set once the root pointer page exists, so that searches need not check the file length
+    private volatile boolean created;
+    // how many leaf pages ahead of a scan the LeafPrefetcher reads, 0 to not read ahead
+    private volatile int prefetchDepth = LeafPrefetcher.DEFAULT_DEPTH;
 
     /**
      * Constructs a B+ tree file backed by the specified file.
@@ -34,9 +59,27 @@ public class BTreeFile implements DbFile {
      * @param td  - the tuple descriptor of tuples in the file
      */
     public BTreeFile(File f, int key, TupleDesc td) {
+        this(f, new int[]{key}, td);
+    }
+
+    /**
+     * Constructs a B+ tree file keyed on several fields, backed by the specified file.
+     * Keys are compared lexicographically, see {@link CompositeField}.  Internal pages
+     * only store a prefix of a string key field if it is the last one, so a long string
+     * field should be the last key field.
+     *
+     * @param f         - the file that stores the on-disk backing store for this B+ tree
+     *                  file.
+     * @param keyFields - the fields which index is keyed on, most significant first
+     * @param td        - the tuple descriptor of tuples in the file
+     */
+    public BTreeFile(File f, int[] keyFields, TupleDesc td) {
+        if (keyFields.length == 0) {
+            throw new IllegalArgumentException("a B+ tree needs at least one key field");
+        }
         this.f = f;
         this.tableid = f.getAbsoluteFile().hashCode();
-        this.keyField = key;
+        this.keyFields = keyFields.clone();
         this.td = td;
     }
 
@@ -78,63 +121,55 @@ public class BTreeFile implements DbFile {
      */
     public Page readPage(PageId pid) {
         BTreePageId id = (BTreePageId) pid;
-        BufferedInputStream bis = null;
-
         try {
-            bis = new BufferedInputStream(new FileInputStream(f));
             if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-                byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BTreeRootPtrPage.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
-                return p;
-            } else {
-                byte pageBuf[] = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BufferPool.getPageSize() + " bytes from BTreeFile");
-                }
+                ByteBuffer buf = ByteBuffer.allocate(BTreeRootPtrPage.getPageSize());
+                readFully(buf, 0);
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
-                    return p;
-                } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
-                    return p;
-                } else { // id.pgcateg() == BTreePageId.HEADER
-                    BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
-                    return p;
-                }
+                return new BTreeRootPtrPage(id, buf.array());
+            }
+            ByteBuffer buf = pooledReadBuffer();
+            readFully(buf, pageOffset(id));
+            Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+            if (id.pgcateg() == BTreePageId.INTERNAL) {
+                return new BTreeInternalPage(id, buf.array(), keyFields);
+            } else if (id.pgcateg() == BTreePageId.LEAF) {
+                return new BTreeLeafPage(id, buf.array(), keyFields);
+            } else { // id.pgcateg() == BTreePageId.HEADER
+                return new BTreeHeaderPage(id, buf.array());
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
-        } finally {
-            // Close the file on success or error
-            try {
-                if (bis != null)
-                    bis.close();
-            } catch (IOException ioe) {
-                // Ignore failures closing the file
+        }
+    }
+
+    // fill the buffer with a single positional read, looping only on short reads
+    private void readFully(ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel().read(buf, offset + buf.position()) == -1) {
+                if (buf.position() == 0) {
+                    throw new IllegalArgumentException("Read past end of table");
+                }
+                throw new IllegalArgumentException("Unable to read "
+                        + buf.capacity() + " bytes from BTreeFile");
             }
         }
     }
 
+    /**
+     * Return this thread's buffer for reading one page, cleared.  The page
+     * constructors copy the data out of it, so it can be reused right away.
+     */
+    private static ByteBuffer pooledReadBuffer() {
+        ByteBuffer buf = readBuffers.get();
+        if (buf == null || buf.capacity() != BufferPool.getPageSize()) {
+            buf = ByteBuffer.allocate(BufferPool.getPageSize());
+            readBuffers.set(buf);
+        }
+        buf.clear();
+        return buf;
+    }
+
     /**
      * Write a page to disk.  This should not be called directly but should
      * be called from the BufferPool when pages are flushed to disk
@@ -142,17 +177,64 @@ public class BTreeFile implements DbFile {
      * @param page - the page to write to disk
      */
     public void writePage(Page page) throws IOException {
-        BTreePageId id = (BTreePageId) page.getId();
+        write(page.getPageData(), pageOffset((BTreePageId) page.getId()));
+    }
 
-        byte[] data = page.getPageData();
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
+    /**
+     * Write a run of pages with consecutive page numbers to disk with a single
+     * write.  The root pointer page is stored right before page 1, so it can
+     * be part of a run as well.
+     *
+     * @param pages - the pages to write, sorted by page number with no gaps
+     */
+    public void writePages(List<Page> pages) throws IOException {
+        if (pages.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (Page page : pages) {
+            data.write(page.getPageData());
+        }
+        write(data.toByteArray(), pageOffset((BTreePageId) pages.get(0).getId()));
+    }
+
+    /**
+     * Return the offset of the specified page in the file.  The root pointer
+     * page comes first, followed by the other pages starting at page 1.
+     */
+    private static long pageOffset(BTreePageId id) {
         if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-            rf.write(data);
-            rf.close();
-        } else {
-            rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-            rf.write(data);
-            rf.close();
+            return 0;
+        }
+        return BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize();
+    }
+
+    private void write(byte[] data, long offset) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            channel().write(buf, offset + buf.position());
+        }
+    }
+
+    private synchronized FileChannel channel() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            channel = new RandomAccessFile(f, "rw").getChannel();
+        }
+        return channel;
+    }
+
+    /**
+     * Close the channel this file reads and writes through.  It is opened
+     * again if the file is used afterwards.
+     */
+    public synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            channel = null;
         }
     }
 
@@ -165,140 +247,391 @@ public class BTreeFile implements DbFile {
     }
 
     /**
-     * Returns the index of the field that this B+ tree is keyed on
+     * Returns the index of the field that this B+ tree is keyed on, or of the first
+     * one if it is keyed on several fields
      */
     public int keyField() {
-        return keyField;
+        return keyFields[0];
     }
 
     /**
-     * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-     * the left-most page possibly containing the key field f. It locks all internal
-     * nodes along the path to the leaf node with READ_ONLY permission, and locks the
-     * leaf node with permission perm.
+     * Returns the indexes of the fields that this B+ tree is keyed on, most significant first
+     */
+    public int[] keyFields() {
+        return keyFields.clone();
+    }
+
+    /**
+     * Returns the key of a tuple of this file: its key field, or a {@link CompositeField}
+     * of its key fields if the tree is keyed on several fields.  Index predicates on
+     * the tree compare keys of this kind.
+     */
+    public Field getKey(Tuple t) {
+        return BTreePage.getKey(t, keyFields);
+    }
+
+    /**
+     * Find and lock the leaf page in the B+ tree corresponding to the left-most page
+     * possibly containing the key field f, or the right-most one if reverse is set.
+     * The root pointer and the internal pages along the path are not locked: the search
+     * only latches each of them while it picks the child to descend to, and releases
+     * the latch as soon as it holds the latch of the child.  Only the leaf page is
+     * locked, with permission perm.
      * <p>
-     * If f is null, it finds the left-most leaf page -- used for the iterator
+     * The lock on the leaf is requested after all latches have been released, so a
+     * search never blocks other searches while it waits for a lock.  Splits that ran
+     * in the meantime can only have moved keys from the leaf to new pages on its right,
+     * so as in a B-link tree (Lehman and Yao) the search follows right sibling pointers
+     * while the key is above the leaf's high key.  The same covers internal pages that
+     * store only a prefix of string keys: the descent may end in a leaf to the left of
+     * the one holding f, and the high keys of leaves are stored in full.  If a merge or
+     * a rollback may have
+     * changed the tree since the search started, the search is repeated until it
+     * arrives at the leaf it holds the lock of.
+     * <p>
+     * If f is null, it finds the left-most (right-most) leaf page -- used for the iterators
      *
      * @param tid        - the transaction id
      * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-     * @param pid        - the current page being searched
      * @param perm       - the permissions with which to lock the leaf page
      * @param f          - the field to search for
-     * @return the left-most leaf page possibly containing the key field f
+     * @param reverse    - whether to find the right-most instead of the left-most leaf page
+     * @param acquired   - if not null, the id of the leaf page is added to it if the transaction
+     *                   did not hold a lock on the page before
+     * @return the leaf page possibly containing the key field f, or null if the tree has no root
      */
-    private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
-                                       Field f)
+    private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Permissions perm,
+                                       Field f, boolean reverse, Set<PageId> acquired)
             throws DbException, TransactionAbortedException {
-        // some code goes here
-        switch (pid.pgcateg()) {
-            case BTreePageId.LEAF:
-                return (BTreeLeafPage) (this.getPage(tid, dirtypages, pid, perm));
-            case BTreePageId.INTERNAL:
-                BTreeInternalPage page = (BTreeInternalPage) (this.getPage(tid, dirtypages, pid, Permissions.READ_ONLY));
-                Iterator<BTreeEntry> entryIterator = page.iterator();
-                if (entryIterator == null || !entryIterator.hasNext()) {
-                    throw new DbException("");
-                }
-                if (f == null) {
-                    return findLeafPage(tid, dirtypages, entryIterator.next().getLeftChild(), perm, f);
+        BufferPool bp = Database.getBufferPool();
+        long merges = mergeVersion.get();
+        long restores = bp.restoreCount();
+        BTreePageId leafId = descend(f, reverse);
+        while (leafId != null) {
+            if (dirtypages.containsKey(leafId)) {
+                return (BTreeLeafPage) dirtypages.get(leafId);
+            }
+            boolean held = bp.holdsLock(tid, leafId);
+            Page leaf = bp.tryGetPage(tid, leafId, perm);
+            if (leaf == null) {
+                leaf = bp.getPage(tid, leafId, perm);
+            }
+            BTreePageId next;
+            if (merges == mergeVersion.get() && restores == bp.restoreCount()) {
+                // 之后只可能有split，key只会被移到右边的新page
+                if (!mustMoveRight((BTreeLeafPage) leaf, f, reverse)) {
+                    return acquiredLeaf(dirtypages, leaf, perm, held ? null : acquired);
                 }
-                BTreeEntry entry = entryIterator.next();
-                while (true) {
-                    if (entry.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
-                        return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
+                next = ((BTreeLeafPage) leaf).getRightSiblingId();
+            } else {
+                // 持有leaf的锁之后再查找一次：如果仍然到达这个leaf，在释放锁之前它包含的key范围不会再变
+                merges = mergeVersion.get();
+                restores = bp.restoreCount();
+                next = descend(f, reverse);
+                if (leafId.equals(next)) {
+                    if (!mustMoveRight((BTreeLeafPage) leaf, f, reverse)) {
+                        return acquiredLeaf(dirtypages, leaf, perm, held ? null : acquired);
                     }
-                    if (entryIterator.hasNext()) {
-                        entry = entryIterator.next();
-                    } else break;
+                    next = ((BTreeLeafPage) leaf).getRightSiblingId();
                 }
-                return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
-            case BTreePageId.HEADER:
-            case BTreePageId.ROOT_PTR:
-            default:
-                throw new DbException("");
+            }
+            if (!held) {
+                // 还没有读过这个page，可以放掉它的锁
+                releaseUnmodified(tid, leaf);
+            }
+            leafId = next;
+        }
+        return null;
+    }
+
+    /**
+     * Release the lock of the specified transaction on a leaf page that it locked
+     * but did not modify.
+     */
+    private static void releaseUnmodified(TransactionId tid, Page page) {
+        // BufferPool.getPage()把刚读入的READ_WRITE page标记为脏，放锁之前要撤销，
+        // 否则这个事务abort时会用before image覆盖别的事务的修改
+        if (tid.equals(page.isDirty())) {
+            page.markDirty(false, null);
         }
+        Database.getBufferPool().releasePage(tid, page.getId());
     }
 
     /**
-     * Convenience method to find a leaf page when there is no dirtypages HashMap.
-     * Used by the BTreeFile iterator.
+     * Whether keys a search for f is looking for may have been moved from the
+     * specified leaf page to its right sibling by a split.
+     */
+    private static boolean mustMoveRight(BTreeLeafPage leaf, Field f, boolean reverse) {
+        Field highKey = leaf.getHighKey();
+        if (highKey == null) {
+            return false;
+        }
+        if (reverse) {
+            return f == null || f.compare(Op.GREATER_THAN_OR_EQ, highKey);
+        }
+        return f != null && f.compare(Op.GREATER_THAN, highKey);
+    }
+
+    private static BTreeLeafPage acquiredLeaf(HashMap<PageId, Page> dirtypages, Page leaf, Permissions perm,
+                                              Set<PageId> acquired) {
+        if (perm == Permissions.READ_WRITE) {
+            dirtypages.put(leaf.getId(), leaf);
+        }
+        if (acquired != null) {
+            acquired.add(leaf.getId());
+        }
+        return (BTreeLeafPage) leaf;
+    }
+
+    /**
+     * Descend from the root pointer to the leaf page possibly containing the key field
+     * f, latching each page for reading while looking at it (latch crabbing).
+     *
+     * @return the id of the leaf page, or null if the tree has no root
+     */
+    private BTreePageId descend(Field f, boolean reverse) throws DbException {
+        BufferPool bp = Database.getBufferPool();
+        createIfEmpty();
+        BTreePageId pid = BTreeRootPtrPage.getId(tableid);
+        latches.readLock(pid);
+        try {
+            BTreePageId child = ((BTreeRootPtrPage) bp.getLatchedPage(pid)).getRootId();
+            while (child != null && child.pgcateg() == BTreePageId.INTERNAL) {
+                latches.readLock(child);
+                latches.readUnlock(pid);
+                pid = child;
+                BTreeInternalPage page = (BTreeInternalPage) bp.getLatchedPage(pid);
+                if (page.getNumEntries() == 0) {
+                    throw new DbException("");
+                }
+                // 在page内二分查找要进入的子节点
+                child = reverse ? page.findReverseChild(f) : page.findChild(f);
+            }
+            return child;
+        } finally {
+            latches.readUnlock(pid);
+        }
+    }
+
+    /**
+     * Returns the number of levels of the B+ tree: 0 if it has no root page yet,
+     * 1 if the root page is a leaf, plus one for each level of internal pages
+     * above it.  A search reads this many
+     * pages to reach a leaf.  Like {@link #descend}, this only latches the pages
+     * along the left-most path of the tree.
+     *
+     * @return the height of the tree
+     */
+    public int height() throws DbException {
+        BufferPool bp = Database.getBufferPool();
+        createIfEmpty();
+        BTreePageId pid = BTreeRootPtrPage.getId(tableid);
+        latches.readLock(pid);
+        try {
+            BTreePageId child = ((BTreeRootPtrPage) bp.getLatchedPage(pid)).getRootId();
+            if (child == null) {
+                return 0;
+            }
+            int height = 1;
+            while (child.pgcateg() == BTreePageId.INTERNAL) {
+                latches.readLock(child);
+                latches.readUnlock(pid);
+                pid = child;
+                child = ((BTreeInternalPage) bp.getLatchedPage(pid)).findChild(null);
+                height++;
+            }
+            return height;
+        } finally {
+            latches.readUnlock(pid);
+        }
+    }
+
+    /**
+     * The result of {@link #sampleLeaves}: the ids of the sampled leaf pages, and
+     * an estimate of the number of leaf pages in the tree.
+     */
+    public static class LeafSample {
+        public final List<BTreePageId> leaves;
+        public final double numLeaves;
+
+        LeafSample(List<BTreePageId> leaves, double numLeaves) {
+            this.leaves = leaves;
+            this.numLeaves = numLeaves;
+        }
+    }
+
+    /**
+     * Choose up to count distinct leaf pages of the tree at random, each of them
+     * equally likely, without reading the others.  Each try walks from the root to
+     * a leaf, picking a child of each internal page at random, and keeps the leaf
+     * with a probability proportional to the product of the numbers of children
+     * along the path, which makes up for leaves under pages with few children
+     * being more likely to be reached (Olken and Rotem).  The average of those
+     * products over all tries estimates the number of leaf pages (Knuth).
+     * <p>
+     * Like {@link #descend}, this only latches the internal pages; the leaf pages
+     * are not read.
+     *
+     * @param count  the number of leaf pages to choose
+     * @param random the source of random numbers
+     * @return the chosen leaf pages, and the estimated number of leaf pages
+     */
+    public LeafSample sampleLeaves(int count, Random random) throws DbException {
+        BufferPool bp = Database.getBufferPool();
+        createIfEmpty();
+        LinkedHashSet<BTreePageId> leaves = new LinkedHashSet<BTreePageId>();
+        double products = 0.0;
+        int tries = 0;
+        // 被拒绝的尝试太多时停止，小树的叶子可能少于count个
+        while (leaves.size() < count && tries < SAMPLE_TRIES * count) {
+            tries++;
+            double product = 1.0;
+            double maxProduct = 1.0;
+            BTreePageId pid = BTreeRootPtrPage.getId(tableid);
+            latches.readLock(pid);
+            BTreePageId child;
+            try {
+                child = ((BTreeRootPtrPage) bp.getLatchedPage(pid)).getRootId();
+                while (child != null && child.pgcateg() == BTreePageId.INTERNAL) {
+                    latches.readLock(child);
+                    latches.readUnlock(pid);
+                    pid = child;
+                    BTreeInternalPage page = (BTreeInternalPage) bp.getLatchedPage(pid);
+                    int children = page.getNumEntries() + 1;
+                    product *= children;
+                    maxProduct *= page.getMaxEntries() + 1;
+                    child = page.childAt(random.nextInt(children));
+                }
+            } finally {
+                latches.readUnlock(pid);
+            }
+            if (child == null) {
+                return new LeafSample(new ArrayList<BTreePageId>(), 0.0);
+            }
+            products += product;
+            if (random.nextDouble() * maxProduct < product) {
+                leaves.add(child);
+            }
+        }
+        return new LeafSample(new ArrayList<BTreePageId>(leaves), products / tries);
+    }
+
+    /**
+     * Find and lock the left-most leaf page possibly containing the key field f.
+     * Used by the BTreeFile iterators.
+     *
+     * @param tid  - the transaction id
+     * @param perm - the permissions with which to lock the leaf page
+     * @param f    - the field to search for, or null for the left-most leaf page
+     * @return the leaf page, or null if the tree has no root
+     * @see #findLeafPage(TransactionId, HashMap, Permissions, Field, boolean, Set)
+     */
+    BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f)
+            throws DbException, TransactionAbortedException {
+        return findLeafPage(tid, new HashMap<PageId, Page>(), perm, f, false, null);
+    }
+
+    /**
+     * Find and lock the right-most leaf page possibly containing the key field f.
+     * Used by the BTreeFile reverse iterators.
      *
      * @param tid  - the transaction id
-     * @param pid  - the current page being searched
      * @param perm - the permissions with which to lock the leaf page
-     * @param f    - the field to search for
-     * @return the left-most leaf page possibly containing the key field f
-     * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+     * @param f    - the field to search for, or null for the right-most leaf page
+     * @return the leaf page, or null if the tree has no root
+     * @see #findLeafPage(TransactionId, HashMap, Permissions, Field, boolean, Set)
      */
-    BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-                               Field f)
+    BTreeLeafPage findReverseLeafPage(TransactionId tid, Permissions perm, Field f)
             throws DbException, TransactionAbortedException {
-        return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+        return findLeafPage(tid, new HashMap<PageId, Page>(), perm, f, true, null);
     }
 
     /**
-     * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-     * the left-most page possibly containing the key field f. It locks all internal
-     * nodes along the path to the leaf node with READ_ONLY permission, and locks the
-     * leaf node with permission perm.
+     * Prepare a split or merge above the specified page.  Locks the ancestors
+     * of the page that the change may modify with READ_WRITE permission, from its
+     * parent up to the first one that can absorb the change (up to the root pointer
+     * if the root itself may split or go away), and then latches them for writing
+     * from the top down, so that searches cannot see the pages half-way through
+     * the change.  Pages the change touches besides these, like siblings and new
+     * pages, are latched by getPage() when they are fetched for writing.
      * <p>
-     * If f is null, it finds the left-most leaf page -- used for the iterator
+     * Must be called while holding structureLock, and before the change modifies
+     * any internal page.
      *
      * @param tid        - the transaction id
      * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-     * @param pid        - the current page being searched
-     * @param perm       - the permissions with which to lock the leaf page
-     * @param f          - the field to search for
-     * @return the left-most leaf page possibly containing the key field f
+     * @param page       - the page that is about to split or merge
+     * @param split      - true for a split, false for a merge or redistribution
      */
-    private BTreeLeafPage findReverseLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
-                                              Field f)
+    private void latchAncestors(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePage page,
+                                boolean split)
             throws DbException, TransactionAbortedException {
-        // some code goes here
-        switch (pid.pgcateg()) {
-            case BTreePageId.LEAF:
-                return (BTreeLeafPage) (this.getPage(tid, dirtypages, pid, perm));
-            case BTreePageId.INTERNAL:
-                BTreeInternalPage page = (BTreeInternalPage) (this.getPage(tid, dirtypages, pid, Permissions.READ_ONLY));
-                Iterator<BTreeEntry> entryIterator = page.reverseIterator();
-                if (entryIterator == null || !entryIterator.hasNext()) {
-                    throw new DbException("");
-                }
-                if (f == null) {
-                    return findLeafPage(tid, dirtypages, entryIterator.next().getRightChild(), perm, f);
-                }
-                BTreeEntry entry = entryIterator.next();
-                while (true) {
-                    if (entry.getKey().compare(Op.LESS_THAN, f)) {
-                        return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
-                    }
-                    if (entryIterator.hasNext()) {
-                        entry = entryIterator.next();
-                    } else break;
-                }
-                return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
-            case BTreePageId.HEADER:
-            case BTreePageId.ROOT_PTR:
-            default:
-                throw new DbException("");
+        // 先自底向上加事务锁（此时不持有任何latch，等锁不会挡住其他查找），再自顶向下加写latch
+        LinkedList<BTreePageId> path = new LinkedList<BTreePageId>();
+        BTreePageId pid = page.getParentId();
+        while (true) {
+            Page p = Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+            keepForUpdate(tid, dirtypages, p);
+            path.addFirst(pid);
+            if (pid.pgcateg() == BTreePageId.ROOT_PTR || isSafe((BTreeInternalPage) p, split)) {
+                break;
+            }
+            pid = ((BTreeInternalPage) p).getParentId();
+        }
+        for (BTreePageId id : path) {
+            latchForWrite(id);
+        }
+        if (!split) {
+            mergeVersion.incrementAndGet();
         }
     }
 
     /**
-     * Convenience method to find a leaf page when there is no dirtypages HashMap.
-     * Used by the BTreeFile iterator.
-     *
-     * @param tid  - the transaction id
-     * @param pid  - the current page being searched
-     * @param perm - the permissions with which to lock the leaf page
-     * @param f    - the field to search for
-     * @return the left-most leaf page possibly containing the key field f
-     * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+     * Release the latches taken for a split or merge.
      */
-    BTreeLeafPage findReverseLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-                                      Field f)
-            throws DbException, TransactionAbortedException {
-        return findReverseLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+    private void releaseLatches() {
+        for (BTreePageId pid : writeLatched) {
+            latches.writeUnlock(pid);
+        }
+        writeLatched.clear();
+    }
+
+    private void latchForWrite(BTreePageId pid) {
+        if (!writeLatched.contains(pid)) {
+            latches.writeLock(pid);
+            writeLatched.add(pid);
+        }
+    }
+
+    // 分裂或合并在中途因为等锁超时而中止时，已经修改过的internal page对不加锁的查找是可见的；
+    // 在释放latch和structureLock之前就把它们恢复成before image，而不是等到事务abort
+    private static void undoChange(HashMap<PageId, Page> dirtypages) {
+        Database.getBufferPool().restorePages(dirtypages.values());
+    }
+
+    /**
+     * Add a page that a split or merge is about to change to dirtypages, and mark it
+     * dirty in the buffer pool right away.  A page that is not dirty may be evicted
+     * while the change is still running, and searches, which do not lock internal
+     * pages, would then read the old version from disk.
+     */
+    private static void keepForUpdate(TransactionId tid, HashMap<PageId, Page> dirtypages, Page p)
+            throws DbException {
+        dirtypages.put(p.getId(), p);
+        Database.getBufferPool().cacheDirtyPages(tid, Collections.singletonList(p));
+    }
+
+    // internal page能否吸收一次分裂（多一个entry）或合并（少一个entry）而不需要修改它的父节点
+    private static boolean isSafe(BTreeInternalPage page, boolean split) {
+        if (split) {
+            return page.getNumEmptySlots() > 0;
+        }
+        if (page.getParentId().pgcateg() == BTreePageId.ROOT_PTR) {
+            // 根节点只剩一个entry时，合并会让根节点消失
+            return page.getNumEntries() > 1;
+        }
+        int maxEmptySlots = page.getMaxEntries() - page.getMaxEntries() / 2; // ceiling
+        return page.getNumEmptySlots() + 1 <= maxEmptySlots;
     }
 
     /**
@@ -352,9 +685,11 @@ public class BTreeFile implements DbFile {
         newleafPage.setRightSiblingId((page.getRightSiblingId()));
         newleafPage.setLeftSiblingId(page.getId());
         page.setRightSiblingId(newleafPage.getId());
-        Field field1 = newleafPage.iterator().next().getField(keyField);
+        Field field1 = separator(page, newleafPage);
+        newleafPage.setHighKey(page.getHighKey());
+        page.setHighKey(field1);
         BTreeEntry bTreeEntry = new BTreeEntry(field1, page.getId(), newleafPage.getId());
-        BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), field1);
+        BTreeInternalPage parent = parentWithEmptySlots(tid, dirtypages, page, page.internalKey(field1));
         parent.insertEntry(bTreeEntry);
         updateParentPointers(tid, dirtypages, parent);
         return (field1.compare(Op.GREATER_THAN_OR_EQ, field)) ? page : newleafPage;
@@ -411,11 +746,11 @@ public class BTreeFile implements DbFile {
         page.deleteKeyAndRightChild(e1);
         Field field1 = e1.getKey();
         e1 = new BTreeEntry(field1, page.getId(), newinternalPage.getId());
-        BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), field1);
+        BTreeInternalPage parent = parentWithEmptySlots(tid, dirtypages, page, field1);
         parent.insertEntry(e1);
         updateParentPointers(tid, dirtypages, parent);
         updateParentPointers(tid, dirtypages, newinternalPage);
-        return (field1.compare(Op.GREATER_THAN_OR_EQ, field)) ? page : newinternalPage;
+        return (field1.compare(Op.GREATER_THAN_OR_EQ, page.internalKey(field))) ? page : newinternalPage;
     }
 
     /**
@@ -468,6 +803,65 @@ public class BTreeFile implements DbFile {
 
     }
 
+    /**
+     * Get the parent of a page that is being split ready to accept the entry for the new
+     * page, like getParentWithEmptySlots().  If the parent has to split as well, the half
+     * that ends up holding the page is returned.  Choosing the half by comparing keys is
+     * not enough when the new key equals the key pushed up by the parent's split, which
+     * happens with duplicate keys and with keys that internal pages cut short.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param page       - the page being split
+     * @param field      - the key of the entry that will be inserted
+     * @return the parent page of the page, with at least one empty slot
+     * @see #getParentWithEmptySlots(TransactionId, HashMap, BTreePageId, Field)
+     */
+    private BTreeInternalPage parentWithEmptySlots(TransactionId tid, HashMap<PageId, Page> dirtypages,
+                                                   BTreePage page, Field field)
+            throws DbException, IOException, TransactionAbortedException {
+        getParentWithEmptySlots(tid, dirtypages, page.getParentId(), field);
+        // 父节点分裂或新建根节点时已经更新了page的父指针
+        return (BTreeInternalPage) getPage(tid, dirtypages, page.getParentId(), Permissions.READ_WRITE);
+    }
+
+    /**
+     * Returns the key that separates two adjacent leaf pages, which becomes the high key
+     * of the left page and the key of their entry in the parent.
+     *
+     * @see #shortestSeparator(Field, Field)
+     */
+    private Field separator(BTreeLeafPage left, BTreeLeafPage right) {
+        return shortestSeparator(getKey(left.reverseIterator().next()), getKey(right.iterator().next()));
+    }
+
+    /**
+     * Suffix truncation: returns the shortest prefix of the string key first that is greater
+     * than the string key last, i.e. the shortest key k with last < k <= first.  The keys
+     * on the left of k are less than or equal to it and the keys on its right greater than or
+     * equal to it, so k can separate two pages, and a short separator is more likely to fit
+     * in full after the prefix the keys of an internal page share.  Other keys, and equal
+     * strings, are returned as they are.
+     *
+     * @param last  - the last key of the left page
+     * @param first - the first key of the right page
+     */
+    static Field shortestSeparator(Field last, Field first) {
+        if (!(last instanceof StringField) || !(first instanceof StringField)) {
+            return first;
+        }
+        String l = ((StringField) last).getValue();
+        String f = ((StringField) first).getValue();
+        int i = 0;
+        while (i < l.length() && i < f.length() && l.charAt(i) == f.charAt(i)) {
+            i++;
+        }
+        if (i >= f.length()) {
+            return first;
+        }
+        return new StringField(f.substring(0, i + 1), Type.STRING_LEN);
+    }
+
     /**
      * Helper function to update the parent pointer of a node.
      *
@@ -539,10 +933,23 @@ public class BTreeFile implements DbFile {
             throws DbException, TransactionAbortedException {
         if (dirtypages.containsKey(pid)) {
             return dirtypages.get(pid);
+        } else if (perm == Permissions.READ_ONLY && pid.pgcateg() != BTreePageId.LEAF
+                && pid.pgcateg() != BTreePageId.HEADER && structureLock.isHeldByCurrentThread()) {
+            // 只有持有structureLock的线程会修改internal page和root pointer，读取时不需要加锁
+            return Database.getBufferPool().getLatchedPage(pid);
         } else {
             Page p = Database.getBufferPool().getPage(tid, pid, perm);
             if (perm == Permissions.READ_WRITE) {
-                dirtypages.put(pid, p);
+                if (structureLock.isHeldByCurrentThread()) {
+                    if (pid.pgcateg() == BTreePageId.INTERNAL) {
+                        // 分裂或合并中途修改的兄弟节点、子节点和新page；它们都在已加写latch的节点之下，
+                        // 所以仍然是自顶向下加latch。root pointer只有header指针会在这里被修改，查找不读它
+                        latchForWrite(pid);
+                    }
+                    keepForUpdate(tid, dirtypages, p);
+                } else {
+                    dirtypages.put(pid, p);
+                }
             }
             return p;
         }
@@ -561,22 +968,51 @@ public class BTreeFile implements DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        Set<PageId> acquired = new HashSet<PageId>();
+        Field key = getKey(t);
 
-        // get a read lock on the root pointer page and use it to locate the root page
-        BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-        BTreePageId rootId = rootPtr.getRootId();
-
-        if (rootId == null) { // the root has just been created, so set the root pointer to point to it
-            rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-            rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-            rootPtr.setRootId(rootId);
+        // find and lock the left-most leaf page corresponding to the key field
+        BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, key, false, acquired);
+        if (leafPage == null) {
+            structureLock.lock();
+            try {
+                createRoot(tid, dirtypages);
+            } finally {
+                releaseLatches();
+                structureLock.unlock();
+            }
+            leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, key, false, acquired);
         }
 
-        // find and lock the left-most leaf page corresponding to the key field,
-        // and split the leaf page if there are no more slots available
-        BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+        // split the leaf page if there are no more slots available; only then do the
+        // internal pages above it change
         if (leafPage.getNumEmptySlots() == 0) {
-            leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+            boolean released = false;
+            if (!structureLock.tryLock()) {
+                // 不要持有leaf的锁等待structureLock：正在进行的split可能要修改这个leaf的sibling指针
+                if (acquired.remove(leafPage.getId())) {
+                    dirtypages.remove(leafPage.getId());
+                    releaseUnmodified(tid, leafPage);
+                    released = true;
+                }
+                structureLock.lock();
+            }
+            try {
+                if (released) {
+                    // 等待期间leaf可能已经被split了
+                    leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, key, false, acquired);
+                }
+                if (leafPage.getNumEmptySlots() == 0) {
+                    latchAncestors(tid, dirtypages, leafPage, true);
+                    leafPage = splitLeafPage(tid, dirtypages, leafPage, key);
+                }
+            } catch (TransactionAbortedException e) {
+                undoChange(dirtypages);
+                throw e;
+            } finally {
+                releaseLatches();
+                structureLock.unlock();
+            }
         }
 
         // insert the tuple into the leaf page
@@ -711,11 +1147,10 @@ public class BTreeFile implements DbFile {
                 page.insertTuple(t);
             }
         }
-        if (isRightSibling) {
-            t = tupleIterator.next();
-        }
         assert t != null;
-        entry.setKey(t.getField(keyField));
+        BTreeLeafPage left = isRightSibling ? page : sibling;
+        entry.setKey(separator(left, isRightSibling ? sibling : page));
+        left.setHighKey(entry.getKey());
         parent.updateEntry(entry);
     }
 
@@ -901,6 +1336,7 @@ public class BTreeFile implements DbFile {
             rightneighbor.setLeftSiblingId(leftPage.getId());
         }
         leftPage.setRightSiblingId(rightPage.getRightSiblingId());
+        leftPage.setHighKey(rightPage.getHighKey());
         setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
         deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
     }
@@ -1020,7 +1456,19 @@ public class BTreeFile implements DbFile {
         // or merge with one of the siblings
         int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples() / 2; // ceiling
         if (page.getNumEmptySlots() > maxEmptySlots) {
-            handleMinOccupancyPage(tid, dirtypages, page);
+            structureLock.lock();
+            try {
+                latchAncestors(tid, dirtypages, page, false);
+                handleMinOccupancyPage(tid, dirtypages, page);
+            } catch (TransactionAbortedException e) {
+                undoChange(dirtypages);
+                throw e;
+            } finally {
+                // 合并开始之前出发、在合并期间等待leaf锁的查找也要重新检查
+                mergeVersion.incrementAndGet();
+                releaseLatches();
+                structureLock.unlock();
+            }
         }
 
         ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
@@ -1028,6 +1476,398 @@ public class BTreeFile implements DbFile {
         return dirtyPagesArr;
     }
 
+    /**
+     * Load tuples that arrive sorted on the key field into this BTreeFile from the bottom up.
+     * Instead of descending from the root for every tuple like insertTuple(), the tuples are
+     * appended to the right-most leaf page.  When it holds its share of tuples, a new leaf page
+     * is started on its right, and an entry for the new page is appended to the right-most
+     * internal page above it, which in turn moves its right-most child to a new internal page
+     * of its own when it is full.  Pages are filled up to fillFactor of their capacity, which
+     * leaves room for later inserts.  At the end, the pages on the right edge of the tree that
+     * are less than half full take tuples or entries from their left siblings.
+     * <p>
+     * The tree does not have to be empty, but the tuples are appended to its right edge, so
+     * the first key must not be less than the largest key already in the tree.  The tuples
+     * are read one at a time, so they can come from an external sort of any size; the
+     * iterator must be open, and is left open.  Splits and merges by other transactions wait
+     * until the load is done.  The pages the load changes stay in the buffer pool until the
+     * transaction commits, so inputs larger than the buffer pool have to be loaded in several
+     * transactions.  If the load fails, the transaction must be aborted.
+     *
+     * @param tid        - the transaction id
+     * @param sorted     - the tuples to load, sorted on the key field
+     * @param fillFactor - the fraction of each page to fill, between 0.5 and 1
+     * @return the number of tuples loaded
+     * @throws DbException if the tuples are not sorted, or start below the largest key in the tree
+     * @see #appendLeafPage(TransactionId, HashMap, BTreeLeafPage, Field, double)
+     * @see #fixRightEdge(TransactionId, HashMap)
+     */
+    public int bulkLoad(TransactionId tid, OpIterator sorted, double fillFactor)
+            throws DbException, IOException, TransactionAbortedException {
+        if (fillFactor < 0.5 || fillFactor > 1.0) {
+            throw new IllegalArgumentException("fill factor must be between 0.5 and 1: " + fillFactor);
+        }
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        int loaded = 0;
+
+        structureLock.lock();
+        try {
+            // find and lock the right-most leaf page
+            BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, null, true, null);
+            if (leafPage == null) {
+                createRoot(tid, dirtypages);
+                releaseLatches();
+                leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, null, true, null);
+            }
+            Iterator<Tuple> last = leafPage.reverseIterator();
+            Field prev = last.hasNext() ? getKey(last.next()) : null;
+            int tuplesPerPage = (int) Math.ceil(leafPage.getMaxTuples() * fillFactor);
+
+            while (sorted.hasNext()) {
+                Tuple t = sorted.next();
+                Field key = getKey(t);
+                if (prev != null && key.compare(Op.LESS_THAN, prev)) {
+                    throw new DbException("bulk load key " + key + " is less than the previous key " + prev);
+                }
+                if (leafPage.getNumTuples() >= tuplesPerPage) {
+                    leafPage = appendLeafPage(tid, dirtypages, leafPage, key, fillFactor);
+                }
+                leafPage.insertTuple(t);
+                prev = key;
+                loaded++;
+            }
+
+            fixRightEdge(tid, dirtypages);
+        } catch (TransactionAbortedException e) {
+            undoChange(dirtypages);
+            throw e;
+        } finally {
+            releaseLatches();
+            structureLock.unlock();
+        }
+
+        Database.getBufferPool().cacheDirtyPages(tid, new ArrayList<Page>(dirtypages.values()));
+        return loaded;
+    }
+
+    /**
+     * Start a new leaf page on the right of the right-most leaf page during a bulk load,
+     * and append an entry for it to the internal page above.  Must be called while
+     * holding structureLock.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param page       - the right-most leaf page, which is full
+     * @param key        - the key field of the first tuple that goes into the new page
+     * @param fillFactor - the fraction of each internal page to fill
+     * @return the new right-most leaf page
+     * @see #appendEntry(TransactionId, HashMap, BTreePageId, BTreeEntry, double)
+     */
+    private BTreeLeafPage appendLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page,
+                                         Field key, double fillFactor)
+            throws DbException, IOException, TransactionAbortedException {
+        BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+        newPage.setLeftSiblingId(page.getId());
+        page.setRightSiblingId(newPage.getId());
+        Field separator = shortestSeparator(getKey(page.reverseIterator().next()), key);
+        page.setHighKey(separator);
+
+        // 新的entry可能一直传到根节点，整条最右路径都要加写latch
+        LinkedList<BTreePageId> path = new LinkedList<BTreePageId>();
+        BTreePageId pid = page.getParentId();
+        while (true) {
+            Page p = Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+            keepForUpdate(tid, dirtypages, p);
+            path.addFirst(pid);
+            if (pid.pgcateg() == BTreePageId.ROOT_PTR) {
+                break;
+            }
+            pid = ((BTreeInternalPage) p).getParentId();
+        }
+        try {
+            for (BTreePageId id : path) {
+                latchForWrite(id);
+            }
+            appendEntry(tid, dirtypages, page.getParentId(), new BTreeEntry(separator, page.getId(), newPage.getId()),
+                    fillFactor);
+        } finally {
+            releaseLatches();
+        }
+        return newPage;
+    }
+
+    /**
+     * Append an entry to the right end of an internal page during a bulk load.  The left
+     * child of the entry must be the right-most child of the page.  If the page already holds
+     * its share of entries, its last key and right-most child are moved out of it: the child
+     * becomes the left child of the new entry in a new internal page on its right, and the key
+     * is appended to the parent, separating the two pages.  If the page is the root pointer,
+     * the tree grows a new root.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param pid        - the id of the right-most internal page, or of the root pointer page
+     * @param e          - the entry to append
+     * @param fillFactor - the fraction of each internal page to fill
+     */
+    private void appendEntry(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, BTreeEntry e,
+                             double fillFactor)
+            throws DbException, IOException, TransactionAbortedException {
+        BTreeInternalPage page;
+        if (pid.pgcateg() == BTreePageId.ROOT_PTR) {
+            page = getParentWithEmptySlots(tid, dirtypages, pid, e.getKey());
+        } else {
+            page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+        }
+
+        // 交出最右边的child之后仍然要至少半满
+        int maxEntries = page.getMaxEntries();
+        int entriesPerPage = Math.min(maxEntries,
+                Math.max((int) Math.ceil(maxEntries * fillFactor), maxEntries / 2 + 1));
+        if (page.getNumEntries() < entriesPerPage) {
+            page.insertEntry(e);
+            updateParentPointer(tid, dirtypages, page.getId(), e.getRightChild());
+            return;
+        }
+
+        BTreeEntry lastEntry = page.reverseIterator().next();
+        page.deleteKeyAndRightChild(lastEntry);
+        BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+        newPage.insertEntry(new BTreeEntry(e.getKey(), lastEntry.getRightChild(), e.getRightChild()));
+        updateParentPointers(tid, dirtypages, newPage);
+        appendEntry(tid, dirtypages, page.getParentId(),
+                new BTreeEntry(lastEntry.getKey(), page.getId(), newPage.getId()), fillFactor);
+    }
+
+    /**
+     * At the end of a bulk load, the pages on the right edge of the tree may be less than half
+     * full.  Merge each of them with its left sibling if the tuples or entries of both fit in
+     * one page, and otherwise redistribute them evenly.  All other pages filled by the load are
+     * at least half full.  The pages are fixed from the top down, so that a merge below never
+     * has to delete the only entry of a parent that is not the root.  Must be called while
+     * holding structureLock.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     */
+    private void fixRightEdge(TransactionId tid, HashMap<PageId, Page> dirtypages)
+            throws DbException, IOException, TransactionAbortedException {
+        while (true) {
+            BTreePage page = null;
+            BTreePageId pid = getRootPtrPage(tid, dirtypages).getRootId();
+            while (page == null && pid.pgcateg() == BTreePageId.INTERNAL) {
+                BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+                pid = parent.reverseIterator().next().getRightChild();
+                BTreePage child = (BTreePage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+                int maxSlots = (child instanceof BTreeLeafPage) ? ((BTreeLeafPage) child).getMaxTuples()
+                        : ((BTreeInternalPage) child).getMaxEntries();
+                if (child.getNumEmptySlots() > maxSlots - maxSlots / 2) { // ceiling
+                    page = child;
+                }
+            }
+            if (page == null) {
+                return;
+            }
+
+            latchAncestors(tid, dirtypages, page, false);
+            try {
+                BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, page.getParentId(),
+                        Permissions.READ_WRITE);
+                BTreeEntry entry = parent.reverseIterator().next();
+                if (page.getId().pgcateg() == BTreePageId.LEAF) {
+                    BTreeLeafPage left = (BTreeLeafPage) getPage(tid, dirtypages, entry.getLeftChild(),
+                            Permissions.READ_WRITE);
+                    BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, page.getId(),
+                            Permissions.READ_WRITE);
+                    if (left.getNumTuples() + right.getNumTuples() <= right.getMaxTuples()) {
+                        mergeLeafPages(tid, dirtypages, left, right, parent, entry);
+                    } else {
+                        stealFromLeafPage(right, left, parent, entry, false);
+                    }
+                } else {
+                    BTreeInternalPage left = (BTreeInternalPage) getPage(tid, dirtypages, entry.getLeftChild(),
+                            Permissions.READ_WRITE);
+                    BTreeInternalPage right = (BTreeInternalPage) getPage(tid, dirtypages, page.getId(),
+                            Permissions.READ_WRITE);
+                    // 合并时父节点的key也要拉下来
+                    if (left.getNumEntries() + right.getNumEntries() < right.getMaxEntries()) {
+                        mergeInternalPages(tid, dirtypages, left, right, parent, entry);
+                    } else {
+                        stealFromLeftInternalPage(tid, dirtypages, right, left, parent, entry);
+                    }
+                }
+            } finally {
+                mergeVersion.incrementAndGet();
+                releaseLatches();
+            }
+        }
+    }
+
+    /**
+     * Move the leaf pages of this tree so that their page numbers follow the order of their
+     * keys, which turns a scan of the leaf pages into a sequential read of the file.  Splits
+     * put new leaf pages wherever there is a free page, usually at the end of the file, so
+     * after many inserts the leaves of a range are scattered.  The leaf pages keep the set of
+     * page numbers they already use; each move swaps the contents of two of them and updates
+     * their parents and siblings, see swapLeafPages().
+     * <p>
+     * The tree stays online: other transactions can keep reading and changing it, except that
+     * splits and merges wait until the call returns, and the pages that were moved stay locked
+     * until the transaction commits.  The moved pages also stay in the buffer pool until then,
+     * so at most maxMoves swaps are made per call; call it again in new transactions until it
+     * returns 0.  If it fails, the transaction must be aborted.
+     *
+     * @param tid      - the transaction id
+     * @param maxMoves - the largest number of swaps to make
+     * @return the number of swaps made, 0 if the leaf pages are in order
+     * @see #swapLeafPages(TransactionId, HashMap, BTreePageId, BTreePageId)
+     */
+    public int defragment(TransactionId tid, int maxMoves)
+            throws DbException, IOException, TransactionAbortedException {
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        int moves = 0;
+
+        structureLock.lock();
+        try {
+            // 按key的顺序收集leaf的页号；持有structureLock时不会有分裂或合并改变leaf链
+            ArrayList<Integer> chain = new ArrayList<Integer>();
+            HashMap<Integer, Integer> position = new HashMap<Integer, Integer>();
+            BTreeLeafPage page = findLeafPage(tid, dirtypages, Permissions.READ_ONLY, null, false, null);
+            while (page != null) {
+                position.put(page.getId().getPageNumber(), chain.size());
+                chain.add(page.getId().getPageNumber());
+                BTreePageId next = page.getRightSiblingId();
+                page = next == null ? null : (BTreeLeafPage) getPage(tid, dirtypages, next, Permissions.READ_ONLY);
+            }
+            ArrayList<Integer> sorted = new ArrayList<Integer>(chain);
+            Collections.sort(sorted);
+
+            // 第i个leaf应该放在第i小的页号上，把当前占着这个页号的leaf换到它原来的位置
+            for (int i = 0; i < chain.size() && moves < maxMoves; i++) {
+                int from = chain.get(i);
+                int to = sorted.get(i);
+                if (from == to) {
+                    continue;
+                }
+                mergeVersion.incrementAndGet();
+                try {
+                    swapLeafPages(tid, dirtypages, new BTreePageId(tableid, from, BTreePageId.LEAF),
+                            new BTreePageId(tableid, to, BTreePageId.LEAF));
+                } catch (TransactionAbortedException e) {
+                    undoChange(dirtypages);
+                    throw e;
+                } finally {
+                    mergeVersion.incrementAndGet();
+                    releaseLatches();
+                }
+                int j = position.get(to);
+                chain.set(j, from);
+                position.put(from, j);
+                chain.set(i, to);
+                position.put(to, i);
+                moves++;
+            }
+        } finally {
+            structureLock.unlock();
+        }
+
+        Database.getBufferPool().cacheDirtyPages(tid, new ArrayList<Page>(dirtypages.values()));
+        return moves;
+    }
+
+    /**
+     * Swap the contents of two leaf pages of this tree: the tuples, high key, parent and
+     * siblings of each page move to the page number of the other.  The child pointers of
+     * their parents and the sibling pointers of the leaf pages next to them are updated to
+     * match.  Must be called while holding structureLock.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param aId        - the id of one of the leaf pages
+     * @param bId        - the id of the other leaf page
+     */
+    private void swapLeafPages(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId aId, BTreePageId bId)
+            throws DbException, TransactionAbortedException {
+        BTreeLeafPage a = (BTreeLeafPage) getPage(tid, dirtypages, aId, Permissions.READ_WRITE);
+        BTreeLeafPage b = (BTreeLeafPage) getPage(tid, dirtypages, bId, Permissions.READ_WRITE);
+        HashMap<BTreePageId, BTreePageId> swap = new HashMap<BTreePageId, BTreePageId>();
+        swap.put(aId, bId);
+        swap.put(bId, aId);
+
+        LinkedHashSet<BTreePageId> parents = new LinkedHashSet<BTreePageId>();
+        parents.add(a.getParentId());
+        parents.add(b.getParentId());
+        for (BTreePageId pid : parents) {
+            BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+            // 相邻的entry共用一个子节点指针，先取出所有entry再修改，避免同一个指针被换两次
+            ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+            Iterator<BTreeEntry> it = parent.iterator();
+            while (it.hasNext()) {
+                entries.add(it.next());
+            }
+            for (BTreeEntry e : entries) {
+                BTreePageId left = swapped(swap, e.getLeftChild());
+                BTreePageId right = swapped(swap, e.getRightChild());
+                if (!left.equals(e.getLeftChild()) || !right.equals(e.getRightChild())) {
+                    e.setLeftChild(left);
+                    e.setRightChild(right);
+                    parent.updateEntry(e);
+                }
+            }
+        }
+
+        LinkedHashSet<BTreePageId> neighbors = new LinkedHashSet<BTreePageId>();
+        for (BTreePageId pid : new BTreePageId[]{a.getLeftSiblingId(), a.getRightSiblingId(),
+                b.getLeftSiblingId(), b.getRightSiblingId()}) {
+            if (pid != null && !swap.containsKey(pid)) {
+                neighbors.add(pid);
+            }
+        }
+        for (BTreePageId pid : neighbors) {
+            BTreeLeafPage neighbor = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+            neighbor.setLeftSiblingId(swapped(swap, neighbor.getLeftSiblingId()));
+            neighbor.setRightSiblingId(swapped(swap, neighbor.getRightSiblingId()));
+        }
+
+        BTreePageId aParent = a.getParentId();
+        BTreePageId aLeft = swapped(swap, a.getLeftSiblingId());
+        BTreePageId aRight = swapped(swap, a.getRightSiblingId());
+        Field aHighKey = a.getHighKey();
+        ArrayList<Tuple> aTuples = new ArrayList<Tuple>();
+        Iterator<Tuple> it = a.iterator();
+        while (it.hasNext()) {
+            aTuples.add(it.next());
+        }
+        ArrayList<Tuple> bTuples = new ArrayList<Tuple>();
+        it = b.iterator();
+        while (it.hasNext()) {
+            bTuples.add(it.next());
+        }
+        for (Tuple t : aTuples) {
+            a.deleteTuple(t);
+        }
+        for (Tuple t : bTuples) {
+            b.deleteTuple(t);
+            a.insertTuple(t);
+        }
+        for (Tuple t : aTuples) {
+            b.insertTuple(t);
+        }
+
+        a.setParentId(b.getParentId());
+        a.setLeftSiblingId(swapped(swap, b.getLeftSiblingId()));
+        a.setRightSiblingId(swapped(swap, b.getRightSiblingId()));
+        a.setHighKey(b.getHighKey());
+        b.setParentId(aParent);
+        b.setLeftSiblingId(aLeft);
+        b.setRightSiblingId(aRight);
+        b.setHighKey(aHighKey);
+    }
+
+    private static BTreePageId swapped(HashMap<BTreePageId, BTreePageId> swap, BTreePageId pid) {
+        return pid != null && swap.containsKey(pid) ? swap.get(pid) : pid;
+    }
+
     /**
      * Get a read lock on the root pointer page. Create the root pointer page and root page
      * if necessary.
@@ -1040,21 +1880,50 @@ public class BTreeFile implements DbFile {
      * @throws TransactionAbortedException
      */
     BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
+        createIfEmpty();
+
+        // get a read lock on the root pointer page
+        return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+    }
+
+    // create the root pointer page and the root page if the file is empty
+    private void createIfEmpty() throws DbException {
+        if (created) {
+            return;
+        }
         synchronized (this) {
             if (f.length() == 0) {
-                // create the root pointer page and the root page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
-                byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-                byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-                bw.write(emptyRootPtrData);
-                bw.write(emptyLeafData);
-                bw.close();
+                try {
+                    BufferedOutputStream bw = new BufferedOutputStream(
+                            new FileOutputStream(f, true));
+                    byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
+                    byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
+                    bw.write(emptyRootPtrData);
+                    bw.write(emptyLeafData);
+                    bw.close();
+                } catch (IOException e) {
+                    throw new DbException("could not create " + f + ": " + e.getMessage());
+                }
             }
+            created = true;
         }
+    }
 
-        // get a read lock on the root pointer page
-        return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+    /**
+     * Point the root pointer at the empty leaf page created with the file, unless
+     * another transaction already did.  Must be called while holding structureLock.
+     */
+    private void createRoot(TransactionId tid, HashMap<PageId, Page> dirtypages)
+            throws DbException, TransactionAbortedException {
+        BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid, rootPtrId, Permissions.READ_WRITE);
+        keepForUpdate(tid, dirtypages, rootPtr);
+        latchForWrite(rootPtrId);
+        BTreePageId rootId = rootPtr.getRootId();
+        if (rootId == null) { // the root has just been created, so set the root pointer to point to it
+            rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+            rootPtr.setRootId(rootId);
+        }
     }
 
     /**
@@ -1137,10 +2006,7 @@ public class BTreeFile implements DbFile {
         BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
         // write empty page to disk
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo - 1) * BufferPool.getPageSize());
-        rf.write(BTreePage.createEmptyPageData());
-        rf.close();
+        write(BTreePage.createEmptyPageData(), pageOffset(newPageId));
 
         // make sure the page is not in the buffer pool	or in the local cache
         Database.getBufferPool().discardPage(newPageId);
@@ -1262,6 +2128,124 @@ public class BTreeFile implements DbFile {
         return new BTreeSearchReverseIterator(this, tid, ipred);
     }
 
+    /**
+     * Get some of the fields of the tuples that satisfy an IndexPredicate, for index-only
+     * scans that need no other fields, such as a scan of the key alone.  The returned tuples
+     * hold the specified fields in the specified order and have no RecordId.  This method will
+     * acquire a read lock on the affected pages of the file, and may block until the lock can
+     * be acquired.
+     *
+     * @param tid    - the transaction id
+     * @param ipred  - the index predicate value to filter on
+     * @param fields - the indexes of the fields to return
+     * @return an iterator for the fields of the filtered tuples
+     */
+    public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred, int... fields) {
+        return new BTreeProjectIterator(indexIterator(tid, ipred), td, fields);
+    }
+
+    /**
+     * Count the tuples whose key satisfies an IndexPredicate without returning them, e.g. for
+     * COUNT queries or EXISTS probes.  Each leaf in the range is searched for the ends of the
+     * range with binary search instead of reading its tuples one by one.  This method will
+     * acquire a read lock on the affected pages of the file, and may block until the lock can
+     * be acquired.
+     *
+     * @param tid   - the transaction id
+     * @param ipred - the index predicate value to filter on
+     * @return the number of tuples whose key satisfies the predicate
+     */
+    public int count(TransactionId tid, IndexPredicate ipred) throws DbException, TransactionAbortedException {
+        Op op = ipred.getOp();
+        Field f = ipred.getField();
+        if (op == Op.NOT_EQUALS || op == Op.LIKE) {
+            // 不是一段连续的key，只能逐个比较
+            int count = 0;
+            DbFileIterator it = indexIterator(tid, ipred);
+            it.open();
+            while (it.hasNext()) {
+                it.next();
+                count++;
+            }
+            it.close();
+            return count;
+        }
+
+        boolean fromLeft = op == Op.LESS_THAN || op == Op.LESS_THAN_OR_EQ;
+        BTreeLeafPage page = findLeafPage(tid, Permissions.READ_ONLY, fromLeft ? null : f);
+        int count = 0;
+        while (page != null) {
+            int n = page.getNumTuples();
+            int from = 0;
+            int to = n;
+            if (op == Op.EQUALS || op == Op.GREATER_THAN_OR_EQ) {
+                from = page.lowerBound(f);
+            } else if (op == Op.GREATER_THAN) {
+                from = page.upperBound(f);
+            }
+            if (op == Op.EQUALS || op == Op.LESS_THAN_OR_EQ) {
+                to = page.upperBound(f);
+            } else if (op == Op.LESS_THAN) {
+                to = page.lowerBound(f);
+            }
+            count += Math.max(to - from, 0);
+            // 范围在这个leaf中间结束
+            if (to < n || page.getRightSiblingId() == null) {
+                break;
+            }
+            page = (BTreeLeafPage) Database.getBufferPool().getPage(tid, page.getRightSiblingId(), Permissions.READ_ONLY);
+        }
+        return count;
+    }
+
+    /**
+     * Set how many leaf pages ahead of them the scans of this file have the LeafPrefetcher
+     * read into the buffer pool, or 0 to not read ahead.
+     *
+     * @param depth - the number of leaf pages to read ahead
+     */
+    public void setPrefetchDepth(int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("prefetch depth must not be negative: " + depth);
+        }
+        prefetchDepth = depth;
+    }
+
+    /**
+     * Returns how many leaf pages ahead of them the scans of this file read
+     */
+    public int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    /**
+     * Have the LeafPrefetcher read the leaf pages after the specified one, once fewer than
+     * half of the pages it was asked for earlier are left.  Called by the iterators whenever
+     * they reach a leaf page.
+     *
+     * @param page  - the leaf page the scan has reached
+     * @param ahead - how many of the leaf pages after it were already requested
+     * @param stop  - the largest key the scan is looking for, or null if it scans to the end
+     * @return how many of the leaf pages after it have been requested
+     */
+    int prefetchAfter(BTreeLeafPage page, int ahead, Field stop) {
+        int depth = prefetchDepth;
+        BTreePageId next = page.getRightSiblingId();
+        if (depth == 0 || next == null) {
+            return 0;
+        }
+        if (ahead > depth / 2) {
+            return ahead;
+        }
+        // 扫描会在这个leaf结束
+        Field highKey = page.getHighKey();
+        if (stop != null && highKey != null && highKey.compare(Op.GREATER_THAN, stop)) {
+            return 0;
+        }
+        LeafPrefetcher.getInstance().request(next, depth, stop);
+        return depth;
+    }
+
     /**
      * Get an iterator for all tuples in this B+ tree file in sorted order. This method
      * will acquire a read lock on the affected pages of the file, and may block until
@@ -1288,6 +2272,63 @@ public class BTreeFile implements DbFile {
     }
 }
 
+/**
+ * Helper class that returns some of the fields of the tuples of another iterator
+ * over a BTreeFile
+ */
+class BTreeProjectIterator extends AbstractDbFileIterator {
+
+    private final DbFileIterator child;
+    private final TupleDesc td;
+    private final int[] fields;
+
+    /**
+     * Constructor for this iterator
+     *
+     * @param child  - the iterator over the tuples
+     * @param td     - the TupleDesc of the tuples
+     * @param fields - the indexes of the fields to return
+     */
+    public BTreeProjectIterator(DbFileIterator child, TupleDesc td, int[] fields) {
+        this.child = child;
+        this.fields = fields.clone();
+        Type[] types = new Type[fields.length];
+        String[] names = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            types[i] = td.getFieldType(fields[i]);
+            names[i] = td.getFieldName(fields[i]);
+        }
+        this.td = new TupleDesc(types, names);
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    @Override
+    protected Tuple readNext() throws DbException, TransactionAbortedException {
+        if (!child.hasNext()) {
+            return null;
+        }
+        Tuple t = child.next();
+        Tuple out = new Tuple(td);
+        for (int i = 0; i < fields.length; i++) {
+            out.setField(i, t.getField(fields[i]));
+        }
+        return out;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+}
+
 /**
  * Helper class that implements the Java Iterator for tuples on a BTreeFile
  */
@@ -1295,6 +2336,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
     Iterator<Tuple> it = null;
     BTreeLeafPage curp = null;
+    // number of leaf pages after curp that the prefetcher was asked to read
+    int ahead = 0;
 
     TransactionId tid;
     BTreeFile f;
@@ -1314,11 +2357,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
      * Open this iterator by getting an iterator on the first leaf page
      */
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
-        curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
-        it = curp.iterator();
+        curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+        it = curp == null ? null : curp.iterator();
+        ahead = curp == null ? 0 : f.prefetchAfter(curp, 0, null);
     }
 
     /**
@@ -1339,6 +2380,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
             } else {
                 curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
                         nextp, Permissions.READ_ONLY);
+                ahead = f.prefetchAfter(curp, ahead - 1, null);
                 it = curp.iterator();
                 if (!it.hasNext())
                     it = null;
@@ -1395,11 +2437,8 @@ class BTreeFileReverseIterator extends AbstractDbFileIterator {
      * Open this iterator by getting an iterator on the last leaf page
      */
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
-        curp = f.findReverseLeafPage(tid, root, Permissions.READ_ONLY, null);
-        it = curp.reverseIterator();
+        curp = f.findReverseLeafPage(tid, Permissions.READ_ONLY, null);
+        it = curp == null ? null : curp.reverseIterator();
     }
 
     /**
@@ -1457,6 +2496,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
     Iterator<Tuple> it = null;
     BTreeLeafPage curp = null;
+    // number of leaf pages after curp that the prefetcher was asked to read
+    int ahead = 0;
 
     TransactionId tid;
     BTreeFile f;
@@ -1480,16 +2521,26 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
      * for the given predicate operation
      */
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
         if (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
                 || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-            curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+            curp = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
+            if (curp != null) {
+                // 跳过leaf中不满足条件的前缀
+                int from = ipred.getOp() == Op.GREATER_THAN ?
+                        curp.upperBound(ipred.getField()) : curp.lowerBound(ipred.getField());
+                it = curp.iterator(from);
+            }
         } else {
-            curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+            curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+            it = curp == null ? null : curp.iterator();
         }
-        it = curp.iterator();
+        ahead = curp == null ? 0 : f.prefetchAfter(curp, 0, stop());
+    }
+
+    // the largest key the scan may return, or null if it goes on to the last leaf page
+    private Field stop() {
+        Op op = ipred.getOp();
+        return op == Op.EQUALS || op == Op.LESS_THAN || op == Op.LESS_THAN_OR_EQ ? ipred.getField() : null;
     }
 
     /**
@@ -1505,14 +2556,14 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
             while (it.hasNext()) {
                 Tuple t = it.next();
-                if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+                if (f.getKey(t).compare(ipred.getOp(), ipred.getField())) {
                     return t;
                 } else if (ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
                     // if the predicate was not satisfied and the operation is less than, we have
                     // hit the end
                     return null;
                 } else if (ipred.getOp() == Op.EQUALS &&
-                        t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+                        f.getKey(t).compare(Op.GREATER_THAN, ipred.getField())) {
                     // if the tuple is now greater than the field passed in and the operation
                     // is equals, we have reached the end
                     return null;
@@ -1526,6 +2577,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
             } else {
                 curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
                         nextp, Permissions.READ_ONLY);
+                ahead = f.prefetchAfter(curp, ahead - 1, stop());
                 it = curp.iterator();
             }
         }
@@ -1581,16 +2633,19 @@ class BTreeSearchReverseIterator extends AbstractDbFileIterator {
      * for the given predicate operation
      */
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
         if (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.LESS_THAN
                 || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
-            curp = f.findReverseLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+            curp = f.findReverseLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
+            if (curp != null) {
+                // 跳过leaf中不满足条件的后缀
+                int from = ipred.getOp() == Op.LESS_THAN ?
+                        curp.lowerBound(ipred.getField()) : curp.upperBound(ipred.getField());
+                it = curp.reverseIterator(from - 1);
+            }
         } else {
-            curp = f.findReverseLeafPage(tid, root, Permissions.READ_ONLY, null);
+            curp = f.findReverseLeafPage(tid, Permissions.READ_ONLY, null);
+            it = curp == null ? null : curp.reverseIterator();
         }
-        it = curp.reverseIterator();
     }
 
     /**
@@ -1606,14 +2661,14 @@ class BTreeSearchReverseIterator extends AbstractDbFileIterator {
 
             while (it.hasNext()) {
                 Tuple t = it.next();
-                if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+                if (f.getKey(t).compare(ipred.getOp(), ipred.getField())) {
                     return t;
                 } else if (ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
                     // if the predicate was not satisfied and the operation is less than, we have
                     // hit the end
                     return null;
                 } else if (ipred.getOp() == Op.EQUALS &&
-                        t.getField(f.keyField()).compare(Op.LESS_THAN_OR_EQ, ipred.getField())) {
+                        f.getKey(t).compare(Op.LESS_THAN_OR_EQ, ipred.getField())) {
                     // if the tuple is now greater than the field passed in and the operation
                     // is equals, we have reached the end
                     return null;
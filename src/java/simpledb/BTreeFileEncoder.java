@@ -224,13 +224,13 @@ public class BTreeFileEncoder {
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
 		}
-		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
-		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
+		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer, high key
+		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE + keyType.getLen();
 		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
 
-		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
-		// pointerbytes: one extra child pointer, parent pointer, child page category
-		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
+		int nentrybytes = BTreeInternalPage.getKeySize(keyType) + BTreeInternalPage.INDEX_SIZE;
+		// pointerbytes: one extra child pointer, parent pointer, child page category, key prefix
+		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1 + BTreeInternalPage.getPrefixSize(keyType); 
 		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
 
 		ArrayList<ArrayList<BTreeEntry>> entries = new ArrayList<ArrayList<BTreeEntry>>();
@@ -336,7 +336,9 @@ public class BTreeFileEncoder {
 	}
 
 	/**
-	 * Set all the right sibling pointers by following the left sibling pointers
+	 * Set all the right sibling pointers and high keys by following the left sibling
+	 * pointers.  The high key of a page is the first key of its right sibling, which
+	 * is the key that was copied up into the parent.
 	 * 
 	 * @param bf - the BTreeFile
 	 * @param pid - the id of the page to update with the right sibling pointer
@@ -346,12 +348,16 @@ public class BTreeFileEncoder {
 	 */
 	private static void setRightSiblingPtrs(BTreeFile bf, BTreePageId pid, BTreePageId rightSiblingId) 
 			throws IOException, DbException {
-		BTreeLeafPage page = (BTreeLeafPage) bf.readPage(pid);
-		page.setRightSiblingId(rightSiblingId);
-		BTreePageId leftSiblingId = page.getLeftSiblingId();
-		bf.writePage(page);
-		if(leftSiblingId != null) {
-			setRightSiblingPtrs(bf, leftSiblingId, page.getId());
+		Field highKey = null;
+		while (pid != null) {
+			BTreeLeafPage page = (BTreeLeafPage) bf.readPage(pid);
+			page.setRightSiblingId(rightSiblingId);
+			page.setHighKey(highKey);
+			bf.writePage(page);
+			Iterator<Tuple> it = page.iterator();
+			highKey = it.hasNext() ? bf.getKey(it.next()) : null;
+			rightSiblingId = pid;
+			pid = page.getLeftSiblingId();
 		}
 	}
 
@@ -510,8 +516,8 @@ public class BTreeFileEncoder {
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
 		}
-		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
-		int pointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
+		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer, high key
+		int pointerbytes = 3 * BTreeLeafPage.INDEX_SIZE + typeAr[keyField].getLen();
 		int nrecords = (npagebytes * 8 - pointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
 
 		//  per record, we need one bit; there are nrecords per page, so we need
@@ -537,6 +543,7 @@ public class BTreeFileEncoder {
 		dos.writeInt(0); // parent pointer
 		dos.writeInt(0); // left sibling pointer
 		dos.writeInt(0); // right sibling pointer
+		dos.write(new byte[typeAr[keyField].getLen()]); // high key
 
 		int i = 0;
 		byte headerbyte = 0;
@@ -624,9 +631,9 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
-		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
-		// pointerbytes: one extra child pointer, parent pointer, child page category
-		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
+		int nentrybytes = BTreeInternalPage.getKeySize(keyType) + BTreeInternalPage.INDEX_SIZE;
+		// pointerbytes: one extra child pointer, parent pointer, child page category, key prefix
+		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1 + BTreeInternalPage.getPrefixSize(keyType); 
 		int nentries = (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
 
 		//  per entry, we need one bit; there are nentries per page, so we need
@@ -668,13 +675,22 @@ public class BTreeFileEncoder {
 			dos.writeByte(headerbyte);
 
 		Collections.sort(entries, new EntryComparator());
-		for(int e = 0; e < entrycount; e++) {
-			entries.get(e).getKey().serialize(dos);
+		if (keyType == Type.STRING_TYPE) {
+			ArrayList<Field> keys = new ArrayList<Field>();
+			for(int e = 0; e < entrycount; e++) {
+				keys.add(entries.get(e).getKey());
+			}
+			BTreeInternalPage.writeStringKeys(dos, keys, nentries);
 		}
+		else {
+			for(int e = 0; e < entrycount; e++) {
+				entries.get(e).getKey().serialize(dos);
+			}
 
-		for(int e = entrycount; e < nentries; e++) {
-			for (int j=0; j<keyType.getLen(); j++) {
-				dos.writeByte(0);
+			for(int e = entrycount; e < nentries; e++) {
+				for (int j=0; j<BTreeInternalPage.getKeySize(keyType); j++) {
+					dos.writeByte(0);
+				}
 			}
 		}
 
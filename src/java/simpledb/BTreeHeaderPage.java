@@ -56,8 +56,7 @@ public class BTreeHeaderPage implements Page {
 
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
-		for (int i=0; i<header.length; i++)
-			header[i] = dis.readByte();
+		dis.readFully(header);
 
 		dis.close();
 
@@ -151,13 +150,11 @@ public class BTreeHeaderPage implements Page {
 		}
 
 		// create the header of the page
-		for (int i=0; i<header.length; i++) {
-			try {
-				dos.writeByte(header[i]);
-			} catch (IOException e) {
-				// this really shouldn't happen
-				e.printStackTrace();
-			}
+		try {
+			dos.write(header);
+		} catch (IOException e) {
+			// this really shouldn't happen
+			e.printStackTrace();
 		}
 
 		try {
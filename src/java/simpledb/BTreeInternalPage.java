@@ -14,26 +14,56 @@ import simpledb.Predicate.Op;
  *
  */
 public class BTreeInternalPage extends BTreePage {
+	/**
+	 * Internal pages store only the first STRING_KEY_LEN characters of the last field
+	 * of a composite key if it is a string.
+	 */
+	public static final int STRING_KEY_LEN = 20;
+
+	/**
+	 * Internal pages of an index on a single string field store the longest prefix
+	 * all their keys share, up to KEY_PREFIX_LEN characters, once, and only the next
+	 * KEY_SUFFIX_LEN characters of each key in its slot.
+	 */
+	public static final int KEY_PREFIX_LEN = 32;
+	public static final int KEY_SUFFIX_LEN = 12;
+
+	// 长度字段的最高位：这个key是被截短的前缀key
+	private static final int PREFIX_FLAG = 0x80;
+
 	private final byte header[];
 	private final Field keys[];
 	private final int children[];
 	private final int numSlots;
+
+	// slot numbers of the used slots, in key order; rebuilt by indexSlots() by
+	// every method that changes the page, so that searches under a shared
+	// latch only read them.  usedSlots[0] holds the left-most child only
+	private final int[] usedSlots;
+	private int numUsedSlots;
+
+	// the length of the shortest prefix key on this page, rebuilt with usedSlots
+	private int minPrefixLen;
 	
 	private int childCategory; // either leaf or internal
 
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
-		Field prev = lowerBound;
+		Field prev = null;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
 
 		Iterator<BTreeEntry> it  = this.iterator();
 		while (it.hasNext()) {
 			Field f = it.next().getKey();
 			assert(null == prev || prev.compare(Op.LESS_THAN_OR_EQ,f));
+			assert(null == lowerBound || mayFollow(f, lowerBound, keyFields.length));
 			prev = f;
 		}
 
 		if (null != upperBound && null != prev){
-			assert(prev.compare(Op.LESS_THAN_OR_EQ, upperBound));
+			assert(mayPrecede(prev, upperBound, keyFields.length));
+		}
+		if (isPrefixCompressed()) {
+			assert(maxKeyLength() <= commonPrefix().length() + KEY_SUFFIX_LEN);
 		}
 
 		if (checkOccupancy && depth > 0) {
@@ -51,8 +81,8 @@ public class BTreeInternalPage extends BTreePage {
 	 *  Specifically, the number of entries is equal to: <p>
 	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (entry size * 8 + 1))
 	 * <p> where entry size is the size of entries in this index node
-	 * (key + child pointer), which can be determined via the key field and 
-	 * {@link Catalog#getTupleDesc}.
+	 * (key + child pointer), which can be determined via the key fields and 
+	 * {@link Catalog#getTupleDesc}; see {@link #getKeySize(Type...)}.
 	 * The number of 8-bit header words is equal to:
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
@@ -63,10 +93,10 @@ public class BTreeInternalPage extends BTreePage {
 	 * 
 	 * @param id - the id of this page
 	 * @param data - the raw data of this page
-	 * @param key - the field which the index is keyed on
+	 * @param keyFields - the fields which the index is keyed on, most significant first
 	 */
-	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+	public BTreeInternalPage(BTreePageId id, byte[] data, int... keyFields) throws IOException {
+		super(id, keyFields);
 		this.numSlots = getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -83,8 +113,16 @@ public class BTreeInternalPage extends BTreePage {
 
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
-		for (int i=0; i<header.length; i++)
-			header[i] = dis.readByte();
+		dis.readFully(header);
+
+		// read the prefix all keys share
+		String prefix = "";
+		if (isPrefixCompressed()) {
+			int prefixLen = dis.readUnsignedByte();
+			byte bs[] = new byte[KEY_PREFIX_LEN];
+			dis.readFully(bs);
+			prefix = new String(bs, 0, prefixLen);
+		}
 
 		keys = new Field[numSlots];
 		try{
@@ -93,7 +131,7 @@ public class BTreeInternalPage extends BTreePage {
 			// since a node with m keys has m+1 pointers
 			keys[0] = null;
 			for (int i=1; i<keys.length; i++)
-				keys[i] = readNextKey(dis,i);
+				keys[i] = readNextKey(dis,i,prefix);
 		}catch(NoSuchElementException e){
 			e.printStackTrace();
 		}
@@ -108,6 +146,8 @@ public class BTreeInternalPage extends BTreePage {
 		}
 		dis.close();
 
+		usedSlots = new int[numSlots];
+		indexSlots();
 		setBeforeImage();
 	}
 
@@ -115,15 +155,200 @@ public class BTreeInternalPage extends BTreePage {
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		int keySize = getKeySize(keyTypes());
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
-		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
-		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1; 
+		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header,
+		// and the prefix the keys share
+		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1 + getPrefixSize(keyTypes()) * 8; 
 		int entriesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader; //round down
 		return entriesPerPage;
 	}
 
+	/**
+	 * Computes the number of bytes a key takes on an internal page with the specified key
+	 * field types.  A single string key takes 1 + KEY_SUFFIX_LEN bytes instead of the
+	 * 4 + Type.STRING_LEN bytes of a tuple field, see {@link #getPrefixSize(Type...)};
+	 * the last field of a composite key takes 4 + STRING_KEY_LEN bytes if it is a string.
+	 * @param keyTypes - the types of the key fields, most significant first
+	 */
+	public static int getKeySize(Type... keyTypes) {
+		if (isPrefixCompressed(keyTypes))
+			return 1 + KEY_SUFFIX_LEN;
+		int size = 0;
+		for (int i=0; i<keyTypes.length; i++) {
+			if (i == keyTypes.length - 1 && keyTypes[i] == Type.STRING_TYPE)
+				size += STRING_KEY_LEN + 4;
+			else
+				size += keyTypes[i].getLen();
+		}
+		return size;
+	}
+
+	/**
+	 * Computes the number of bytes an internal page with the specified key field types
+	 * uses for the prefix all its keys share: 1 + KEY_PREFIX_LEN bytes for a single string
+	 * key, none otherwise.  The page stores the longest common prefix of its keys once and
+	 * each slot holds the length of the rest of the key, with {@link PrefixField}s flagged,
+	 * and its next KEY_SUFFIX_LEN characters.
+	 * @param keyTypes - the types of the key fields, most significant first
+	 */
+	public static int getPrefixSize(Type... keyTypes) {
+		return isPrefixCompressed(keyTypes) ? 1 + KEY_PREFIX_LEN : 0;
+	}
+
+	private static boolean isPrefixCompressed(Type... keyTypes) {
+		return keyTypes.length == 1 && keyTypes[0] == Type.STRING_TYPE;
+	}
+
+	private boolean isPrefixCompressed() {
+		return isPrefixCompressed(keyTypes());
+	}
+
+	private Type[] keyTypes() {
+		Type[] keyTypes = new Type[keyFields.length];
+		for (int i=0; i<keyFields.length; i++)
+			keyTypes[i] = td.getFieldType(keyFields[i]);
+		return keyTypes;
+	}
+
+	/**
+	 * Returns the key an internal page stores at most for the specified key: a string
+	 * key is cut to its first KEY_PREFIX_LEN + KEY_SUFFIX_LEN characters, and the last
+	 * field of a composite key to its first STRING_KEY_LEN characters if it is a string;
+	 * see {@link #cut(Field, int, int)}.  An internal page of an index on a single string
+	 * field cuts its keys further when they do not share enough of a prefix to fit in
+	 * their slots.
+	 * @param key - the key, in full or already cut
+	 * @param numKeyFields - the number of key fields of the index
+	 */
+	public static Field internalKey(Field key, int numKeyFields) {
+		return cut(key, numKeyFields == 1 ? KEY_PREFIX_LEN + KEY_SUFFIX_LEN : STRING_KEY_LEN, numKeyFields);
+	}
+
+	/**
+	 * Cuts a string key, or the last field of a composite key if it is a string, to its
+	 * first len characters.  The cut field is a {@link PrefixField} if characters were cut
+	 * off, which stands for every key that starts with it; other keys are returned as they
+	 * are.  Cutting keeps the order of keys (if a <= b then cut(a) <= cut(b)) but may make
+	 * different keys equal, so searches end up in the left-most leaf that may hold a key,
+	 * like for duplicate keys, and BTreeFile moves right along the leaves, whose high keys
+	 * are stored in full.
+	 * @param key - the key, in full or already cut
+	 * @param len - the number of characters to keep
+	 * @param numKeyFields - the number of key fields of the index
+	 */
+	public static Field cut(Field key, int len, int numKeyFields) {
+		StringField s = lastString(key, numKeyFields);
+		if (s == null || s.getValue().length() <= len)
+			return key;
+		PrefixField prefix = new PrefixField(s.getValue().substring(0, len));
+		if (numKeyFields == 1)
+			return prefix;
+		CompositeField c = (CompositeField) key;
+		Field[] fields = new Field[numKeyFields];
+		for (int i=0; i<numKeyFields - 1; i++)
+			fields[i] = c.getField(i);
+		fields[numKeyFields - 1] = prefix;
+		return new CompositeField(fields);
+	}
+
+	// the string field a key of an index with numKeyFields key fields ends with, if any
+	private static StringField lastString(Field key, int numKeyFields) {
+		if (numKeyFields == 1)
+			return key instanceof StringField ? (StringField) key : null;
+		if (key instanceof CompositeField && ((CompositeField) key).numFields() == numKeyFields
+				&& ((CompositeField) key).getField(numKeyFields - 1) instanceof StringField)
+			return (StringField) ((CompositeField) key).getField(numKeyFields - 1);
+		return null;
+	}
+
+	/**
+	 * @return true if the key was cut short by an internal page, see {@link #cut(Field, int, int)}
+	 */
+	public static boolean isPrefix(Field key, int numKeyFields) {
+		return lastString(key, numKeyFields) instanceof PrefixField;
+	}
+
+	private static int prefixLength(Field key, int numKeyFields) {
+		return lastString(key, numKeyFields).getValue().length();
+	}
+
+	/**
+	 * Returns true if a key, or a key that starts with it if it is a prefix key, may be on
+	 * the left of the specified separator: the keys on the left of a separator are less
+	 * than or equal to it, or start with it if it is a prefix key.
+	 */
+	public static boolean mayPrecede(Field key, Field separator, int numKeyFields) {
+		if (isPrefix(separator, numKeyFields))
+			key = cut(key, prefixLength(separator, numKeyFields), numKeyFields);
+		return key.compare(Op.LESS_THAN_OR_EQ, separator);
+	}
+
+	/**
+	 * Returns true if a key, or a key that starts with it if it is a prefix key, may be on
+	 * the right of the specified separator: the keys on the right of a separator are
+	 * greater than or equal to it.
+	 */
+	public static boolean mayFollow(Field key, Field separator, int numKeyFields) {
+		if (isPrefix(key, numKeyFields))
+			return cut(separator, prefixLength(key, numKeyFields), numKeyFields).compare(Op.LESS_THAN_OR_EQ, key);
+		return key.compare(Op.GREATER_THAN_OR_EQ, separator);
+	}
+
+	/**
+	 * Returns true if an internal page stores the specified key as separator: the key
+	 * itself, or a prefix key it starts with.
+	 */
+	public static boolean isCutOf(Field separator, Field key, int numKeyFields) {
+		if (isPrefix(separator, numKeyFields))
+			key = cut(key, prefixLength(separator, numKeyFields), numKeyFields);
+		return key.compare(Op.EQUALS, separator);
+	}
+
+	// 页内key的最长公共前缀，不超过KEY_PREFIX_LEN个字符；key是有序的，只需比较第一个和最后一个
+	private String commonPrefix() {
+		if (numUsedSlots < 2)
+			return "";
+		return commonPrefix(keys[usedSlots[1]], keys[usedSlots[numUsedSlots - 1]]);
+	}
+
+	private static String commonPrefix(Field first, Field last) {
+		String a = ((StringField) first).getValue();
+		String b = ((StringField) last).getValue();
+		int n = Math.min(Math.min(a.length(), b.length()), KEY_PREFIX_LEN);
+		int i = 0;
+		while (i < n && a.charAt(i) == b.charAt(i))
+			i++;
+		return a.substring(0, i);
+	}
+
+	private int maxKeyLength() {
+		int max = 0;
+		for (int i=1; i<numSlots; i++) {
+			if (isSlotUsed(i))
+				max = Math.max(max, ((StringField) keys[i]).getValue().length());
+		}
+		return max;
+	}
+
+	/**
+	 * Cut the keys of a page of an index on a single string field that do not fit in
+	 * their slots after the prefix all keys share.  Called whenever a key is added or
+	 * changed, which may make the common prefix shorter; removing keys never does.
+	 */
+	private void fitKeys() {
+		indexSlots();
+		if (!isPrefixCompressed())
+			return;
+		int len = commonPrefix().length() + KEY_SUFFIX_LEN;
+		for (int i=1; i<numSlots; i++) {
+			if (isSlotUsed(i))
+				keys[i] = cut(keys[i], len, 1);
+		}
+		indexSlots();
+	}
+
 	/**
 	 * Computes the number of bytes in the header of a B+ internal page with each entry occupying entrySize bytes
 	 * @return the number of bytes in the header
@@ -145,7 +370,7 @@ public class BTreeInternalPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -164,30 +389,109 @@ public class BTreeInternalPage extends BTreePage {
 	/**
 	 * Read keys from the source file.
 	 */
-	private Field readNextKey(DataInputStream dis, int slotId) throws NoSuchElementException {
+	private Field readNextKey(DataInputStream dis, int slotId, String prefix) throws NoSuchElementException {
 		// if associated bit is not set, read forward to the next key, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
-				try {
-					dis.readByte();
-				} catch (IOException e) {
-					throw new NoSuchElementException("error reading empty key");
-				}
+			try {
+				dis.skipBytes(getKeySize(keyTypes()));
+			} catch (IOException e) {
+				throw new NoSuchElementException("error reading empty key");
 			}
 			return null;
 		}
 
-		// read the key field
-		Field f = null;
+		// a single string key is the prefix of the page followed by the rest of the key;
+		// otherwise read the key fields, a string in the last one is cut to STRING_KEY_LEN characters
 		try {
-			f = td.getFieldType(keyField).parse(dis);
-		} catch (java.text.ParseException e) {
+			if (isPrefixCompressed()) {
+				int strLen = dis.readUnsignedByte();
+				byte bs[] = new byte[KEY_SUFFIX_LEN];
+				dis.readFully(bs);
+				return keyField(prefix + new String(bs, 0, strLen & ~PREFIX_FLAG), (strLen & PREFIX_FLAG) != 0);
+			}
+			Field[] fields = new Field[keyFields.length];
+			for (int i=0; i<keyFields.length; i++) {
+				Type type = td.getFieldType(keyFields[i]);
+				if (i == keyFields.length - 1 && type == Type.STRING_TYPE) {
+					int strLen = dis.readInt();
+					byte bs[] = new byte[STRING_KEY_LEN];
+					dis.readFully(bs);
+					fields[i] = keyField(new String(bs, 0, strLen & ~PREFIX_FLAG), (strLen & PREFIX_FLAG) != 0);
+				} else {
+					fields[i] = type.parse(dis);
+				}
+			}
+			return fields.length == 1 ? fields[0] : new CompositeField(fields);
+		} catch (java.text.ParseException | IOException e) {
 			e.printStackTrace();
 			throw new NoSuchElementException("parsing error!");
 		}
+	}
+
+	private static StringField keyField(String s, boolean prefix) {
+		return prefix ? new PrefixField(s) : new StringField(s, Type.STRING_LEN);
+	}
+
+	/**
+	 * Write a key to dos in the format of readNextKey().
+	 */
+	private void writeKey(DataOutputStream dos, Field key, String prefix) throws IOException {
+		if (isPrefixCompressed()) {
+			writeString(dos, ((StringField) key).getValue().substring(prefix.length()), key instanceof PrefixField,
+					false, KEY_SUFFIX_LEN);
+			return;
+		}
+		for (int i=0; i<keyFields.length; i++) {
+			Field f = keyFields.length == 1 ? key : ((CompositeField) key).getField(i);
+			if (i == keyFields.length - 1 && f instanceof StringField)
+				writeString(dos, ((StringField) f).getValue(), f instanceof PrefixField, true, STRING_KEY_LEN);
+			else
+				f.serialize(dos);
+		}
+	}
+
+	// 长度（带PREFIX_FLAG）写成一个int或一个byte，字符串补0到len字节
+	private static void writeString(DataOutputStream dos, String s, boolean prefix, boolean intLength, int len)
+			throws IOException {
+		byte[] bs = s.getBytes();
+		int strLen = bs.length | (prefix ? PREFIX_FLAG : 0);
+		if (intLength)
+			dos.writeInt(strLen);
+		else
+			dos.writeByte(strLen);
+		dos.write(bs);
+		dos.write(new byte[len - bs.length]);
+	}
 
-		return f;
+	/**
+	 * Write the prefix block and the key slots of an internal page of an index on a single
+	 * string field, for {@link BTreeFileEncoder}.  The keys are cut the way the page cuts
+	 * them.
+	 * @param dos - where the keys are written
+	 * @param keys - the keys of the page, sorted
+	 * @param nentries - the number of key slots of the page
+	 */
+	static void writeStringKeys(DataOutputStream dos, List<Field> keys, int nentries) throws IOException {
+		String prefix = keys.isEmpty() ? "" : commonPrefix(keys.get(0), keys.get(keys.size() - 1));
+		writePrefix(dos, prefix);
+		for (Field key : keys) {
+			Field k = cut(key, prefix.length() + KEY_SUFFIX_LEN, 1);
+			writeString(dos, ((StringField) k).getValue().substring(prefix.length()), k instanceof PrefixField,
+					false, KEY_SUFFIX_LEN);
+		}
+		for (int i=keys.size(); i<nentries; i++)
+			dos.write(new byte[1 + KEY_SUFFIX_LEN]);
+	}
+
+	/**
+	 * Write the prefix block of an internal page of an index on a single string field.
+	 */
+	private static void writePrefix(DataOutputStream dos, String prefix) throws IOException {
+		byte[] bs = prefix.getBytes();
+		dos.writeByte(bs.length);
+		dos.write(bs);
+		dos.write(new byte[KEY_PREFIX_LEN - bs.length]);
 	}
 
 	/**
@@ -197,12 +501,10 @@ public class BTreeInternalPage extends BTreePage {
 		// if associated bit is not set, read forward to the next child pointer, and
 		// return -1.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<INDEX_SIZE; i++) {
-				try {
-					dis.readByte();
-				} catch (IOException e) {
-					throw new NoSuchElementException("error reading empty child pointer");
-				}
+			try {
+				dis.skipBytes(INDEX_SIZE);
+			} catch (IOException e) {
+				throw new NoSuchElementException("error reading empty child pointer");
 			}
 			return -1;
 		}
@@ -253,36 +555,41 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		// create the header of the page
-		for (int i=0; i<header.length; i++) {
-			try {
-				dos.writeByte(header[i]);
-			} catch (IOException e) {
-				// this really shouldn't happen
-				e.printStackTrace();
-			}
+		try {
+			dos.write(header);
+		} catch (IOException e) {
+			// this really shouldn't happen
+			e.printStackTrace();
+		}
+
+		// write the prefix all keys share
+		String prefix = isPrefixCompressed() ? commonPrefix() : "";
+		try {
+			if (isPrefixCompressed())
+				writePrefix(dos, prefix);
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 
 		// create the keys
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
+		byte[] emptyKey = new byte[getKeySize(keyTypes())];
 		for (int i=1; i<keys.length; i++) {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
+				try {
+					dos.write(emptyKey);
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
 				continue;
 			}
 
 			// non-empty slot
 			try {
-				keys[i].serialize(dos);
+				writeKey(dos, keys[i], prefix);
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -290,17 +597,15 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		// create the child pointers
+		byte[] emptyChild = new byte[INDEX_SIZE];
 		for (int i=0; i<children.length; i++) {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<INDEX_SIZE; j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
+				try {
+					dos.write(emptyChild);
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
 				continue;
 			}
@@ -315,8 +620,8 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + getPrefixSize(keyTypes()) +
+				getKeySize(keyTypes()) * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -364,6 +669,7 @@ public class BTreeInternalPage extends BTreePage {
 				}	
 			}
 		}
+		indexSlots();
 		e.setRecordId(null);
 	}
 
@@ -409,6 +715,7 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to update null entry.");
+		e.setKey(internalKey(e.getKey()));
 		
 		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
@@ -431,18 +738,24 @@ public class BTreeInternalPage extends BTreePage {
 		}
 		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
 		keys[rid.getTupleNumber()] = e.getKey();
+		fitKeys();
+		e.setKey(keys[rid.getTupleNumber()]);
 	}
 
 	/**
 	 * Adds the specified entry to the page; the entry's recordId should be updated to 
-	 * reflect that it is now stored on this page.
+	 * reflect that it is now stored on this page, and its key is replaced by the key the
+	 * page stores, see {@link #internalKey(Field, int)}.  Adding a key to a page of an
+	 * index on a single string field may cut the other keys of the page, so that the rest
+	 * of each of them after the prefix they share fits in its slot.
 	 * @throws DbException if the page is full (no empty slots) or key field type,
 	 *         table id, or child page category is a mismatch, or the entry is invalid
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
+		if (!isKey(e.getKey()))
 			throw new DbException("key field type mismatch, in insertEntry");
+		e.setKey(internalKey(e.getKey()));
 
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
 			throw new DbException("table id mismatch in insertEntry");
@@ -463,6 +776,8 @@ public class BTreeInternalPage extends BTreePage {
 			keys[1] = e.getKey();
 			markSlotUsed(0, true);
 			markSlotUsed(1, true);
+			fitKeys();
+			e.setKey(keys[1]);
 			e.setRecordId(new RecordId(pid, 1));
 			return;
 		}
@@ -542,6 +857,8 @@ public class BTreeInternalPage extends BTreePage {
 		Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
 		keys[goodSlot] = e.getKey();
 		children[goodSlot] = e.getRightChild().getPageNumber();
+		fitKeys();
+		e.setKey(keys[goodSlot]);
 		e.setRecordId(new RecordId(pid, goodSlot));
 	}
 
@@ -601,6 +918,89 @@ public class BTreeInternalPage extends BTreePage {
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	/**
+	 * Rebuild usedSlots and minPrefixLen from the header and the keys.  Every
+	 * method that changes them calls this before it returns.
+	 */
+	private void indexSlots() {
+		int n = 0;
+		minPrefixLen = Integer.MAX_VALUE;
+		for (int i=0; i<numSlots; i++) {
+			if (isSlotUsed(i)) {
+				usedSlots[n++] = i;
+				if (i > 0 && isPrefix(keys[i], keyFields.length))
+					minPrefixLen = Math.min(minPrefixLen, prefixLength(keys[i], keyFields.length));
+			}
+		}
+		numUsedSlots = n;
+	}
+
+	/**
+	 * Returns the ith key on this page, counting only the used slots in key
+	 * order.  The ith key separates child i-1 from child i.
+	 * @param i - the index of the key, from 1 to getNumEntries()
+	 */
+	public Field keyAt(int i) {
+		if (i < 1 || i >= numUsedSlots)
+			throw new NoSuchElementException();
+		return keys[usedSlots[i]];
+	}
+
+	/**
+	 * Returns the ith child page id on this page, counting only the used slots
+	 * in key order.
+	 * @param i - the index of the child, from 0 to getNumEntries()
+	 */
+	public BTreePageId childAt(int i) {
+		if (i < 0 || i >= numUsedSlots)
+			throw new NoSuchElementException();
+		return new BTreePageId(pid.getTableId(), children[usedSlots[i]], childCategory);
+	}
+
+	/**
+	 * Returns the left-most child that may contain the key f: the left child
+	 * of the first key greater than or equal to f, or the right-most child if
+	 * all keys are less than f.  If f is null, returns the left-most child.
+	 * Uses binary search over the keys, comparing them with f cut to the length
+	 * of the shortest prefix key on the page, so that f goes to the left of every
+	 * prefix key it starts with.
+	 */
+	public BTreePageId findChild(Field f) {
+		if (f == null)
+			return childAt(0);
+		if (minPrefixLen != Integer.MAX_VALUE)
+			f = cut(f, minPrefixLen, keyFields.length);
+		return childAt(search(Op.LESS_THAN, f) - 1);
+	}
+
+	/**
+	 * Returns the right-most child that may contain the key f: the right
+	 * child of the last key less than or equal to f, or the left-most child
+	 * if all keys are greater than f.  If f is null, returns the right-most
+	 * child.  Uses binary search over the keys; the keys on the right of a prefix
+	 * key are greater than or equal to it, like for any other key.
+	 */
+	public BTreePageId findReverseChild(Field f) {
+		if (f == null)
+			return childAt(numUsedSlots - 1);
+		return childAt(search(Op.LESS_THAN_OR_EQ, f) - 1);
+	}
+
+	// index of the first key that does not satisfy (key op f), or
+	// getNumEntries() + 1 if all of them do
+	private int search(Op op, Field f) {
+		int lo = 1;
+		int hi = numUsedSlots;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[usedSlots[mid]].compare(op, f))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
 	/**
 	 * @return an iterator over all entries on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return entries in empty slots!)
@@ -761,8 +1161,15 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key == null)
+					continue;
+				// the left child is in the closest used slot to the left, deleted
+				// entries may have left empty slots in between
+				while(curEntry > 0 && !p.isSlotUsed(curEntry)) {
+					--curEntry;
+				}
+				BTreePageId childId = p.getChildId(curEntry);
+				if(childId != null) {
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
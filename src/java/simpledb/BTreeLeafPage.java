@@ -3,6 +3,8 @@ package simpledb;
 import java.util.*;
 import java.io.*;
 
+import simpledb.Predicate.Op;
+
 /**
  * Each instance of BTreeLeafPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
@@ -15,25 +17,45 @@ public class BTreeLeafPage extends BTreePage {
 	private final byte header[];
 	private final Tuple tuples[];
 	private final int numSlots;
+
+	// slot numbers of the used slots, in key order; rebuilt by indexSlots() by
+	// every method that changes the page, so that searches under a shared
+	// latch only read them
+	private final int[] usedSlots;
+	private int numUsedSlots;
 	
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
+	// upper bound of the keys on this page: every key on this page is <= highKey and
+	// every key on the pages to its right is >= highKey.  Only kept if there is a
+	// right sibling
+	private Field highKey;
 
-	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
-		Field prev = lowerBound;
+	/**
+	 * Check the order of the keys on this page, and that they lie within the bounds
+	 * set by the keys of the parent pages.  Those are stored the way internal pages
+	 * store keys, see {@link BTreeInternalPage#cut}.
+	 */
+	public void checkRep(Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
+		Field prev = null;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
 
 		Iterator<Tuple> it = this.iterator();
 		while (it.hasNext()) {
 			Tuple t = it.next();
-			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(fieldid)));
-			prev = t.getField(fieldid);
+			Field key = getKey(t);
+			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, key));
+			assert(null == lowerBound || BTreeInternalPage.mayFollow(key, lowerBound, keyFields.length));
+			prev = key;
 			assert(t.getRecordId().getPageId().equals(this.getId()));
 		}
 
 		if (null != upperBound && null != prev){
-			assert(prev.compare(Predicate.Op.LESS_THAN_OR_EQ, upperBound));
+			assert(BTreeInternalPage.mayPrecede(prev, upperBound, keyFields.length));
+			assert(prev.compare(Predicate.Op.LESS_THAN_OR_EQ, getHighKey()));
 		}
+		assert(null == upperBound ? null == getHighKey()
+				: null != getHighKey() && BTreeInternalPage.isCutOf(upperBound, getHighKey(), keyFields.length));
 
 		if (checkoccupancy && depth > 0) {
 			assert(getNumTuples() >= getMaxTuples()/2);
@@ -44,7 +66,8 @@ public class BTreeLeafPage extends BTreePage {
 	 * Create a BTreeLeafPage from a set of bytes of data read from disk.
 	 * The format of a BTreeLeafPage is a set of header bytes indicating
 	 * the slots of the page that are in use, and some number of tuple slots, 
-	 * as well as some extra bytes for the parent and sibling pointers.
+	 * as well as some extra bytes for the parent and sibling pointers and the
+	 * high key (zeroes if there is no right sibling).
 	 *  Specifically, the number of tuples is equal to: <p>
 	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (tuple size * 8 + 1))
 	 * <p> where tuple size is the size of tuples in this
@@ -59,10 +82,10 @@ public class BTreeLeafPage extends BTreePage {
 	 * 
 	 * @param id - the id of this page
 	 * @param data - the raw data of this page
-	 * @param key - the field which the index is keyed on
+	 * @param keyFields - the fields which the index is keyed on, most significant first
 	 */
-	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+	public BTreeLeafPage(BTreePageId id, byte[] data, int... keyFields) throws IOException {
+		super(id, keyFields);
 		this.numSlots = getMaxTuples();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -88,10 +111,17 @@ public class BTreeLeafPage extends BTreePage {
 			e.printStackTrace();
 		}
 
+		// Read the high key
+		try {
+			Field f = readKey(dis);
+			this.highKey = rightSibling != 0 ? f : null;
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+		}
+
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
-		for (int i=0; i<header.length; i++)
-			header[i] = dis.readByte();
+		dis.readFully(header);
 
 		tuples = new Tuple[numSlots];
 		try{
@@ -103,6 +133,8 @@ public class BTreeLeafPage extends BTreePage {
 		}
 		dis.close();
 
+		usedSlots = new int[numSlots];
+		indexSlots();
 		setBeforeImage();
 	}
 
@@ -111,12 +143,19 @@ public class BTreeLeafPage extends BTreePage {
 	 */
 	public int getMaxTuples() {        
 		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
-		// extraBits are: left sibling pointer, right sibling pointer, parent pointer
-		int extraBits = 3 * INDEX_SIZE * 8; 
+		// extraBits are: left sibling pointer, right sibling pointer, parent pointer, high key
+		int extraBits = 3 * INDEX_SIZE * 8 + getHighKeySize() * 8;
 		int tuplesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader; //round down
 		return tuplesPerPage;
 	}
 
+	/**
+	 * Computes the number of bytes taken by the high key
+	 */
+	private int getHighKeySize() {
+		return getKeySize();
+	}
+
 	/**
 	 * Computes the number of bytes in the header of a page in a BTreeFile with each tuple occupying tupleSize bytes
 	 */
@@ -137,7 +176,7 @@ public class BTreeLeafPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			return new BTreeLeafPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -160,12 +199,10 @@ public class BTreeLeafPage extends BTreePage {
 		// if associated bit is not set, read forward to the next tuple, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getSize(); i++) {
-				try {
-					dis.readByte();
-				} catch (IOException e) {
-					throw new NoSuchElementException("error reading empty tuple");
-				}
+			try {
+				dis.skipBytes(td.getSize());
+			} catch (IOException e) {
+				throw new NoSuchElementException("error reading empty tuple");
 			}
 			return null;
 		}
@@ -223,28 +260,35 @@ public class BTreeLeafPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		// create the header of the page
-		for (int i=0; i<header.length; i++) {
-			try {
-				dos.writeByte(header[i]);
-			} catch (IOException e) {
-				// this really shouldn't happen
-				e.printStackTrace();
+		// write out the high key
+		try {
+			if (getHighKey() == null) {
+				dos.write(new byte[getHighKeySize()]);
+			} else {
+				highKey.serialize(dos);
 			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		// create the header of the page
+		try {
+			dos.write(header);
+		} catch (IOException e) {
+			// this really shouldn't happen
+			e.printStackTrace();
 		}
 
 		// create the tuples
+		byte[] emptySlot = new byte[td.getSize()];
 		for (int i=0; i<tuples.length; i++) {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getSize(); j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
+				try {
+					dos.write(emptySlot);
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
 				continue;
 			}
@@ -262,7 +306,7 @@ public class BTreeLeafPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
+		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE + getHighKeySize()); //- numSlots * td.getSize();
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -295,6 +339,7 @@ public class BTreeLeafPage extends BTreePage {
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to delete null tuple.");
 		markSlotUsed(rid.getTupleNumber(), false);
+		indexSlots();
 		t.setRecordId(null);
 	}
 
@@ -324,10 +369,10 @@ public class BTreeLeafPage extends BTreePage {
 
 		// find the last key less than or equal to the key being inserted
 		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
+		Field key = getKey(t);
 		for (int i=0; i<numSlots; i++) {
 			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+				if(getKey(tuples[i]).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
 					lessOrEqKey = i;
 				else
 					break;	
@@ -356,6 +401,7 @@ public class BTreeLeafPage extends BTreePage {
 		RecordId rid = new RecordId(pid, goodSlot);
 		t.setRecordId(rid);
 		tuples[goodSlot] = t;
+		indexSlots();
 	}
 
 	/**
@@ -434,6 +480,27 @@ public class BTreeLeafPage extends BTreePage {
 		}
 	}
 
+	/**
+	 * Get the high key of this page.  Every key on this page is less than or equal to
+	 * the high key, and every key on the pages to the right of it is greater than or
+	 * equal to it; it is the key of the parent entry between this page and its right
+	 * sibling.
+	 * @return the high key, or null if the page has no right sibling
+	 */
+	public Field getHighKey() {
+		return rightSibling == 0 ? null : highKey;
+	}
+
+	/**
+	 * Set the high key of this page.  Whoever sets the right sibling of a page must
+	 * also set its high key.
+	 * @param key - the new high key
+	 * @see #getHighKey()
+	 */
+	public void setHighKey(Field key) {
+		highKey = key;
+	}
+
 	/**
 	 * Returns the number of tuples currently stored on this page
 	 */
@@ -475,6 +542,60 @@ public class BTreeLeafPage extends BTreePage {
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	/**
+	 * Rebuild usedSlots from the header.  Every method that changes the header
+	 * calls this before it returns.
+	 */
+	private void indexSlots() {
+		int n = 0;
+		for (int i=0; i<numSlots; i++) {
+			if (isSlotUsed(i))
+				usedSlots[n++] = i;
+		}
+		numUsedSlots = n;
+	}
+
+	/**
+	 * Returns the key of the tuple at the specified position, counting only
+	 * the used slots of this page in key order.
+	 * @param index - the position of the tuple, from 0 to getNumTuples() - 1
+	 */
+	public Field keyAt(int index) {
+		if (index < 0 || index >= numUsedSlots)
+			throw new NoSuchElementException();
+		return getKey(tuples[usedSlots[index]]);
+	}
+
+	/**
+	 * Returns the position of the first tuple whose key is greater than or
+	 * equal to f, or getNumTuples() if there is none.  Uses binary search.
+	 */
+	public int lowerBound(Field f) {
+		return search(Op.LESS_THAN, f);
+	}
+
+	/**
+	 * Returns the position of the first tuple whose key is greater than f,
+	 * or getNumTuples() if there is none.  Uses binary search.
+	 */
+	public int upperBound(Field f) {
+		return search(Op.LESS_THAN_OR_EQ, f);
+	}
+
+	// position of the first tuple whose key does not satisfy (key op f)
+	private int search(Op op, Field f) {
+		int lo = 0;
+		int hi = numUsedSlots;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (getKey(tuples[usedSlots[mid]]).compare(op, f))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
 	/**
 	 * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -483,6 +604,16 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @return an iterator over the tuples on this page starting at the specified
+	 * position, as returned by {@link #lowerBound} or {@link #upperBound}
+	 */
+	public Iterator<Tuple> iterator(int from) {
+		BTreeLeafPageIterator it = new BTreeLeafPageIterator(this);
+		it.curTuple = from < numUsedSlots ? usedSlots[Math.max(from, 0)] : numSlots;
+		return it;
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -491,6 +622,16 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageReverseIterator(this);
 	}
 
+	/**
+	 * @return a reverse iterator over the tuples on this page starting at the
+	 * specified position and going towards the first tuple
+	 */
+	public Iterator<Tuple> reverseIterator(int from) {
+		BTreeLeafPageReverseIterator it = new BTreeLeafPageReverseIterator(this);
+		it.curTuple = from >= 0 && numUsedSlots > 0 ? usedSlots[Math.min(from, numUsedSlots - 1)] : -1;
+		return it;
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith tuple out of this page
 	 * @param i - the index of the tuple
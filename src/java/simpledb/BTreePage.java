@@ -18,7 +18,7 @@ public abstract class BTreePage implements Page {
 
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
-	protected final int keyField;
+	protected final int[] keyFields;
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
@@ -46,14 +46,75 @@ public abstract class BTreePage implements Page {
 	 * 
 	 * @param id - the id of this page
 	 * @param data - the raw data of this page
-	 * @param key - the field which the index is keyed on
+	 * @param keyFields - the fields which the index is keyed on, most significant first
 	 */
-	public BTreePage(BTreePageId id, int key) throws IOException {
+	public BTreePage(BTreePageId id, int... keyFields) throws IOException {
 		this.pid = id;
-		this.keyField = key;
+		this.keyFields = keyFields.clone();
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
 	}
 
+	/**
+	 * Returns the key of a tuple: its key field, or a {@link CompositeField} of its
+	 * key fields if the index is keyed on more than one field.
+	 */
+	public Field getKey(Tuple t) {
+		return getKey(t, keyFields);
+	}
+
+	static Field getKey(Tuple t, int[] keyFields) {
+		if (keyFields.length == 1)
+			return t.getField(keyFields[0]);
+		Field[] fields = new Field[keyFields.length];
+		for (int i = 0; i < keyFields.length; i++)
+			fields[i] = t.getField(keyFields[i]);
+		return new CompositeField(fields);
+	}
+
+	/**
+	 * Returns whether f can be a key of this index: a field of the type of the key field,
+	 * or a composite field of the types of the key fields.
+	 */
+	protected boolean isKey(Field f) {
+		if (keyFields.length == 1)
+			return f.getType().equals(td.getFieldType(keyFields[0]));
+		if (!(f instanceof CompositeField) || ((CompositeField) f).numFields() != keyFields.length)
+			return false;
+		for (int i = 0; i < keyFields.length; i++) {
+			if (!((CompositeField) f).getField(i).getType().equals(td.getFieldType(keyFields[i])))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a key cut to the length internal pages of this index store at most.
+	 * @see BTreeInternalPage#internalKey(Field, int)
+	 */
+	public Field internalKey(Field key) {
+		return BTreeInternalPage.internalKey(key, keyFields.length);
+	}
+
+	/**
+	 * Returns the number of bytes a key takes when stored in full.
+	 */
+	protected int getKeySize() {
+		int size = 0;
+		for (int k : keyFields)
+			size += td.getFieldType(k).getLen();
+		return size;
+	}
+
+	/**
+	 * Read a key stored in full from the source file.
+	 */
+	protected Field readKey(DataInputStream dis) throws java.text.ParseException {
+		Field[] fields = new Field[keyFields.length];
+		for (int i = 0; i < keyFields.length; i++)
+			fields[i] = td.getFieldType(keyFields[i]).parse(dis);
+		return fields.length == 1 ? fields[0] : new CompositeField(fields);
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
@@ -278,7 +278,9 @@ public class BTreeUtility {
 	 */
 	public static int getNumTuplesPerPage(int columns) {
 		int bytesPerTuple = Type.INT_TYPE.getLen() * columns * 8;
-		int tuplesPerPage = (BufferPool.getPageSize() * 8 - 3 * BTreeLeafPage.INDEX_SIZE * 8) /  (bytesPerTuple + 1);
+		// pointers to the parent and siblings, and the high key
+		int extraBits = (3 * BTreeLeafPage.INDEX_SIZE + Type.INT_TYPE.getLen()) * 8;
+		int tuplesPerPage = (BufferPool.getPageSize() * 8 - extraBits) /  (bytesPerTuple + 1);
 		return tuplesPerPage;
 	}
 	
@@ -3,9 +3,15 @@ package simpledb;
 import java.io.*;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -38,6 +44,21 @@ public class BufferPool {
     //页的最大数量
     private int MAX_Page;
     private LockManager lockManager;
+    //已提交并写入日志、但还没有写回磁盘的page，由pageCleaner在后台写回；
+    //值是page最近一次提交的序号，写回期间page又被提交过就不能从中删除
+    private HashMap<PageId, Long> unflushedPages;
+    private long commitCount;
+    //pageCleaner正在监视器之外写回的page，flushPage要等它们写完
+    private HashSet<PageId> cleaningPages;
+    //正在监视器之外从磁盘读入的page，其他线程等它读完，不重复读
+    private HashSet<PageId> loadingPages;
+    //后台写脏页的线程，为null时提交事务需要同步写回所有脏页
+    private PageCleaner pageCleaner;
+    // 每次有page被恢复成更早的版本（abort或回滚到savepoint）时加一，
+    // BTreeFile用它判断不加锁的查找路径是否可能已经失效
+    private volatile long restoreCount;
+    // 每次有page不经写回就被移出缓冲池时加一，读盘的线程用它判断在不加锁读盘期间page是否可能已经被修改并写回
+    private long discardCount;
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -49,6 +70,9 @@ public class BufferPool {
         MAX_Page = numPages;
         pageId = new HashMap<>(MAX_Page);
         lockManager = new LockManager();
+        unflushedPages = new HashMap<>();
+        cleaningPages = new HashSet<>();
+        loadingPages = new HashSet<>();
     }
 
     public static int getPageSize() {
@@ -101,23 +125,150 @@ public class BufferPool {
             }
             state = lockManager.acquireLock(tid, pid, perm);
         }
-        if (pageId.containsKey(pid)) {// 判断要返回的page是否已存在
-            return pageId.get(pid);// 如果存在直接返回page
-        } else {// 如果不存在，把需要返回的page加进去，再返回对应page
-            DbFile table = Database.getCatalog().getDatabaseFile(pid.getTableId());// 找到tableid对应的table
-            Page newPage = table.readPage(pid);
-            if (pageId.size() == MAX_Page) {// 判断缓冲池里是否还有空间，如果没有空间，就清除最后一个page
-                this.evictPage();
+        return cachedPage(tid, pid, perm);
+    }
+
+    /**
+     * Like {@link #getPage(TransactionId, PageId, Permissions)}, but returns
+     * null instead of waiting if the lock cannot be granted right away.
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        if (!lockManager.acquireLock(tid, pid, perm)) {
+            lockManager.removeWaiter(tid, pid);
+            return null;
+        }
+        return cachedPage(tid, pid, perm);
+    }
+
+    /**
+     * Retrieve the specified page without acquiring a lock on it.  Only for
+     * pages whose readers and writers synchronize through latches instead of
+     * transaction locks, like the internal pages of a B+ tree.
+     *
+     * @see PageLatches
+     */
+    Page getLatchedPage(PageId pid) throws DbException {
+        return cachedPage(null, pid, Permissions.READ_ONLY);
+    }
+
+    // 缓冲池的状态在监视器内访问；读盘在监视器之外进行，读的时候其他线程可以继续使用缓冲池
+    private Page cachedPage(TransactionId tid, PageId pid, Permissions perm) throws DbException {
+        while (true) {
+            long discards;
+            synchronized (this) {
+                while (loadingPages.contains(pid)) {// 其他线程正在读这个page，等它读完
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new DbException("interrupted while waiting for page " + pid);
+                    }
+                }
+                if (pageId.containsKey(pid)) {// 判断要返回的page是否已存在
+                    return pageId.get(pid);// 如果存在直接返回page
+                }
+                loadingPages.add(pid);
+                discards = discardCount;
+            }
+            Page newPage;
+            try {
+                DbFile table = Database.getCatalog().getDatabaseFile(pid.getTableId());// 找到tableid对应的table
+                newPage = table.readPage(pid);
+            } catch (RuntimeException e) {
+                loaded(pid);
+                throw e;
+            }
+            synchronized (this) {
+                // 在放入缓冲池的同一个临界区里结束读取，等待的线程醒来时page已经在缓冲池里
+                loaded(pid);
+                if (pageId.containsKey(pid)) {
+                    return pageId.get(pid);
+                }
+                if (discards != discardCount) {
+                    // 读盘期间有page不经写回就被丢弃，读到的可能是旧的内容，重新读
+                    continue;
+                }
+                if (pageId.size() >= MAX_Page) {// 判断缓冲池里是否还有空间，如果没有空间，就清除最后一个page
+                    this.evictPage();
+                }
+                pageId.put(pid, newPage);// 把新的page放入
+                newPage.setBeforeImage();
+                if (perm == Permissions.READ_WRITE) {
+                    newPage.markDirty(true, tid);
+                }
+                return newPage;
+            }
+        }
+    }
+
+    // 结束对page的读取，叫醒等它的线程
+    private synchronized void loaded(PageId pid) {
+        loadingPages.remove(pid);
+        notifyAll();
+    }
+
+    /**
+     * Read the specified page into the buffer pool ahead of time, without
+     * locking it for any transaction, so that a later getPage() finds it
+     * cached.  The page is read from disk without holding the buffer pool's
+     * monitor, and only cached if no page was discarded from the pool without
+     * being written back in the meantime: a page that is not cached has not
+     * been changed since it was last written back.  Evicts a clean page if the
+     * pool is full.
+     *
+     * @param pid the ID of the page to read
+     * @return the cached page, or null if it could not be read ahead
+     * @see LeafPrefetcher
+     */
+    Page prefetchPage(PageId pid) {
+        long discards;
+        synchronized (this) {
+            if (pageId.containsKey(pid)) {
+                return pageId.get(pid);
+            }
+            if (loadingPages.contains(pid)) {// 已经有线程在读这个page
+                return null;
+            }
+            loadingPages.add(pid);
+            discards = discardCount;
+        }
+        Page newPage;
+        try {
+            newPage = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        } catch (RuntimeException e) {
+            loaded(pid);
+            throw e;
+        }
+        synchronized (this) {
+            loaded(pid);
+            if (pageId.containsKey(pid)) {
+                return pageId.get(pid);
             }
-            pageId.put(pid, newPage);// 把新的page放入
-            pageId.get(pid).setBeforeImage();
-            if (perm == Permissions.READ_WRITE) {
-                newPage.markDirty(true, tid);
+            if (discards != discardCount) {
+                return null;
             }
+            if (pageId.size() >= MAX_Page) {
+                try {
+                    evictPage();
+                } catch (DbException e) {
+                    // 缓冲池里全是脏页，放弃预读
+                    return null;
+                }
+            }
+            newPage.setBeforeImage();
+            pageId.put(pid, newPage);
             return newPage;
         }
     }
 
+    /**
+     * Return whether the specified page is currently in the buffer pool.
+     */
+    synchronized boolean isCached(PageId pid) {
+        return pageId.containsKey(pid);
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -153,6 +304,76 @@ public class BufferPool {
         return lockManager.holdsLock(tid, p);
     }
 
+    /**
+     * Return the pages the specified transaction currently holds a lock on.
+     */
+    public Set<PageId> lockedPages(TransactionId tid) {
+        return lockManager.getLockedPages(tid);
+    }
+
+    /**
+     * Release every lock of the specified transaction except the locks on
+     * the specified pages.  Used when rolling back to a savepoint, so the
+     * caller must make sure the transaction did not modify any of the pages
+     * whose locks are released.
+     *
+     * @param tid  the ID of the transaction
+     * @param keep the pages whose locks are kept
+     */
+    public void releaseLocksExcept(TransactionId tid, Set<PageId> keep) {
+        for (PageId pid : lockManager.getLockedPages(tid)) {
+            if (!keep.contains(pid)) {
+                lockManager.releaseLock(tid, pid);
+            }
+        }
+    }
+
+    /**
+     * Return how many times pages were rolled back to earlier images by an
+     * abort or a rollback to a savepoint.
+     */
+    long restoreCount() {
+        return restoreCount;
+    }
+
+    /**
+     * Record that pages were rolled back to earlier images.  Must be called
+     * before the transaction that made the undone changes releases its locks.
+     */
+    synchronized void pagesRestored() {
+        restoreCount++;
+    }
+
+    /**
+     * Replace the specified pages in the buffer pool with their before images
+     * right away, instead of waiting for the transaction that is changing them
+     * to abort.  Used by BTreeFile when a split or merge fails half-way, since
+     * searches read internal pages without locking them.
+     */
+    synchronized void restorePages(Collection<Page> pages) {
+        for (Page page : pages) {
+            // 不在缓冲池中的page会从磁盘重新读入，NO STEAL保证磁盘上是已提交的版本
+            if (pageId.containsKey(page.getId())) {
+                pageId.put(page.getId(), page.getBeforeImage());
+            }
+        }
+        restoreCount++;
+    }
+
+    /**
+     * Return the pages in the buffer pool that the specified transaction has
+     * dirtied.
+     */
+    synchronized List<Page> dirtyPages(TransactionId tid) {
+        List<Page> dirty = new ArrayList<>();
+        for (Page p : pageId.values()) {
+            if (tid.equals(p.isDirty())) {
+                dirty.add(p);
+            }
+        }
+        return dirty;
+    }
+
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
@@ -164,22 +385,21 @@ public class BufferPool {
             throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        try {
-            for (PageId pid : pageId.keySet()) {
-                // 遍历缓冲池中的page，如果是对应脏页
-                if (pageId.get(pid).isDirty() != null &&
-                        pageId.get(pid).isDirty().equals(tid)) {
-                    // 如果事务是提交，刷新page
-                    if (commit) {
-                        flushPage(pid);
-                    } else {
+        synchronized (this) {
+            if (commit) {
+                // 如果事务是提交，刷新page
+                flushPages(tid);
+            } else {
+                for (PageId pid : pageId.keySet()) {
+                    // 遍历缓冲池中的page，如果是对应脏页
+                    if (pageId.get(pid).isDirty() != null &&
+                            pageId.get(pid).isDirty().equals(tid)) {
                         // 如果是中止事务，将页面恢复到其磁盘状态来还原事务所做的任何更改
                         pageId.put(pid, pageId.get(pid).getBeforeImage());
                     }
                 }
+                restoreCount++;
             }
-        } catch (NullPointerException e) {
-            e.printStackTrace();
         }
         // 释放该事务持有的所有锁
         lockManager.releaseAllLocks(tid);
@@ -194,7 +414,9 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
-     * that future requests see up-to-date pages.
+     * that future requests see up-to-date pages.  The secondary indexes of the
+     * table get an entry for the new tuple, and the tuple is added to the
+     * statistics of the table.
      *
      * @param tid     the transaction adding the tuple
      * @param tableId the table to add the tuple to
@@ -206,13 +428,12 @@ public class BufferPool {
         // not necessary for lab1
         DbFile heapFile = Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> pages = heapFile.insertTuple(tid, t);
-        for (Page page : pages) {
-            if (!pageId.containsKey(page.getId()) && pageId.size() == MAX_Page) {
-                evictPage();
-            }
-            page.markDirty(true, tid);
-            pageId.put(page.getId(), page);
+        cacheDirtyPages(tid, pages);
+        // t已经有了RecordId，加入表上的每个二级索引
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            cacheDirtyPages(tid, index.insertTuple(tid, t));
         }
+        TableStats.tupleInserted(tableId, t);
     }
 
     /**
@@ -223,7 +444,9 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
-     * that future requests see up-to-date pages.
+     * that future requests see up-to-date pages.  The entries for the tuple are
+     * removed from the secondary indexes of its table, and the tuple from the
+     * statistics of the table.
      *
      * @param tid the transaction deleting the tuple.
      * @param t   the tuple to delete
@@ -232,8 +455,22 @@ public class BufferPool {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        DbFile heapFile = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+        int tableId = t.getRecordId().getPageId().getTableId();
+        DbFile heapFile = Database.getCatalog().getDatabaseFile(tableId);
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            cacheDirtyPages(tid, index.deleteTuple(tid, t));
+        }
         ArrayList<Page> pages = heapFile.deleteTuple(tid, t);
+        cacheDirtyPages(tid, pages);
+        TableStats.tupleDeleted(tableId, t);
+    }
+
+    /**
+     * Mark the pages dirtied by an insert or delete as dirty and put them
+     * into the buffer pool, replacing any cached versions.  Also used by
+     * BTreeFile to keep pages it is about to change from being evicted.
+     */
+    synchronized void cacheDirtyPages(TransactionId tid, List<Page> pages) throws DbException {
         for (Page page : pages) {
             if (!pageId.containsKey(page.getId()) && pageId.size() == MAX_Page) {
                 evictPage();
@@ -251,7 +488,7 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for (PageId pid : pageId.keySet()) {
+        for (PageId pid : new ArrayList<PageId>(pageId.keySet())) {
             flushPage(pid);
         }
     }
@@ -269,6 +506,25 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         pageId.remove(pid);
+        unflushedPages.remove(pid);
+        discardCount++;
+    }
+
+    // 淘汰已经写回磁盘的page：磁盘上的内容是最新的，正在读盘的线程不用重读
+    private void removeWrittenPage(PageId pid) {
+        pageId.remove(pid);
+        unflushedPages.remove(pid);
+    }
+
+    /**
+     * Remove every page from the buffer pool without writing it out.
+     * Used by the recovery manager once it has installed the recovered
+     * pages directly on disk.
+     */
+    public synchronized void discardAllPages() {
+        pageId.clear();
+        unflushedPages.clear();
+        discardCount++;
     }
 
     /**
@@ -279,13 +535,31 @@ public class BufferPool {
     private synchronized void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
+        // pageCleaner正在写这个page较早提交的版本，等它写完再写，免得旧版本覆盖新版本
+        while (cleaningPages.contains(pid)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for the page cleaner");
+            }
+        }
         Page page = pageId.get(pid);
-        if (page != null && page.isDirty() != null) {
-            DbFile heapFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            heapFile.writePage(page);
-            page.markDirty(false, null);
-            page.setBeforeImage();
+        if (page == null) {
+            return;
         }
+        TransactionId dirtier = page.isDirty();
+        if (dirtier != null) {
+            // write-ahead logging：写回page之前，先把更新记录写入日志并刷到磁盘
+            Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
+            Database.getLogFile().force();
+        } else if (!unflushedPages.containsKey(pid)) {
+            return;
+        }
+        DbFile heapFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        heapFile.writePage(page);
+        page.markDirty(false, null);
+        unflushedPages.remove(pid);
     }
 
     /**
@@ -294,15 +568,157 @@ public class BufferPool {
     public synchronized void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        for (PageId pid : pageId.keySet()) {
+        // flushPage可能在等pageCleaner时释放监视器，所以遍历一份副本
+        for (PageId pid : new ArrayList<PageId>(pageId.keySet())) {
             Page p = pageId.get(pid);
+            if (p == null) {
+                continue;
+            }
             if (p.isDirty() != null && p.isDirty().equals(tid)) {
-                flushPage(pid);
-                if (p.isDirty() == null) {
+                if (pageCleaner != null) {
+                    // 有后台写线程时只写日志，page交给pageCleaner写回；
+                    // 事务的commit记录会把这些更新记录一起刷到磁盘
+                    Database.getLogFile().logWrite(tid, p.getBeforeImage(), p);
+                    p.markDirty(false, null);
+                    // pageCleaner写回的是before image，B+树内部页不加锁，这里直接更新
                     p.setBeforeImage();
+                    unflushedPages.put(pid, ++commitCount);
+                } else {
+                    flushPage(pid);
+                }
+            }
+            // 事务修改过的page可能已经被flushAllPages写回，所以对它锁住的所有page都要更新before image
+            if (p.isDirty() == null && lockManager.holdsLock(tid, pid)) {
+                p.setBeforeImage();
+            }
+        }
+    }
+
+    /**
+     * Start a background thread that writes committed pages back to disk, so
+     * that committing transactions only have to force the log.  While the
+     * cleaner runs, {@link #flushPages(TransactionId)} only logs the pages of
+     * the committing transaction and leaves writing them to the cleaner.
+     *
+     * @param intervalMillis how long the cleaner sleeps between passes, or 0
+     *                       to only clean when the pool runs short of clean
+     *                       pages
+     */
+    public synchronized void startPageCleaner(long intervalMillis) {
+        if (pageCleaner == null) {
+            pageCleaner = new PageCleaner(this, intervalMillis);
+            pageCleaner.start();
+        }
+    }
+
+    /**
+     * Stop the background page cleaner, writing out any committed pages it
+     * has not yet written.  Commits are synchronous again afterwards.
+     */
+    public void stopPageCleaner() throws IOException {
+        PageCleaner cleaner;
+        synchronized (this) {
+            cleaner = pageCleaner;
+            pageCleaner = null;
+        }
+        if (cleaner != null) {
+            cleaner.shutdown();
+            flushCommittedPages();
+        }
+    }
+
+    /**
+     * Return the number of committed pages that are waiting to be written
+     * back by the page cleaner.
+     */
+    public synchronized int numUnflushedPages() {
+        return unflushedPages.size();
+    }
+
+    /**
+     * Write every committed page that has not been written back yet and is
+     * not currently dirtied by a running transaction.  Pages are written in
+     * page-number order per file, and runs of adjacent pages are handed to
+     * {@link DbFile#writePages(List)} together so that they can be written
+     * with a single request.  The committed images of the pages are written
+     * without holding the buffer pool's monitor, so that other transactions
+     * can keep reading and changing pages meanwhile.
+     *
+     * @return the number of pages written
+     */
+    int flushCommittedPages() throws IOException {
+        HashMap<Integer, List<Page>> pagesByTable = new HashMap<Integer, List<Page>>();
+        HashMap<PageId, Long> commits = new HashMap<PageId, Long>();
+        synchronized (this) {
+            Iterator<Map.Entry<PageId, Long>> it = unflushedPages.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<PageId, Long> e = it.next();
+                PageId pid = e.getKey();
+                Page p = pageId.get(pid);
+                if (p == null) {
+                    it.remove();
+                } else if (p.isDirty() == null && !cleaningPages.contains(pid)) {
+                    // 被正在运行的事务再次修改过的page要等它提交之后再写；
+                    // 写的是提交时的before image，写的时候事务可以继续修改page
+                    List<Page> pages = pagesByTable.get(pid.getTableId());
+                    if (pages == null) {
+                        pages = new ArrayList<Page>();
+                        pagesByTable.put(pid.getTableId(), pages);
+                    }
+                    pages.add(p.getBeforeImage());
+                    commits.put(pid, e.getValue());
+                    cleaningPages.add(pid);
                 }
             }
         }
+        if (pagesByTable.isEmpty()) {
+            return 0;
+        }
+
+        int written = 0;
+        try {
+            // 更新记录可能还没有随commit记录刷到磁盘
+            Database.getLogFile().force();
+            for (Map.Entry<Integer, List<Page>> e : pagesByTable.entrySet()) {
+                DbFile file = Database.getCatalog().getDatabaseFile(e.getKey());
+                List<Page> pages = e.getValue();
+                Collections.sort(pages, new Comparator<Page>() {
+                    public int compare(Page a, Page b) {
+                        return Integer.compare(a.getId().getPageNumber(), b.getId().getPageNumber());
+                    }
+                });
+                // 把页号连续的page合并成一次写
+                int start = 0;
+                for (int i = 1; i <= pages.size(); i++) {
+                    if (i == pages.size() || pages.get(i).getId().getPageNumber()
+                            != pages.get(i - 1).getId().getPageNumber() + 1) {
+                        List<Page> run = pages.subList(start, i);
+                        file.writePages(run);
+                        synchronized (this) {
+                            for (Page p : run) {
+                                PageId pid = p.getId();
+                                // 写的期间又提交过的page还要再写一次；被事务修改过的page等它提交时再加进来
+                                Page cached = pageId.get(pid);
+                                if (commits.get(pid).equals(unflushedPages.get(pid))
+                                        && (cached == null || cached.isDirty() == null)) {
+                                    unflushedPages.remove(pid);
+                                }
+                                cleaningPages.remove(pid);
+                            }
+                            notifyAll();
+                        }
+                        written += run.size();
+                        start = i;
+                    }
+                }
+            }
+        } finally {
+            synchronized (this) {
+                cleaningPages.removeAll(commits.keySet());
+                notifyAll();
+            }
+        }
+        return written;
     }
 
     /**
@@ -313,21 +729,33 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         ArrayList<PageId> cleanPages = new ArrayList<PageId>();
+        PageId unflushedVictim = null;
         for (PageId pid : pageId.keySet()) {
             if (pageId.get(pid).isDirty() == null) {
-                cleanPages.add(pid);
+                if (unflushedPages.containsKey(pid)) {
+                    unflushedVictim = pid;
+                } else {
+                    cleanPages.add(pid);
+                }
             }
         }
+        // 优先淘汰已经写回磁盘的page，只有没有其他选择时才同步写回一个已提交的page
+        if (cleanPages.size() == 0 && unflushedVictim != null) {
+            cleanPages.add(unflushedVictim);
+        }
         if (cleanPages.size() == 0) {
             throw new DbException("");
         }
+        if (pageCleaner != null && unflushedPages.size() * 2 >= MAX_Page) {
+            pageCleaner.wakeUp();
+        }
         PageId vic = cleanPages.get(cleanPages.size() - 1);
         try {
             flushPage(vic);
         } catch (Exception e) {
             e.printStackTrace();
         }
-        discardPage(vic);
+        removeWrittenPage(vic);
     }
 
 
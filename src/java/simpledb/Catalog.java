@@ -6,6 +6,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -26,6 +27,13 @@ public class Catalog {
     private HashMap<Integer, String> idkey;
     //建立表名到id的一一映射
     private HashMap<String, Integer> nameid;
+    //建立表id到它的二级索引的映射
+    private HashMap<Integer, List<SecondaryIndex>> idindexes;
+    //建立索引文件id到索引的映射，索引文件不算作表
+    private HashMap<Integer, SecondaryIndex> indexfile;
+    //每次修改catalog都换一个新的版本号；所有catalog共用一个计数器，新建的catalog不会和旧的同号
+    private static final AtomicLong versions = new AtomicLong();
+    private volatile long version = versions.incrementAndGet();
 
     /**
      * Constructor.
@@ -37,6 +45,8 @@ public class Catalog {
         idname = new HashMap<>();
         idkey = new HashMap<>();
         nameid = new HashMap<>();
+        idindexes = new HashMap<>();
+        indexfile = new HashMap<>();
     }
 
     /**
@@ -55,11 +65,19 @@ public class Catalog {
             throw new IllegalArgumentException();
         }
         int tableid = file.getId();
-        idfile.put(tableid, file);
+        //被替换掉的文件不会再用到，关掉它打开的文件
+        DbFile old = idfile.put(tableid, file);
+        if (old != null && old != file) {
+            old.close();
+        }
+        Integer oldid = nameid.get(name);
+        if (oldid != null && oldid != tableid && idfile.get(oldid) != file) {
+            idfile.get(oldid).close();
+        }
         idname.put(tableid, name);
         idkey.put(tableid, pkeyField);
         nameid.put(name, tableid);
-
+        version = versions.incrementAndGet();
     }
 
     public void addTable(DbFile file, String name) {
@@ -78,6 +96,66 @@ public class Catalog {
         addTable(file, (UUID.randomUUID()).toString());
     }
 
+    /**
+     * Add a secondary index to the catalog, so that the index is updated when tuples are
+     * inserted into or deleted from its table, and the query optimizer can use it.  The
+     * file holding the index is not added as a table, but its pages can be read through
+     * the buffer pool like those of a table.
+     *
+     * @param index the index to add; its table must already be in the catalog
+     * @throws NoSuchElementException if the table of the index doesn't exist
+     */
+    public void addIndex(SecondaryIndex index) {
+        if (!idfile.containsKey(index.getTableId())) {
+            throw new NoSuchElementException();
+        }
+        List<SecondaryIndex> indexes = idindexes.get(index.getTableId());
+        if (indexes == null) {
+            indexes = new ArrayList<>();
+            idindexes.put(index.getTableId(), indexes);
+        }
+        indexes.add(index);
+        indexfile.put(index.getFile().getId(), index);
+        version = versions.incrementAndGet();
+    }
+
+    /**
+     * Returns the version of the catalog, which changes whenever a table or an
+     * index is added or the catalog is cleared.  No two catalogs ever have the
+     * same version, so that plans made against one catalog are never taken to
+     * be valid for another.
+     */
+    public long version() {
+        return version;
+    }
+
+    /**
+     * Returns the secondary indexes of the specified table, or an empty list if it has none.
+     *
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *                function passed to addTable
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> indexes = idindexes.get(tableid);
+        return indexes == null ? Collections.<SecondaryIndex>emptyList() : Collections.unmodifiableList(indexes);
+    }
+
+    /**
+     * Returns a secondary index on the specified field of a table, or null if there is none.
+     *
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *                function passed to addTable
+     * @param field   the index of the field
+     */
+    public SecondaryIndex getIndex(int tableid, int field) {
+        for (SecondaryIndex index : getIndexes(tableid)) {
+            if (index.getField() == field) {
+                return index;
+            }
+        }
+        return null;
+    }
+
     /**
      * Return the id of the table with a specified name,
      *
@@ -100,10 +178,7 @@ public class Catalog {
      */
     public TupleDesc getTupleDesc(int tableid) throws NoSuchElementException {
         // some code goes here
-        if (!idfile.containsKey(tableid)) {//判断tableid对应的file是否存在
-            throw new NoSuchElementException();
-        }
-        return idfile.get(tableid).getTupleDesc();
+        return getDatabaseFile(tableid).getTupleDesc();
     }
 
     /**
@@ -115,6 +190,9 @@ public class Catalog {
      */
     public DbFile getDatabaseFile(int tableid) throws NoSuchElementException {
         // some code goes here
+        if (indexfile.containsKey(tableid)) {
+            return indexfile.get(tableid).getFile();
+        }
         if (!idfile.containsKey(tableid)) {//判断tableid对应的file是否存在
             throw new NoSuchElementException();
         }
@@ -147,11 +225,20 @@ public class Catalog {
      */
     public void clear() {
         // some code goes here
-        //所有的hashmap都clear就行了吧
+        //所有的hashmap都clear就行了吧；先关掉表和索引打开的文件
+        for (DbFile file : idfile.values()) {
+            file.close();
+        }
+        for (SecondaryIndex index : indexfile.values()) {
+            index.getFile().close();
+        }
         idfile.clear();
         idname.clear();
         idkey.clear();
         nameid.clear();
+        idindexes.clear();
+        indexfile.clear();
+        version = versions.incrementAndGet();
     }
 
     /**
@@ -0,0 +1,124 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Instance of Field that combines several fields into one value, used as the key
+ * of a BTreeFile keyed on more than one field.  Composite fields are compared
+ * lexicographically: field by field, the first one that differs decides, and a
+ * composite field that is a prefix of another one is less than it.
+ */
+public class CompositeField implements Field {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Field[] fields;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param fields
+	 *            The fields of this composite field, most significant first
+	 */
+	public CompositeField(Field... fields) {
+		if (fields.length == 0)
+			throw new IllegalArgumentException("a composite field needs at least one field");
+		this.fields = fields.clone();
+	}
+
+	/**
+	 * @return the number of fields in this composite field
+	 */
+	public int numFields() {
+		return fields.length;
+	}
+
+	/**
+	 * @return the ith field of this composite field
+	 */
+	public Field getField(int i) {
+		return fields[i];
+	}
+
+	/**
+	 * Write the fields to dos one after the other, each in its own format.
+	 */
+	public void serialize(DataOutputStream dos) throws IOException {
+		for (Field f : fields)
+			f.serialize(dos);
+	}
+
+	// <0, 0 or >0 as this field is less than, equal to or greater than val
+	private int compareTo(CompositeField val) {
+		int n = Math.min(fields.length, val.fields.length);
+		for (int i = 0; i < n; i++) {
+			if (fields[i].compare(Predicate.Op.LESS_THAN, val.fields[i]))
+				return -1;
+			if (fields[i].compare(Predicate.Op.GREATER_THAN, val.fields[i]))
+				return 1;
+		}
+		return fields.length - val.fields.length;
+	}
+
+	/**
+	 * Compare the specified field to the value of this Field. Return semantics
+	 * are as specified by Field.compare; LIKE is not supported and is always false.
+	 *
+	 * @throws IllegalCastException
+	 *             if val is not a CompositeField
+	 * @see Field#compare
+	 */
+	public boolean compare(Predicate.Op op, Field val) {
+
+		int cmpVal = compareTo((CompositeField) val);
+
+		switch (op) {
+		case EQUALS:
+			return cmpVal == 0;
+
+		case NOT_EQUALS:
+			return cmpVal != 0;
+
+		case GREATER_THAN:
+			return cmpVal > 0;
+
+		case GREATER_THAN_OR_EQ:
+			return cmpVal >= 0;
+
+		case LESS_THAN:
+			return cmpVal < 0;
+
+		case LESS_THAN_OR_EQ:
+			return cmpVal <= 0;
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return the Type of the first field, which decides the order of composite
+	 *         fields most of the time
+	 */
+	public Type getType() {
+		return fields[0].getType();
+	}
+
+	public int hashCode() {
+		return Arrays.hashCode(fields);
+	}
+
+	public boolean equals(Object field) {
+		return field instanceof CompositeField && Arrays.equals(fields, ((CompositeField) field).fields);
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder("(");
+		for (int i = 0; i < fields.length; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(fields[i]);
+		}
+		return sb.append(")").toString();
+	}
+}
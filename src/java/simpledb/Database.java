@@ -5,8 +5,8 @@ import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Database is a class that initializes several static variables used by the
- * database system (the catalog, the buffer pool, and the log files, in
- * particular.)
+ * database system (the catalog, the buffer pool, the log files and the cache
+ * of statement plans, in particular.)
  * <p>
  * Provides a set of methods that can be used to access these variables from
  * anywhere.
@@ -20,6 +20,7 @@ public class Database {
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
+    private final StatementCache _statementCache;
 
     private Database() {
         _catalog = new Catalog();
@@ -32,6 +33,7 @@ public class Database {
             System.exit(1);
         }
         _logfile = tmp;
+        _statementCache = new StatementCache(StatementCache.DEFAULT_CAPACITY);
         // startControllerThread();
     }
 
@@ -50,6 +52,11 @@ public class Database {
         return _instance.get()._catalog;
     }
 
+    /** Return the cache of statement plans of the static Database instance */
+    public static StatementCache getStatementCache() {
+        return _instance.get()._statementCache;
+    }
+
     /**
      * Method used for testing -- create a new instance of the buffer pool and
      * return it
@@ -75,7 +82,8 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        // close the files the old catalog kept open
+        _instance.getAndSet(new Database())._catalog.clear();
     }
 
 }
@@ -28,6 +28,20 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Push several pages with consecutive page numbers to disk.  Files that
+     * store pages contiguously can override this to write the whole run with
+     * a single request.
+     *
+     * @param pages The pages to write, sorted by page number with no gaps
+     * @throws IOException if the write fails
+     */
+    public default void writePages(List<Page> pages) throws IOException {
+        for (Page p : pages) {
+            writePage(p);
+        }
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -88,4 +102,12 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     public TupleDesc getTupleDesc();
+
+    /**
+     * Release the resources, such as open file handles, this file keeps
+     * between calls.  The catalog calls this when it drops the table; a file
+     * that is used again afterwards opens what it needs again.
+     */
+    public default void close() {
+    }
 }
@@ -0,0 +1,391 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * An equi-depth histogram over a single field, INT or STRING, together with a
+ * list of the field's most common values.
+ * <p>
+ * The most common values are kept with their exact counts, so equality
+ * predicates on them, which are the ones skewed data gets wrong most, are
+ * estimated exactly.  The other values are split into buckets that each hold
+ * about the same number of tuples, rather than covering ranges of the same
+ * width as in {@link IntHistogram}; dense ranges get narrow buckets, and a
+ * range predicate is off by at most part of one bucket.  Each bucket records
+ * its smallest and largest value, its number of tuples and its number of
+ * distinct values; within a bucket the distinct values are assumed to be equally
+ * common and spread evenly between the two.
+ * <p>
+ * Unlike IntHistogram, this is built from all the values of the field at once.
+ * Later inserts and deletes can be added with {@link #addValue}, which adjusts
+ * the counts without moving the bucket boundaries.
+ */
+public class EquiDepthHistogram implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The order of INT and STRING fields, as defined by {@link Field#compare}.
+     */
+    public static final Comparator<Field> FIELD_ORDER = new Comparator<Field>() {
+        public int compare(Field a, Field b) {
+            if (a.compare(Predicate.Op.LESS_THAN, b)) {
+                return -1;
+            }
+            return a.compare(Predicate.Op.GREATER_THAN, b) ? 1 : 0;
+        }
+    };
+
+    // 出现次数超过平均次数这么多倍的值才算最常见的值
+    private static final double MCV_FACTOR = 1.25;
+
+    // 计数用double：抽样得到的直方图中，后来插入的一个元组只算样本比例那么多
+    private double ntups;
+    private int ndistinct;
+    // 最常见的值及其出现次数，按值排序
+    private final Field[] mcvs;
+    private final double[] mcvCounts;
+    // 其余的值按顺序分到各bucket
+    private Field[] lows;
+    private Field[] highs;
+    private double[] counts;
+    private int[] distincts;
+
+    /**
+     * Create a new EquiDepthHistogram over the specified values.
+     *
+     * @param buckets the largest number of buckets to split the values into
+     * @param maxMcvs the largest number of most common values to keep apart from
+     *                the buckets
+     * @param values  the values of the field, in any order; all of them must have
+     *                the same type
+     */
+    public EquiDepthHistogram(int buckets, int maxMcvs, Field[] values) {
+        Field[] sorted = values.clone();
+        Arrays.sort(sorted, FIELD_ORDER);
+        ntups = sorted.length;
+
+        // 相同的值排在一起，每段是一个不同的值
+        ArrayList<Field> runValues = new ArrayList<Field>();
+        ArrayList<Integer> runCounts = new ArrayList<Integer>();
+        for (int i = 0; i < sorted.length; i++) {
+            if (i > 0 && sorted[i].equals(sorted[i - 1])) {
+                runCounts.set(runCounts.size() - 1, runCounts.get(runCounts.size() - 1) + 1);
+            } else {
+                runValues.add(sorted[i]);
+                runCounts.add(1);
+            }
+        }
+        ndistinct = runValues.size();
+
+        // 比平均值常见得多的值中，取最常见的maxMcvs个
+        Integer[] byCount = new Integer[ndistinct];
+        for (int i = 0; i < ndistinct; i++) {
+            byCount[i] = i;
+        }
+        final ArrayList<Integer> rc = runCounts;
+        Arrays.sort(byCount, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return rc.get(b) - rc.get(a);
+            }
+        });
+        boolean[] isMcv = new boolean[ndistinct];
+        int nmcvs = 0;
+        for (int i = 0; i < ndistinct && nmcvs < maxMcvs; i++) {
+            int c = runCounts.get(byCount[i]);
+            if (c < 2 || c <= MCV_FACTOR * ntups / ndistinct) {
+                break;
+            }
+            isMcv[byCount[i]] = true;
+            nmcvs++;
+        }
+        mcvs = new Field[nmcvs];
+        mcvCounts = new double[nmcvs];
+        int rest = 0;
+        for (int i = 0, m = 0; i < ndistinct; i++) {
+            if (isMcv[i]) {
+                mcvs[m] = runValues.get(i);
+                mcvCounts[m++] = runCounts.get(i);
+            } else {
+                rest += runCounts.get(i);
+            }
+        }
+
+        // 剩下的值按累计元组数切分，同一个值不跨bucket
+        ArrayList<Integer> bucketStarts = new ArrayList<Integer>();
+        int nbuckets = Math.max(1, buckets);
+        int seen = 0;
+        for (int i = 0; i < ndistinct; i++) {
+            if (isMcv[i]) {
+                continue;
+            }
+            if (bucketStarts.isEmpty() || (long) seen * nbuckets >= (long) bucketStarts.size() * rest) {
+                bucketStarts.add(i);
+            }
+            seen += runCounts.get(i);
+        }
+        int n = bucketStarts.size();
+        lows = new Field[n];
+        highs = new Field[n];
+        counts = new double[n];
+        distincts = new int[n];
+        for (int b = 0; b < n; b++) {
+            int end = b + 1 < n ? bucketStarts.get(b + 1) : ndistinct;
+            for (int i = bucketStarts.get(b); i < end; i++) {
+                if (isMcv[i]) {
+                    continue;
+                }
+                if (lows[b] == null) {
+                    lows[b] = runValues.get(i);
+                }
+                highs[b] = runValues.get(i);
+                counts[b] += runCounts.get(i);
+                distincts[b]++;
+            }
+        }
+    }
+
+    // the position of f on a numeric scale, to interpolate within a bucket
+    private static double position(Field f) {
+        if (f instanceof IntField) {
+            return ((IntField) f).getValue();
+        }
+        return StringHistogram.stringToInt(((StringField) f).getValue());
+    }
+
+    // the index of the bucket whose range holds v, or -1
+    private int bucket(Field v) {
+        int lo = 0;
+        int hi = lows.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (v.compare(Predicate.Op.LESS_THAN, lows[mid])) {
+                hi = mid - 1;
+            } else if (v.compare(Predicate.Op.GREATER_THAN, highs[mid])) {
+                lo = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    // 与v相等的元组比例
+    private double equalFraction(Field v) {
+        if (ntups <= 0) {
+            return 0.0;
+        }
+        int m = Arrays.binarySearch(mcvs, v, FIELD_ORDER);
+        if (m >= 0) {
+            return mcvCounts[m] / ntups;
+        }
+        int b = bucket(v);
+        if (b < 0) {
+            return 0.0;
+        }
+        return counts[b] / distincts[b] / ntups;
+    }
+
+    // 大于v的元组比例
+    private double greaterFraction(Field v) {
+        if (ntups <= 0) {
+            return 0.0;
+        }
+        double count = 0.0;
+        for (int m = 0; m < mcvs.length; m++) {
+            if (mcvs[m].compare(Predicate.Op.GREATER_THAN, v)) {
+                count += mcvCounts[m];
+            }
+        }
+        for (int b = 0; b < lows.length; b++) {
+            if (lows[b].compare(Predicate.Op.GREATER_THAN, v)) {
+                count += counts[b];
+            } else if (highs[b].compare(Predicate.Op.GREATER_THAN, v)) {
+                // v在bucket内：除去与v相等的部分，按v在bucket中的位置插值
+                double width = position(highs[b]) - position(lows[b]);
+                double right = width > 0 ? (position(highs[b]) - position(v)) / width : 0.5;
+                count += counts[b] * (1.0 - 1.0 / distincts[b]) * Math.min(Math.max(right, 0.0), 1.0);
+            }
+        }
+        return Math.min(count / ntups, 1.0);
+    }
+
+    private double atMost(Field v) {
+        return 1.0 - greaterFraction(v);
+    }
+
+    /**
+     * Estimate the fraction of the tuples whose value is greater than above and
+     * at most upTo, and that satisfy the predicate <tt>value op v</tt>.
+     *
+     * @param op    the operator of the predicate
+     * @param v     the constant of the predicate
+     * @param above the bound below the range, exclusive, or null if the range has
+     *              no lower bound
+     * @param upTo  the bound above the range, inclusive, or null if the range has
+     *              no upper bound
+     * @return the estimated fraction of all tuples in the range that satisfy the
+     *         predicate
+     */
+    public double estimateSelectivity(Predicate.Op op, Field v, Field above, Field upTo) {
+        if (ntups <= 0) {
+            return 0.0;
+        }
+        double lower = above == null ? 0.0 : atMost(above);
+        double upper = upTo == null ? 1.0 : atMost(upTo);
+        boolean belowRange = above != null && v.compare(Predicate.Op.LESS_THAN_OR_EQ, above);
+        boolean aboveRange = upTo != null && v.compare(Predicate.Op.GREATER_THAN, upTo);
+        double equal = belowRange || aboveRange ? 0.0 : equalFraction(v);
+        double sel;
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            sel = equal;
+            break;
+        case NOT_EQUALS:
+            sel = upper - lower - equal;
+            break;
+        case LESS_THAN:
+            sel = (aboveRange ? upper : atMost(v) - equal) - lower;
+            break;
+        case LESS_THAN_OR_EQ:
+            sel = (aboveRange ? upper : atMost(v)) - lower;
+            break;
+        case GREATER_THAN:
+            sel = upper - (belowRange ? lower : atMost(v));
+            break;
+        case GREATER_THAN_OR_EQ:
+            sel = upper - (belowRange ? lower : atMost(v) - equal);
+            break;
+        default:
+            sel = upper - lower;
+        }
+        return Math.min(Math.max(sel, 0.0), 1.0);
+    }
+
+    /**
+     * Estimate the selectivity of the predicate <tt>value op v</tt>.
+     *
+     * @param op the operator of the predicate
+     * @param v  the constant of the predicate
+     * @return the estimated fraction of the tuples that satisfy the predicate
+     */
+    public double estimateSelectivity(Predicate.Op op, Field v) {
+        return estimateSelectivity(op, v, null, null);
+    }
+
+    /**
+     * Estimate the fraction of the tuples whose value is greater than above and
+     * at most upTo; either bound may be null.
+     */
+    public double estimateRangeFraction(Field above, Field upTo) {
+        double lower = above == null ? 0.0 : atMost(above);
+        double upper = upTo == null ? 1.0 : atMost(upTo);
+        return Math.max(upper - lower, 0.0);
+    }
+
+    /**
+     * @return the expected selectivity of an equality predicate on a value of
+     *         the field drawn at random from the tuples
+     */
+    public double avgSelectivity() {
+        if (ntups <= 0) {
+            return 1.0;
+        }
+        double sum = 0.0;
+        for (double c : mcvCounts) {
+            sum += c * c;
+        }
+        for (int b = 0; b < counts.length; b++) {
+            sum += counts[b] * counts[b] / distincts[b];
+        }
+        return sum / (ntups * ntups);
+    }
+
+    /**
+     * Account for weight tuples with value v inserted into the table, or for
+     * -weight tuples with value v deleted from it if weight is negative.  The
+     * count of the most common value or of the bucket that v falls in changes;
+     * a value outside all buckets widens the nearest bucket below it, or the
+     * first bucket.
+     *
+     * @param v      the value of the field in the inserted or deleted tuples
+     * @param weight the number of tuples, scaled by the fraction of the table
+     *               that the histogram was built from
+     */
+    public void addValue(Field v, double weight) {
+        ntups = Math.max(ntups + weight, 0.0);
+        int m = Arrays.binarySearch(mcvs, v, FIELD_ORDER);
+        if (m >= 0) {
+            mcvCounts[m] = Math.max(mcvCounts[m] + weight, 0.0);
+            return;
+        }
+        int b = bucket(v);
+        if (b >= 0) {
+            counts[b] = Math.max(counts[b] + weight, 0.0);
+            return;
+        }
+        if (weight <= 0) {
+            // 删除的值不在直方图里，没有可减的
+            return;
+        }
+        ndistinct++;
+        if (lows.length == 0) {
+            lows = new Field[] { v };
+            highs = new Field[] { v };
+            counts = new double[] { weight };
+            distincts = new int[] { 1 };
+            return;
+        }
+        // v落在bucket之间或之外：放进它下面最近的bucket，比所有bucket都小时放进第一个
+        b = 0;
+        while (b + 1 < lows.length && lows[b + 1].compare(Predicate.Op.LESS_THAN, v)) {
+            b++;
+        }
+        if (v.compare(Predicate.Op.LESS_THAN, lows[b])) {
+            lows[b] = v;
+        } else {
+            highs[b] = v;
+        }
+        counts[b] += weight;
+        distincts[b]++;
+    }
+
+    /**
+     * @return the number of distinct values of the field
+     */
+    public int numDistinct() {
+        return ndistinct;
+    }
+
+    /**
+     * @return the most common values of the field, in ascending order
+     */
+    public Field[] mostCommonValues() {
+        return mcvs.clone();
+    }
+
+    /**
+     * @return the number of buckets of the histogram
+     */
+    public int numBuckets() {
+        return counts.length;
+    }
+
+    /**
+     * @return A string describing this histogram, for debugging purposes
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder("EquiDepthHistogram[" + Math.round(ntups) + " tuples, " + ndistinct + " values]:");
+        for (int m = 0; m < mcvs.length; m++) {
+            sb.append(' ').append(mcvs[m]).append('=').append(mcvCounts[m]);
+        }
+        for (int b = 0; b < counts.length; b++) {
+            sb.append(" [").append(lows[b]).append(", ").append(highs[b]).append("]=").append(counts[b]);
+        }
+        return sb.toString();
+    }
+}
@@ -92,6 +92,9 @@ public class HashEquiJoin extends Operator {
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        // start again from the first chunk of child1
+        this.listIt = null;
+        loadMap();
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -104,6 +104,23 @@ public class HeapFile implements DbFile {
         }
     }
 
+    // see DbFile.java for javadocs
+    public void writePages(List<Page> pages) throws IOException {
+        if (pages.isEmpty()) {
+            return;
+        }
+        int pageSize = BufferPool.getPageSize();
+        //页号连续的page在文件中也是连续的，拼成一块一次写入
+        byte[] data = new byte[pages.size() * pageSize];
+        for (int i = 0; i < pages.size(); i++) {
+            System.arraycopy(pages.get(i).getPageData(), 0, data, i * pageSize, pageSize);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek((long) pages.get(0).getId().getPageNumber() * pageSize);
+            raf.write(data);
+        }
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
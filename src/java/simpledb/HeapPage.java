@@ -127,12 +127,10 @@ public class HeapPage implements Page {
         // if associated bit is not set, read forward to the next tuple, and
         // return null.
         if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+            try {
+                dis.readFully(new byte[td.getSize()]);
+            } catch (IOException e) {
+                throw new NoSuchElementException("error reading empty tuple");
             }
             return null;
         }
@@ -171,27 +169,23 @@ public class HeapPage implements Page {
         DataOutputStream dos = new DataOutputStream(baos);
 
         // create the header of the page
-        for (int i = 0; i < header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
+        try {
+            dos.write(header);
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
         }
 
         // create the tuples
+        byte[] emptySlot = new byte[td.getSize()];
         for (int i = 0; i < tuples.length; i++) {
 
             // empty slot
             if (!isSlotUsed(i)) {
-                for (int j = 0; j < td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
+                try {
+                    dos.write(emptySlot);
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
                 continue;
             }
@@ -335,6 +329,17 @@ public class HeapPage implements Page {
         return byteNum % 2 == 1;//如果模2为1，则最低位为1即该slot被使用过了
     }
 
+    /**
+     * Returns the tuple in the specified slot, or null if the slot is empty.
+     * Used to fetch tuples by their RecordId.
+     */
+    public Tuple getTuple(int i) {
+        if (i < 0 || i >= numSlots || !isSlotUsed(i)) {
+            return null;
+        }
+        return tuples[i];
+    }
+
     /**
      * Abstraction to fill or clear a slot on this page.
      */
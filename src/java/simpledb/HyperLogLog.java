@@ -0,0 +1,130 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * A HyperLogLog sketch, which estimates the number of distinct values added to
+ * it in a fixed amount of memory.
+ * <p>
+ * Each value is hashed to 64 bits.  The first <tt>precision</tt> bits pick one
+ * of 2^precision registers, and the register keeps the largest position of the
+ * first 1 bit among the remaining bits of the hashes it has seen; the more
+ * distinct values, the longer the longest run of leading zeros.  The estimate
+ * combines the registers with a harmonic mean, and has a standard error of
+ * about 1.04 / sqrt(2^precision).  Sketches with the same precision can be
+ * merged, giving the sketch of all the values added to either of them.
+ * <p>
+ * Values can only be added: a deleted value may still occur elsewhere in the
+ * table, so the sketch cannot tell whether to forget it.
+ */
+public class HyperLogLog implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int precision;
+    private final byte[] registers;
+
+    /**
+     * Create a new, empty sketch.
+     *
+     * @param precision the number of hash bits that pick a register, from 4 to 16
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16) {
+            throw new IllegalArgumentException("precision must be between 4 and 16, not " + precision);
+        }
+        this.precision = precision;
+        registers = new byte[1 << precision];
+    }
+
+    /**
+     * Create a copy of the specified sketch.
+     */
+    public HyperLogLog(HyperLogLog other) {
+        precision = other.precision;
+        registers = other.registers.clone();
+    }
+
+    // murmur3的fmix64：把hashCode打散到64位，不同的int得到不同的结果
+    static long hash(Field v) {
+        long h = v.hashCode();
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Add a value to the sketch.
+     */
+    public void add(Field v) {
+        long h = hash(v);
+        int register = (int) (h >>> (64 - precision));
+        // 剩下的位中第一个1的位置；全是0时取最大值
+        int rank = Math.min(Long.numberOfLeadingZeros(h << precision), 64 - precision) + 1;
+        if (rank > registers[register]) {
+            registers[register] = (byte) rank;
+        }
+    }
+
+    /**
+     * Add all the values added to another sketch to this one.
+     *
+     * @throws IllegalArgumentException if the sketches have different precisions
+     */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("cannot merge sketches of precision " + precision
+                    + " and " + other.precision);
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    /**
+     * @return the estimated number of distinct values added to the sketch
+     */
+    public double estimate() {
+        int m = registers.length;
+        double sum = 0.0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+        double alpha;
+        switch (m) {
+        case 16:
+            alpha = 0.673;
+            break;
+        case 32:
+            alpha = 0.697;
+            break;
+        case 64:
+            alpha = 0.709;
+            break;
+        default:
+            alpha = 0.7213 / (1.0 + 1.079 / m);
+        }
+        double e = alpha * m * m / sum;
+        // 值少时很多寄存器还是0，按空寄存器的比例估计（linear counting）更准
+        if (e <= 2.5 * m && zeros > 0) {
+            return m * Math.log((double) m / zeros);
+        }
+        return e;
+    }
+
+    /**
+     * @return the number of hash bits that pick a register
+     */
+    public int precision() {
+        return precision;
+    }
+}
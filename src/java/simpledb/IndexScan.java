@@ -0,0 +1,156 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexScan is an access method that reads the tuples of a HeapFile table that
+ * satisfy a predicate on an indexed field, by looking up their RecordIds in a
+ * {@link SecondaryIndex} and fetching each tuple from its page.  The tuples are
+ * returned in the order of the indexed field.
+ * <p>
+ * An index-only scan returns only the indexed field, straight from the index,
+ * without reading the pages of the table; it covers queries that refer to no
+ * other field of the table.
+ */
+public class IndexScan implements IndexOpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final SecondaryIndex index;
+    private final String tableAlias;
+    private final boolean indexOnly;
+    private IndexPredicate ipred;
+    private transient DbFileIterator it;
+
+    /**
+     * Creates a scan over the tuples of the table of an index that satisfy
+     * an index predicate, as a part of the specified transaction.
+     *
+     * @param tid        The transaction this scan is running as a part of.
+     * @param index      the index to look up
+     * @param tableAlias the alias of the table (needed by the parser); the returned
+     *                   tupleDesc has fields with name tableAlias.fieldName, like
+     *                   the one of SeqScan
+     * @param ipred      The predicate on the indexed field
+     */
+    public IndexScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+        this(tid, index, tableAlias, ipred, false);
+    }
+
+    /**
+     * Creates a scan over the tuples of the table of an index that satisfy
+     * an index predicate, as a part of the specified transaction.
+     *
+     * @param tid        The transaction this scan is running as a part of.
+     * @param index      the index to look up
+     * @param tableAlias the alias of the table
+     * @param ipred      The predicate on the indexed field
+     * @param indexOnly  if true, return only the indexed field, without
+     *                   reading the tuples of the table
+     */
+    public IndexScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred,
+                     boolean indexOnly) {
+        this.tid = tid;
+        this.index = index;
+        this.tableAlias = tableAlias;
+        this.ipred = ipred;
+        this.indexOnly = indexOnly;
+    }
+
+    /**
+     * @return the actual name of the table in the catalog of the database
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(index.getTableId());
+    }
+
+    /**
+     * @return the alias of the table this operator scans.
+     */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    /**
+     * @return the index this operator looks up
+     */
+    public SecondaryIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the predicate on the indexed field
+     */
+    public IndexPredicate getIndexPredicate() {
+        return ipred;
+    }
+
+    /**
+     * @return true if this scan returns only the indexed field
+     */
+    public boolean isIndexOnly() {
+        return indexOnly;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        it = indexOnly ? index.keyIterator(tid, ipred) : index.iterator(tid, ipred);
+        it.open();
+    }
+
+    public void open(IndexPredicate ipred) throws DbException, TransactionAbortedException {
+        this.ipred = ipred;
+        open();
+    }
+
+    /**
+     * Returns the TupleDesc of the table, or only of the indexed field for an
+     * index-only scan, with field names prefixed with the tableAlias string from
+     * the constructor.
+     */
+    public TupleDesc getTupleDesc() {
+        TupleDesc td = Database.getCatalog().getTupleDesc(index.getTableId());
+        if (indexOnly) {
+            return new TupleDesc(new Type[]{td.getFieldType(index.getField())},
+                    new String[]{tableAlias + "." + td.getFieldName(index.getField())});
+        }
+        Type[] types = new Type[td.numFields()];
+        String[] names = new String[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            types[i] = td.getFieldType(i);
+            names[i] = tableAlias + "." + td.getFieldName(i);
+        }
+        return new TupleDesc(types, names);
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (it == null)
+            throw new IllegalStateException("iterator is closed");
+        return it.hasNext();
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (it == null)
+            throw new IllegalStateException("iterator is closed");
+        return it.next();
+    }
+
+    public void close() {
+        if (it != null) {
+            it.close();
+            it = null;
+        }
+    }
+
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        close();
+        open();
+    }
+
+    public void rewind(IndexPredicate ipred) throws DbException, TransactionAbortedException {
+        close();
+        open(ipred);
+    }
+}
@@ -4,6 +4,13 @@ package simpledb;
  */
 public class IntHistogram {
 
+    private final int[] heights;
+    private final int min;
+    private final int max;
+    // 每个bucket覆盖的整数个数，bucket数多于取值个数时为1
+    private final double width;
+    private int ntups;
+
     /**
      * Create a new IntHistogram.
      * 
@@ -21,7 +28,21 @@ public class IntHistogram {
      * @param max The maximum integer value that will ever be passed to this class for histogramming
      */
     public IntHistogram(int buckets, int min, int max) {
-    	// some code goes here
+        this.min = min;
+        this.max = max;
+        int values = max - min + 1;
+        heights = new int[Math.max(1, Math.min(buckets, values))];
+        width = (double) values / heights.length;
+    }
+
+    // the bucket that holds v, which must be between min and max
+    private int bucket(int v) {
+        return Math.min((int) ((v - min) / width), heights.length - 1);
+    }
+
+    // the smallest value of the specified bucket
+    private double bucketLeft(int b) {
+        return min + b * width;
     }
 
     /**
@@ -29,7 +50,11 @@ public class IntHistogram {
      * @param v Value to add to the histogram
      */
     public void addValue(int v) {
-    	// some code goes here
+        if (v < min || v > max) {
+            return;
+        }
+        heights[bucket(v)]++;
+        ntups++;
     }
 
     /**
@@ -43,9 +68,51 @@ public class IntHistogram {
      * @return Predicted selectivity of this particular operator and value
      */
     public double estimateSelectivity(Predicate.Op op, int v) {
+        if (ntups == 0) {
+            return 0.0;
+        }
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return equalFraction(v);
+        case NOT_EQUALS:
+            return 1.0 - equalFraction(v);
+        case GREATER_THAN:
+            return greaterFraction(v);
+        case GREATER_THAN_OR_EQ:
+            return greaterFraction(v) + equalFraction(v);
+        case LESS_THAN:
+            return 1.0 - greaterFraction(v) - equalFraction(v);
+        case LESS_THAN_OR_EQ:
+            return 1.0 - greaterFraction(v);
+        }
+        return 1.0;
+    }
 
-    	// some code goes here
-        return -1.0;
+    // 假设bucket内的值均匀分布在它覆盖的整数上
+    private double equalFraction(int v) {
+        if (v < min || v > max) {
+            return 0.0;
+        }
+        int b = bucket(v);
+        return heights[b] / Math.max(width, 1.0) / ntups;
+    }
+
+    private double greaterFraction(int v) {
+        if (v < min) {
+            return 1.0;
+        }
+        if (v >= max) {
+            return 0.0;
+        }
+        int b = bucket(v);
+        // bucket b中大于v的部分
+        double right = bucketLeft(b + 1);
+        double count = heights[b] * Math.max(right - (v + 1), 0.0) / width;
+        for (int i = b + 1; i < heights.length; i++) {
+            count += heights[i];
+        }
+        return Math.min(count / ntups, 1.0);
     }
     
     /**
@@ -58,15 +125,25 @@ public class IntHistogram {
      * */
     public double avgSelectivity()
     {
-        // some code goes here
-        return 1.0;
+        if (ntups == 0) {
+            return 1.0;
+        }
+        // 随机取一个值时与它相等的值所占比例的期望
+        double sum = 0.0;
+        for (int h : heights) {
+            sum += (double) h * h / Math.max(width, 1.0);
+        }
+        return sum / ((double) ntups * ntups);
     }
     
     /**
      * @return A string describing this histogram, for debugging purposes
      */
     public String toString() {
-        // some code goes here
-        return null;
+        StringBuilder sb = new StringBuilder("IntHistogram[" + min + ", " + max + "]:");
+        for (int i = 0; i < heights.length; i++) {
+            sb.append(' ').append(heights[i]);
+        }
+        return sb.toString();
     }
 }
@@ -11,8 +11,75 @@ import javax.swing.tree.*;
  * logical plan.
  */
 public class JoinOptimizer {
+    /**
+     * The largest number of joins {@link #orderJoins} can enumerate the orders
+     * of; the plan cache has an entry for every subset of the joins, about
+     * 40 bytes each, so 16 joins take under 3 MB.
+     */
+    public static final int MAX_DP_JOINS = 16;
+
+    /**
+     * Default for the largest number of joins ordered by dynamic programming.
+     */
+    public static final int DEFAULT_DP_THRESHOLD = 12;
+
+    /**
+     * Default time in milliseconds the heuristic ordering may spend improving
+     * the order of the joins.
+     */
+    public static final long DEFAULT_PLANNING_BUDGET = 100;
+
+    /**
+     * Default factor by which the observed cardinality of an intermediate
+     * result must differ from its estimate for the remaining joins to be
+     * ordered again (see {@link AdaptiveJoin}): 0, so joins are not ordered
+     * again unless asked for, since that runs every join but the last when
+     * the query is opened and keeps their results.
+     */
+    public static final double DEFAULT_REOPTIMIZATION_FACTOR = 0;
+
+    // 迭代改进连续这么多次（乘以join数）没有找到更好的顺序就认为到了局部最优
+    private static final int IMPROVEMENT_TRIES = 8;
+
+    private static volatile int dpThreshold = DEFAULT_DP_THRESHOLD;
+    private static volatile long planningBudget = DEFAULT_PLANNING_BUDGET;
+    private static volatile double reoptimizationFactor = DEFAULT_REOPTIMIZATION_FACTOR;
+
+    /**
+     * The ways {@link #orderJoins} can order joins.
+     */
+    public enum Strategy {
+        /** Every order of the joins without cross products is considered */
+        DYNAMIC_PROGRAMMING("dynamic programming"),
+        /** A greedy order improved by random moves of its joins */
+        GREEDY("greedy ordering with iterative improvement"),
+        /** The joins are left in the order they were given in */
+        GIVEN("the order given");
+
+        private final String description;
+
+        private Strategy(String description) {
+            this.description = description;
+        }
+
+        public String toString() {
+            return description;
+        }
+    }
+
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
+    private Strategy strategy;
+
+    // orderJoins期间：每个join涉及的表（bitmask）以及哪些join用到了主键
+    private long[] joinTables;
+    private long[] joinLeftTables;
+    private long pkeyJoins;
+    // 每个join两侧基表的扫描代价和基数（下标2i为t1，2i+1为t2），以及连接字段是否为主键
+    private double[] scanCosts;
+    private int[] scanCards;
+    private boolean[] leftPkeys;
+    private boolean[] rightPkeys;
 
     /**
      * Constructor
@@ -27,6 +94,71 @@ public class JoinOptimizer {
         this.joins = joins;
     }
 
+    /**
+     * Set the largest number of joins {@link #orderJoins} orders by dynamic
+     * programming; queries with more joins are ordered by a heuristic. The
+     * time dynamic programming takes grows exponentially with the number of
+     * joins.
+     * 
+     * @param joins
+     *            the number of joins, at most {@link #MAX_DP_JOINS}
+     */
+    public static void setDpThreshold(int joins) {
+        if (joins > MAX_DP_JOINS)
+            throw new IllegalArgumentException("at most " + MAX_DP_JOINS
+                    + " joins can be ordered by dynamic programming");
+        dpThreshold = joins;
+    }
+
+    public static int getDpThreshold() {
+        return dpThreshold;
+    }
+
+    /**
+     * Set the time the heuristic ordering of joins beyond the
+     * {@link #setDpThreshold dynamic programming threshold} may spend trying
+     * to improve its order.
+     * 
+     * @param millis
+     *            the planning-time budget in milliseconds
+     */
+    public static void setPlanningBudget(long millis) {
+        planningBudget = millis;
+    }
+
+    public static long getPlanningBudget() {
+        return planningBudget;
+    }
+
+    /**
+     * Set how far the observed cardinality of an intermediate result of a
+     * query with several joins may be from its estimate before the joins that
+     * have not run yet are ordered again, with the observed cardinality.
+     * 
+     * @param factor
+     *            the largest ratio of observed to estimated cardinality (or
+     *            of estimated to observed) that is tolerated, greater than 1;
+     *            0 turns the re-ordering of joins at run time off
+     */
+    public static void setReoptimizationFactor(double factor) {
+        if (factor != 0 && factor <= 1)
+            throw new IllegalArgumentException(
+                    "the re-optimization factor must be greater than 1, or 0");
+        reoptimizationFactor = factor;
+    }
+
+    public static double getReoptimizationFactor() {
+        return reoptimizationFactor;
+    }
+
+    /**
+     * @return the strategy the last call to {@link #orderJoins} used, or null
+     *         if it has not been called
+     */
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
     /**
      * Return best iterator for computing a given logical join, given the
      * specified statistics, and the provided left and right subplans. Note that
@@ -68,7 +200,12 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        // 等值连接用hash join，两侧都可以是中间结果
+        if (lj.p == Predicate.Op.EQUALS) {
+            j = new HashEquiJoin(p, plan1, plan2);
+        } else {
+            j = new Join(p, plan1, plan2);
+        }
 
         return j;
 
@@ -106,12 +243,16 @@ public class JoinOptimizer {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
+        } else if (j.p == Predicate.Op.EQUALS) {
+            // HashEquiJoin: hash the outer in chunks of MAP_SIZE tuples,
+            // scanning the inner and probing the table once per chunk
+            int passes = Math.max(1, (card1 + HashEquiJoin.MAP_SIZE - 1)
+                    / HashEquiJoin.MAP_SIZE);
+            return cost1 + passes * cost2 + card1 + (double) passes * card2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return -1.0;
+            // nested loops: scan the outer once, the inner once per outer
+            // tuple, and apply the predicate to every pair
+            return cost1 + card1 * cost2 + (double) card1 * card2;
         }
     }
 
@@ -155,47 +296,77 @@ public class JoinOptimizer {
             String field2PureName, int card1, int card2, boolean t1pkey,
             boolean t2pkey, Map<String, TableStats> stats,
             Map<String, Integer> tableAliasToId) {
-        int card = 1;
-        // some code goes here
+        int card;
+        if (joinOp == Predicate.Op.EQUALS) {
+            // 主键一侧的每个元组至多匹配另一侧的一个元组
+            if (t1pkey && t2pkey) {
+                card = Math.min(card1, card2);
+            } else if (t1pkey) {
+                card = card2;
+            } else if (t2pkey) {
+                card = card1;
+            } else {
+                // 每个值在两侧各自均匀出现：card1/d1 * card2/d2个元组对，共min(d1, d2)个值
+                int d1 = numDistinct(table1Alias, field1PureName, card1, stats, tableAliasToId);
+                int d2 = numDistinct(table2Alias, field2PureName, card2, stats, tableAliasToId);
+                if (d1 > 0 && d2 > 0) {
+                    card = (int) Math.min(Integer.MAX_VALUE, (double) card1 * card2 / Math.max(d1, d2));
+                } else {
+                    card = Math.max(card1, card2);
+                }
+            }
+        } else {
+            card = (int) (0.3 * card1 * card2);
+        }
         return card <= 0 ? 1 : card;
     }
 
     /**
-     * Helper method to enumerate all of the subsets of a given size of a
-     * specified vector.
-     * 
-     * @param v
-     *            The vector whose subsets are desired
-     * @param size
-     *            The size of the subsets of interest
-     * @return a set of all subsets of the specified size
+     * The number of distinct values of a field among card tuples of a table,
+     * from the table's statistics; at most card.
+     *
+     * @return the number of distinct values, or 0 if there are no statistics
+     *         for the table or the field is unknown
      */
-    @SuppressWarnings("unchecked")
-    public <T> Set<Set<T>> enumerateSubsets(Vector<T> v, int size) {
-        Set<Set<T>> els = new HashSet<Set<T>>();
-        els.add(new HashSet<T>());
-        // Iterator<Set> it;
-        // long start = System.currentTimeMillis();
-
-        for (int i = 0; i < size; i++) {
-            Set<Set<T>> newels = new HashSet<Set<T>>();
-            for (Set<T> s : els) {
-                for (T t : v) {
-                    Set<T> news = (Set<T>) (((HashSet<T>) s).clone());
-                    if (news.add(t))
-                        newels.add(news);
-                }
-            }
-            els = newels;
+    static int numDistinct(String tableAlias, String fieldPureName, int card,
+            Map<String, TableStats> stats, Map<String, Integer> tableAliasToId) {
+        Integer tableId = tableAliasToId == null ? null : tableAliasToId.get(tableAlias);
+        if (tableId == null) {
+            return 0;
         }
-
-        return els;
-
+        TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+        if (s == null) {
+            return 0;
+        }
+        int field;
+        try {
+            field = Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(fieldPureName);
+        } catch (NoSuchElementException e) {
+            return 0;
+        }
+        return Math.min(s.numDistinct(field), card);
     }
 
     /**
-     * Compute a logical, reasonably efficient join on the specified tables. See
-     * PS4 for hints on how this should be implemented.
+     * Compute a logical, reasonably efficient join on the specified tables.
+     * <p>
+     * The joins are ordered by dynamic programming over the sets of joins,
+     * smallest first. A set of joins is a bitmask over {@link #joins}, and the
+     * best plan for each set is kept in a {@link PlanCache} indexed by it. A
+     * set is only extended with joins that touch one of the tables it already
+     * joins, so the sets enumerated are the connected subgraphs of the join
+     * graph and plans with cross products are never costed. The plan for a
+     * set joins, by one of its joins, the plans of two disjoint subsets of the
+     * rest, each of which may also be a single table, so plans can be bushy:
+     * two selective joins can be done separately and their results joined.
+     * <p>
+     * Queries with more than {@link #getDpThreshold} joins start from a greedy
+     * left-deep order, which at each step takes the join, among those touching
+     * the tables joined so far, with the smallest result. The order is then
+     * improved by moving single joins to random positions, keeping moves that
+     * make it cheaper, until {@link #getPlanningBudget} milliseconds have
+     * passed or no move has helped for a while. Queries whose joins do not
+     * connect all of their tables keep the order the joins were given in.
      * 
      * @param stats
      *            Statistics for each table involved in the join, referenced by
@@ -207,8 +378,9 @@ public class JoinOptimizer {
      * @param explain
      *            Indicates whether your code should explain its query plan or
      *            simply execute it
-     * @return A Vector<LogicalJoinNode> that stores joins in the left-deep
-     *         order in which they should be executed.
+     * @return A Vector<LogicalJoinNode> that stores joins in the order in
+     *         which they should be executed: each join joins the plans its
+     *         two tables are part of so far, with the plan of t1 as outer.
      * @throws ParsingException
      *             when stats or filter selectivities is missing a table in the
      *             join, or or when another internal error occurs
@@ -217,150 +389,478 @@ public class JoinOptimizer {
             HashMap<String, TableStats> stats,
             HashMap<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
-        //Not necessary for labs 1--3
+        long start = System.nanoTime();
+        int n = joins.size();
+        strategy = Strategy.GIVEN;
+        if (n == 0 || n > Long.SIZE) {
+            return joins;
+        }
+
+        // 给每个表分配一个bit，并预先算好每个join两侧基表的代价和基数
+        HashMap<String, Integer> tableBits = new HashMap<String, Integer>();
+        joinTables = new long[n];
+        joinLeftTables = new long[n];
+        pkeyJoins = 0;
+        leftPkeys = new boolean[n];
+        rightPkeys = new boolean[n];
+        scanCosts = new double[2 * n];
+        scanCards = new int[2 * n];
+        for (int i = 0; i < n; i++) {
+            LogicalJoinNode j = joins.get(i);
+            joinLeftTables[i] = tableBit(tableBits, j.t1Alias);
+            joinTables[i] = joinLeftTables[i];
+            TableStats s1 = tableStats(stats, j.t1Alias);
+            scanCosts[2 * i] = s1.estimateScanCost();
+            scanCards[2 * i] = s1.estimateTableCardinality(
+                    selectivity(filterSelectivities, j.t1Alias));
+            leftPkeys[i] = isPkey(j.t1Alias, j.f1PureName);
+            if (j.t2Alias != null) {
+                joinTables[i] |= tableBit(tableBits, j.t2Alias);
+                TableStats s2 = tableStats(stats, j.t2Alias);
+                scanCosts[2 * i + 1] = s2.estimateScanCost();
+                scanCards[2 * i + 1] = s2.estimateTableCardinality(
+                        selectivity(filterSelectivities, j.t2Alias));
+                rightPkeys[i] = isPkey(j.t2Alias, j.f2PureName);
+            }
+            if (leftPkeys[i] || rightPkeys[i])
+                pkeyJoins |= 1L << i;
+        }
+
+        CostCard[] steps = new CostCard[n];
+        Strategy used = n <= dpThreshold ? Strategy.DYNAMIC_PROGRAMMING
+                : Strategy.GREEDY;
+        boolean connected = used == Strategy.DYNAMIC_PROGRAMMING ? orderByDP(
+                stats, steps) : orderGreedily(stats,
+                start + planningBudget * 1000000L, steps);
+        if (!connected) {
+            // the joins do not connect all of the tables
+            return joins;
+        }
+        strategy = used;
+
+        Vector<LogicalJoinNode> order = new Vector<LogicalJoinNode>();
+        for (CostCard cc : steps) {
+            order.add(cc.join);
+        }
+        if (explain) {
+            System.out.printf("Ordered %d joins by %s in %.1f ms (cost %.0f, card %d)%n",
+                    n, strategy, (System.nanoTime() - start) / 1e6,
+                    steps[n - 1].cost, steps[n - 1].card);
+            printJoins(order, steps, stats, filterSelectivities);
+        }
+        return order;
+    }
+
+    private TableStats tableStats(HashMap<String, TableStats> stats,
+            String alias) throws ParsingException {
+        Integer id = p.getTableId(alias);
+        if (id == null)
+            throw new ParsingException("Unknown table " + alias);
+        TableStats s = stats.get(Database.getCatalog().getTableName(id));
+        if (s == null)
+            throw new ParsingException("No statistics for table " + alias);
+        return s;
+    }
+
+    private static double selectivity(
+            HashMap<String, Double> filterSelectivities, String alias)
+            throws ParsingException {
+        Double sel = filterSelectivities.get(alias);
+        if (sel == null)
+            throw new ParsingException("No filter selectivity for table "
+                    + alias);
+        return sel;
+    }
 
-        // some code goes here
-        //Replace the following
-        return joins;
+    /**
+     * Order the joins by dynamic programming over the connected sets of joins.
+     * 
+     * @param steps
+     *            filled with the cost, cardinality and join of each step of
+     *            the best plan
+     * @return false if the joins do not connect all of the tables
+     */
+    private boolean orderByDP(HashMap<String, TableStats> stats,
+            CostCard[] steps) throws ParsingException {
+        int n = joins.size();
+        PlanCache pc = new PlanCache(n);
+        boolean[] enumerated = new boolean[1 << n];
+        int[] level = new int[n];
+        int levelSize = 0;
+        for (int i = 0; i < n; i++) {
+            level[levelSize++] = 1 << i;
+            bestPlan(stats, 1 << i, pc);
+        }
+
+        // sets of size k + 1 are the sets of size k plus one join adjacent to them
+        for (int k = 1; k < n; k++) {
+            int[] next = new int[Math.min(1 << n, levelSize * (n - k))];
+            int nextSize = 0;
+            for (int l = 0; l < levelSize; l++) {
+                int s = level[l];
+                long tables = pc.getTables(s);
+                for (int i = 0; i < n; i++) {
+                    int s2 = s | (1 << i);
+                    if (s2 == s || (joinTables[i] & tables) == 0
+                            || enumerated[s2])
+                        continue;
+                    enumerated[s2] = true;
+                    next[nextSize++] = s2;
+                }
+            }
+            for (int l = 0; l < nextSize; l++) {
+                bestPlan(stats, next[l], pc);
+            }
+            level = next;
+            levelSize = nextSize;
+        }
+
+        int all = (1 << n) - 1;
+        if (!pc.hasPlan(all)) {
+            return false;
+        }
+        addSteps(pc, all, steps, 0);
+        return true;
+    }
+
+    /**
+     * Find the best plan for the specified set of joins, given the best plans
+     * for its subsets, and add it to the plan cache. The plan performs one of
+     * the joins last, joining the plans of two disjoint subsets of the rest of
+     * the joins.
+     */
+    private void bestPlan(HashMap<String, TableStats> stats, int joinSet,
+            PlanCache pc) throws ParsingException {
+        double bestCost = Double.MAX_VALUE;
+        for (int last = joinSet; last != 0; last &= last - 1) {
+            int i = Integer.numberOfTrailingZeros(last);
+            int rest = joinSet & ~(1 << i);
+            // 枚举rest的所有子集作为t1一侧的计划，其余为t2一侧
+            for (int left = rest;; left = (left - 1) & rest) {
+                CostCard cc = computeCostAndCardOfSubplan(stats, i, joinSet,
+                        left, bestCost, pc);
+                if (cc != null) {
+                    bestCost = cc.cost;
+                    int outer = cc.join == joins.get(i) ? left : rest & ~left;
+                    pc.addPlan(joinSet, cc.cost, cc.card, i, outer, cc.join,
+                            pc.getTables(left) | pc.getTables(rest & ~left)
+                                    | joinTables[i]);
+                }
+                if (left == 0)
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Fill steps, from position k on, with the joins of the plan for the
+     * specified set in an order that builds the plan: the joins of the outer
+     * plan, then those of the inner plan, then the last join.
+     * 
+     * @return the position after the last join of the plan
+     */
+    private static int addSteps(PlanCache pc, int joinSet, CostCard[] steps,
+            int k) {
+        if (joinSet == 0)
+            return k;
+        int outer = pc.getOuter(joinSet);
+        int inner = joinSet & ~outer & ~(1 << pc.getLastIndex(joinSet));
+        k = addSteps(pc, outer, steps, k);
+        k = addSteps(pc, inner, steps, k);
+        steps[k] = new CostCard();
+        steps[k].cost = pc.getCost(joinSet);
+        steps[k].card = pc.getCard(joinSet);
+        steps[k].join = pc.getLastJoin(joinSet);
+        return k + 1;
+    }
+
+    /**
+     * Order the joins greedily, then improve the order by random moves until
+     * the deadline.
+     * 
+     * @param deadline
+     *            the {@link System#nanoTime} after which to stop improving
+     * @param steps
+     *            filled with the cost, cardinality and join of each step of
+     *            the order
+     * @return false if the joins do not connect all of the tables
+     */
+    private boolean orderGreedily(HashMap<String, TableStats> stats,
+            long deadline, CostCard[] steps) throws ParsingException {
+        int n = joins.size();
+        int[] order = new int[n];
+        boolean[] done = new boolean[n];
+        CostCard prev = null;
+        long tables = 0;
+        boolean pkey = false;
+        for (int k = 0; k < n; k++) {
+            CostCard best = null;
+            for (int i = 0; i < n; i++) {
+                if (done[i] || (prev != null && (joinTables[i] & tables) == 0))
+                    continue;
+                CostCard cc = joinToPlan(stats, i, prev, tables, pkey,
+                        Double.MAX_VALUE);
+                if (cc != null && (best == null || cc.card < best.card
+                        || (cc.card == best.card && cc.cost < best.cost))) {
+                    best = cc;
+                    order[k] = i;
+                }
+            }
+            if (best == null) {
+                return false;
+            }
+            done[order[k]] = true;
+            tables |= joinTables[order[k]];
+            pkey |= (pkeyJoins & (1L << order[k])) != 0;
+            prev = best;
+        }
+
+        // iterative improvement：把一个join移到另一个位置，更便宜就保留
+        Random rand = new Random(n);
+        int[] candidate = new int[n];
+        double bestCost = prev.cost;
+        for (int failures = 0; failures < IMPROVEMENT_TRIES * n * n
+                && System.nanoTime() < deadline; failures++) {
+            int from = rand.nextInt(n);
+            int to = rand.nextInt(n);
+            if (from == to)
+                continue;
+            moveJoin(order, candidate, from, to);
+            CostCard cc = computeCostAndCardOfOrder(stats, candidate,
+                    bestCost, null);
+            if (cc != null) {
+                int[] tmp = order;
+                order = candidate;
+                candidate = tmp;
+                bestCost = cc.cost;
+                failures = 0;
+            }
+        }
+        computeCostAndCardOfOrder(stats, order, Double.MAX_VALUE, steps);
+        return true;
+    }
+
+    /**
+     * Copy order to moved, with the join at position from moved to position to
+     */
+    private static void moveJoin(int[] order, int[] moved, int from, int to) {
+        System.arraycopy(order, 0, moved, 0, order.length);
+        if (from < to) {
+            System.arraycopy(order, from + 1, moved, from, to - from);
+        } else {
+            System.arraycopy(order, to, moved, to + 1, from - to);
+        }
+        moved[to] = order[from];
+    }
+
+    private static long tableBit(HashMap<String, Integer> tableBits,
+            String alias) throws ParsingException {
+        Integer bit = tableBits.get(alias);
+        if (bit == null) {
+            if (tableBits.size() == Long.SIZE)
+                throw new ParsingException("Too many tables in join");
+            bit = tableBits.size();
+            tableBits.put(alias, bit);
+        }
+        return 1L << bit;
     }
 
     // ===================== Private Methods =================================
 
     /**
-     * This is a helper method that computes the cost and cardinality of joining
-     * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
+     * This is a helper method that computes the cost and cardinality of
+     * performing the join joinToRemove last in a plan for joinSet (joinSet
+     * should contain joinToRemove). The join joins the plan for leftSet, which
+     * joins j.t1, to the plan for the rest of joinSet, which joins j.t2; either
+     * may be empty, standing for the base relation. The plans for both must
+     * already have been computed and stored in PlanCache pc.
      * 
      * @param stats
      *            table stats for all of the tables, referenced by table names
      *            rather than alias (see {@link #orderJoins})
-     * @param filterSelectivities
-     *            the selectivities of the filters over each of the tables
-     *            (where tables are indentified by their alias or name if no
-     *            alias is given)
      * @param joinToRemove
-     *            the join to remove from joinSet
+     *            the index in {@link #joins} of the join to remove from joinSet
      * @param joinSet
-     *            the set of joins being considered
+     *            the bitmask of the set of joins being considered
+     * @param leftSet
+     *            the bitmask of the joins on the side of j.t1
      * @param bestCostSoFar
      *            the best way to join joinSet so far (minimum of previous
      *            invocations of computeCostAndCardOfSubplan for this joinSet,
      *            from returned CostCard)
      * @param pc
-     *            the PlanCache for this join; should have subplans for all
-     *            plans of size joinSet.size()-1
-     * @return A {@link CostCard} objects desribing the cost, cardinality,
-     *         optimal subplan
+     *            the PlanCache for this join; should have the subplans for
+     *            leftSet and for the rest of joinSet
+     * @return A {@link CostCard} objects desribing the cost, cardinality and
+     *         last join of the plan, or null if the plans of the two sides
+     *         overlap, either side does not join the table of j on its side,
+     *         or the plan costs at least bestCostSoFar
      * @throws ParsingException
-     *             when stats, filterSelectivities, or pc object is missing
-     *             tables involved in join
+     *             when stats or pc object is missing tables involved in join
      */
-    @SuppressWarnings("unchecked")
     private CostCard computeCostAndCardOfSubplan(
-            HashMap<String, TableStats> stats,
-            HashMap<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
-            double bestCostSoFar, PlanCache pc) throws ParsingException {
-
-        LogicalJoinNode j = joinToRemove;
-
-        Vector<LogicalJoinNode> prevBest;
+            HashMap<String, TableStats> stats, int joinToRemove,
+            int joinSet, int leftSet, double bestCostSoFar, PlanCache pc)
+            throws ParsingException {
+        int rightSet = joinSet & ~leftSet & ~(1 << joinToRemove);
+        long rightTables = joinTables[joinToRemove]
+                & ~joinLeftTables[joinToRemove];
+        CostCard left = null;
+        CostCard right = null;
+        long tables = joinLeftTables[joinToRemove];
+        if (leftSet != 0) {
+            // possible that we have not cached an answer, if subset
+            // includes a cross product
+            if (!pc.hasPlan(leftSet)
+                    || (pc.getTables(leftSet) & joinLeftTables[joinToRemove]) == 0)
+                return null;
+            tables = pc.getTables(leftSet);
+            left = new CostCard();
+            left.cost = pc.getCost(leftSet);
+            left.card = pc.getCard(leftSet);
+        }
+        if (rightSet != 0) {
+            // a subquery join has no tables on its right
+            if (!pc.hasPlan(rightSet)
+                    || (pc.getTables(rightSet) & rightTables) == 0)
+                return null;
+            rightTables = pc.getTables(rightSet);
+            right = new CostCard();
+            right.cost = pc.getCost(rightSet);
+            right.card = pc.getCard(rightSet);
+        }
+        if ((tables & rightTables) != 0) {
+            return null;
+        }
+        return computeCostAndCardOfJoin(stats, joinToRemove, left,
+                (leftSet & pkeyJoins) != 0, right, (rightSet & pkeyJoins) != 0,
+                bestCostSoFar);
+    }
 
-        if (this.p.getTableId(j.t1Alias) == null)
-            throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
-            throw new ParsingException("Unknown table " + j.t2Alias);
+    /**
+     * Compute the cost and cardinality of the joins in the specified order,
+     * each joined to the plan of the joins before it.
+     * 
+     * @param order
+     *            the indexes in {@link #joins} of the joins, in order
+     * @param bestCostSoFar
+     *            the cost of the best order so far
+     * @param steps
+     *            if not null, filled with the cost, cardinality and join of
+     *            each step of the order
+     * @return the cost and cardinality of the plan, or null if it has a cross
+     *         product or costs at least bestCostSoFar
+     */
+    private CostCard computeCostAndCardOfOrder(
+            HashMap<String, TableStats> stats, int[] order,
+            double bestCostSoFar, CostCard[] steps) throws ParsingException {
+        CostCard cc = null;
+        long tables = 0;
+        boolean pkey = false;
+        for (int k = 0; k < order.length; k++) {
+            int i = order[k];
+            if (k > 0 && (joinTables[i] & tables) == 0)
+                return null;
+            // 每一步的代价都包含之前的代价，超过bestCostSoFar就不用再算了
+            cc = joinToPlan(stats, i, cc, tables, pkey, bestCostSoFar);
+            if (cc == null)
+                return null;
+            if (steps != null)
+                steps[k] = cc;
+            tables |= joinTables[i];
+            pkey |= (pkeyJoins & (1L << i)) != 0;
+        }
+        return cc;
+    }
 
-        String table1Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
+    /**
+     * Compute the cost and cardinality of joining the specified join to a
+     * left-deep plan, on whichever side of the join the plan's tables are.
+     * 
+     * @param prev
+     *            the plan, or null if this is the first join
+     * @param prevTables
+     *            the bitmask of the tables joined by prev
+     * @param prevHasPkey
+     *            true if one of the joins of prev joins a primary key
+     */
+    private CostCard joinToPlan(HashMap<String, TableStats> stats,
+            int joinIndex, CostCard prev, long prevTables,
+            boolean prevHasPkey, double bestCostSoFar) throws ParsingException {
+        if (prev == null || (prevTables & joinLeftTables[joinIndex]) != 0) {
+            return computeCostAndCardOfJoin(stats, joinIndex, prev,
+                    prevHasPkey, null, false, bestCostSoFar);
+        }
+        return computeCostAndCardOfJoin(stats, joinIndex, null, false, prev,
+                prevHasPkey, bestCostSoFar);
+    }
 
-        Set<LogicalJoinNode> news = (Set<LogicalJoinNode>) ((HashSet<LogicalJoinNode>) joinSet)
-                .clone();
-        news.remove(j);
+    /**
+     * Compute the cost and cardinality of the specified join between two
+     * plans, trying each of them as the outer of the join.
+     * 
+     * @param joinIndex
+     *            the index in {@link #joins} of the join
+     * @param left
+     *            the plan that joins j.t1, or null for a scan of j.t1
+     * @param leftHasPkey
+     *            true if one of the joins of left joins a primary key
+     * @param right
+     *            the plan that joins j.t2, or null for a scan of j.t2
+     * @param rightHasPkey
+     *            true if one of the joins of right joins a primary key
+     * @param bestCostSoFar
+     *            the cost of the best plan so far
+     * @return the cost and cardinality of the plan, with j oriented as the
+     *         plan performs it, or null if it costs at least bestCostSoFar
+     */
+    private CostCard computeCostAndCardOfJoin(
+            HashMap<String, TableStats> stats, int joinIndex, CostCard left,
+            boolean leftHasPkey, CostCard right, boolean rightHasPkey,
+            double bestCostSoFar) {
+        LogicalJoinNode j = joins.get(joinIndex);
 
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
 
-        if (news.isEmpty()) { // base case -- both are base relations
-            prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(
-                    filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias == null ? false : isPkey(table2Alias,
-                    j.f2PureName);
+        if (left == null) {
+            t1cost = scanCosts[2 * joinIndex];
+            t1card = scanCards[2 * joinIndex];
+            leftPkey = leftPkeys[joinIndex];
         } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
-
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
-                return null;
-            }
-
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
-            if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                t1cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias,
-                        j.f2PureName);
-            } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
-                                                        // (both
-                // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
-                return null;
-            }
+            t1cost = left.cost;
+            t1card = left.card;
+            leftPkey = leftHasPkey;
+        }
+        if (right == null) {
+            // 子查询join右侧的代价和基数都是0
+            t2cost = scanCosts[2 * joinIndex + 1];
+            t2card = scanCards[2 * joinIndex + 1];
+            rightPkey = rightPkeys[joinIndex];
+        } else {
+            t2cost = right.cost;
+            t2card = right.card;
+            rightPkey = rightHasPkey;
         }
 
-        // case where prevbest is left
+        // case where the plan of t1 is the outer
         double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
 
-        LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
-            boolean tmp;
-            j = j2;
-            cost1 = cost2;
-            tmp = rightPkey;
-            rightPkey = leftPkey;
-            leftPkey = tmp;
+        if (!(j instanceof LogicalSubplanJoinNode)) {
+            LogicalJoinNode j2 = j.swapInnerOuter();
+            double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+            if (cost2 < cost1) {
+                boolean tmp;
+                j = j2;
+                cost1 = cost2;
+                tmp = rightPkey;
+                rightPkey = leftPkey;
+                leftPkey = tmp;
+                int card = t1card;
+                t1card = t2card;
+                t2card = card;
+            }
         }
         if (cost1 >= bestCostSoFar)
             return null;
@@ -370,24 +870,10 @@ public class JoinOptimizer {
         cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
                 rightPkey, stats);
         cc.cost = cost1;
-        cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
-        cc.plan.addElement(j); // prevbest is left -- add new join to end
+        cc.join = j;
         return cc;
     }
 
-    /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
-     */
-    private boolean doesJoin(Vector<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table)
-                    || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
-        }
-        return false;
-    }
-
     /**
      * Return true if field is a primary key of the specified table, false
      * otherwise
@@ -404,20 +890,6 @@ public class JoinOptimizer {
         return pkey1.equals(field);
     }
 
-    /**
-     * Return true if a primary key field is joined by one of the joins in
-     * joinlist
-     */
-    private boolean hasPkey(Vector<LogicalJoinNode> joinlist) {
-        for (LogicalJoinNode j : joinlist) {
-            if (isPkey(j.t1Alias, j.f1PureName)
-                    || (j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName)))
-                return true;
-        }
-        return false;
-
-    }
-
     /**
      * Helper function to display a Swing window with a tree representation of
      * the specified list of joins. See {@link #orderJoins}, which may want to
@@ -425,8 +897,8 @@ public class JoinOptimizer {
      * 
      * @param js
      *            the join plan to visualize
-     * @param pc
-     *            the PlanCache accumulated whild building the optimal plan
+     * @param steps
+     *            the cost and cardinality of the plan after each join of js
      * @param stats
      *            table statistics for base tables
      * @param selectivities
@@ -434,7 +906,7 @@ public class JoinOptimizer {
      *            (where tables are indentified by their alias or name if no
      *            alias is given)
      */
-    private void printJoins(Vector<LogicalJoinNode> js, PlanCache pc,
+    private void printJoins(Vector<LogicalJoinNode> js, CostCard[] steps,
             HashMap<String, TableStats> stats,
             HashMap<String, Double> selectivities) {
 
@@ -454,25 +926,24 @@ public class JoinOptimizer {
 
         // int k;
         DefaultMutableTreeNode root = null, treetop = null;
-        HashSet<LogicalJoinNode> pathSoFar = new HashSet<LogicalJoinNode>();
         boolean neither;
 
         System.out.println(js);
-        for (LogicalJoinNode j : js) {
-            pathSoFar.add(j);
-            System.out.println("PATH SO FAR = " + pathSoFar);
+        for (int k = 0; k < js.size(); k++) {
+            LogicalJoinNode j = js.get(k);
+            System.out.println("PATH SO FAR = " + js.subList(0, k + 1));
 
             String table1Name = Database.getCatalog().getTableName(
                     this.p.getTableId(j.t1Alias));
             String table2Name = Database.getCatalog().getTableName(
                     this.p.getTableId(j.t2Alias));
 
-            // Double c = pc.getCost(pathSoFar);
+            // Double c = steps[k].cost;
             neither = true;
 
             root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
-                    + pc.getCost(pathSoFar) + ", card = "
-                    + pc.getCard(pathSoFar) + ")");
+                    + steps[k].cost + ", card = "
+                    + steps[k].card + ")");
             DefaultMutableTreeNode n = m.get(j.t1Alias);
             if (n == null) { // never seen this table before
                 n = new DefaultMutableTreeNode(j.t1Alias
@@ -0,0 +1,135 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A two-dimensional histogram over a pair of fields of a table, which captures
+ * how their values are correlated.
+ * <p>
+ * The values of each field are split at their quantiles into a few ranges, and
+ * the histogram counts the tuples in each pair of ranges.  To estimate the
+ * selectivity of a predicate on each of the fields, the {@link EquiDepthHistogram}
+ * of each field gives the fraction of each of its ranges that satisfies its
+ * predicate; the fields are only assumed to be independent within a cell of the
+ * grid, not across the whole table.
+ */
+public class JointHistogram implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // 每个字段各个范围的上界（含），最后一个范围没有上界
+    private final Field[] bounds1;
+    private final Field[] bounds2;
+    private final double[][] counts;
+    private double ntups;
+
+    /**
+     * Split the values of a field into up to bins ranges holding about the same
+     * number of tuples.
+     *
+     * @param bins   the largest number of ranges
+     * @param values the values of the field, in any order
+     * @return the inclusive upper bounds of all ranges but the last, in ascending
+     *         order
+     */
+    public static Field[] gridBounds(int bins, Field[] values) {
+        Field[] sorted = values.clone();
+        Arrays.sort(sorted, EquiDepthHistogram.FIELD_ORDER);
+        ArrayList<Field> bounds = new ArrayList<Field>();
+        for (int i = 1; i < bins; i++) {
+            int at = (int) ((long) i * sorted.length / bins) - 1;
+            if (at < 0) {
+                continue;
+            }
+            // 相同的值只作一次上界，最大值不作上界，这样每个范围都不为空
+            Field f = sorted[at];
+            if (!f.equals(sorted[sorted.length - 1])
+                    && (bounds.isEmpty() || !f.equals(bounds.get(bounds.size() - 1)))) {
+                bounds.add(f);
+            }
+        }
+        return bounds.toArray(new Field[bounds.size()]);
+    }
+
+    // the range of bounds that holds v
+    static int cell(Field[] bounds, Field v) {
+        int lo = 0;
+        int hi = bounds.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (v.compare(Predicate.Op.LESS_THAN_OR_EQ, bounds[mid])) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Create a new JointHistogram over two fields of a table.
+     *
+     * @param bounds1 the ranges of the first field, as returned by {@link #gridBounds}
+     * @param bounds2 the ranges of the second field
+     * @param cells1  for each tuple, the range of its value of the first field
+     * @param cells2  for each tuple, the range of its value of the second field
+     */
+    public JointHistogram(Field[] bounds1, Field[] bounds2, int[] cells1, int[] cells2) {
+        this.bounds1 = bounds1;
+        this.bounds2 = bounds2;
+        counts = new double[bounds1.length + 1][bounds2.length + 1];
+        for (int i = 0; i < cells1.length; i++) {
+            counts[cells1[i]][cells2[i]]++;
+        }
+        ntups = cells1.length;
+    }
+
+    /**
+     * Account for weight tuples with values v1 and v2 inserted into the table,
+     * or for -weight such tuples deleted from it if weight is negative.
+     */
+    public void addValues(Field v1, Field v2, double weight) {
+        double[] row = counts[cell(bounds1, v1)];
+        int j = cell(bounds2, v2);
+        row[j] = Math.max(row[j] + weight, 0.0);
+        ntups = Math.max(ntups + weight, 0.0);
+    }
+
+    // 每个范围中满足谓词的元组所占的比例
+    private static double[] cellSelectivities(Field[] bounds, EquiDepthHistogram h, Predicate.Op op, Field v) {
+        double[] sels = new double[bounds.length + 1];
+        for (int i = 0; i <= bounds.length; i++) {
+            Field above = i == 0 ? null : bounds[i - 1];
+            Field upTo = i == bounds.length ? null : bounds[i];
+            double range = h.estimateRangeFraction(above, upTo);
+            sels[i] = range > 0 ? Math.min(h.estimateSelectivity(op, v, above, upTo) / range, 1.0) : 0.0;
+        }
+        return sels;
+    }
+
+    /**
+     * Estimate the selectivity of the conjunction of the predicates
+     * <tt>field1 op1 v1</tt> and <tt>field2 op2 v2</tt>.
+     *
+     * @param h1 the histogram of the first field
+     * @param h2 the histogram of the second field
+     * @return the estimated fraction of the tuples that satisfy both predicates
+     */
+    public double estimateSelectivity(EquiDepthHistogram h1, Predicate.Op op1, Field v1,
+                                      EquiDepthHistogram h2, Predicate.Op op2, Field v2) {
+        if (ntups <= 0) {
+            return 0.0;
+        }
+        double[] sels1 = cellSelectivities(bounds1, h1, op1, v1);
+        double[] sels2 = cellSelectivities(bounds2, h2, op2, v2);
+        double sel = 0.0;
+        for (int i = 0; i < sels1.length; i++) {
+            for (int j = 0; j < sels2.length; j++) {
+                sel += counts[i][j] * sels1[i] * sels2[j];
+            }
+        }
+        return Math.min(sel / ntups, 1.0);
+    }
+}
@@ -0,0 +1,128 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+
+/**
+ * LeafPrefetcher is a background thread that reads the leaf pages of B+ tree
+ * range scans into the BufferPool before the scans get to them.  A scan only
+ * learns the id of its next leaf page from the right sibling pointer of the
+ * current one, so each leaf it reaches costs a blocking read; leaf pages made
+ * by many splits are scattered across the file, which makes that a random
+ * read.  The prefetcher follows the sibling pointers a number of leaves ahead
+ * of the scan, so the scan's own reads mostly find the pages cached.
+ * <p>
+ * Pages are read without locking them; the scan still locks each page when it
+ * gets there.  There is one prefetcher for all B+ trees, and requests that
+ * arrive while it is busy with too many others are dropped.
+ *
+ * @see BTreeFile#setPrefetchDepth(int)
+ * @see BufferPool#prefetchPage(PageId)
+ */
+public class LeafPrefetcher extends Thread {
+
+    /**
+     * Default number of leaf pages B+ tree scans read ahead.
+     */
+    public static final int DEFAULT_DEPTH = 8;
+
+    // 排队的请求太多时说明预读已经跟不上扫描了，丢掉新的请求
+    private static final int MAX_REQUESTS = 32;
+
+    private static LeafPrefetcher instance;
+
+    private final ArrayDeque<Request> requests = new ArrayDeque<Request>();
+
+    /**
+     * A request to read count leaf pages, starting at start and following right
+     * sibling pointers, into the specified buffer pool.
+     */
+    private static class Request {
+        final BufferPool bufferPool;
+        final BTreePageId start;
+        final int count;
+        final Field stop;
+
+        Request(BufferPool bufferPool, BTreePageId start, int count, Field stop) {
+            this.bufferPool = bufferPool;
+            this.start = start;
+            this.count = count;
+            this.stop = stop;
+        }
+    }
+
+    private LeafPrefetcher() {
+        super("LeafPrefetcher");
+        setDaemon(true);
+    }
+
+    /**
+     * Return the prefetcher, starting it on first use.
+     */
+    public static synchronized LeafPrefetcher getInstance() {
+        if (instance == null) {
+            instance = new LeafPrefetcher();
+            instance.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Ask the prefetcher to read up to count leaf pages into the current buffer
+     * pool, starting at the specified page and following right sibling pointers.
+     * If stop is not null, the prefetcher also stops after the first page whose
+     * high key is greater than stop, since a scan that ends at stop does not go
+     * past it.
+     *
+     * @param start the id of the first leaf page to read
+     * @param count the number of leaf pages to read
+     * @param stop  the largest key the scan is looking for, or null
+     */
+    public synchronized void request(BTreePageId start, int count, Field stop) {
+        if (requests.size() >= MAX_REQUESTS) {
+            return;
+        }
+        for (Request r : requests) {
+            if (r.start.equals(start)) {
+                return;
+            }
+        }
+        requests.addLast(new Request(Database.getBufferPool(), start, count, stop));
+        notifyAll();
+    }
+
+    private synchronized Request nextRequest() throws InterruptedException {
+        while (requests.isEmpty()) {
+            wait();
+        }
+        return requests.removeFirst();
+    }
+
+    public void run() {
+        while (true) {
+            Request r;
+            try {
+                r = nextRequest();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                BTreePageId pid = r.start;
+                for (int i = 0; i < r.count && pid != null; i++) {
+                    Page p = r.bufferPool.prefetchPage(pid);
+                    // 缓冲池已满或page已经不是leaf（被合并后重用），不再继续
+                    if (!(p instanceof BTreeLeafPage)) {
+                        break;
+                    }
+                    BTreeLeafPage leaf = (BTreeLeafPage) p;
+                    Field highKey = leaf.getHighKey();
+                    if (r.stop != null && highKey != null && highKey.compare(Predicate.Op.GREATER_THAN, r.stop)) {
+                        break;
+                    }
+                    pid = leaf.getRightSiblingId();
+                }
+            } catch (RuntimeException e) {
+                // 表可能已经从catalog中删除，或者page在读盘时正被回收；预读只是提示，忽略即可
+            }
+        }
+    }
+}
@@ -100,6 +100,24 @@ public class LockManager {
         return false;
     }
 
+    /**
+     * Return the pages the specified transaction holds a shared or an
+     * exclusive lock on
+     *
+     * @param tid the ID of the specified transaction
+     * @return a copy of the set of locked pages
+     */
+    public synchronized Set<PageId> getLockedPages(TransactionId tid) {
+        Set<PageId> locked = new HashSet<>();
+        if (sharedPages.get(tid) != null) {
+            locked.addAll(sharedPages.get(tid));
+        }
+        if (ownedPages.get(tid) != null) {
+            locked.addAll(ownedPages.get(tid));
+        }
+        return locked;
+    }
+
     /**
      * Add a shared lock for the specified transaction on the specified page
      *
@@ -235,7 +253,7 @@ public class LockManager {
      * @param tid the ID of the specified transaction
      * @param pid the ID of the specified page
      */
-    public void removeWaiter(TransactionId tid, PageId pid) {
+    public synchronized void removeWaiter(TransactionId tid, PageId pid) {
         Set<TransactionId> waiter = waiters.get(pid);
         if (waiter != null) {
             waiter.remove(tid);
@@ -2,6 +2,8 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.lang.reflect.*;
 
@@ -39,10 +41,20 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log is stored in fixed-size segment files next to the log
+file, which holds a manifest (see {@link LogSegmentFile}).  Offsets into
+the log are log sequence numbers that never change, so truncating the log
+just deletes old segments.
 
-<li> All additional data in the log consists of log records.  Log
+<li> Records are appended to an in-memory log buffer and reach the
+segments when the log is forced or the buffer fills up, so offsets
+between the last force and currentOffset may not be on disk yet.
+
+<li> The manifest records the offset of the first live log record and
+the offset of the last written checkpoint, or -1 if there are no
+checkpoints
+
+<li> All data in the segments consists of log records.  Log
 records are variable length.
 
 <li> Each log record begins with an integer type and a long integer
@@ -59,7 +71,9 @@ CHECKPOINT
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  See LogFile.print() for an example.  The classes of the page
+and of its id are written as small integer ids (see LOGGED_CLASSES) and
+only classes without an id are written by name.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
@@ -74,7 +88,7 @@ for each active transaction.
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private LogSegmentFile raf;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -87,7 +101,33 @@ public class LogFile {
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    // size of the in-memory buffer that log records are appended to
+    static final int LOG_BUFFER_SIZE = 256 * 1024;
+
+    // page and page id classes that are logged by a small id instead of by
+    // name; id 0 means the class name follows.  Only append to this list,
+    // the ids are stored in the log.
+    private static final Class<?>[] LOGGED_CLASSES = {
+        null,
+        HeapPage.class, HeapPageId.class,
+        BTreeRootPtrPage.class, BTreeInternalPage.class, BTreeLeafPage.class,
+        BTreeHeaderPage.class, BTreePageId.class
+    };
+    private static final HashMap<Class<?>, Short> LOGGED_CLASS_IDS = new HashMap<Class<?>, Short>();
+    static {
+        for (short i = 1; i < LOGGED_CLASSES.length; i++) {
+            LOGGED_CLASS_IDS.put(LOGGED_CLASSES[i], i);
+        }
+    }
+
+    // records not yet written to the segments; logBuffer[0] is at offset
+    // bufferStart of the log
+    private final ByteBuffer logBuffer = ByteBuffer.allocateDirect(LOG_BUFFER_SIZE);//protected by this
+    private long bufferStart = 0;//protected by this
+
     long currentOffset = -1;//protected by this
+    // number of threads that write pages during recovery
+    int redoThreads = Runtime.getRuntime().availableProcessors();
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
@@ -105,8 +145,18 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, LogSegmentFile.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor.
+        Like {@link #LogFile(File)}, but with the specified log segment size.
+
+        @param f The log file's name
+        @param segmentSize The size of each log segment file in bytes
+    */
+    public LogFile(File f, int segmentSize) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        raf = new LogSegmentFile(f, segmentSize);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -127,14 +177,68 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            raf.reset();
+            logBuffer.clear();
+            bufferStart = raf.length();
+            currentOffset = bufferStart;
+        }
+    }
+
+    // make room for n more bytes in the log buffer
+    private void reserve(int n) throws IOException {
+        if (logBuffer.remaining() < n) {
+            flushBuffer();
         }
     }
 
+    private void appendInt(int v) throws IOException {
+        reserve(INT_SIZE);
+        logBuffer.putInt(v);
+    }
+
+    private void appendLong(long v) throws IOException {
+        reserve(LONG_SIZE);
+        logBuffer.putLong(v);
+    }
+
+    private void appendBytes(byte[] b) throws IOException {
+        for (int off = 0; off < b.length; ) {
+            if (!logBuffer.hasRemaining()) {
+                flushBuffer();
+            }
+            int n = Math.min(logBuffer.remaining(), b.length - off);
+            logBuffer.put(b, off, n);
+            off += n;
+        }
+    }
+
+    // finish the record that started at currentOffset
+    private void endRecord() throws IOException {
+        appendLong(currentOffset);
+        currentOffset = bufferStart + logBuffer.position();
+    }
+
+    /** Write the log buffer to the segments with a single write, without
+        forcing them to disk. */
+    private void flushBuffer() throws IOException {
+        if (logBuffer.position() == 0) {
+            return;
+        }
+        logBuffer.flip();
+        raf.seek(bufferStart);
+        raf.write(logBuffer);
+        bufferStart = raf.getFilePointer();
+        logBuffer.clear();
+    }
+
+    /** Set the number of threads that recover() uses to write pages.
+        Pages are assigned to threads by the hash of their id; with one
+        thread the pages are written by the thread running recovery.
+    */
+    public synchronized void setRedoThreads(int n) {
+        redoThreads = Math.max(1, n);
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
@@ -158,10 +262,9 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                appendInt(ABORT_RECORD);
+                appendLong(tid.getId());
+                endRecord();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -178,10 +281,9 @@ public class LogFile {
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        appendInt(COMMIT_RECORD);
+        appendLong(tid.getId());
+        endRecord();
         force();
         tidToFirstLogRecord.remove(tid.getId());
     }
@@ -197,7 +299,7 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = %d", currentOffset);
         preAppend();
         /* update record conists of
 
@@ -207,55 +309,81 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        appendInt(UPDATE_RECORD);
+        appendLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageData(before);
+        writePageData(after);
+        endRecord();
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+        Debug.log("WRITE OFFSET = %d", currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    void writePageData(Page p) throws IOException{
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
 
         //page data is:
-        // page class name
-        // id class name
+        // page class id (and name, if the id is 0)
+        // id class id (and name, if the id is 0)
         // id class bytes
         // id class data
         // page class bytes
         // page class data
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+        writeClass(p.getClass());
+        writeClass(pid.getClass());
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
+        reserve(INT_SIZE * (pageInfo.length + 1));
+        logBuffer.putInt(pageInfo.length);
         for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+            logBuffer.putInt(pageInfo[i]);
         }
         byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
+        appendInt(pageData.length);
+        appendBytes(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
+    private void writeClass(Class<?> c) throws IOException {
+        Short id = LOGGED_CLASS_IDS.get(c);
+        if (id != null) {
+            reserve(2);
+            logBuffer.putShort(id);
+        } else {
+            // same layout as DataOutput.writeUTF for the ASCII class names
+            byte[] name = c.getName().getBytes(StandardCharsets.UTF_8);
+            reserve(4);
+            logBuffer.putShort((short) 0);
+            logBuffer.putShort((short) name.length);
+            appendBytes(name);
+        }
+    }
+
+    private static Class<?> readClass(LogSegmentFile raf) throws IOException, ClassNotFoundException {
+        short id = raf.readShort();
+        if (id == 0) {
+            return Class.forName(raf.readUTF());
+        }
+        if (id < 0 || id >= LOGGED_CLASSES.length) {
+            throw new IOException("unknown class id " + id + " in log");
+        }
+        return LOGGED_CLASSES[id];
+    }
+
+    private static void skipClass(LogSegmentFile raf) throws IOException {
+        if (raf.readShort() == 0) {
+            raf.readUTF();
+        }
+    }
+
+    Page readPageData(LogSegmentFile raf) throws IOException {
         PageId pid;
         Page newPage = null;
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
         try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
+            Class<?> pageClass = readClass(raf);
+            Class<?> idClass = readClass(raf);
 
             Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
             int numIdArgs = raf.readInt();
@@ -269,11 +397,16 @@ public class LogFile {
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+            raf.readFully(pageData); //read before image
+
+            Object[] pageArgs;
+            if (pageConsts[0].getParameterTypes().length == 3) {
+                // B+ tree leaf and internal pages also need the key fields of their file
+                BTreeFile bf = (BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+                pageArgs = new Object[]{pid, pageData, bf.keyFields()};
+            } else {
+                pageArgs = new Object[]{pid, pageData};
+            }
 
             newPage = (Page)pageConsts[0].newInstance(pageArgs);
 
@@ -307,13 +440,12 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        appendInt(BEGIN_RECORD);
+        appendLong(tid.getId());
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        endRecord();
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        Debug.log("BEGIN OFFSET = %d", currentOffset);
     }
 
     /** Checkpoint the log and write a checkpoint record. */
@@ -328,28 +460,27 @@ public class LogFile {
                 Iterator<Long> els = keys.iterator();
                 force();
                 Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+                startCpOffset = currentOffset;
+                appendInt(CHECKPOINT_RECORD);
+                appendLong(-1); //no tid , but leave space for convenience
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
+                appendInt(keys.size());
                 while (els.hasNext()) {
                     Long key = els.next();
                     Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
+                    appendLong(key);
                     //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                    appendLong(tidToFirstLogRecord.get(key));
                 }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                endCpOffset = bufferStart + logBuffer.position();
+                endRecord();
+
+                //once the CP is on disk, make sure the CP location in
+                // the manifest is updated
+                force();
+                raf.setCheckpoint(startCpOffset);
                 //Debug.log("CP OFFSET = " + currentOffset);
             }
         }
@@ -358,99 +489,40 @@ public class LogFile {
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  Log offsets never change, so this only deletes the
+        segments before the oldest record that recovery may still need. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        long cpLoc = raf.getCheckpoint();
 
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            return;
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
+        long minLogRecord = cpLoc;
+        raf.seek(cpLoc);
+        int cpType = raf.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = raf.readLong();
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+        int numOutstanding = raf.readInt();
 
-            } catch (EOFException e) {
-                break;
+        for (int i = 0; i < numOutstanding; i++) {
+            @SuppressWarnings("unused")
+            long tid = raf.readLong();
+            long firstLogRecord = raf.readLong();
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        // we can truncate everything before minLogRecord
+        Debug.log("TRUNCATING LOG;  WAS " + (currentOffset - raf.getFirstLsn()) + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (currentOffset - minLogRecord));
+        raf.truncateBefore(minLogRecord);
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -467,10 +539,150 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long firstLogRecord = tidToFirstLogRecord.get(tid.getId());
+                if (firstLogRecord == null) {
+                    throw new NoSuchElementException("transaction " + tid.getId() + " is not live");
+                }
+                // 每个page只需要恢复到事务第一次写它之前的状态，即最早的before image
+                HashMap<PageId, Page> beforeImages = new HashMap<PageId, Page>();
+                flushBuffer();
+                raf.seek(firstLogRecord);
+                while (raf.getFilePointer() < currentOffset) {
+                    int type = raf.readInt();
+                    long recordTid = raf.readLong();
+                    if (type == UPDATE_RECORD) {
+                        Page before = readPageData(raf);
+                        readPageData(raf);
+                        if (recordTid == tid.getId() && !beforeImages.containsKey(before.getId())) {
+                            beforeImages.put(before.getId(), before);
+                        }
+                    } else if (type == CHECKPOINT_RECORD) {
+                        skipCheckpointBody(raf);
+                    }
+                    raf.readLong();
+                }
+                for (Page before : beforeImages.values()) {
+                    PageId pid = before.getId();
+                    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(before);
+                    Database.getBufferPool().discardPage(pid);
+                }
             }
         }
     }
 
+    /** Log the current state of every page the specified transaction has
+        dirtied, so that the transaction can later be rolled back to this
+        point with {@link #rollbackTo}.  The pages stay dirty in the buffer
+        pool and the log is not forced.
+
+        @param tid The transaction taking the savepoint
+        @return The log offset of the savepoint
+    */
+    public long logSavepoint(TransactionId tid)
+        throws NoSuchElementException, IOException {
+        synchronized (Database.getBufferPool()) {
+            synchronized (this) {
+                preAppend();
+                if (tidToFirstLogRecord.get(tid.getId()) == null) {
+                    throw new NoSuchElementException("transaction " + tid.getId() + " is not live");
+                }
+                for (Page p : Database.getBufferPool().dirtyPages(tid)) {
+                    logWrite(tid, p.getBeforeImage(), p);
+                }
+                return currentOffset;
+            }
+        }
+    }
+
+    /** Undo the updates the specified transaction made after the savepoint
+        at the specified log offset.  Every page the transaction changed
+        since then is put back into the state it had at the savepoint: the
+        last after image logged before the savepoint or, if the transaction
+        had not touched the page yet, its before image.  The restored pages
+        are logged, written to disk and dropped from the buffer pool, so a
+        later abort or recovery still undoes them to their state before the
+        transaction.
+
+        @param tid The transaction to roll back
+        @param savepoint The log offset returned by {@link #logSavepoint}
+        @return The pages that were restored
+    */
+    public Set<PageId> rollbackTo(TransactionId tid, long savepoint)
+        throws NoSuchElementException, IOException {
+        synchronized (Database.getBufferPool()) {
+            synchronized (this) {
+                preAppend();
+                Long firstLogRecord = tidToFirstLogRecord.get(tid.getId());
+                if (firstLogRecord == null) {
+                    throw new NoSuchElementException("transaction " + tid.getId() + " is not live");
+                }
+                if (savepoint < firstLogRecord || savepoint > currentOffset) {
+                    throw new NoSuchElementException("no savepoint at offset " + savepoint);
+                }
+                // 事务开始前每个page的状态、保存点时的状态，以及保存点之后改过的page
+                HashMap<PageId, Page> originals = new HashMap<PageId, Page>();
+                HashMap<PageId, Page> atSavepoint = new HashMap<PageId, Page>();
+                HashSet<PageId> changed = new HashSet<PageId>();
+                flushBuffer();
+                raf.seek(firstLogRecord);
+                while (raf.getFilePointer() < currentOffset) {
+                    long offset = raf.getFilePointer();
+                    int type = raf.readInt();
+                    long recordTid = raf.readLong();
+                    if (type == UPDATE_RECORD) {
+                        if (recordTid != tid.getId()) {
+                            skipPageData(raf);
+                            skipPageData(raf);
+                        } else {
+                            Page before = readPageData(raf);
+                            Page after = readPageData(raf);
+                            if (!originals.containsKey(before.getId())) {
+                                originals.put(before.getId(), before);
+                            }
+                            if (offset < savepoint) {
+                                atSavepoint.put(after.getId(), after);
+                            } else {
+                                changed.add(after.getId());
+                            }
+                        }
+                    } else if (type == CHECKPOINT_RECORD) {
+                        skipCheckpointBody(raf);
+                    }
+                    raf.readLong();
+                }
+                // 还没写进日志的修改
+                for (Page p : Database.getBufferPool().dirtyPages(tid)) {
+                    changed.add(p.getId());
+                    if (!originals.containsKey(p.getId())) {
+                        originals.put(p.getId(), p.getBeforeImage());
+                    }
+                }
+
+                ArrayList<Page> restored = new ArrayList<Page>();
+                for (PageId pid : changed) {
+                    Page original = originals.get(pid);
+                    Page page = atSavepoint.containsKey(pid) ? atSavepoint.get(pid) : original;
+                    logWrite(tid, original, page);
+                    restored.add(page);
+                }
+                force();
+                for (Page page : restored) {
+                    PageId pid = page.getId();
+                    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+                    Database.getBufferPool().discardPage(pid);
+                }
+                return changed;
+            }
+        }
+    }
+
+    /** Skip the list of outstanding transactions that follows the header
+        of a checkpoint record. */
+    private void skipCheckpointBody(LogSegmentFile raf) throws IOException {
+        int numXactions = raf.readInt();
+        raf.seek(raf.getFilePointer() + (long) numXactions * 2 * LONG_SIZE);
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
@@ -494,17 +706,125 @@ public class LogFile {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                // 第一遍：找出所有已提交和已中止的事务，以及日志的有效末尾
+                HashSet<Long> committed = new HashSet<Long>();
+                HashSet<Long> finished = new HashSet<Long>();
+                long logEnd = scanOutcomes(committed, finished);
+
+                // 第二遍：按日志顺序重做已提交事务的after image，
+                // 同时记下未完成事务每个page最早的before image。
+                // 同一个page的image总是交给同一个线程，按日志顺序写入
+                HashMap<PageId, Page> loserImages = new HashMap<PageId, Page>();
+                ParallelRedo redo = new ParallelRedo(redoThreads);
+                try {
+                    raf.seek(raf.getFirstLsn());
+                    while (raf.getFilePointer() < logEnd) {
+                        int type = raf.readInt();
+                        long recordTid = raf.readLong();
+                        if (type == UPDATE_RECORD) {
+                            // 只构造会用到的image
+                            if (committed.contains(recordTid)) {
+                                skipPageData(raf);
+                                redo.submit(readPageData(raf));
+                            } else if (!finished.contains(recordTid)) {
+                                Page before = readPageData(raf);
+                                skipPageData(raf);
+                                if (!loserImages.containsKey(before.getId())) {
+                                    loserImages.put(before.getId(), before);
+                                }
+                            } else {
+                                skipPageData(raf);
+                                skipPageData(raf);
+                            }
+                        } else if (type == CHECKPOINT_RECORD) {
+                            skipCheckpointBody(raf);
+                        }
+                        raf.readLong();
+                    }
+
+                    // 撤销崩溃时仍未结束的事务，排在同一page的重做之后
+                    for (Page before : loserImages.values()) {
+                        redo.submit(before);
+                    }
+                } finally {
+                    redo.finish();
+                }
+                Database.getBufferPool().discardAllPages();
+
+                // 丢弃崩溃时写了一半的记录，之后的记录从有效末尾开始追加
+                raf.truncateAfter(logEnd);
+                logBuffer.clear();
+                bufferStart = logEnd;
+                currentOffset = logEnd;
+                tidToFirstLogRecord.clear();
             }
          }
     }
 
+    /** Scan the whole log, collecting the ids of transactions that
+        committed and of transactions that committed or aborted.
+
+        @return the offset just past the last complete log record
+    */
+    private long scanOutcomes(Set<Long> committed, Set<Long> finished) throws IOException {
+        long logEnd = raf.getFirstLsn();
+        raf.seek(logEnd);
+        while (true) {
+            try {
+                int type = raf.readInt();
+                long recordTid = raf.readLong();
+                if (type < ABORT_RECORD || type > CHECKPOINT_RECORD) {
+                    // 段文件预先填充了0，遇到无效的记录类型说明已经到了日志末尾
+                    break;
+                }
+                switch (type) {
+                case UPDATE_RECORD:
+                    skipPageData(raf);
+                    skipPageData(raf);
+                    break;
+                case CHECKPOINT_RECORD:
+                    skipCheckpointBody(raf);
+                    break;
+                }
+                // 每条记录都以它的起始位置结尾，不相等说明这条记录没有写完
+                if (raf.readLong() != logEnd) {
+                    break;
+                }
+                if (type == COMMIT_RECORD) {
+                    committed.add(recordTid);
+                    finished.add(recordTid);
+                } else if (type == ABORT_RECORD) {
+                    finished.add(recordTid);
+                }
+                logEnd = raf.getFilePointer();
+            } catch (EOFException e) {
+                break;
+            }
+        }
+        return logEnd;
+    }
+
+    /** Skip over a page image written by writePageData. */
+    private void skipPageData(LogSegmentFile raf) throws IOException {
+        skipClass(raf);
+        skipClass(raf);
+        int numIdArgs = raf.readInt();
+        raf.seek(raf.getFilePointer() + (long) numIdArgs * INT_SIZE);
+        int pageSize = raf.readInt();
+        if (numIdArgs < 0 || pageSize < 0) {
+            throw new EOFException("corrupt page image in log");
+        }
+        raf.seek(raf.getFilePointer() + pageSize);
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        flushBuffer();
+        raf.force();
     }
 
 }
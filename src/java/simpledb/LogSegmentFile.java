@@ -0,0 +1,455 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * LogSegmentFile stores the log as a sequence of fixed-size segment files
+ * and behaves like a single RandomAccessFile addressed by log sequence
+ * numbers (LSNs).  The LSN of a byte is its offset from the very first
+ * byte ever written to the log, so LSNs never change when old parts of the
+ * log are thrown away.  Segment n holds the LSNs
+ * [n * segmentSize, (n + 1) * segmentSize) and is stored in the file
+ * <tt>&lt;name&gt;.n</tt>; records may span segment boundaries.
+ * <p>
+ * The file passed to the constructor is a small manifest holding two long
+ * integers: the first live LSN and the LSN of the last checkpoint record (or
+ * -1 if there is none).  Truncating the log only updates the manifest and
+ * deletes the segments that lie entirely before the new first LSN.
+ * <p>
+ * Segments are zero-filled when they are created, and whenever appends
+ * move into a new segment a background thread creates the following one,
+ * under a temporary name that is renamed once it is filled.  Appends only
+ * wait for it if they outrun the thread, so apart from the first segment
+ * the log does not grow a file on the commit path.  A zero record type
+ * therefore marks the end of the log.
+ */
+public class LogSegmentFile {
+
+    /** Default size of a single segment file in bytes. */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    private static final int ZERO_CHUNK = 64 * 1024;
+    private static final int READ_AHEAD = 64 * 1024;
+
+    private final File manifest;
+    private final int segmentSize;
+    private final RandomAccessFile manifestFile;
+    // segment number -> open file
+    private final TreeMap<Long, RandomAccessFile> segments = new TreeMap<Long, RandomAccessFile>();
+    // segments written since the last force()
+    private final HashSet<Long> unforced = new HashSet<Long>();
+    // the segment appends went to last
+    private long writeSegment = -1;
+    // the segment being created in the background, if any
+    private FutureTask<Void> preallocation;
+    private long preallocating = -1;
+
+    // reads are served from a window of the log read ahead of them;
+    // readBuffer[0] is at LSN readStart
+    private final byte[] readBuffer = new byte[READ_AHEAD];
+    private long readStart = 0;
+    private int readLength = 0;
+
+    private long firstLsn;
+    private long checkpointLsn;
+    private long endLsn;
+    private long position;
+
+    /**
+     * Open the segmented log whose manifest is the specified file, creating
+     * an empty log if the manifest does not exist yet.
+     *
+     * @param manifest    the manifest file; segments are stored next to it
+     * @param segmentSize the size of each segment file in bytes
+     */
+    public LogSegmentFile(File manifest, int segmentSize) throws IOException {
+        this.manifest = manifest;
+        this.segmentSize = segmentSize;
+        this.manifestFile = new RandomAccessFile(manifest, "rw");
+        if (manifestFile.length() >= 2 * LogFile.LONG_SIZE) {
+            manifestFile.seek(0);
+            firstLsn = manifestFile.readLong();
+            checkpointLsn = manifestFile.readLong();
+        } else {
+            firstLsn = 0;
+            checkpointLsn = LogFile.NO_CHECKPOINT_ID;
+        }
+        endLsn = firstLsn;
+        position = firstLsn;
+    }
+
+    /** Return the size of each segment file in bytes. */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** Return the oldest LSN that is still part of the log. */
+    public long getFirstLsn() {
+        return firstLsn;
+    }
+
+    /** Return the LSN of the last checkpoint record, or -1 if there is none. */
+    public long getCheckpoint() {
+        return checkpointLsn;
+    }
+
+    /** Record the LSN of the last checkpoint record in the manifest. */
+    public void setCheckpoint(long lsn) throws IOException {
+        checkpointLsn = lsn;
+        writeManifest();
+    }
+
+    /** Return the LSN just past the last byte that was written. */
+    public long length() {
+        return endLsn;
+    }
+
+    public long getFilePointer() {
+        return position;
+    }
+
+    public void seek(long lsn) {
+        position = lsn;
+    }
+
+    /** Return the file that stores segment n. */
+    File segmentFile(long n) {
+        return new File(manifest.getPath() + "." + String.format("%06d", n));
+    }
+
+    /** Return the numbers of all segment files that exist on disk, in order. */
+    public List<Long> listSegments() {
+        awaitPreallocation();
+        ArrayList<Long> result = new ArrayList<Long>();
+        File dir = manifest.getAbsoluteFile().getParentFile();
+        String prefix = manifest.getName() + ".";
+        String[] names = dir.list();
+        if (names == null) {
+            return result;
+        }
+        for (String name : names) {
+            if (name.startsWith(prefix)) {
+                try {
+                    result.add(Long.parseLong(name.substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    // not one of our segments
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private RandomAccessFile segment(long n, boolean create) throws IOException {
+        RandomAccessFile raf = segments.get(n);
+        if (raf != null) {
+            return raf;
+        }
+        if (n == preallocating) {
+            awaitPreallocation();
+        }
+        File f = segmentFile(n);
+        if (f.exists()) {
+            raf = new RandomAccessFile(f, "rw");
+        } else if (create) {
+            raf = new RandomAccessFile(f, "rw");
+            preallocate(raf, 0);
+        } else {
+            throw new EOFException("log segment " + n + " does not exist");
+        }
+        segments.put(n, raf);
+        return raf;
+    }
+
+    // create segment n on another thread: zero-fill it under a temporary name
+    // and rename it, so that it never shows up half filled
+    private void preallocateInBackground(final long n) {
+        if (preallocation != null && preallocation.isDone()) {
+            awaitPreallocation();
+        }
+        if (preallocation != null || segments.containsKey(n) || segmentFile(n).exists()) {
+            return;
+        }
+        final File target = segmentFile(n);
+        preallocation = new FutureTask<Void>(new Callable<Void>() {
+            public Void call() throws IOException {
+                File tmp = new File(target.getPath() + ".tmp");
+                RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+                try {
+                    preallocate(raf, 0);
+                } finally {
+                    raf.close();
+                }
+                if (!tmp.renameTo(target)) {
+                    tmp.delete();
+                    throw new IOException("cannot rename " + tmp + " to " + target);
+                }
+                return null;
+            }
+        });
+        preallocating = n;
+        Thread t = new Thread(preallocation, "LogSegmentPreallocator");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // wait for the segment being created in the background; if that failed,
+    // segment() creates it when it is needed
+    private void awaitPreallocation() {
+        if (preallocation == null) {
+            return;
+        }
+        try {
+            preallocation.get();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            preallocation = null;
+            preallocating = -1;
+        }
+    }
+
+    // zero-fill the segment from the given offset to its end
+    private void preallocate(RandomAccessFile raf, int from) throws IOException {
+        byte[] zeros = new byte[ZERO_CHUNK];
+        raf.seek(from);
+        for (int off = from; off < segmentSize; off += ZERO_CHUNK) {
+            raf.write(zeros, 0, Math.min(ZERO_CHUNK, segmentSize - off));
+        }
+    }
+
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (position < readStart || position >= readStart + readLength) {
+                readAhead();
+            }
+            int chunk = (int) Math.min(len, readStart + readLength - position);
+            System.arraycopy(readBuffer, (int) (position - readStart), b, off, chunk);
+            position += chunk;
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    // fill the read-ahead window with the log starting at the current
+    // position, up to the end of its segment
+    private void readAhead() throws IOException {
+        long n = position / segmentSize;
+        int segOff = (int) (position % segmentSize);
+        int len = Math.min(READ_AHEAD, segmentSize - segOff);
+        RandomAccessFile raf = segment(n, false);
+        raf.seek(segOff);
+        int read = 0;
+        while (read < len) {
+            int r = raf.read(readBuffer, read, len - read);
+            if (r < 0) {
+                break;
+            }
+            read += r;
+        }
+        readStart = position;
+        readLength = read;
+        if (read == 0) {
+            throw new EOFException("end of log segment " + n);
+        }
+    }
+
+    public short readShort() throws IOException {
+        byte[] b = new byte[2];
+        readFully(b);
+        return (short) (((b[0] & 0xff) << 8) | (b[1] & 0xff));
+    }
+
+    public int readInt() throws IOException {
+        byte[] b = new byte[LogFile.INT_SIZE];
+        readFully(b);
+        return new DataInputStream(new ByteArrayInputStream(b)).readInt();
+    }
+
+    public long readLong() throws IOException {
+        byte[] b = new byte[LogFile.LONG_SIZE];
+        readFully(b);
+        return new DataInputStream(new ByteArrayInputStream(b)).readLong();
+    }
+
+    public String readUTF() throws IOException {
+        byte[] len = new byte[2];
+        readFully(len);
+        byte[] b = new byte[2 + (((len[0] & 0xff) << 8) | (len[1] & 0xff))];
+        b[0] = len[0];
+        b[1] = len[1];
+        readFully(b, 2, b.length - 2);
+        return new DataInputStream(new ByteArrayInputStream(b)).readUTF();
+    }
+
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        write(ByteBuffer.wrap(b, off, len));
+    }
+
+    /**
+     * Write the remaining bytes of the buffer at the current position.  Each
+     * segment the bytes fall into gets a single positional channel write, so
+     * a whole batch of log records costs one system call (two when it spans a
+     * segment boundary).
+     */
+    public void write(ByteBuffer src) throws IOException {
+        int limit = src.limit();
+        while (src.hasRemaining()) {
+            long n = position / segmentSize;
+            int segOff = (int) (position % segmentSize);
+            int chunk = Math.min(src.remaining(), segmentSize - segOff);
+            RandomAccessFile raf = segment(n, true);
+            if (n != writeSegment) {
+                // moving into another segment: get the one after it ready as well
+                preallocateInBackground(n + 1);
+                writeSegment = n;
+            }
+            FileChannel channel = raf.getChannel();
+            src.limit(src.position() + chunk);
+            for (int done = 0; done < chunk; ) {
+                done += channel.write(src, segOff + done);
+            }
+            src.limit(limit);
+            unforced.add(n);
+            readLength = 0;
+            position += chunk;
+        }
+        endLsn = Math.max(endLsn, position);
+    }
+
+    public void writeInt(int v) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(LogFile.INT_SIZE);
+        new DataOutputStream(bos).writeInt(v);
+        write(bos.toByteArray());
+    }
+
+    public void writeLong(long v) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(LogFile.LONG_SIZE);
+        new DataOutputStream(bos).writeLong(v);
+        write(bos.toByteArray());
+    }
+
+    public void writeUTF(String s) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new DataOutputStream(bos).writeUTF(s);
+        write(bos.toByteArray());
+    }
+
+    /** Force every segment written since the last call to disk. */
+    public void force() throws IOException {
+        for (Long n : unforced) {
+            RandomAccessFile raf = segments.get(n);
+            if (raf != null) {
+                raf.getChannel().force(true);
+            }
+        }
+        unforced.clear();
+    }
+
+    /**
+     * Cut the log off at the specified LSN: everything after it is zeroed or
+     * deleted, and the next write goes there.  Used by recovery to throw away
+     * a partially written record.
+     */
+    public void truncateAfter(long lsn) throws IOException {
+        awaitPreallocation();
+        long last = lsn / segmentSize;
+        for (Long n : listSegments()) {
+            if (n > last + 1) {
+                deleteSegment(n);
+            }
+        }
+        if (segmentFile(last).exists()) {
+            preallocate(segment(last, false), (int) (lsn % segmentSize));
+        }
+        if (segmentFile(last + 1).exists()) {
+            preallocate(segment(last + 1, false), 0);
+        }
+        force();
+        endLsn = lsn;
+        position = lsn;
+        writeSegment = -1;
+        readLength = 0;
+    }
+
+    /**
+     * Throw away everything before the specified LSN.  The manifest is
+     * updated first; afterwards all segments that lie entirely before the
+     * LSN are deleted.  No log records are copied.
+     */
+    public void truncateBefore(long lsn) throws IOException {
+        if (lsn <= firstLsn) {
+            return;
+        }
+        awaitPreallocation();
+        firstLsn = lsn;
+        writeManifest();
+        for (Long n : listSegments()) {
+            if ((n + 1) * segmentSize <= lsn) {
+                deleteSegment(n);
+            }
+        }
+    }
+
+    /** Delete all segments and start an empty log at LSN 0. */
+    public void reset() throws IOException {
+        awaitPreallocation();
+        for (Long n : listSegments()) {
+            deleteSegment(n);
+        }
+        firstLsn = 0;
+        checkpointLsn = LogFile.NO_CHECKPOINT_ID;
+        endLsn = 0;
+        position = 0;
+        writeSegment = -1;
+        readLength = 0;
+        writeManifest();
+    }
+
+    private void deleteSegment(long n) throws IOException {
+        RandomAccessFile raf = segments.remove(n);
+        if (raf != null) {
+            raf.close();
+        }
+        unforced.remove(n);
+        segmentFile(n).delete();
+        readLength = 0;
+    }
+
+    private void writeManifest() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(2 * LogFile.LONG_SIZE);
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeLong(firstLsn);
+        dos.writeLong(checkpointLsn);
+        // a single small write, so the manifest is never half updated
+        manifestFile.seek(0);
+        manifestFile.write(bos.toByteArray());
+        manifestFile.getChannel().force(true);
+    }
+
+    /** Close all open segment files and the manifest. */
+    public void close() throws IOException {
+        awaitPreallocation();
+        for (RandomAccessFile raf : segments.values()) {
+            raf.close();
+        }
+        segments.clear();
+        manifestFile.close();
+    }
+}
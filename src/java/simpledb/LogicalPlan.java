@@ -1,4 +1,5 @@
 package simpledb;
+import java.util.List;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
@@ -25,8 +26,9 @@ public class LogicalPlan {
     private Vector<LogicalJoinNode> joins;
     private Vector<LogicalScanNode> tables;
     private Vector<LogicalFilterNode> filters;
-    private HashMap<String, OpIterator> subplanMap;
     private HashMap<String,Integer> tableMap;
+    // joins是否已经由JoinOptimizer排好序；排好后再转换成物理计划时沿用这个顺序
+    private boolean joinsOrdered = false;
 
     private Vector<LogicalSelectListNode> selectList;
     private String groupByField = null;
@@ -38,12 +40,15 @@ public class LogicalPlan {
     private String query;
 //    private Query owner;
 
+    /** Filters on an indexed field of a heap file that are estimated to select at most this
+        fraction of the table are evaluated with an {@link IndexScan} instead of a SeqScan */
+    public static final double INDEX_SCAN_MAX_SELECTIVITY = 0.1;
+
     /** Constructor -- generate an empty logical plan */
     public LogicalPlan() {
         joins = new Vector<LogicalJoinNode>();
         filters = new Vector<LogicalFilterNode>();
         tables = new Vector<LogicalScanNode>();
-        subplanMap = new HashMap<String, OpIterator>();
         tableMap = new HashMap<String,Integer>();
 
         selectList = new Vector<LogicalSelectListNode>();
@@ -105,6 +110,40 @@ public class LogicalPlan {
         filters.addElement(lf);
     }
 
+    /** Add a new filter whose constant is a parameter of the query, given each time the plan is
+     *   converted by {@link #physicalPlan(TransactionId, Map, boolean, List)}.
+     *   @param field The name of the field over which the filter applies, as for {@link #addFilter(String, Predicate.Op, String)}
+     *   @param p The predicate for the filter
+     *   @param param the index of the parameter, from 0
+     *   @throws ParsingException if field is not in one of the tables or is ambiguous
+     */
+    public void addFilter(String field, Predicate.Op p, int param) throws ParsingException {
+        addFilter(field, p, (String) null);
+        filters.lastElement().param = param;
+    }
+
+    /** Returns the number of parameters of the query: one more than the largest parameter index
+     *   of its filters, or 0 if none of them has a parameter.
+     */
+    public int numParameters() {
+        int n = 0;
+        for (LogicalFilterNode lf : filters) {
+            n = Math.max(n, lf.param + 1);
+        }
+        return n;
+    }
+
+    /** Returns true if the query joins a table with a subquery.  The subquery is planned when it is
+     *   added, for one transaction, so such plans can only be converted once.
+     */
+    public boolean hasSubqueries() {
+        for (LogicalJoinNode lj : joins) {
+            if (lj instanceof LogicalSubplanJoinNode)
+                return true;
+        }
+        return false;
+    }
+
     /** Add a join between two fields of two different tables.  
      *  @param joinField1 The name of the first join field; this can
      *  be a fully qualified name (e.g., tableName.field or
@@ -258,6 +297,35 @@ public class LogicalPlan {
 
     }
 
+    /** Returns true if the only field of the table with the specified alias that the query refers
+     *   to, in its select list, filters, joins, aggregate, GROUP BY and ORDER BY, is the specified
+     *   field, so that an index on that field covers the query.
+     */
+    private boolean isCoveredBy(String alias, String fieldPureName) {
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.equals("null.*") || refersToOtherField(si.fname, alias, fieldPureName))
+                return false;
+        }
+        for (LogicalFilterNode lf : filters) {
+            if (lf.tableAlias.equals(alias) && !lf.fieldPureName.equals(fieldPureName))
+                return false;
+        }
+        for (LogicalJoinNode lj : joins) {
+            if (alias.equals(lj.t1Alias) && !lj.f1PureName.equals(fieldPureName))
+                return false;
+            if (alias.equals(lj.t2Alias) && !lj.f2PureName.equals(fieldPureName))
+                return false;
+        }
+        return !refersToOtherField(aggField, alias, fieldPureName)
+                && !refersToOtherField(groupByField, alias, fieldPureName)
+                && !refersToOtherField(oByField, alias, fieldPureName);
+    }
+
+    // name is a qualified name alias.field of another field of the table with the alias
+    private static boolean refersToOtherField(String name, String alias, String fieldPureName) {
+        return name != null && name.startsWith(alias + ".") && !name.equals(alias + "." + fieldPureName);
+    }
+
     /** Convert the aggregate operator name s into an Aggregator.op operation.
      *  @throws ParsingException if s is not a valid operator name 
      */
@@ -273,6 +341,16 @@ public class LogicalPlan {
 
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
+     *   A table whose most selective filter on a field with a {@link SecondaryIndex} is estimated to
+     *   select at most {@link #INDEX_SCAN_MAX_SELECTIVITY} of it is read with an {@link IndexScan}.
+     *   If the query refers to no other field of the table, the index covers it: the scan is an
+     *   index-only scan that never reads the table, whatever the selectivity of the filter.
+     *   <p>
+     *   The joins are ordered the first time the plan is converted; later conversions, for other
+     *   transactions or parameters, reuse that order and only choose the access path of each table
+     *   again, so a plan can be made once and run many times.  Queries with more than one join and
+     *   no subqueries run their joins in an {@link AdaptiveJoin}, which orders the remaining joins
+     *   again when an intermediate result is much larger or smaller than estimated.
      *  @param t The transaction that the returned OpIterator will run as a part of
      *  @param baseTableStats a HashMap providing a {@link TableStats}
      *    object for each table used in the LogicalPlan.  This should
@@ -285,7 +363,19 @@ public class LogicalPlan {
      *  @return A OpIterator representing this plan.
      */ 
     public OpIterator physicalPlan(TransactionId t, Map<String,TableStats> baseTableStats, boolean explain) throws ParsingException {
+        return physicalPlan(t, baseTableStats, explain, null);
+    }
+
+    /** Convert this LogicalPlan into a physical plan, like {@link #physicalPlan(TransactionId, Map, boolean)},
+     *   with the specified values of the parameters of its filters.
+     *  @param params the value of each parameter, as the constant of a filter would be written
+     *  @throws ParsingException if the logical plan is not valid, or the value of a parameter is
+     *    missing or does not match the type of its field
+     */
+    public synchronized OpIterator physicalPlan(TransactionId t, Map<String,TableStats> baseTableStats, boolean explain,
+            List<String> params) throws ParsingException {
         Iterator<LogicalScanNode> tableIt = tables.iterator();
+        HashMap<String, OpIterator> subplanMap = new HashMap<String, OpIterator>();
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
@@ -306,6 +396,12 @@ public class LogicalPlan {
 
         }
 
+        // 每个表的过滤谓词（按出现顺序）和选择性最低的可用索引
+        HashMap<String,ArrayList<Predicate>> filterPreds = new HashMap<String,ArrayList<Predicate>>();
+        HashMap<String,OpIterator> indexScans = new HashMap<String,OpIterator>();
+        HashMap<String,Double> indexSelectivities = new HashMap<String,Double>();
+        HashMap<String,ArrayList<Double>> predSelectivities = new HashMap<String,ArrayList<Double>>();
+
         Iterator<LogicalFilterNode> filterIt = filters.iterator();        
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
@@ -323,10 +419,20 @@ public class LogicalPlan {
             } catch (java.util.NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            String c = lf.c;
+            if (lf.param >= 0) {
+                if (params == null || lf.param >= params.size() || params.get(lf.param) == null)
+                    throw new ParsingException("No value for parameter " + (lf.param + 1));
+                c = params.get(lf.param);
+            }
+            if (ftyp == Type.INT_TYPE) {
+                try {
+                    f = new IntField(Integer.parseInt(c));
+                } catch (NumberFormatException e) {
+                    throw new ParsingException("Value " + c + " of " + lf.fieldQuantifiedName + " is not an integer");
+                }
+            } else
+                f = new StringField(c, Type.STRING_LEN);
 
             Predicate p = null;
             try {
@@ -334,20 +440,102 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (!filterPreds.containsKey(lf.tableAlias))
+                filterPreds.put(lf.tableAlias, new ArrayList<Predicate>());
+            filterPreds.get(lf.tableAlias).add(p);
 
-            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
+            int tableId = this.getTableId(lf.tableAlias);
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(tableId));
             
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            double sel= s.estimateSelectivity(p.getField(), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
+            if (!predSelectivities.containsKey(lf.tableAlias))
+                predSelectivities.put(lf.tableAlias, new ArrayList<Double>());
+            predSelectivities.get(lf.tableAlias).add(sel);
+
+            boolean rangePredicate = lf.p != Predicate.Op.NOT_EQUALS && lf.p != Predicate.Op.LIKE;
+            boolean moreSelective = !indexSelectivities.containsKey(lf.tableAlias)
+                    || sel < indexSelectivities.get(lf.tableAlias);
+            SecondaryIndex index = Database.getCatalog().getIndex(tableId, p.getField());
+            boolean covered = index != null && isCoveredBy(lf.tableAlias, lf.fieldPureName);
+            if (index != null && rangePredicate && moreSelective
+                    && (sel <= INDEX_SCAN_MAX_SELECTIVITY || covered)) {
+                indexScans.put(lf.tableAlias, new IndexScan(t, index, lf.tableAlias, new IndexPredicate(lf.p, f), covered));
+                indexSelectivities.put(lf.tableAlias, sel);
+            }
+
+            // B+ tree的key上的谓词可以只扫描key范围内的叶子页，比全表扫描便宜时才用
+            DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+            if (file instanceof BTreeFile && ((BTreeFile) file).keyFields().length == 1
+                    && ((BTreeFile) file).keyField() == p.getField() && rangePredicate && moreSelective
+                    && s.estimateIndexScanCost(sel) < s.estimateScanCost()) {
+                indexScans.put(lf.tableAlias, new BTreeScan(t, tableId, lf.tableAlias, new IndexPredicate(lf.p, f)));
+                indexSelectivities.put(lf.tableAlias, sel);
+            }
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+
+        // 同一个表上最有选择性的两个谓词用二维直方图一起估计，考虑字段之间的相关性
+        for (Map.Entry<String,ArrayList<Predicate>> e : filterPreds.entrySet()) {
+            ArrayList<Predicate> preds = e.getValue();
+            ArrayList<Double> sels = predSelectivities.get(e.getKey());
+            int first = -1, second = -1;
+            for (int i = 0; i < preds.size(); i++) {
+                if (first < 0 || sels.get(i) < sels.get(first)) {
+                    first = i;
+                }
+            }
+            for (int i = 0; i < preds.size(); i++) {
+                if (preds.get(i).getField() != preds.get(first).getField()
+                        && (second < 0 || sels.get(i) < sels.get(second))) {
+                    second = i;
+                }
+            }
+            if (second < 0)
+                continue;
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(e.getKey())));
+            Predicate p1 = preds.get(first), p2 = preds.get(second);
+            double sel = s.estimateSelectivity(p1.getField(), p1.getOp(), p1.getOperand(),
+                    p2.getField(), p2.getOp(), p2.getOperand());
+            for (int i = 0; i < preds.size(); i++) {
+                if (i != first && i != second)
+                    sel *= sels.get(i);
+            }
+            filterSelectivities.put(e.getKey(), sel);
+        }
+
+        for (Map.Entry<String,ArrayList<Predicate>> e : filterPreds.entrySet()) {
+            OpIterator subplan = subplanMap.get(e.getKey());
+            boolean indexOnly = false;
+            if (indexScans.get(e.getKey()) instanceof BTreeScan) {
+                subplan = indexScans.get(e.getKey());
+                if (explain)
+                    System.out.println("Using a B+ tree range scan on " + e.getKey()
+                            + " (selectivity " + indexSelectivities.get(e.getKey()) + ")");
+            } else if (indexScans.containsKey(e.getKey())) {
+                subplan = indexScans.get(e.getKey());
+                indexOnly = ((IndexScan) subplan).isIndexOnly();
+                if (explain)
+                    System.out.println("Using an index" + (indexOnly ? "-only" : "") + " scan on " + e.getKey()
+                            + " (selectivity " + indexSelectivities.get(e.getKey()) + ")");
+            }
+            // 索引列上的谓词也保留在 Filter 中，结果不变；index-only scan只输出索引列
+            for (Predicate p : e.getValue()) {
+                subplan = new Filter(indexOnly ? new Predicate(0, p.getOp(), p.getOperand()) : p, subplan);
+            }
+            subplanMap.put(e.getKey(), subplan);
+        }
         
+        // 连接之前各表的（过滤后的）扫描，供运行时重新排序连接
+        HashMap<String, OpIterator> scanMap = new HashMap<String, OpIterator>(subplanMap);
         if (!joins.isEmpty()) {
             JoinOptimizer jo = new JoinOptimizer(this,joins);
 
-            joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+            if (!joinsOrdered) {
+                joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+                joinsOrdered = true;
+            }
 
             Iterator<LogicalJoinNode> joinIt = joins.iterator();
             while (joinIt.hasNext()) {
@@ -408,6 +596,9 @@ public class LogicalPlan {
         }
         
         OpIterator node =  (OpIterator)(subplanMap.entrySet().iterator().next().getValue());
+        if (joins.size() > 1 && !hasSubqueries() && JoinOptimizer.getReoptimizationFactor() > 0) {
+            node = new AdaptiveJoin(this, joins, scanMap, statsMap, filterSelectivities, node);
+        }
 
         //walk the select list, to determine order in which to project output fields
         ArrayList<Integer> outFields = new ArrayList<Integer>();
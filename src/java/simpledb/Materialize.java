@@ -0,0 +1,131 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Materialize is an operator that reads the tuples of its child into memory
+ * when it is opened, so that the size of an intermediate result is known
+ * before the operators above it run.  At most a fixed number of tuples are
+ * kept; the tuples of a larger child are returned from the buffer first and
+ * then read on from the child.
+ */
+public class Materialize extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final int limit;
+    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
+    private boolean loaded = false;
+    private boolean complete = false;
+    // 是否还在读缓冲区；缓冲区读完后（child没读完时）接着读child
+    private boolean fromBuffer = true;
+    private int pos = 0;
+
+    /**
+     * Creates a new Materialize node over the tuples from the iterator.
+     *
+     * @param limit
+     *            the largest number of tuples to keep in memory
+     * @param child
+     *            the tuples to materialize
+     */
+    public Materialize(int limit, OpIterator child) {
+        this.limit = limit;
+        this.child = child;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    /**
+     * @return true once the tuples of the child have been read
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * @return true if all the tuples of the child fit in memory
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return the number of tuples read into memory: the cardinality of the
+     *         child if it is {@link #isComplete complete}, and a lower bound
+     *         on it otherwise
+     */
+    public int getMaterializedCardinality() {
+        return childTups.size();
+    }
+
+    /**
+     * Read the tuples of the child, unless they have already been read since
+     * this operator was last closed.
+     */
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        if (!loaded) {
+            child.open();
+            while (childTups.size() < limit && child.hasNext())
+                childTups.add(child.next());
+            complete = !child.hasNext();
+            loaded = true;
+        }
+        pos = 0;
+        fromBuffer = true;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        childTups.clear();
+        loaded = false;
+        complete = false;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        pos = 0;
+        fromBuffer = true;
+        if (!complete) {
+            // 缓冲区只有前一部分，从头再读一遍child
+            child.rewind();
+            fromBuffer = false;
+        }
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the tuples read into memory,
+     * followed by any remaining tuples of the child
+     *
+     * @return The next tuple, or null if there are no more tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (fromBuffer) {
+            if (pos < childTups.size())
+                return childTups.get(pos++);
+            if (complete)
+                return null;
+            fromBuffer = false;
+        }
+        if (child.hasNext())
+            return child.next();
+        else
+            return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+}
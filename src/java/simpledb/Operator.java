@@ -30,6 +30,7 @@ public abstract class Operator implements OpIterator {
 
         Tuple result = next;
         next = null;
+        actualCardinality++;
         return result;
     }
 
@@ -57,9 +58,11 @@ public abstract class Operator implements OpIterator {
     private Tuple next = null;
     private boolean open = false;
     private int estimatedCardinality = 0;
+    private int actualCardinality = 0;
 
     public void open() throws DbException, TransactionAbortedException {
         this.open = true;
+        this.actualCardinality = 0;
     }
 
     /**
@@ -104,4 +107,13 @@ public abstract class Operator implements OpIterator {
         this.estimatedCardinality = card;
     }
 
+    /**
+     * @return the number of tuples this operator has returned since it was
+     *         last opened, including those returned again after a rewind;
+     *         compare with {@link #getEstimatedCardinality}
+     * */
+    public int getActualCardinality() {
+        return this.actualCardinality;
+    }
+
 }
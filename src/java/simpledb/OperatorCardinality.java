@@ -227,18 +227,12 @@ public class OperatorCardinality {
         String[] tmp = a.groupFieldName().split("[.]");
         String tableAlias = tmp[0];
         String pureFieldName = tmp[1];
-        Integer tableId = tableAliasToId.get(tableAlias);
 
-        double groupFieldAvgSelectivity = 1.0;
-        if (tableId != null) {
-            groupFieldAvgSelectivity = tableStats.get(
-                    Database.getCatalog().getTableName(tableId))
-                    .avgSelectivity(
-                            Database.getCatalog().getTupleDesc(tableId)
-                                    .fieldNameToIndex(pureFieldName),
-                            Predicate.Op.EQUALS);
-            a.setEstimatedCardinality((int) (Math.min(childCard,
-                    1.0 / groupFieldAvgSelectivity)));
+        // 每组一个输出元组，组数就是分组字段的不同值个数
+        int groups = JoinOptimizer.numDistinct(tableAlias, pureFieldName,
+                childCard, tableStats, tableAliasToId);
+        if (groups > 0) {
+            a.setEstimatedCardinality(groups);
             return hasJoinPK;
         }
         a.setEstimatedCardinality(childCard);
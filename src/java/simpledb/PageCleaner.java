@@ -0,0 +1,101 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * PageCleaner is a background thread that writes committed pages from the
+ * BufferPool back to disk.  Committing transactions only have to force
+ * their log records; the pages themselves are written later by the cleaner
+ * in page-number order, so foreground eviction can almost always pick a
+ * victim that is already clean.
+ *
+ * @see BufferPool#startPageCleaner(long)
+ */
+public class PageCleaner extends Thread {
+
+    /**
+     * Default number of milliseconds the cleaner sleeps between passes.
+     */
+    public static final long DEFAULT_INTERVAL = 100;
+
+    private final BufferPool bufferPool;
+    private final long intervalMillis;
+    private volatile boolean running = true;
+    private boolean wakeRequested = false;
+
+    /**
+     * Create a cleaner for the specified buffer pool.  The thread is a daemon
+     * thread and has to be started with {@link #start()}.
+     *
+     * @param bufferPool     the buffer pool whose committed pages are written
+     * @param intervalMillis how long to sleep between passes, or 0 to only
+     *                       run a pass when {@link #wakeUp woken up}
+     */
+    public PageCleaner(BufferPool bufferPool, long intervalMillis) {
+        super("PageCleaner");
+        this.bufferPool = bufferPool;
+        this.intervalMillis = intervalMillis;
+        setDaemon(true);
+    }
+
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                // 先等待一个间隔或wakeUp：刚启动时还没有已提交的page；
+                // 忽略虚假唤醒，这样只有间隔到了或被叫醒时才写
+                long deadline = System.currentTimeMillis() + intervalMillis;
+                try {
+                    while (running && !wakeRequested) {
+                        if (intervalMillis == 0) {
+                            wait();
+                        } else {
+                            long remaining = deadline - System.currentTimeMillis();
+                            if (remaining <= 0) {
+                                break;
+                            }
+                            wait(remaining);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (!running) {
+                    return;
+                }
+                wakeRequested = false;
+            }
+            try {
+                bufferPool.flushCommittedPages();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (RuntimeException e) {
+                // 表可能已经从catalog中删除，下一轮再试
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Ask the cleaner to start its next pass immediately, e.g. because the
+     * buffer pool is running out of clean pages.
+     */
+    public synchronized void wakeUp() {
+        wakeRequested = true;
+        notifyAll();
+    }
+
+    /**
+     * Stop the cleaner and wait for its current pass to finish.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
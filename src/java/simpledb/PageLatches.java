@@ -0,0 +1,57 @@
+package simpledb;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * PageLatches hands out short-term read/write latches on pages.  Unlike the
+ * transaction locks of the LockManager, a latch is only held while a thread
+ * looks at or changes a page in memory, it is released long before the
+ * transaction ends, and it is not part of deadlock detection.  Callers must
+ * therefore never wait for a transaction lock while holding a latch that
+ * another transaction may need to finish, and must acquire latches in a
+ * fixed order (for a B+ tree: from the root down).
+ *
+ * @see BTreeFile
+ */
+class PageLatches {
+
+    private final ConcurrentHashMap<PageId, ReentrantReadWriteLock> latches =
+            new ConcurrentHashMap<PageId, ReentrantReadWriteLock>();
+
+    private ReentrantReadWriteLock latch(PageId pid) {
+        ReentrantReadWriteLock latch = latches.get(pid);
+        if (latch == null) {
+            ReentrantReadWriteLock created = new ReentrantReadWriteLock();
+            latch = latches.putIfAbsent(pid, created);
+            if (latch == null) {
+                latch = created;
+            }
+        }
+        return latch;
+    }
+
+    /**
+     * Latch the specified page for reading, waiting while another thread
+     * holds it for writing.
+     */
+    void readLock(PageId pid) {
+        latch(pid).readLock().lock();
+    }
+
+    void readUnlock(PageId pid) {
+        latch(pid).readLock().unlock();
+    }
+
+    /**
+     * Latch the specified page for writing, waiting until no other thread
+     * holds it.
+     */
+    void writeLock(PageId pid) {
+        latch(pid).writeLock().lock();
+    }
+
+    void writeUnlock(PageId pid) {
+        latch(pid).writeLock().unlock();
+    }
+}
@@ -0,0 +1,127 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * ParallelRedo writes page images to their files on several worker threads
+ * during recovery.  Each image goes to the worker chosen by the hash of its
+ * page id, and every worker writes its images in the order they were
+ * submitted, so all images of one page are applied in log order while
+ * different pages are written concurrently.  The queues are bounded, so the
+ * thread reading the log runs at most a few hundred images ahead of the
+ * workers.
+ *
+ * @see LogFile#recover()
+ */
+class ParallelRedo {
+
+    private static final int QUEUE_CAPACITY = 256;
+    // marks the end of a worker's queue
+    private static final Object END = new Object();
+
+    private final Worker[] workers;
+    private volatile IOException failure;
+
+    private class Worker extends Thread {
+        final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(QUEUE_CAPACITY);
+
+        Worker(int i) {
+            super("Redo-" + i);
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    Object next = queue.take();
+                    if (next == END) {
+                        return;
+                    }
+                    if (failure == null) {
+                        write((Page) next);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new IOException("redo failed", e);
+            }
+        }
+    }
+
+    /**
+     * Start the specified number of worker threads.  With a single worker the
+     * images are written by the calling thread and no thread is started.
+     */
+    ParallelRedo(int numWorkers) {
+        workers = new Worker[numWorkers > 1 ? numWorkers : 0];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Write the specified page image after all images of the same page that
+     * were submitted before it.
+     */
+    void submit(Page page) throws IOException {
+        if (workers.length == 0) {
+            write(page);
+            return;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        Worker w = workers[Math.floorMod(page.getId().hashCode(), workers.length)];
+        try {
+            w.queue.put(page);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted during redo");
+        }
+    }
+
+    /**
+     * Wait until every submitted image has been written and stop the
+     * workers.
+     *
+     * @throws IOException if a worker failed to write an image
+     */
+    void finish() throws IOException {
+        boolean interrupted = false;
+        for (Worker w : workers) {
+            while (true) {
+                try {
+                    w.queue.put(END);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        for (Worker w : workers) {
+            while (w.isAlive()) {
+                try {
+                    w.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static void write(Page page) throws IOException {
+        Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+    }
+}
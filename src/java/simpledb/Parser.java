@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -12,6 +14,9 @@ import jline.SimpleCompletor;
 public class Parser {
     static boolean explain = false;
 
+    // 正在解析预编译语句的模板：形如'?n'的字符串常量是第n个参数
+    private boolean parsingTemplate = false;
+
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
             return Predicate.Op.EQUALS;
@@ -94,6 +99,9 @@ public class Parser {
                 }
 
                 if (!op2const) { // right op is a nested query
+                    if (parsingTemplate)
+                        throw new simpledb.ParsingException(
+                                "Statements with subqueries cannot be prepared.");
                     try {
                         LogicalPlan sublp = parseQueryLogicalPlan(tid,
                                 (ZQuery) ops.elementAt(1));
@@ -125,7 +133,10 @@ public class Parser {
                     compValue = new String(op1.getValue());
                 }
 
-                lp.addFilter(column, op, compValue);
+                if (parsingTemplate && compValue.startsWith("?"))
+                    lp.addFilter(column, op, Integer.parseInt(compValue.substring(1)));
+                else
+                    lp.addFilter(column, op, compValue);
 
             }
         }
@@ -284,6 +295,11 @@ public class Parser {
         query.setPhysicalPlan(physicalPlan);
         query.setLogicalPlan(lp);
 
+        printQueryPlan(physicalPlan, lp);
+        return query;
+    }
+
+    private void printQueryPlan(OpIterator physicalPlan, LogicalPlan lp) {
         if (physicalPlan != null) {
             Class<?> c;
             try {
@@ -316,7 +332,88 @@ public class Parser {
                 e.printStackTrace();
             }
         }
+    }
+
+    /**
+     * Prepare a SELECT statement, whose WHERE clause may compare fields with
+     * <tt>?</tt> parameters, to be run many times.  The constants written in
+     * the statement are parameters too, whose values are already set.  The
+     * plan of the statement is taken from the {@link StatementCache} of the
+     * database if it is there, and put there otherwise.
+     *
+     * @throws simpledb.ParsingException if the statement is not a valid SELECT
+     *         statement, has subqueries, or has parameters other than the
+     *         constants of filters
+     */
+    public PreparedStatement prepareStatement(String sql)
+            throws simpledb.ParsingException {
+        ArrayList<String> literals = new ArrayList<String>();
+        String template = StatementCache.normalize(sql, literals);
+        plan(template);
+        PreparedStatement ps = new PreparedStatement(this, template,
+                literals.size());
+        for (int i = 0; i < literals.size(); i++) {
+            if (literals.get(i) != null)
+                ps.setParameter(i + 1, literals.get(i));
+        }
+        return ps;
+    }
 
+    /**
+     * Returns the plan of a normalized SELECT statement, from the cache of the
+     * database or, if it is not there, parsed and cached.
+     */
+    StatementCache.CachedPlan plan(String template)
+            throws simpledb.ParsingException {
+        StatementCache cache = Database.getStatementCache();
+        StatementCache.CachedPlan p = cache.get(template);
+        if (p != null)
+            return p;
+
+        // 第n个?换成字符串常量'?n'交给Zql解析，再由processExpression认出来
+        StringBuilder text = new StringBuilder();
+        int n = 0;
+        for (char c : template.toCharArray()) {
+            if (c == '?')
+                text.append("'?").append(n++).append("'");
+            else
+                text.append(c);
+        }
+        text.append(";");
+        ZqlParser zp = new ZqlParser(new ByteArrayInputStream(text.toString()
+                .getBytes()));
+        LogicalPlan lp;
+        parsingTemplate = true;
+        try {
+            ZStatement stmt = zp.readStatement();
+            if (!(stmt instanceof ZQuery))
+                throw new simpledb.ParsingException(
+                        "Only SELECT statements can be prepared.");
+            lp = parseQueryLogicalPlan(null, (ZQuery) stmt);
+        } catch (Zql.ParseException e) {
+            throw new simpledb.ParsingException(
+                    "Invalid SQL expression: \n \t " + e);
+        } catch (Zql.TokenMgrError e) {
+            throw new simpledb.ParsingException(
+                    "Invalid SQL expression: \n \t " + e);
+        } catch (IOException e) {
+            throw new simpledb.ParsingException(e);
+        } finally {
+            parsingTemplate = false;
+        }
+        if (lp.numParameters() != n)
+            throw new simpledb.ParsingException(
+                    "Parameters are only supported as constants in the WHERE clause.");
+        lp.setQuery(template);
+        p = new StatementCache.CachedPlan(lp);
+        cache.put(template, p);
+        return p;
+    }
+
+    public Query handlePreparedStatement(PreparedStatement ps, TransactionId tId)
+            throws simpledb.ParsingException {
+        Query query = ps.executeQuery(tId);
+        printQueryPlan(query.getPhysicalPlan(), query.getLogicalPlan());
         return query;
     }
 
@@ -435,19 +532,19 @@ public class Parser {
                 throw new simpledb.ParsingException(
                         "No transaction is currently running");
             curtrans.commit();
-            curtrans = null;
-            inUserTrans = false;
             System.out.println("Transaction " + curtrans.getId().getId()
                     + " committed.");
+            curtrans = null;
+            inUserTrans = false;
         } else if (s.getStmtType().equals("ROLLBACK")) {
             if (curtrans == null)
                 throw new simpledb.ParsingException(
                         "No transaction is currently running");
             curtrans.abort();
-            curtrans = null;
-            inUserTrans = false;
             System.out.println("Transaction " + curtrans.getId().getId()
                     + " aborted.");
+            curtrans = null;
+            inUserTrans = false;
 
         } else if (s.getStmtType().equals("SET TRANSACTION")) {
             if (curtrans != null)
@@ -463,6 +560,50 @@ public class Parser {
         }
     }
 
+    // savepoint statements are not part of the Zql grammar
+    private static final Pattern SAVEPOINT_STMT = Pattern.compile(
+            "\\s*SAVEPOINT\\s+(\\w+)\\s*;?\\s*", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ROLLBACK_TO_STMT = Pattern.compile(
+            "\\s*ROLLBACK\\s+(?:WORK\\s+)?TO\\s+(?:SAVEPOINT\\s+)?(\\w+)\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern RELEASE_STMT = Pattern.compile(
+            "\\s*RELEASE\\s+(?:SAVEPOINT\\s+)?(\\w+)\\s*;?\\s*", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Handle a SAVEPOINT name, ROLLBACK TO [SAVEPOINT] name or RELEASE
+     * [SAVEPOINT] name statement inside the current user transaction.
+     *
+     * @return false if the statement is not one of these
+     */
+    public boolean handleSavepointStatement(String s)
+            throws simpledb.ParsingException, IOException {
+        Matcher savepoint = SAVEPOINT_STMT.matcher(s);
+        Matcher rollbackTo = ROLLBACK_TO_STMT.matcher(s);
+        Matcher release = RELEASE_STMT.matcher(s);
+        if (!savepoint.matches() && !rollbackTo.matches() && !release.matches()) {
+            return false;
+        }
+        if (curtrans == null || !inUserTrans)
+            throw new simpledb.ParsingException(
+                    "Savepoints can only be used inside a transaction");
+        if (savepoint.matches()) {
+            curtrans.savepoint(savepoint.group(1));
+            System.out.println("Savepoint " + savepoint.group(1) + " set.");
+        } else if (rollbackTo.matches()) {
+            try {
+                curtrans.rollbackTo(rollbackTo.group(1));
+            } catch (NoSuchElementException e) {
+                throw new simpledb.ParsingException(e.getMessage());
+            }
+            System.out.println("Transaction " + curtrans.getId().getId()
+                    + " rolled back to savepoint " + rollbackTo.group(1) + ".");
+        } else {
+            curtrans.releaseSavepoint(release.group(1));
+            System.out.println("Savepoint " + release.group(1) + " released.");
+        }
+        return true;
+    }
+
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
         ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
@@ -493,6 +634,17 @@ public class Parser {
     }
 
     public void processNextStatement(String s) {
+        try {
+            if (handleSavepointStatement(s))
+                return;
+        } catch (simpledb.ParsingException e) {
+            System.out
+                    .println("Invalid SQL expression: \n \t" + e.getMessage());
+            return;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
         try {
             processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")));
         } catch (UnsupportedEncodingException e) {
@@ -502,9 +654,27 @@ public class Parser {
     }
 
     public void processNextStatement(InputStream is) {
+        processStatement(is, null);
+    }
+
+    /**
+     * Run a prepared statement like processNextStatement runs the statements
+     * it parses, in the current transaction or in a new one.  Only prepared
+     * statements use the {@link StatementCache}; the other statements are
+     * planned for their own constants every time.
+     */
+    public void processPreparedStatement(PreparedStatement ps) {
+        processStatement(null, ps);
+    }
+
+    // 有prepared时运行它，不再解析is
+    private void processStatement(InputStream is, PreparedStatement prepared) {
         try {
-            ZqlParser p = new ZqlParser(is);
-            ZStatement s = p.readStatement();
+            ZStatement s = null;
+            if (prepared == null) {
+                ZqlParser p = new ZqlParser(is);
+                s = p.readStatement();
+            }
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -517,7 +687,10 @@ public class Parser {
                             + curtrans.getId().getId());
                 }
                 try {
-                    if (s instanceof ZInsert)
+                    if (prepared != null)
+                        query = handlePreparedStatement(prepared,
+                                curtrans.getId());
+                    else if (s instanceof ZInsert)
                         query = handleInsertStatement((ZInsert) s,
                                 curtrans.getId());
                     else if (s instanceof ZDelete)
@@ -581,7 +754,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "savepoint" };
 
     public static void main(String argv[]) throws IOException {
 
@@ -607,7 +780,8 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
+        TableStats.computeStatistics(new File(argv[0] + ".stats"));
+        Database.getBufferPool().startPageCleaner(PageCleaner.DEFAULT_INTERVAL);
 
         String queryFile = null;
 
@@ -674,7 +848,6 @@ public class Parser {
                     buffer.append(line.substring(0, split + 1));
                     String cmd = buffer.toString().trim();
                     cmd = cmd.substring(0, cmd.length() - 1).trim() + ";";
-                    byte[] statementBytes = cmd.getBytes("UTF-8");
                     if (cmd.equalsIgnoreCase("quit;")
                             || cmd.equalsIgnoreCase("exit;")) {
                         shutdown();
@@ -683,8 +856,7 @@ public class Parser {
                     }
 
                     long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
+                    processNextStatement(cmd);
                     long time = System.currentTimeMillis() - startTime;
                     System.out.printf("----------------\n%.2f seconds\n\n",
                             ((double) time / 1000.0));
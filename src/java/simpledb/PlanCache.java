@@ -1,50 +1,131 @@
 package simpledb;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.Arrays;
 import java.util.Vector;
 
 /** A PlanCache is a helper class that can be used to store the best
- * way to order a given set of joins */
+ * way to order a given set of joins.  A set of joins is a bitmask over
+ * the joins being ordered, bit i standing for the i-th of them, and the
+ * cache is a set of arrays indexed by that bitmask.  Rather than the whole
+ * ordering, each entry keeps the join that its plan performs last and the
+ * set of joins of the plan that join takes as its outer; the rest, without
+ * the last join, is the plan of its inner.  The ordering of a set is rebuilt
+ * by following those back through the smaller sets. */
 public class PlanCache {
-    HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>> bestOrders= new HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>>();
-    HashMap<Set<LogicalJoinNode>,Double> bestCosts= new HashMap<Set<LogicalJoinNode>,Double>();
-    HashMap<Set<LogicalJoinNode>,Integer> bestCardinalities = new HashMap<Set<LogicalJoinNode>,Integer>();
-    
+    private final LogicalJoinNode[] lastJoins;
+    private final int[] lastIndexes;
+    private final int[] outerSets;
+    private final double[] bestCosts;
+    private final int[] bestCardinalities;
+    private final long[] joinedTables;
+
+    /** Create an empty cache for orderings of the specified number of joins
+        @param numJoins the number of joins being ordered, at most {@link JoinOptimizer#MAX_DP_JOINS}
+    */
+    PlanCache(int numJoins) {
+        int size = 1 << numJoins;
+        lastJoins = new LogicalJoinNode[size];
+        lastIndexes = new int[size];
+        outerSets = new int[size];
+        bestCosts = new double[size];
+        bestCardinalities = new int[size];
+        joinedTables = new long[size];
+        Arrays.fill(lastIndexes, -1);
+    }
+
     /** Add a new cost, cardinality and ordering for a particular join set.  Does not verify that the
         new cost is less than any previously added cost -- simply adds or replaces an existing plan for the
         specified join set
         @param s the set of joins for which a new ordering (plan) is being added
         @param cost the estimated cost of the specified plan
         @param card the estimatied cardinality of the specified plan
-        @param order the ordering of the joins in the plan
+        @param lastIndex the index of the join the plan performs last
+        @param outer the subset of s, without the last join, whose plan is the outer of the last join;
+            0 if the outer is a base relation
+        @param last the join the plan performs last, with its inner and outer as the plan uses them
+        @param tables a bitmask of the tables joined by the plan
     */
-    void addPlan(Set<LogicalJoinNode> s, double cost, int card, Vector<LogicalJoinNode> order) {
-        bestOrders.put(s,order);                        
-        bestCosts.put(s,cost);
-        bestCardinalities.put(s,card);
+    void addPlan(int s, double cost, int card, int lastIndex, int outer, LogicalJoinNode last, long tables) {
+        lastJoins[s] = last;
+        lastIndexes[s] = lastIndex;
+        outerSets[s] = outer;
+        bestCosts[s] = cost;
+        bestCardinalities[s] = card;
+        joinedTables[s] = tables;
     }
-    
+
+    /** @return true if the cache has a plan for the specified join set */
+    boolean hasPlan(int s) {
+        return lastIndexes[s] >= 0;
+    }
+
     /** Find the best join order in the cache for the specified plan 
         @param s the set of joins to look up the best order for
-        @return the best order for s in the cache
+        @return the best order for s in the cache, or null if there is none
     */
-    Vector<LogicalJoinNode> getOrder(Set<LogicalJoinNode> s) {
-        return bestOrders.get(s);
+    Vector<LogicalJoinNode> getOrder(int s) {
+        if (!hasPlan(s)) {
+            return null;
+        }
+        Vector<LogicalJoinNode> order = new Vector<LogicalJoinNode>();
+        addOrder(s, order);
+        return order;
     }
-    
+
+    // the joins of the outer plan, then those of the inner plan, then the last join
+    private void addOrder(int s, Vector<LogicalJoinNode> order) {
+        if (s == 0) {
+            return;
+        }
+        addOrder(outerSets[s], order);
+        addOrder(s & ~outerSets[s] & ~(1 << lastIndexes[s]), order);
+        order.add(lastJoins[s]);
+    }
+
+    /** Find the join performed last by the best plan for the specified join set
+        @param s the set of joins to look up
+        @return the last join of the best plan for s, with its inner and outer as the plan uses them
+    */
+    LogicalJoinNode getLastJoin(int s) {
+        return lastJoins[s];
+    }
+
+    /** Find the joins of the outer plan of the last join of the best plan for the specified join set
+        @param s the set of joins to look up
+        @return the set of joins of the outer plan, 0 if the outer is a base relation
+    */
+    int getOuter(int s) {
+        return outerSets[s];
+    }
+
+    /** Find the index of the join performed last by the best plan for the specified join set
+        @param s the set of joins to look up
+        @return the index of the last join of the best plan for s, or -1 if there is none
+    */
+    int getLastIndex(int s) {
+        return lastIndexes[s];
+    }
+
     /** Find the cost of the best join order in the cache for the specified plan 
         @param s the set of joins to look up the best cost for
         @return the cost of the best order for s in the cache
     */
-    double getCost(Set<LogicalJoinNode> s) {
-        return bestCosts.get(s);
+    double getCost(int s) {
+        return bestCosts[s];
     }
     
     /** Find the cardinality of the best join order in the cache for the specified plan 
         @param s the set of joins to look up the best cardinality for
         @return the cardinality of the best order for s in the cache
     */
-    int getCard(Set<LogicalJoinNode> s) {
-        return bestCardinalities.get(s);
+    int getCard(int s) {
+        return bestCardinalities[s];
+    }
+
+    /** Find the tables joined by the best join order in the cache for the specified plan
+        @param s the set of joins to look up the tables of
+        @return a bitmask of the tables joined by s
+    */
+    long getTables(int s) {
+        return joinedTables[s];
     }
 }
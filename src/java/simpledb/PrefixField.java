@@ -0,0 +1,25 @@
+package simpledb;
+
+/**
+ * Instance of Field for a string key that an internal page of a BTreeFile had to cut
+ * short.  A prefix key stands for every key that starts with it: the keys on the left
+ * of a prefix key p are less than p or start with p, and the keys on its right are
+ * greater than or equal to p.  Prefix keys compare like the StringField of the same
+ * value.
+ *
+ * @see BTreeInternalPage#cut(Field, int, int)
+ */
+public class PrefixField extends StringField {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param s
+	 *            The characters the key was cut to
+	 */
+	public PrefixField(String s) {
+		super(s, Type.STRING_LEN);
+	}
+}
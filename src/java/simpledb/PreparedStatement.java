@@ -0,0 +1,119 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A SELECT statement that is parsed and optimized once and can then be run
+ * many times, with other values of its parameters.
+ * <p>
+ * Parameters are written <tt>?</tt> in the statement and can stand for the
+ * constant of any filter in its WHERE clause; they are numbered from 1, in the
+ * order they appear.  The plan of the statement is kept in the
+ * {@link StatementCache} of the {@link Database}, where statements with the same
+ * text share it; if the catalog or the statistics of its tables have changed
+ * when the statement is next run, the statement is planned again.
+ * <p>
+ * The joins are ordered once, for the values of the parameters the statement
+ * is first run with; the access path of each table is chosen again for the
+ * values of each run.
+ *
+ * @see Parser#prepareStatement
+ */
+public class PreparedStatement {
+
+    private final Parser parser;
+    private final String sql;
+    private final String[] params;
+
+    /**
+     * Create a statement of the specified parser, whose plan is already cached.
+     *
+     * @param sql    the normalized text of the statement
+     * @param params the number of parameters of the statement
+     */
+    PreparedStatement(Parser parser, String sql, int params) {
+        this.parser = parser;
+        this.sql = sql;
+        this.params = new String[params];
+    }
+
+    /**
+     * @return the normalized text of the statement, in which each parameter is
+     *         a <tt>?</tt>
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * @return the number of parameters of the statement
+     */
+    public int getParameterCount() {
+        return params.length;
+    }
+
+    // 参数的值按常量的写法保存，转换成物理计划时再按字段的类型解析
+    void setParameter(int index, String value) {
+        if (index < 1 || index > params.length) {
+            throw new IndexOutOfBoundsException("parameter " + index + " of " + params.length);
+        }
+        params[index - 1] = value;
+    }
+
+    /**
+     * Set the value of a parameter that is compared with an INT field.
+     *
+     * @param index the number of the parameter, from 1
+     * @throws IndexOutOfBoundsException if the statement has no such parameter
+     */
+    public void setInt(int index, int value) {
+        setParameter(index, Integer.toString(value));
+    }
+
+    /**
+     * Set the value of a parameter that is compared with a STRING field.
+     *
+     * @param index the number of the parameter, from 1
+     * @throws IndexOutOfBoundsException if the statement has no such parameter
+     */
+    public void setString(int index, String value) {
+        setParameter(index, value);
+    }
+
+    /**
+     * Clear the values of all the parameters.
+     */
+    public void clearParameters() {
+        Arrays.fill(params, null);
+    }
+
+    /**
+     * @return true if every parameter has a value
+     */
+    public boolean hasAllParameters() {
+        for (String p : params) {
+            if (p == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Make a query that runs the statement, with the current values of its
+     * parameters, as part of the specified transaction.
+     *
+     * @throws ParsingException if a parameter has no value or a value of the
+     *                          wrong type, or the statement can no longer be
+     *                          planned against the catalog
+     */
+    public Query executeQuery(TransactionId tid) throws ParsingException {
+        LogicalPlan lp = parser.plan(sql).plan;
+        Query query = new Query(tid);
+        query.setPhysicalPlan(lp.physicalPlan(tid, TableStats.getStatsMap(), Parser.explain,
+                new ArrayList<String>(Arrays.asList(params))));
+        query.setLogicalPlan(lp);
+        return query;
+    }
+}
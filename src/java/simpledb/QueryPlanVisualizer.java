@@ -26,6 +26,8 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         OpIterator[] children = o.getChildren();
 
+        if (o instanceof AdaptiveJoin)
+            return this.calculateQueryPlanTreeDepth(children[0]);
         if (o instanceof Join || o instanceof HashEquiJoin) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
@@ -61,21 +63,43 @@ public class QueryPlanVisualizer {
                                         int parentUpperBarStartShift) {
         if (queryPlan == null)
             return null;
+        // 运行时才可能重新排序，显示最初的连接顺序
+        if (queryPlan instanceof AdaptiveJoin)
+            return this.buildTree(queryPlanDepth, currentDepth,
+                    ((AdaptiveJoin) queryPlan).getChildren()[0],
+                    currentStartPosition, parentUpperBarStartShift);
 
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof IndexScan || queryPlan instanceof BTreeScan) {
+            String tableName, alias, index = "";
+            if (queryPlan instanceof SeqScan) {
+                SeqScan s = (SeqScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+            } else if (queryPlan instanceof IndexScan) {
+                IndexScan s = (IndexScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                index = " by " + Database.getCatalog().getTupleDesc(s.getIndex().getTableId())
+                        .getFieldName(s.getIndex().getField())
+                        + (s.isIndexOnly() ? ", index only" : "");
+            } else {
+                BTreeScan s = (BTreeScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(
+                        Database.getCatalog().getTableId(tableName));
+                index = " by " + f.getTupleDesc().getFieldName(f.keyField()) + ", key range";
+            }
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
+                    .format("%1$s(%2$s)", SCAN, tableName + alias + index);
             if (SCAN.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
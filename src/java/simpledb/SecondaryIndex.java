@@ -0,0 +1,216 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * SecondaryIndex is a non-clustered B+ tree index over one field of a HeapFile table.
+ * The tuples of the table stay where the HeapFile put them; the index stores one entry
+ * (key, page number, tuple number) for each of them in a BTreeFile keyed on the first
+ * field, so that the tuples with a given key or in a given range can be found without
+ * scanning the whole table.
+ * <p>
+ * Indexes are registered in the Catalog with {@link Catalog#addIndex}, after which
+ * BufferPool.insertTuple() and deleteTuple() keep them up to date.  Tuples in a BTreeFile
+ * move to other pages when its pages split or merge, so only HeapFile tables can have
+ * secondary indexes.
+ *
+ * @see IndexScan
+ */
+public class SecondaryIndex {
+
+    private final int tableid;
+    private final int field;
+    private final BTreeFile file;
+
+    /**
+     * Create a secondary index on a field of a table, stored in the specified file.  The
+     * file may already hold the index; otherwise add it to the Catalog and call {@link #build}
+     * to add the tuples the table already holds.
+     *
+     * @param tableid the id of the table to index, which must be a HeapFile
+     * @param field   the index of the field to index
+     * @param f       the file that stores the index
+     */
+    public SecondaryIndex(int tableid, int field, File f) {
+        if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile)) {
+            throw new IllegalArgumentException("only heap files can have secondary indexes");
+        }
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+        this.tableid = tableid;
+        this.field = field;
+        this.file = new BTreeFile(f, 0, new TupleDesc(
+                new Type[]{td.getFieldType(field), Type.INT_TYPE, Type.INT_TYPE},
+                new String[]{td.getFieldName(field), "page", "tuple"}));
+    }
+
+    /**
+     * @return the id of the indexed table
+     */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /**
+     * @return the index of the indexed field
+     */
+    public int getField() {
+        return field;
+    }
+
+    /**
+     * @return the BTreeFile holding the index entries
+     */
+    public BTreeFile getFile() {
+        return file;
+    }
+
+    /**
+     * Add an entry for every tuple the table holds to the index, which must be empty and
+     * already added to the Catalog.  The entries are sorted in memory and bulk loaded into
+     * the B+ tree.
+     *
+     * @param tid the transaction building the index
+     */
+    public void build(TransactionId tid) throws DbException, IOException, TransactionAbortedException {
+        ArrayList<Tuple> entries = new ArrayList<Tuple>();
+        DbFileIterator it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            entries.add(indexEntry(it.next()));
+        }
+        it.close();
+        Collections.sort(entries, new BTreeFileEncoder.TupleComparator(0));
+
+        TupleIterator sorted = new TupleIterator(file.getTupleDesc(), entries);
+        sorted.open();
+        file.bulkLoad(tid, sorted, 1.0);
+        sorted.close();
+    }
+
+    // 索引项：(key, page number, tuple number)
+    private Tuple indexEntry(Tuple t) {
+        Tuple entry = new Tuple(file.getTupleDesc());
+        entry.setField(0, t.getField(field));
+        entry.setField(1, new IntField(t.getRecordId().getPageId().getPageNumber()));
+        entry.setField(2, new IntField(t.getRecordId().getTupleNumber()));
+        return entry;
+    }
+
+    /**
+     * Add the entry for a tuple that was just inserted into the table.
+     *
+     * @param tid the transaction inserting the tuple
+     * @param t   the tuple, with the RecordId the table gave it
+     * @return the index pages that were dirtied
+     */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        return file.insertTuple(tid, indexEntry(t));
+    }
+
+    /**
+     * Remove the entry for a tuple that is being deleted from the table.
+     *
+     * @param tid the transaction deleting the tuple
+     * @param t   the tuple, with its RecordId
+     * @return the index pages that were dirtied
+     */
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Tuple target = indexEntry(t);
+        DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, target.getField(0)));
+        it.open();
+        try {
+            while (it.hasNext()) {
+                Tuple entry = it.next();
+                if (entry.getField(1).equals(target.getField(1)) && entry.getField(2).equals(target.getField(2))) {
+                    return file.deleteTuple(tid, entry);
+                }
+            }
+        } finally {
+            it.close();
+        }
+        throw new DbException("tuple " + t + " is not in the index on field " + field);
+    }
+
+    /**
+     * Get the tuples of the table that satisfy an index predicate on the indexed field,
+     * in the order of the key.  The index is searched for their RecordIds, and each tuple
+     * is then read from its page in the table.
+     *
+     * @param tid   the transaction reading the tuples
+     * @param ipred the predicate on the indexed field
+     * @return an iterator over the tuples of the table
+     */
+    public DbFileIterator iterator(TransactionId tid, IndexPredicate ipred) {
+        return new RecordIdFetcher(tid, file.indexIterator(tid, ipred));
+    }
+
+    /**
+     * Get the values of the indexed field that satisfy an index predicate, in order, without
+     * reading the tuples of the table: an index-only scan for queries that need no other field
+     * of the table.  The returned tuples hold only the indexed field.
+     *
+     * @param tid   the transaction reading the index
+     * @param ipred the predicate on the indexed field
+     * @return an iterator over the indexed field of the matching tuples
+     */
+    public DbFileIterator keyIterator(TransactionId tid, IndexPredicate ipred) {
+        return file.indexIterator(tid, ipred, 0);
+    }
+
+    /**
+     * Count the tuples of the table whose indexed field satisfies an index predicate,
+     * without reading them.
+     *
+     * @param tid   the transaction reading the index
+     * @param ipred the predicate on the indexed field
+     * @return the number of matching tuples
+     * @see BTreeFile#count(TransactionId, IndexPredicate)
+     */
+    public int count(TransactionId tid, IndexPredicate ipred) throws DbException, TransactionAbortedException {
+        return file.count(tid, ipred);
+    }
+
+    private class RecordIdFetcher extends AbstractDbFileIterator {
+
+        private final TransactionId tid;
+        private final DbFileIterator entries;
+
+        RecordIdFetcher(TransactionId tid, DbFileIterator entries) {
+            this.tid = tid;
+            this.entries = entries;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            entries.open();
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (!entries.hasNext()) {
+                return null;
+            }
+            Tuple entry = entries.next();
+            HeapPageId pid = new HeapPageId(tableid, ((IntField) entry.getField(1)).getValue());
+            int tupleno = ((IntField) entry.getField(2)).getValue();
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            Tuple t = page.getTuple(tupleno);
+            if (t == null) {
+                throw new DbException("index entry " + entry + " points to an empty slot");
+            }
+            return t;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            entries.close();
+        }
+    }
+}
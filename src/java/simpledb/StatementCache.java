@@ -0,0 +1,213 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cache of the plans of prepared SELECT statements, so that statements that
+ * are prepared again, with the same or other constants, are neither parsed nor
+ * optimized again.  Only statements prepared with
+ * {@link Parser#prepareStatement} are cached: the joins of a cached plan stay
+ * in the order chosen for the first constants, which other statements should
+ * not be held to.
+ * <p>
+ * Plans are looked up by the normalized text of their statement (see
+ * {@link #normalize}), in which every constant is a <tt>?</tt> parameter, and
+ * the least recently used plan is dropped when the cache is full.  A plan is
+ * made against one version of the {@link Catalog} and the {@link TableStats}
+ * of its tables; once the catalog changes, or the statistics of one of the
+ * tables are replaced, the plan is dropped when it is next looked up and the
+ * statement is planned again.  Statistics that are only adjusted for inserted
+ * and deleted tuples keep their plans.
+ *
+ * @Threadsafe
+ */
+public class StatementCache {
+
+    /**
+     * The number of plans the cache of the {@link Database} keeps.
+     */
+    public static final int DEFAULT_CAPACITY = 128;
+
+    /**
+     * A cached plan, and what it was made against.
+     */
+    static class CachedPlan {
+        final LogicalPlan plan;
+        private final long catalogVersion;
+        // 计划所用各表的统计信息；统计信息被替换后这个计划就过期了
+        private final HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+
+        CachedPlan(LogicalPlan plan) {
+            this.plan = plan;
+            catalogVersion = Database.getCatalog().version();
+            for (int tableid : plan.getTableAliasToIdMapping().values()) {
+                String name = Database.getCatalog().getTableName(tableid);
+                stats.put(name, TableStats.getTableStats(name));
+            }
+        }
+
+        boolean isCurrent() {
+            if (Database.getCatalog().version() != catalogVersion) {
+                return false;
+            }
+            for (Map.Entry<String, TableStats> e : stats.entrySet()) {
+                if (TableStats.getTableStats(e.getKey()) != e.getValue()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final LinkedHashMap<String, CachedPlan> plans;
+    private long hits;
+    private long misses;
+
+    /**
+     * Create a new, empty cache.
+     *
+     * @param capacity the largest number of plans to keep
+     */
+    public StatementCache(final int capacity) {
+        // 按访问顺序排列，最久没用的在最前面
+        plans = new LinkedHashMap<String, CachedPlan>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, CachedPlan> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the plan of a normalized statement, or null if it is not cached
+     * or no longer current.
+     */
+    synchronized CachedPlan get(String sql) {
+        CachedPlan p = plans.get(sql);
+        if (p != null && !p.isCurrent()) {
+            plans.remove(sql);
+            p = null;
+        }
+        if (p == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return p;
+    }
+
+    synchronized void put(String sql, CachedPlan p) {
+        plans.put(sql, p);
+    }
+
+    /**
+     * Drop all the plans in the cache.
+     */
+    public synchronized void clear() {
+        plans.clear();
+    }
+
+    /**
+     * @return the number of plans in the cache
+     */
+    public synchronized int size() {
+        return plans.size();
+    }
+
+    /**
+     * @return the number of lookups that found a current plan
+     */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups that did not
+     */
+    public synchronized long misses() {
+        return misses;
+    }
+
+    private static boolean isNamePart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '.';
+    }
+
+    // 前面没有操作数时，减号是后面数字常量的符号，而不是减法
+    private static boolean isSignPosition(StringBuilder out) {
+        int i = out.length() - 1;
+        while (i >= 0 && out.charAt(i) == ' ') {
+            i--;
+        }
+        return i < 0 || "=<>!(,+-*/".indexOf(out.charAt(i)) >= 0;
+    }
+
+    /**
+     * Normalize the text of a statement: runs of white space become one space,
+     * the final semicolon is dropped, and every string or number constant
+     * becomes a <tt>?</tt> parameter.  A minus sign right before a number is
+     * part of the constant unless it follows an operand.  Statements that differ only in their
+     * constants normalize to the same text.
+     *
+     * @param sql      the statement, which may already contain <tt>?</tt>
+     *                 parameters
+     * @param literals receives, for each parameter in order, the constant it
+     *                 replaced, or null for a parameter of the statement
+     * @return the normalized text
+     */
+    public static String normalize(String sql, List<String> literals) {
+        StringBuilder out = new StringBuilder();
+        int i = 0;
+        int n = sql.length();
+        while (i < n) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                while (i < n && Character.isWhitespace(sql.charAt(i))) {
+                    i++;
+                }
+                out.append(' ');
+            } else if (c == '\'') {
+                // 字符串常量，两个单引号表示一个单引号
+                StringBuilder value = new StringBuilder();
+                i++;
+                while (i < n && (sql.charAt(i) != '\'' || (i + 1 < n && sql.charAt(i + 1) == '\''))) {
+                    if (sql.charAt(i) == '\'') {
+                        i++;
+                    }
+                    value.append(sql.charAt(i++));
+                }
+                i++;
+                out.append('?');
+                literals.add(value.toString());
+            } else if (c == '"') {
+                // 双引号里是名字，原样保留
+                int end = sql.indexOf('"', i + 1);
+                end = end < 0 ? n : end + 1;
+                out.append(sql, i, end);
+                i = end;
+            } else if ((Character.isDigit(c) && (out.length() == 0 || !isNamePart(out.charAt(out.length() - 1))))
+                    || (c == '-' && i + 1 < n && Character.isDigit(sql.charAt(i + 1)) && isSignPosition(out))) {
+                int start = i++;
+                while (i < n && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                out.append('?');
+                literals.add(sql.substring(start, i));
+            } else {
+                if (c == '?') {
+                    literals.add(null);
+                }
+                out.append(c);
+                i++;
+            }
+        }
+        String s = out.toString().trim();
+        if (s.endsWith(";")) {
+            s = s.substring(0, s.length() - 1).trim();
+        }
+        return s;
+    }
+}
@@ -1,9 +1,18 @@
 package simpledb;
 
+import java.io.*;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
@@ -11,7 +20,9 @@ import java.util.concurrent.ConcurrentHashMap;
  * 
  * This class is not needed in implementing lab1 and lab2.
  */
-public class TableStats {
+public class TableStats implements Serializable {
+
+    private static final long serialVersionUID = 4L;
 
     private static final ConcurrentHashMap<String, TableStats> statsMap = new ConcurrentHashMap<String, TableStats>();
 
@@ -47,16 +58,268 @@ public class TableStats {
         return statsMap;
     }
 
+    /**
+     * Default fraction of the pages of a table that computeStatistics reads.
+     */
+    public static final double DEFAULT_SAMPLE_RATE = 0.1;
+
+    /**
+     * Smallest number of pages read to compute the statistics of a table; tables
+     * with fewer pages are scanned in full.
+     */
+    public static final int MIN_SAMPLE_PAGES = 64;
+
+    /**
+     * Default for the largest number of tuples whose values are kept to build
+     * the histograms of a table, whatever the sample rate.  The tuples read
+     * beyond that replace kept ones at random, so the memory the statistics
+     * take while they are computed does not grow with the table; the number
+     * of tuples and the distinct-value sketches still count every tuple read.
+     */
+    public static final int DEFAULT_MAX_SAMPLE_ROWS = 100000;
+
+    private static volatile double sampleRate = DEFAULT_SAMPLE_RATE;
+    private static volatile int maxSampleRows = DEFAULT_MAX_SAMPLE_ROWS;
+    private static volatile int statsThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Set the fraction of the pages of each table that computeStatistics reads.
+     * 
+     * @param rate
+     *            the fraction of the pages, 1.0 to scan the tables in full
+     */
+    public static void setSampleRate(double rate) {
+        if (rate <= 0.0 || rate > 1.0) {
+            throw new IllegalArgumentException("sample rate must be in (0, 1]: " + rate);
+        }
+        sampleRate = rate;
+    }
+
+    public static double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Set the largest number of tuples whose values are kept to build the
+     * histograms of a table.
+     */
+    public static void setMaxSampleRows(int rows) {
+        if (rows < 1) {
+            throw new IllegalArgumentException("need to keep at least one row: " + rows);
+        }
+        maxSampleRows = rows;
+    }
+
+    public static int getMaxSampleRows() {
+        return maxSampleRows;
+    }
+
+    /**
+     * Set the number of threads computeStatistics computes the statistics of
+     * different tables on.
+     */
+    public static void setStatsThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("need at least one thread: " + threads);
+        }
+        statsThreads = threads;
+    }
+
+    public static int getStatsThreads() {
+        return statsThreads;
+    }
+
+    /**
+     * Default fraction of the tuples of a table that must have been inserted or
+     * deleted before its statistics are computed again.
+     */
+    public static final double DEFAULT_REFRESH_THRESHOLD = 0.2;
+
+    /**
+     * Smallest number of modifications that make the statistics of a table be
+     * computed again, so that small tables are not refreshed all the time.
+     */
+    public static final int MIN_REFRESH_MODIFICATIONS = 500;
+
+    private static volatile double refreshThreshold = DEFAULT_REFRESH_THRESHOLD;
+    private static ExecutorService refresher;
+
+    /**
+     * Set the fraction of the tuples of a table that must have been inserted or
+     * deleted before its statistics are computed again in the background.
+     * 
+     * @param threshold
+     *            the fraction of the tuples, or 0 to never refresh statistics
+     */
+    public static void setRefreshThreshold(double threshold) {
+        if (threshold < 0.0) {
+            throw new IllegalArgumentException("refresh threshold must not be negative: " + threshold);
+        }
+        refreshThreshold = threshold;
+    }
+
+    public static double getRefreshThreshold() {
+        return refreshThreshold;
+    }
+
+    /**
+     * Called by the BufferPool when a tuple is inserted into a table, to keep its
+     * statistics up to date; see {@link #addTuple}.  Tuples inserted by
+     * transactions that abort are counted as well.
+     */
+    public static void tupleInserted(int tableid, Tuple t) {
+        tupleModified(tableid, t, true);
+    }
+
+    /**
+     * Called by the BufferPool when a tuple is deleted from a table, to keep its
+     * statistics up to date; see {@link #addTuple}.
+     */
+    public static void tupleDeleted(int tableid, Tuple t) {
+        tupleModified(tableid, t, false);
+    }
+
+    private static void tupleModified(int tableid, Tuple t, boolean inserted) {
+        String name = Database.getCatalog().getTableName(tableid);
+        TableStats s = statsMap.get(name);
+        if (s != null && s.addTuple(t, inserted)) {
+            refresh(tableid, name, s);
+        }
+    }
+
+    // 在后台线程上重新统计，完成后替换掉仍在使用的旧统计信息
+    private static synchronized void refresh(final int tableid, final String name, final TableStats old) {
+        if (refresher == null) {
+            refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "TableStatsRefresher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        final double rate = sampleRate;
+        refresher.execute(new Runnable() {
+            public void run() {
+                try {
+                    statsMap.replace(name, old, new TableStats(tableid, old.ioCostPerPage, rate));
+                } catch (RuntimeException e) {
+                    // 表可能已被删除，或者统计事务被中止；之后的修改会再次触发
+                    synchronized (old) {
+                        old.refreshRequested = false;
+                    }
+                }
+            }
+        });
+    }
+
     public static void computeStatistics() {
-        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        computeStatistics(null);
+    }
+
+    /**
+     * Compute the statistics of every table in the catalog, sampling
+     * getSampleRate() of their pages, on getStatsThreads() threads.
+     * <p>
+     * If statsFile is not null, the statistics saved in it are used for the
+     * tables whose tuple descriptor, number of pages, and file length and
+     * modification time have not changed since;
+     * only the other tables are sampled, and then the statistics of all tables
+     * are saved back to the file.  A missing or unreadable file is ignored.
+     * 
+     * @param statsFile
+     *            the file to load and save the statistics, or null
+     */
+    public static void computeStatistics(File statsFile) {
+        Map<String, TableStats> saved = statsFile == null ? null : loadStatistics(statsFile);
+        HashMap<String, Future<TableStats>> computing = new HashMap<String, Future<TableStats>>();
+        ExecutorService pool = Executors.newFixedThreadPool(statsThreads);
+        final double rate = sampleRate;
+        int loaded = 0;
 
         System.out.println("Computing table stats.");
+        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
         while (tableIt.hasNext()) {
-            int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+            final int tableid = tableIt.next();
+            String name = Database.getCatalog().getTableName(tableid);
+            TableStats s = saved == null ? null : saved.get(name);
+            if (s != null && s.isCurrent(Database.getCatalog().getDatabaseFile(tableid))) {
+                setTableStats(name, s);
+                loaded++;
+                continue;
+            }
+            computing.put(name, pool.submit(new Callable<TableStats>() {
+                public TableStats call() {
+                    return new TableStats(tableid, IOCOSTPERPAGE, rate);
+                }
+            }));
+        }
+        pool.shutdown();
+        try {
+            for (Map.Entry<String, Future<TableStats>> e : computing.entrySet()) {
+                setTableStats(e.getKey(), e.getValue().get());
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while computing table stats", e);
+        } catch (ExecutionException e) {
+            pool.shutdownNow();
+            throw new RuntimeException(e.getCause());
+        }
+        System.out.println("Done: sampled " + computing.size() + " tables"
+                + (saved == null ? "" : ", loaded " + loaded) + ".");
+
+        if (statsFile != null) {
+            try {
+                saveStatistics(statsFile);
+            } catch (IOException e) {
+                System.out.println("Could not save table stats to " + statsFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Write the statistics of all tables to the specified file.  The file is
+     * replaced only once all of them are written.
+     */
+    public static void saveStatistics(File statsFile) throws IOException {
+        File tmp = new File(statsFile.getPath() + ".tmp");
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeObject(new HashMap<String, TableStats>(statsMap));
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(statsFile)) {
+            statsFile.delete();
+            if (!tmp.renameTo(statsFile)) {
+                throw new IOException("cannot rename " + tmp + " to " + statsFile);
+            }
+        }
+    }
+
+    // 读不了的统计信息文件当作不存在，重新计算即可
+    @SuppressWarnings("unchecked")
+    private static Map<String, TableStats> loadStatistics(File statsFile) {
+        if (!statsFile.exists()) {
+            return null;
+        }
+        try {
+            ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(statsFile)));
+            try {
+                return (Map<String, TableStats>) in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Ignoring table stats in " + statsFile + ": " + e.getMessage());
+        } catch (ClassNotFoundException e) {
+            System.out.println("Ignoring table stats in " + statsFile + ": " + e.getMessage());
+        } catch (ClassCastException e) {
+            System.out.println("Ignoring table stats in " + statsFile + ": " + e.getMessage());
         }
-        System.out.println("Done.");
+        return null;
     }
 
     /**
@@ -66,6 +329,55 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100;
 
+    /**
+     * Largest number of most common values kept for each column, apart from
+     * the buckets of its histogram.
+     */
+    static final int NUM_MCVS = 20;
+
+    /**
+     * Number of ranges each column is split into in the two-dimensional
+     * histograms over pairs of columns.
+     */
+    static final int NUM_JOINT_BINS = 10;
+
+    /**
+     * Two-dimensional histograms are kept for the pairs among this many
+     * leading columns of a table.
+     */
+    static final int MAX_JOINT_FIELDS = 16;
+
+    /**
+     * Precision of the HyperLogLog sketch of the distinct values of each
+     * column: 2^12 registers, for a standard error of about 1.6%.
+     */
+    static final int HLL_PRECISION = 12;
+
+    private final int ioCostPerPage;
+    private final TupleDesc td;
+    private final int numPages;
+    // 统计开始时表文件的长度和修改时间，用来判断保存的统计信息是否过时；没有文件时为-1
+    private final long fileLength;
+    private final long fileModified;
+    private int ntups;
+    // 统计时读到的元组占全表的比例，之后插入删除的元组按这个比例计入直方图
+    private double sampleFraction = 1.0;
+    // 统计之后插入和删除的元组数，以及统计时的元组数
+    private long modifications;
+    private int collectedTuples;
+    private transient boolean refreshRequested;
+    // B+ tree的层数和叶子页数，用于估计索引范围扫描的代价；其他文件为0
+    private int height;
+    private int leafPages;
+    private final EquiDepthHistogram[] histograms;
+    // 前MAX_JOINT_FIELDS个字段两两之间的二维直方图，joints[i][j]只在i < j时有
+    private final JointHistogram[][] joints;
+    // 每个字段不同值的sketch；抽样时sketch只见过读到的元组的值，再乘上distinctScale
+    private final HyperLogLog[] sketches;
+    private final double[] distinctScale;
+    // 统计之后插入的值是全表的值而不是样本，单独计数，不乘distinctScale
+    private final HyperLogLog[] insertedSketches;
+
     /**
      * Create a new TableStats object, that keeps track of statistics on each
      * column of a table
@@ -77,14 +389,330 @@ public class TableStats {
      *            sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
-        // For this function, you'll have to get the
-        // DbFile for the table in question,
-        // then scan through its tuples and calculate
-        // the values that you need.
-        // You should try to do this reasonably efficiently, but you don't
-        // necessarily have to (for example) do everything
-        // in a single scan of the table.
-        // some code goes here
+        this(tableid, ioCostPerPage, 1.0);
+    }
+
+    /**
+     * Create a new TableStats object from a sample of the pages of a table.
+     * The tuples of the sampled pages stand for the whole table: the histograms
+     * are built from them, and the number of tuples in the table is estimated
+     * from the number of tuples per sampled page.  At least MIN_SAMPLE_PAGES
+     * pages are read, and tables that have no more pages than that are scanned
+     * in full.  Each page is unlocked as soon as its tuples are read, so that
+     * computing statistics never holds up transactions that modify the table.
+     * The histograms are built from a random sample of at most
+     * getMaxSampleRows() of the tuples read, kept column by column; the
+     * histograms of each column are built in turn.
+     * 
+     * @param tableid
+     *            The table over which to compute statistics
+     * @param ioCostPerPage
+     *            The cost per page of IO
+     * @param sampleRate
+     *            The fraction of the pages of the table to read, 1.0 to scan
+     *            all of them
+     */
+    public TableStats(int tableid, int ioCostPerPage, double sampleRate) {
+        this.ioCostPerPage = ioCostPerPage;
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        td = file.getTupleDesc();
+        int n = td.numFields();
+        histograms = new EquiDepthHistogram[n];
+        numPages = numPages(file);
+        File f = fileOf(file);
+        fileLength = f == null ? -1 : f.length();
+        fileModified = f == null ? -1 : f.lastModified();
+        sketches = new HyperLogLog[n];
+        insertedSketches = new HyperLogLog[n];
+        for (int i = 0; i < n; i++) {
+            sketches[i] = new HyperLogLog(HLL_PRECISION);
+            insertedSketches[i] = new HyperLogLog(HLL_PRECISION);
+        }
+        Columns rows = new Columns(n, maxSampleRows, new Random(tableid));
+
+        // 收集所有（或抽样页上）的值，等深直方图要按值排序后才能切分
+        TransactionId tid = new TransactionId();
+        try {
+            if (file instanceof BTreeFile) {
+                height = ((BTreeFile) file).height();
+            }
+            int samplePages = (int) Math.max(MIN_SAMPLE_PAGES, Math.ceil(sampleRate * numPages));
+            if (samplePages < numPages && file instanceof HeapFile) {
+                sampleHeapFile(tid, (HeapFile) file, samplePages, rows);
+            } else if (samplePages < numPages && file instanceof BTreeFile) {
+                sampleBTreeFile(tid, (BTreeFile) file, samplePages, rows);
+            } else {
+                scan(tid, file, rows);
+            }
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        } catch (TransactionAbortedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            try {
+                Database.getBufferPool().transactionComplete(tid);
+            } catch (java.io.IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        int nrows = rows.size;
+        if (ntups > 0) {
+            sampleFraction = (double) nrows / ntups;
+        }
+        collectedTuples = ntups;
+        distinctScale = new double[n];
+        // 一次处理一个字段，处理完就丢掉它的值；二维直方图只需要每个值落在本字段的哪个范围
+        int jn = nrows == 0 ? 0 : Math.min(n, MAX_JOINT_FIELDS);
+        Field[][] bounds = new Field[jn][];
+        int[][] cells = new int[jn][nrows];
+        for (int i = 0; i < n; i++) {
+            Field[] column = rows.take(i);
+            histograms[i] = new EquiDepthHistogram(NUM_HIST_BINS, NUM_MCVS, column);
+            distinctScale[i] = nrows < ntups ? distinctScale(column, rows.seen, ntups) : 1.0;
+            if (i < jn) {
+                bounds[i] = JointHistogram.gridBounds(NUM_JOINT_BINS, column);
+                for (int r = 0; r < nrows; r++) {
+                    cells[i][r] = JointHistogram.cell(bounds[i], column[r]);
+                }
+            }
+        }
+        joints = new JointHistogram[jn][jn];
+        for (int i = 0; i < jn; i++) {
+            for (int j = i + 1; j < jn; j++) {
+                joints[i][j] = new JointHistogram(bounds[i], bounds[j], cells[i], cells[j]);
+            }
+        }
+    }
+
+    /**
+     * The ratio of the number of distinct values in a table of ntups tuples to
+     * the number among the read tuples the sample was drawn from, by the Duj1
+     * estimator of Haas et al.: values seen once in the sample suggest many
+     * more that were not seen at all.
+     */
+    private static double distinctScale(Field[] sample, int read, int ntups) {
+        HashMap<Field, Integer> counts = new HashMap<Field, Integer>();
+        for (Field v : sample) {
+            Integer c = counts.get(v);
+            counts.put(v, c == null ? 1 : c + 1);
+        }
+        int once = 0;
+        for (int c : counts.values()) {
+            if (c == 1) {
+                once++;
+            }
+        }
+        double n = sample.length;
+        return (n - once + once * n / read) / (n - once + once * n / ntups);
+    }
+
+    // the number of pages of the file, as estimateScanCost() charges for them
+    private static int numPages(DbFile file) {
+        if (file instanceof HeapFile) {
+            return ((HeapFile) file).numPages();
+        } else if (file instanceof BTreeFile) {
+            return ((BTreeFile) file).numPages();
+        }
+        return 1;
+    }
+
+    // the file the table is stored in, or null for other kinds of DbFile
+    private static File fileOf(DbFile file) {
+        if (file instanceof HeapFile) {
+            return ((HeapFile) file).getFile();
+        } else if (file instanceof BTreeFile) {
+            return ((BTreeFile) file).getFile();
+        }
+        return null;
+    }
+
+    /**
+     * A reservoir sample of at most capacity of the tuples read so far, one
+     * growing array per field.
+     */
+    private static final class Columns {
+        private final Field[][] values;
+        private final int capacity;
+        private final Random random;
+        // 保留的元组数，以及读过的元组数
+        private int size = 0;
+        private int seen = 0;
+
+        Columns(int numFields, int capacity, Random random) {
+            values = new Field[numFields][Math.min(16, capacity)];
+            this.capacity = capacity;
+            this.random = random;
+        }
+
+        void add(Tuple t) {
+            seen++;
+            int r = size;
+            if (size == capacity) {
+                // 蓄水池抽样：第seen个元组以capacity / seen的概率替换一个保留的元组
+                r = random.nextInt(seen);
+                if (r >= capacity) {
+                    return;
+                }
+            } else {
+                size++;
+            }
+            for (int i = 0; i < values.length; i++) {
+                if (r == values[i].length) {
+                    values[i] = Arrays.copyOf(values[i], Math.min(r * 2, capacity));
+                }
+                values[i][r] = t.getField(i);
+            }
+        }
+
+        // the values of field i, which are dropped from here
+        Field[] take(int i) {
+            Field[] column = values[i].length == size ? values[i] : Arrays.copyOf(values[i], size);
+            values[i] = null;
+            return column;
+        }
+    }
+
+    private void addRow(Tuple t, Columns rows) {
+        rows.add(t);
+        for (int i = 0; i < sketches.length; i++) {
+            sketches[i].add(t.getField(i));
+        }
+    }
+
+    private void scan(TransactionId tid, DbFile file, Columns rows)
+            throws DbException, TransactionAbortedException {
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        PageId lastPage = null;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            ntups++;
+            // B+ tree按key顺序扫描叶子页，换页一次就是一个新的叶子页
+            PageId pid = t.getRecordId().getPageId();
+            if (!pid.equals(lastPage)) {
+                if (file instanceof BTreeFile) {
+                    leafPages++;
+                }
+                // 统计不需要一致的快照，读完的页马上放锁，免得与修改表的事务死锁
+                if (lastPage != null) {
+                    Database.getBufferPool().releasePage(tid, lastPage);
+                }
+                lastPage = pid;
+            }
+            addRow(t, rows);
+        }
+        it.close();
+    }
+
+    // 最后一页通常没有写满，总是读它，并且不按它外推；其余页用蓄水池抽样选出count - 1个页号，
+    // 再按页号顺序读这些页
+    private void sampleHeapFile(TransactionId tid, HeapFile file, int count, Columns rows)
+            throws DbException, TransactionAbortedException {
+        Random random = new Random(file.getId());
+        int[] sample = new int[count];
+        sample[--count] = numPages - 1;
+        for (int pgNo = 0; pgNo < numPages - 1; pgNo++) {
+            if (pgNo < count) {
+                sample[pgNo] = pgNo;
+            } else {
+                int j = random.nextInt(pgNo + 1);
+                if (j < count) {
+                    sample[j] = pgNo;
+                }
+            }
+        }
+        Arrays.sort(sample, 0, count);
+        int lastPageTuples = 0;
+        for (int pgNo : sample) {
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(file.getId(), pgNo),
+                    Permissions.READ_ONLY);
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                addRow(it.next(), rows);
+                if (pgNo == numPages - 1) {
+                    lastPageTuples++;
+                }
+            }
+            Database.getBufferPool().releasePage(tid, page.getId());
+        }
+        ntups = (int) Math.round((double) (rows.seen - lastPageTuples) * (numPages - 1) / count) + lastPageTuples;
+    }
+
+    private void sampleBTreeFile(TransactionId tid, BTreeFile file, int count, Columns rows)
+            throws DbException, TransactionAbortedException {
+        BTreeFile.LeafSample sample = file.sampleLeaves(count, new Random(file.getId()));
+        for (BTreePageId pid : sample.leaves) {
+            BTreeLeafPage page = (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                addRow(it.next(), rows);
+            }
+            Database.getBufferPool().releasePage(tid, pid);
+        }
+        leafPages = (int) Math.round(sample.numLeaves);
+        if (!sample.leaves.isEmpty()) {
+            ntups = (int) Math.round((double) rows.seen * sample.numLeaves / sample.leaves.size());
+        }
+    }
+
+    /**
+     * Account for a tuple inserted into or deleted from the table since the
+     * statistics were computed: the number of tuples and the histograms of the
+     * table are adjusted, the values of an inserted tuple are added to the
+     * sketches of inserted values, and the modification is counted.
+     * 
+     * @param t
+     *            the tuple
+     * @param inserted
+     *            true if t was inserted, false if it was deleted
+     * @return true if the modifications since the statistics were computed
+     *         have passed the refresh threshold, the first time they do
+     */
+    public synchronized boolean addTuple(Tuple t, boolean inserted) {
+        ntups = Math.max(ntups + (inserted ? 1 : -1), 0);
+        modifications++;
+        double weight = inserted ? sampleFraction : -sampleFraction;
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i].addValue(t.getField(i), weight);
+            if (inserted) {
+                insertedSketches[i].add(t.getField(i));
+            }
+        }
+        for (int i = 0; i < joints.length; i++) {
+            for (int j = i + 1; j < joints.length; j++) {
+                joints[i][j].addValues(t.getField(i), t.getField(j), weight);
+            }
+        }
+        double threshold = refreshThreshold;
+        if (refreshRequested || threshold <= 0.0
+                || modifications < Math.max(MIN_REFRESH_MODIFICATIONS, threshold * collectedTuples)) {
+            return false;
+        }
+        refreshRequested = true;
+        return true;
+    }
+
+    /**
+     * @return the number of tuples inserted into or deleted from the table since
+     *         the statistics were computed
+     */
+    public synchronized long modifications() {
+        return modifications;
+    }
+
+    /**
+     * Returns whether these statistics still describe the specified file: the
+     * file has the same tuple descriptor and number of pages as when they were
+     * computed, and its length and modification time are those it had when
+     * they started to be computed, so that tuples written into existing pages
+     * are noticed as well.
+     */
+    boolean isCurrent(DbFile file) {
+        File f = fileOf(file);
+        return td.equals(file.getTupleDesc()) && numPages == numPages(file)
+                && fileLength == (f == null ? -1 : f.length())
+                && fileModified == (f == null ? -1 : f.lastModified());
     }
 
     /**
@@ -100,8 +728,27 @@ public class TableStats {
      * @return The estimated cost of scanning the table.
      */
     public double estimateScanCost() {
-        // some code goes here
-        return 0;
+        return (double) numPages * ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of a range scan of the table's B+ tree that returns the
+     * specified fraction of its tuples: reading the internal pages on the path
+     * from the root to the first leaf page in the range, and then the leaf pages
+     * that hold the tuples in the range.  Like {@link #estimateScanCost()}, this
+     * assumes that no pages are in the buffer pool.
+     * 
+     * @param selectivityFactor
+     *            The selectivity of the predicate on the key of the tree
+     * @return The estimated cost of the range scan, or Double.MAX_VALUE if the
+     *         table is not stored in a B+ tree
+     */
+    public double estimateIndexScanCost(double selectivityFactor) {
+        if (height == 0) {
+            return Double.MAX_VALUE;
+        }
+        double leaves = Math.max(1.0, Math.ceil(selectivityFactor * leafPages));
+        return (height - 1 + leaves) * ioCostPerPage;
     }
 
     /**
@@ -113,9 +760,8 @@ public class TableStats {
      * @return The estimated cardinality of the scan with the specified
      *         selectivityFactor
      */
-    public int estimateTableCardinality(double selectivityFactor) {
-        // some code goes here
-        return 0;
+    public synchronized int estimateTableCardinality(double selectivityFactor) {
+        return (int) Math.round(ntups * selectivityFactor);
     }
 
     /**
@@ -128,9 +774,18 @@ public class TableStats {
      * tuple, of which we do not know the value of the field, return the
      * expected selectivity. You may estimate this value from the histograms.
      * */
-    public double avgSelectivity(int field, Predicate.Op op) {
-        // some code goes here
-        return 1.0;
+    public synchronized double avgSelectivity(int field, Predicate.Op op) {
+        double eq = histograms[field].avgSelectivity();
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return eq;
+        case NOT_EQUALS:
+            return 1.0 - eq;
+        default:
+            // 范围谓词平均取到一半的元组
+            return (1.0 - eq) / 2;
+        }
     }
 
     /**
@@ -146,17 +801,74 @@ public class TableStats {
      * @return The estimated selectivity (fraction of tuples that satisfy) the
      *         predicate
      */
-    public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
-        // some code goes here
-        return 1.0;
+    public synchronized double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+        return histograms[field].estimateSelectivity(op, constant);
+    }
+
+    /**
+     * Estimate the selectivity of the conjunction of the predicates
+     * <tt>field1 op1 constant1</tt> and <tt>field2 op2 constant2</tt> on the
+     * table.  Where the table keeps a two-dimensional histogram over the two
+     * fields, this accounts for values of the fields that tend to occur
+     * together; otherwise the predicates are assumed to be independent.
+     * 
+     * @return The estimated selectivity of both predicates together
+     */
+    public synchronized double estimateSelectivity(int field1, Predicate.Op op1, Field constant1,
+                                      int field2, Predicate.Op op2, Field constant2) {
+        if (field1 > field2) {
+            return estimateSelectivity(field2, op2, constant2, field1, op1, constant1);
+        }
+        if (field1 == field2 || field2 >= joints.length) {
+            return estimateSelectivity(field1, op1, constant1) * estimateSelectivity(field2, op2, constant2);
+        }
+        return joints[field1][field2].estimateSelectivity(histograms[field1], op1, constant1,
+                histograms[field2], op2, constant2);
+    }
+
+    /**
+     * return the estimated number of distinct values of the specified field,
+     * from its HyperLogLog sketches: the values of the tuples read, scaled up
+     * to the table if they were a sample, and the inserted values that were
+     * not among them, which are not scaled.  Values deleted since the
+     * statistics were computed are still counted.
+     * */
+    public synchronized int numDistinct(int field) {
+        if (ntups == 0) {
+            return 0;
+        }
+        double read = sketches[field].estimate();
+        HyperLogLog all = new HyperLogLog(sketches[field]);
+        all.merge(insertedSketches[field]);
+        long d = Math.round(read * distinctScale[field] + Math.max(0.0, all.estimate() - read));
+        return (int) Math.max(1, Math.min(d, ntups));
+    }
+
+    /**
+     * return a copy of the sketch of the distinct values of the specified
+     * field, which can be merged with the sketches of other tables or of
+     * other parts of this one.  A sketch only holds the values it has seen,
+     * so there is none when the number of distinct values is scaled up from
+     * a sample of the tuples.
+     * 
+     * @return the sketch of the values of the tuples read and inserted, or
+     *         null if the tuples read were a sample that does not show all
+     *         the values of the field
+     * */
+    public synchronized HyperLogLog distinctSketch(int field) {
+        if (distinctScale[field] != 1.0) {
+            return null;
+        }
+        HyperLogLog all = new HyperLogLog(sketches[field]);
+        all.merge(insertedSketches[field]);
+        return all;
     }
 
     /**
      * return the total number of tuples in this table
      * */
-    public int totalTuples() {
-        // some code goes here
-        return 0;
+    public synchronized int totalTuples() {
+        return ntups;
     }
 
 }
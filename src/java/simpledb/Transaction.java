@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.util.*;
 
 /**
  * Transaction encapsulates information about the state of
@@ -10,6 +11,23 @@ import java.io.*;
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    // savepoints of this transaction, oldest first
+    private final List<Savepoint> savepoints = new ArrayList<Savepoint>();
+
+    /** A named point in a transaction that it can be rolled back to. */
+    private static class Savepoint {
+        final String name;
+        // log offset of the savepoint
+        final long offset;
+        // pages locked when the savepoint was taken
+        final Set<PageId> lockedPages;
+
+        Savepoint(String name, long offset, Set<PageId> lockedPages) {
+            this.name = name;
+            this.offset = offset;
+            this.lockedPages = lockedPages;
+        }
+    }
 
     public Transaction() {
         tid = new TransactionId();
@@ -29,6 +47,60 @@ public class Transaction {
         return tid;
     }
 
+    /**
+     * Set a savepoint with the specified name.  An older savepoint with the
+     * same name is replaced.
+     */
+    public void savepoint(String name) throws IOException {
+        if (!started) {
+            throw new IllegalStateException("transaction is not running");
+        }
+        long offset = Database.getLogFile().logSavepoint(tid);
+        releaseSavepoint(name);
+        savepoints.add(new Savepoint(name, offset, Database.getBufferPool().lockedPages(tid)));
+    }
+
+    /**
+     * Undo everything the transaction did after the savepoint with the
+     * specified name.  The savepoint itself stays, savepoints set after it
+     * are removed.  Locks acquired after the savepoint are released on pages
+     * the transaction did not modify.
+     *
+     * @throws NoSuchElementException if there is no savepoint with that name
+     */
+    public void rollbackTo(String name) throws IOException {
+        int i = indexOf(name);
+        if (i < 0) {
+            throw new NoSuchElementException("no savepoint " + name);
+        }
+        Savepoint sp = savepoints.get(i);
+        Set<PageId> keep = new HashSet<PageId>(sp.lockedPages);
+        keep.addAll(Database.getLogFile().rollbackTo(tid, sp.offset));
+        Database.getBufferPool().pagesRestored();
+        Database.getBufferPool().releaseLocksExcept(tid, keep);
+        savepoints.subList(i + 1, savepoints.size()).clear();
+    }
+
+    /**
+     * Remove the savepoint with the specified name, if there is one.  The
+     * updates made since then are kept.
+     */
+    public void releaseSavepoint(String name) {
+        int i = indexOf(name);
+        if (i >= 0) {
+            savepoints.remove(i);
+        }
+    }
+
+    private int indexOf(String name) {
+        for (int i = savepoints.size() - 1; i >= 0; i--) {
+            if (savepoints.get(i).name.equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /** Finish the transaction */
     public void commit() throws IOException {
         transactionComplete(false);
@@ -47,7 +119,8 @@ public class Transaction {
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
+                //write all the dirty pages for this transaction out, or just
+                //log them if the page cleaner will write them later
                 Database.getBufferPool().flushPages(tid);
                 Database.getLogFile().logCommit(tid);
             }
@@ -60,6 +133,7 @@ public class Transaction {
 
             //setting this here means we could possibly write multiple abort records -- OK?
             started = false;
+            savepoints.clear();
         }
     }
 }
@@ -0,0 +1,137 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class AccessPathTest extends SimpleDbTestBase {
+	private static final int TUPLES = 4000;
+	private static final int IO_COST = 1000;
+
+	private TransactionId tid;
+	private BTreeFile bf;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		// small pages so that a few thousand tuples make a tree with many leaf pages
+		BufferPool.setPageSize(1024);
+		Database.reset();
+		Database.resetBufferPool(500);
+		File f = File.createTempFile("access", ".dat");
+		f.deleteOnExit();
+		bf = new BTreeFile(f, 0, Utility.getTupleDesc(2, "c"));
+		Database.getCatalog().addTable(bf);
+		TransactionId loader = new TransactionId();
+		for (int i = 0; i < TUPLES; i++) {
+			Database.getBufferPool().insertTuple(loader, bf.getId(), BTreeUtility.getBTreeTuple(new int[] { i, i % 10 }));
+		}
+		Database.getBufferPool().transactionComplete(loader);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private OpIterator plan(String field, Op op, int value) throws Exception {
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(bf.getId(), "t");
+		lp.addFilter("t." + field, op, Integer.toString(value));
+		lp.addProjectField("*", null);
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		stats.put(Database.getCatalog().getTableName(bf.getId()), new TableStats(bf.getId(), IO_COST));
+		return lp.physicalPlan(tid, stats, false);
+	}
+
+	private static OpIterator leaf(OpIterator plan) {
+		while (plan instanceof Operator) {
+			plan = ((Operator) plan).getChildren()[0];
+		}
+		return plan;
+	}
+
+	private static int count(OpIterator plan) throws Exception {
+		plan.open();
+		int count = 0;
+		while (plan.hasNext()) {
+			plan.next();
+			count++;
+		}
+		plan.close();
+		return count;
+	}
+
+	@Test
+	public void height() throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		assertEquals(BTreePageId.INTERNAL, rootPtr.getRootId().pgcateg());
+		assertTrue(bf.height() >= 2);
+
+		File f = File.createTempFile("empty", ".dat");
+		f.deleteOnExit();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+		assertEquals(0, empty.height());
+		Database.getBufferPool().insertTuple(tid, empty.getId(), BTreeUtility.getBTreeTuple(new int[] { 1, 1 }));
+		assertEquals(1, empty.height());
+	}
+
+	@Test
+	public void estimateIndexScanCost() throws Exception {
+		TableStats s = new TableStats(bf.getId(), IO_COST);
+		int height = bf.height();
+		// a lookup reads one page per level of the tree
+		assertEquals(height * IO_COST, s.estimateIndexScanCost(0.0), 0.001);
+		assertEquals(height * IO_COST, s.estimateIndexScanCost(0.001), 0.001);
+		assertTrue(s.estimateIndexScanCost(0.1) > s.estimateIndexScanCost(0.01));
+		assertTrue(s.estimateIndexScanCost(0.01) < s.estimateScanCost());
+		assertTrue(s.estimateIndexScanCost(1.0) <= s.estimateScanCost());
+
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+		assertEquals(Double.MAX_VALUE, new TableStats(hf.getId(), IO_COST).estimateIndexScanCost(0.001), 0.0);
+	}
+
+	@Test
+	public void plannerChoosesRangeScan() throws Exception {
+		OpIterator plan = plan("c0", Op.LESS_THAN, 40);
+		assertTrue(leaf(plan) instanceof BTreeScan);
+		assertEquals(40, count(plan));
+		plan = plan("c0", Op.EQUALS, 1234);
+		assertTrue(leaf(plan) instanceof BTreeScan);
+		assertEquals(1, count(plan));
+
+		// most of the tree is in the range, or the filter is not on the key
+		plan = plan("c0", Op.GREATER_THAN, 40);
+		assertTrue(leaf(plan) instanceof SeqScan);
+		assertEquals(TUPLES - 41, count(plan));
+		plan = plan("c1", Op.EQUALS, 3);
+		assertTrue(leaf(plan) instanceof SeqScan);
+		assertEquals(TUPLES / 10, count(plan));
+		assertTrue(leaf(plan("c0", Op.NOT_EQUALS, 40)) instanceof SeqScan);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(AccessPathTest.class);
+	}
+}
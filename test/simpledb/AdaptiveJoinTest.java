@@ -0,0 +1,252 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class AdaptiveJoinTest extends SimpleDbTestBase {
+	private static final int IO_COST = 1000;
+	private static final double FACTOR = 4.0;
+
+	private TransactionId tid;
+	private LogicalPlan lp;
+	private HashMap<String, OpIterator> scans;
+	private HashMap<String, TableStats> stats;
+	private HashMap<String, Double> selectivities;
+	private HashMap<String, ArrayList<ArrayList<Integer>>> tables;
+
+	private void addTable(String alias, ArrayList<ArrayList<Integer>> tuples) throws Exception {
+		File temp = File.createTempFile("table", ".dat");
+		temp.deleteOnExit();
+		HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), 2);
+		HeapFile hf = Utility.openHeapFile(2, "c", temp);
+		String name = "t" + SystemTestUtil.getUUID().replace("-", "");
+		Database.getCatalog().addTable(hf, name);
+		lp.addScan(hf.getId(), alias);
+		scans.put(alias, new SeqScan(tid, hf.getId(), alias));
+		stats.put(name, new TableStats(hf.getId(), IO_COST));
+		selectivities.put(alias, 1.0);
+		tables.put(alias, tuples);
+	}
+
+	private static ArrayList<Integer> tuple(int c0, int c1) {
+		return new ArrayList<Integer>(Arrays.asList(c0, c1));
+	}
+
+	/**
+	 * Half of the tuples of a and b have the same value of c0, so a join on
+	 * c0 is far larger than the number of distinct values suggests; c joins
+	 * each tuple of a on a.c1.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		tid = new TransactionId();
+		lp = new LogicalPlan();
+		scans = new HashMap<String, OpIterator>();
+		stats = new HashMap<String, TableStats>();
+		selectivities = new HashMap<String, Double>();
+		tables = new HashMap<String, ArrayList<ArrayList<Integer>>>();
+		ArrayList<ArrayList<Integer>> a = new ArrayList<ArrayList<Integer>>();
+		ArrayList<ArrayList<Integer>> b = new ArrayList<ArrayList<Integer>>();
+		ArrayList<ArrayList<Integer>> c = new ArrayList<ArrayList<Integer>>();
+		for (int i = 0; i < 100; i++) {
+			a.add(tuple(i < 50 ? 5 : 1000 + i, i % 10));
+			b.add(tuple(i < 50 ? 5 : 2000 + i, i));
+		}
+		for (int i = 0; i < 10; i++) {
+			c.add(tuple(i, i * i));
+		}
+		addTable("a", a);
+		addTable("b", b);
+		addTable("c", c);
+		JoinOptimizer.setReoptimizationFactor(FACTOR);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		JoinOptimizer.setReoptimizationFactor(JoinOptimizer.DEFAULT_REOPTIMIZATION_FACTOR);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private AdaptiveJoin adaptiveJoin(Vector<LogicalJoinNode> joins) throws Exception {
+		// the plan that runs the joins in the order given
+		HashMap<String, OpIterator> subplans = new HashMap<String, OpIterator>(scans);
+		for (LogicalJoinNode lj : joins) {
+			OpIterator left = subplans.get(lj.t1Alias);
+			OpIterator right = subplans.get(lj.t2Alias);
+			OpIterator j = JoinOptimizer.instantiateJoin(lj, left, right);
+			for (Map.Entry<String, OpIterator> e : subplans.entrySet()) {
+				if (e.getValue() == left || e.getValue() == right)
+					e.setValue(j);
+			}
+		}
+		return new AdaptiveJoin(lp, joins, scans, stats, selectivities, subplans.get("a"));
+	}
+
+	private ArrayList<ArrayList<Integer>> expected() {
+		ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+		for (ArrayList<Integer> a : tables.get("a")) {
+			for (ArrayList<Integer> b : tables.get("b")) {
+				for (ArrayList<Integer> c : tables.get("c")) {
+					if (a.get(0).equals(b.get(0)) && a.get(1).equals(c.get(0))) {
+						ArrayList<Integer> t = new ArrayList<Integer>(a);
+						t.addAll(b);
+						t.addAll(c);
+						result.add(t);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	private Vector<LogicalJoinNode> joins() {
+		Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+		joins.add(new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS));
+		joins.add(new LogicalJoinNode("a", "c", "c1", "c0", Predicate.Op.EQUALS));
+		return joins;
+	}
+
+	/**
+	 * The join of a and b is estimated from the number of distinct values of
+	 * c0 to be about 200 tuples, but has 2500: the join with c is ordered
+	 * again, and the result and its fields are unchanged.
+	 */
+	@Test
+	public void reoptimize() throws Exception {
+		AdaptiveJoin j = adaptiveJoin(joins());
+		assertEquals("a.c0", j.getTupleDesc().getFieldName(0));
+		assertEquals("c.c1", j.getTupleDesc().getFieldName(5));
+		SystemTestUtil.matchTuples(j, expected());
+		assertEquals(1, j.getReoptimizations());
+		assertEquals(2500, j.getActualCardinality());
+
+		// the observed cardinalities are not kept between runs
+		SystemTestUtil.matchTuples(j, expected());
+		assertEquals(1, j.getReoptimizations());
+	}
+
+	/**
+	 * The joins of b and d, on b.c1, and of a and c, on a.c1, are ordered
+	 * again once a and b are joined, with a standing for both: the statistics
+	 * of a.c1 are not used for b.c1.  The joins run in another order, so the
+	 * tuples come in another order, but they are the same tuples.
+	 */
+	@Test
+	public void reorderCollidingFields() throws Exception {
+		ArrayList<ArrayList<Integer>> d = new ArrayList<ArrayList<Integer>>();
+		for (int i = 0; i < 1000; i++) {
+			d.add(tuple(i % 100, i));
+		}
+		addTable("d", d);
+		Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+		joins.add(new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS));
+		joins.add(new LogicalJoinNode("b", "d", "c1", "c0", Predicate.Op.EQUALS));
+		joins.add(new LogicalJoinNode("a", "c", "c1", "c0", Predicate.Op.EQUALS));
+
+		JoinOptimizer.setReoptimizationFactor(0);
+		ArrayList<ArrayList<Integer>> fixed = tuples(adaptiveJoin(joins));
+		JoinOptimizer.setReoptimizationFactor(FACTOR);
+		AdaptiveJoin j = adaptiveJoin(joins);
+		ArrayList<ArrayList<Integer>> reordered = tuples(j);
+		assertEquals(1, j.getReoptimizations());
+		assertEquals(25000, fixed.size());
+		assertFalse(fixed.equals(reordered));
+		assertEquals(sorted(fixed), sorted(reordered));
+	}
+
+	private static ArrayList<ArrayList<Integer>> tuples(OpIterator it) throws Exception {
+		ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+		it.open();
+		while (it.hasNext()) {
+			result.add(SystemTestUtil.tupleToList(it.next()));
+		}
+		it.close();
+		return result;
+	}
+
+	private static ArrayList<String> sorted(ArrayList<ArrayList<Integer>> tuples) {
+		ArrayList<String> result = new ArrayList<String>();
+		for (ArrayList<Integer> t : tuples) {
+			result.add(t.toString());
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	@Test
+	public void disabled() throws Exception {
+		JoinOptimizer.setReoptimizationFactor(0);
+		AdaptiveJoin j = adaptiveJoin(joins());
+		SystemTestUtil.matchTuples(j, expected());
+		assertEquals(0, j.getReoptimizations());
+
+		// queries are planned without it, unless it is turned on
+		lp.addJoin("a.c0", "b.c0", Predicate.Op.EQUALS);
+		lp.addJoin("a.c1", "c.c0", Predicate.Op.EQUALS);
+		lp.addProjectField("*", null);
+		JoinOptimizer.setReoptimizationFactor(JoinOptimizer.DEFAULT_REOPTIMIZATION_FACTOR);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		assertFalse(((Operator) plan).getChildren()[0] instanceof AdaptiveJoin);
+		JoinOptimizer.setReoptimizationFactor(FACTOR);
+		plan = lp.physicalPlan(tid, stats, false);
+		assertTrue(((Operator) plan).getChildren()[0] instanceof AdaptiveJoin);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidFactor() {
+		JoinOptimizer.setReoptimizationFactor(0.5);
+	}
+
+	/**
+	 * A materialized result larger than the buffer is still returned whole,
+	 * and again after a rewind.
+	 */
+	@Test
+	public void materialize() throws Exception {
+		Materialize m = new Materialize(30, scans.get("a"));
+		m.open();
+		assertTrue(m.isLoaded());
+		assertFalse(m.isComplete());
+		assertEquals(30, m.getMaterializedCardinality());
+		int count = 0;
+		while (m.hasNext()) {
+			m.next();
+			count++;
+		}
+		assertEquals(100, count);
+		assertEquals(100, m.getActualCardinality());
+		m.rewind();
+		while (m.hasNext()) {
+			m.next();
+			count++;
+		}
+		assertEquals(200, count);
+		assertEquals(200, m.getActualCardinality());
+		m.close();
+
+		m = new Materialize(HashEquiJoin.MAP_SIZE, scans.get("c"));
+		m.open();
+		assertTrue(m.isComplete());
+		assertEquals(10, m.getMaterializedCardinality());
+		m.close();
+		assertFalse(m.isLoaded());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(AdaptiveJoinTest.class);
+	}
+}
@@ -0,0 +1,220 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoadTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	/**
+	 * An open iterator over the tuples {key, 2 * key} for the specified keys, in order
+	 */
+	private static OpIterator sortedTuples(TupleDesc td, int... keys) {
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for (int key : keys) {
+			tuples.add(BTreeUtility.getBTreeTuple(new int[] { key, 2 * key }));
+		}
+		TupleIterator it = new TupleIterator(td, tuples);
+		it.open();
+		return it;
+	}
+
+	private static int[] range(int from, int to) {
+		int[] keys = new int[to - from + 1];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = from + i;
+		}
+		return keys;
+	}
+
+	private static BTreeFile createEmptyFile() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		return BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+	}
+
+	/**
+	 * Scan the whole tree, check that the keys are sorted and return how many tuples it holds
+	 */
+	private int countTuples(BTreeFile bf, TransactionId tid) throws Exception {
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int count = 0;
+		int prev = Integer.MIN_VALUE;
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			int key = ((IntField) t.getField(0)).getValue();
+			assertTrue(key >= prev);
+			assertEquals(2 * key, ((IntField) t.getField(1)).getValue());
+			prev = key;
+			count++;
+		}
+		it.close();
+		return count;
+	}
+
+	private int lookup(BTreeFile bf, int key) throws Exception {
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+		it.open();
+		int found = 0;
+		while (it.hasNext()) {
+			it.next();
+			found++;
+		}
+		it.close();
+		return found;
+	}
+
+	@Test
+	public void loadIntoEmptyFile() throws Exception {
+		BTreeFile bf = createEmptyFile();
+		int tuplesPerPage = BTreeUtility.getNumTuplesPerPage(2);
+		int n = 20 * tuplesPerPage;
+		assertEquals(n, bf.bulkLoad(tid, sortedTuples(bf.getTupleDesc(), range(1, n)), 1.0));
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		assertEquals(n, countTuples(bf, tid));
+		assertEquals(1, lookup(bf, 1));
+		assertEquals(1, lookup(bf, n / 2));
+		assertEquals(1, lookup(bf, n));
+
+		// 20 full leaf pages and the internal page above them
+		Database.getBufferPool().transactionComplete(tid);
+		assertEquals(21, bf.numPages());
+	}
+
+	@Test
+	public void fillFactor() throws Exception {
+		BTreeFile bf = createEmptyFile();
+		int tuplesPerPage = BTreeUtility.getNumTuplesPerPage(2);
+		int n = 10 * tuplesPerPage;
+		bf.bulkLoad(tid, sortedTuples(bf.getTupleDesc(), range(1, n)), 0.5);
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		assertEquals(n, countTuples(bf, tid));
+
+		// every leaf page but the last two holds half a page of tuples
+		BTreeLeafPage leaf = bf.findLeafPage(tid, Permissions.READ_ONLY, null);
+		int leaves = 0;
+		while (leaf != null) {
+			if (leaf.getRightSiblingId() != null) {
+				assertTrue(leaf.getNumTuples() <= (tuplesPerPage + 1) / 2 + 1);
+			}
+			leaves++;
+			leaf = leaf.getRightSiblingId() == null ? null
+					: (BTreeLeafPage) Database.getBufferPool().getPage(tid, leaf.getRightSiblingId(), Permissions.READ_ONLY);
+		}
+		assertEquals(20, leaves);
+	}
+
+	@Test
+	public void loadBuildsInternalLevels() throws Exception {
+		// small pages so that the tree grows three levels of internal pages
+		BufferPool.setPageSize(256);
+		Database.reset();
+		Database.resetBufferPool(2000);
+		BTreeFile bf = createEmptyFile();
+		int n = 30000;
+		bf.bulkLoad(tid, sortedTuples(bf.getTupleDesc(), range(1, n)), 0.8);
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		assertEquals(n, countTuples(bf, tid));
+
+		int levels = 0;
+		BTreePageId pid = bf.getRootPtrPage(tid, new HashMap<PageId, Page>()).getRootId();
+		while (pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+			pid = page.iterator().next().getLeftChild();
+			levels++;
+		}
+		assertEquals(3, levels);
+		for (int key = 1; key <= n; key += 997) {
+			assertEquals(1, lookup(bf, key));
+		}
+	}
+
+	@Test
+	public void appendToExistingTree() throws Exception {
+		BTreeFile bf = BTreeUtility.createBTreeFile(2, 5000, null, null, 0);
+		Database.resetBufferPool(500);
+
+		// the first key may repeat the largest key in the tree
+		assertEquals(20001, bf.bulkLoad(tid, sortedTuples(bf.getTupleDesc(), range(5000, 25000)), 0.9));
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		assertEquals(25001, countTuples(bf, tid));
+		assertEquals(2, lookup(bf, 5000));
+		assertEquals(1, lookup(bf, 4999));
+		assertEquals(1, lookup(bf, 25000));
+
+		// inserts still work after the load
+		Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[] { 12345, 24690 }));
+		assertEquals(2, lookup(bf, 12345));
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		assertEquals(25002, countTuples(bf, tid));
+	}
+
+	@Test
+	public void abortRestoresTree() throws Exception {
+		BTreeFile bf = BTreeUtility.createBTreeFile(2, 5000, null, null, 0);
+		Database.resetBufferPool(500);
+		bf.bulkLoad(tid, sortedTuples(bf.getTupleDesc(), range(5001, 10000)), 1.0);
+		Database.getBufferPool().transactionComplete(tid, false);
+
+		tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		assertEquals(5000, countTuples(bf, tid));
+		assertEquals(0, lookup(bf, 5001));
+	}
+
+	@Test(expected = DbException.class)
+	public void unsortedInput() throws Exception {
+		BTreeFile bf = createEmptyFile();
+		bf.bulkLoad(tid, sortedTuples(bf.getTupleDesc(), 1, 2, 3, 5, 4), 1.0);
+	}
+
+	@Test(expected = DbException.class)
+	public void keyBelowLargestKey() throws Exception {
+		BTreeFile bf = BTreeUtility.createBTreeFile(2, 5000, null, null, 0);
+		bf.bulkLoad(tid, sortedTuples(bf.getTupleDesc(), 4000, 6000), 1.0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void fillFactorTooLow() throws Exception {
+		BTreeFile bf = createEmptyFile();
+		bf.bulkLoad(tid, sortedTuples(bf.getTupleDesc(), 1), 0.3);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoadTest.class);
+	}
+}
@@ -0,0 +1,211 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeCompositeKeyTest extends SimpleDbTestBase {
+	private static final TupleDesc STRING_INT = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+	private static final TupleDesc INT_STRING = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+
+	private TransactionId tid;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		// small pages so that a few thousand tuples make a tree with several levels
+		BufferPool.setPageSize(1024);
+		Database.reset();
+		Database.resetBufferPool(2000);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private static BTreeFile createEmptyFile(TupleDesc td, int... keyFields) throws Exception {
+		File f = File.createTempFile("keys", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = new BTreeFile(f, keyFields, td);
+		Database.getCatalog().addTable(bf);
+		return bf;
+	}
+
+	private static Tuple tuple(TupleDesc td, Object... values) {
+		Tuple t = new Tuple(td);
+		for (int i = 0; i < values.length; i++) {
+			t.setField(i, values[i] instanceof Integer ? new IntField((Integer) values[i])
+					: new StringField((String) values[i], Type.STRING_LEN));
+		}
+		return t;
+	}
+
+	private List<Tuple> search(BTreeFile bf, Op op, Field key) throws Exception {
+		ArrayList<Tuple> found = new ArrayList<Tuple>();
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(op, key));
+		it.open();
+		while (it.hasNext()) {
+			found.add(it.next());
+		}
+		it.close();
+		return found;
+	}
+
+	/**
+	 * Insert n tuples {prefix + i, i} in random order, check the tree and look each of them up
+	 */
+	private void insertAndLookUp(String prefix, int n) throws Exception {
+		BTreeFile bf = createEmptyFile(STRING_INT, 0);
+		ArrayList<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < n; i++) {
+			order.add(i);
+		}
+		Collections.shuffle(order, new Random(7));
+		for (int i : order) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(STRING_INT, prefix + String.format("%05d", i), i));
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+
+		for (int i = 0; i < n; i += 37) {
+			List<Tuple> found = search(bf, Op.EQUALS, new StringField(prefix + String.format("%05d", i), Type.STRING_LEN));
+			assertEquals(1, found.size());
+			assertEquals(i, ((IntField) found.get(0).getField(1)).getValue());
+		}
+		List<Tuple> above = search(bf, Op.GREATER_THAN, new StringField(prefix + String.format("%05d", n / 2), Type.STRING_LEN));
+		assertEquals(n - n / 2 - 1, above.size());
+		for (int i = 0; i < above.size(); i++) {
+			assertEquals(n / 2 + 1 + i, ((IntField) above.get(i).getField(1)).getValue());
+		}
+		List<Tuple> below = search(bf, Op.LESS_THAN_OR_EQ, new StringField(prefix + String.format("%05d", 99), Type.STRING_LEN));
+		assertEquals(100, below.size());
+
+		// delete every other tuple, which merges pages
+		for (int i = 0; i < n; i += 2) {
+			Tuple t = search(bf, Op.EQUALS, new StringField(prefix + String.format("%05d", i), Type.STRING_LEN)).get(0);
+			Database.getBufferPool().deleteTuple(tid, t);
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		assertEquals(n / 2, search(bf, Op.GREATER_THAN_OR_EQ, new StringField("", Type.STRING_LEN)).size());
+		assertTrue(search(bf, Op.EQUALS, new StringField(prefix + String.format("%05d", 10), Type.STRING_LEN)).isEmpty());
+		assertEquals(1, search(bf, Op.EQUALS, new StringField(prefix + String.format("%05d", 11), Type.STRING_LEN)).size());
+	}
+
+	@Test
+	public void stringKeyFanout() throws Exception {
+		BTreeFile bf = createEmptyFile(STRING_INT, 0);
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL);
+		BTreeInternalPage page = new BTreeInternalPage(pid, BTreeInternalPage.createEmptyPageData(), 0);
+		int fullWidth = (1024 * 8 - (2 * 4 * 8 + 8 + 1)) / ((Type.STRING_TYPE.getLen() + 4) * 8 + 1);
+		assertEquals((1024 * 8 - (2 * 4 * 8 + 8 + 1) - (1 + BTreeInternalPage.KEY_PREFIX_LEN) * 8)
+				/ ((1 + BTreeInternalPage.KEY_SUFFIX_LEN + 4) * 8 + 1), page.getMaxEntries());
+		assertTrue(page.getMaxEntries() > 8 * fullWidth);
+	}
+
+	@Test
+	public void stringKeys() throws Exception {
+		insertAndLookUp("k", 3000);
+	}
+
+	@Test
+	public void stringKeysLongerThanStoredPrefix() throws Exception {
+		// all keys are equal in the internal pages, which store only the common prefix
+		insertAndLookUp("a-rather-long-common-prefix-", 1500);
+	}
+
+	@Test
+	public void internalPageCutsKeys() throws Exception {
+		StringField longKey = new StringField("abcdefghijklmnopqrstuvwxyz", Type.STRING_LEN);
+		Field cut = BTreeInternalPage.cut(longKey, 20, 1);
+		assertTrue(cut instanceof PrefixField);
+		assertEquals("abcdefghijklmnopqrst", cut.toString());
+		assertTrue(cut.compare(Op.LESS_THAN_OR_EQ, longKey));
+		assertSame(longKey, BTreeInternalPage.internalKey(longKey, 1));
+		assertSame(longKey, BTreeInternalPage.internalKey(longKey, 2));
+
+		CompositeField composite = new CompositeField(longKey, longKey);
+		CompositeField cutComposite = (CompositeField) BTreeInternalPage.internalKey(composite, 2);
+		assertEquals(longKey, cutComposite.getField(0));
+		assertEquals(cut, cutComposite.getField(1));
+		assertTrue(BTreeInternalPage.isPrefix(cutComposite, 2));
+	}
+
+	@Test
+	public void compositeFieldOrder() throws Exception {
+		CompositeField a1 = new CompositeField(new IntField(1), new StringField("a", 10));
+		CompositeField b1 = new CompositeField(new IntField(1), new StringField("b", 10));
+		CompositeField a2 = new CompositeField(new IntField(2), new StringField("a", 10));
+		CompositeField one = new CompositeField(new IntField(1));
+		assertTrue(a1.compare(Op.LESS_THAN, b1));
+		assertTrue(b1.compare(Op.LESS_THAN, a2));
+		assertTrue(one.compare(Op.LESS_THAN, a1));
+		assertTrue(a1.compare(Op.EQUALS, new CompositeField(new IntField(1), new StringField("a", 10))));
+		assertEquals(a1, new CompositeField(new IntField(1), new StringField("a", 10)));
+		assertFalse(a1.compare(Op.NOT_EQUALS, a1));
+	}
+
+	@Test
+	public void compositeKeys() throws Exception {
+		BTreeFile bf = createEmptyFile(INT_STRING, 0, 1);
+		assertArrayEquals(new int[] { 0, 1 }, bf.keyFields());
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for (int i = 0; i < 40; i++) {
+			for (int j = 0; j < 50; j++) {
+				tuples.add(tuple(INT_STRING, i, "customer-with-a-long-name-" + (char) ('a' + j % 26) + j));
+			}
+		}
+		Collections.shuffle(tuples, new Random(11));
+		for (Tuple t : tuples) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+
+		// the tuples come out ordered on both fields
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		Field prev = null;
+		int count = 0;
+		while (it.hasNext()) {
+			Field key = bf.getKey(it.next());
+			assertTrue(key instanceof CompositeField);
+			assertTrue(prev == null || prev.compare(Op.LESS_THAN_OR_EQ, key));
+			prev = key;
+			count++;
+		}
+		it.close();
+		assertEquals(2000, count);
+
+		CompositeField key = new CompositeField(new IntField(17), new StringField("customer-with-a-long-name-c28", Type.STRING_LEN));
+		assertEquals(1, search(bf, Op.EQUALS, key).size());
+
+		// a prefix of the key finds the tuples with the same leading fields
+		List<Tuple> from17 = search(bf, Op.GREATER_THAN_OR_EQ, new CompositeField(new IntField(17)));
+		assertEquals(23 * 50, from17.size());
+		assertEquals(17, ((IntField) from17.get(0).getField(0)).getValue());
+		List<Tuple> below17 = search(bf, Op.LESS_THAN, new CompositeField(new IntField(17)));
+		assertEquals(17 * 50, below17.size());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeCompositeKeyTest.class);
+	}
+}
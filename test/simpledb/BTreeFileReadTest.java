@@ -201,6 +201,51 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 
 	}
 
+	/**
+	 * Unit test for BTreeFile.count(), which counts the matching tuples without
+	 * iterating over them
+	 */
+	@Test
+	public void count() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		// few distinct values, so runs of equal keys span several leaf pages
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 5000, 50, null, tuples, 0);
+		for (Op op : new Op[] { Op.EQUALS, Op.NOT_EQUALS, Op.LESS_THAN, Op.LESS_THAN_OR_EQ,
+				Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ }) {
+			for (int v = -1; v <= 51; v += 4) {
+				IntField f = new IntField(v);
+				int expected = 0;
+				for (ArrayList<Integer> t : tuples) {
+					if (new IntField(t.get(0)).compare(op, f))
+						expected++;
+				}
+				assertEquals(op + " " + v, expected, bigFile.count(tid, new IndexPredicate(op, f)));
+			}
+		}
+	}
+
+	/**
+	 * Unit test for BTreeFile.indexIterator() projecting the key field
+	 */
+	@Test
+	public void indexIteratorProjection() throws Exception {
+		BTreeFile twoLeafPageFile = BTreeUtility.createBTreeFile(2, 520, null, null, 0);
+		IndexPredicate ipred = new IndexPredicate(Op.LESS_THAN, new IntField(100));
+		DbFileIterator it = twoLeafPageFile.indexIterator(tid, ipred, 0);
+		it.open();
+		int count = 0;
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			assertEquals(1, t.getTupleDesc().numFields());
+			count++;
+			assertEquals(new IntField(count), t.getField(0));
+		}
+		// the keys are 1, 2, ..., 520
+		assertEquals(99, count);
+		assertEquals(99, twoLeafPageFile.count(tid, ipred));
+		it.close();
+	}
+
 	/**
 	 * JUnit suite target
 	 */
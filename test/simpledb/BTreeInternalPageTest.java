@@ -166,6 +166,37 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.reverseIterator() on a page with empty
+	 * slots left behind by deleted entries
+	 */
+	@Test public void reverseIteratorAfterDelete() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext())
+			entries.add(it.next());
+		page.deleteKeyAndRightChild(entries.get(3));
+		page.deleteKeyAndRightChild(entries.get(4));
+		page.deleteKeyAndRightChild(entries.get(9));
+
+		ArrayList<BTreeEntry> forward = new ArrayList<BTreeEntry>();
+		it = page.iterator();
+		while (it.hasNext())
+			forward.add(it.next());
+		Collections.reverse(forward);
+
+		it = page.reverseIterator();
+		for (BTreeEntry e : forward) {
+			assertTrue(it.hasNext());
+			BTreeEntry r = it.next();
+			assertEquals(e.getKey(), r.getKey());
+			assertEquals(e.getLeftChild(), r.getLeftChild());
+			assertEquals(e.getRightChild(), r.getRightChild());
+		}
+		assertFalse(it.hasNext());
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
@@ -0,0 +1,147 @@
+package simpledb;
+
+import simpledb.Predicate.Op;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeLatchTest extends SimpleDbTestBase {
+	private BTreeFile bf;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before public void setUp() throws Exception {
+		// a packed B+ tree with keys 1..20000, so every insert splits a leaf
+		bf = BTreeUtility.createBTreeFile(2, 20000, null, null, 0);
+		Database.resetBufferPool(500);
+	}
+
+	private int lookup(TransactionId tid, int key) throws Exception {
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+		it.open();
+		int found = 0;
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if (((IntField) t.getField(1)).getValue() == 2 * key) {
+				found++;
+			}
+		}
+		it.close();
+		return found;
+	}
+
+	/**
+	 * A search only locks the leaf page it reads, so a split above another leaf
+	 * does not have to wait for the searching transaction.
+	 */
+	@Test public void searchLocksOnlyLeaves() throws Exception {
+		TransactionId reader = new TransactionId();
+		assertEquals(1, lookup(reader, 10));
+		for (PageId pid : Database.getBufferPool().lockedPages(reader)) {
+			assertEquals(BTreePageId.LEAF, ((BTreePageId) pid).pgcateg());
+		}
+
+		TransactionId writer = new TransactionId();
+		long start = System.currentTimeMillis();
+		Database.getBufferPool().insertTuple(writer, bf.getId(), BTreeUtility.getBTreeTuple(new int[] { 15000, -1 }));
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		Database.getBufferPool().transactionComplete(writer);
+
+		assertEquals(1, lookup(reader, 15000));
+		Database.getBufferPool().transactionComplete(reader);
+	}
+
+	/**
+	 * Searches running while another thread keeps splitting leaves always
+	 * find the tuples that were there from the start.
+	 */
+	@Test public void searchWhileSplitting() throws Exception {
+		final Random rand = new Random(7);
+		final int[] inserted = new int[1];
+		Thread writer = new Thread() {
+			public void run() {
+				while (inserted[0] < 1000) {
+					TransactionId tid = new TransactionId();
+					try {
+						int key = rand.nextInt(20000) + 1;
+						Database.getBufferPool().insertTuple(tid, bf.getId(),
+								BTreeUtility.getBTreeTuple(new int[] { key, -1 }));
+						Database.getBufferPool().transactionComplete(tid);
+						inserted[0]++;
+					} catch (TransactionAbortedException e) {
+						abort(tid);
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}
+		};
+		writer.start();
+
+		Random keys = new Random(11);
+		int lookups = 0;
+		while (writer.isAlive()) {
+			TransactionId tid = new TransactionId();
+			int key = keys.nextInt(20000) + 1;
+			try {
+				assertEquals("key " + key, 1, lookup(tid, key));
+				Database.getBufferPool().transactionComplete(tid);
+				lookups++;
+			} catch (TransactionAbortedException e) {
+				abort(tid);
+			}
+		}
+		writer.join();
+		assertEquals(1000, inserted[0]);
+		assertTrue(lookups > 0);
+	}
+
+	/**
+	 * A search that waited for a leaf created by a split finds its key after
+	 * the splitting transaction aborts and the leaf no longer exists.
+	 */
+	@Test public void searchAfterAbortedSplit() throws Exception {
+		TransactionId writer = new TransactionId();
+		Database.getBufferPool().insertTuple(writer, bf.getId(), BTreeUtility.getBTreeTuple(new int[] { 250, -1 }));
+
+		final int[] found = { -1 };
+		final TransactionId reader = new TransactionId();
+		Thread search = new Thread() {
+			public void run() {
+				try {
+					found[0] = lookup(reader, 400);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		search.start();
+		Thread.sleep(100);
+		Database.getBufferPool().transactionComplete(writer, false);
+		search.join();
+		assertEquals(1, found[0]);
+		Database.getBufferPool().transactionComplete(reader);
+	}
+
+	private static void abort(TransactionId tid) {
+		try {
+			Database.getBufferPool().transactionComplete(tid, false);
+		} catch (java.io.IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeLatchTest.class);
+	}
+}
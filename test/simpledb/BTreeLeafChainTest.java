@@ -0,0 +1,202 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeLeafChainTest extends SimpleDbTestBase {
+	private static final int TUPLES = 4000;
+
+	private TransactionId tid;
+	private BTreeFile bf;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		// small pages so that a few thousand tuples make a tree with many leaf pages
+		BufferPool.setPageSize(1024);
+		Database.reset();
+		Database.resetBufferPool(500);
+		File f = File.createTempFile("chain", ".dat");
+		f.deleteOnExit();
+		bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+
+		// inserting in random order scatters the leaf pages across the file
+		ArrayList<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < TUPLES; i++) {
+			order.add(i);
+		}
+		Collections.shuffle(order, new Random(13));
+		TransactionId loader = new TransactionId();
+		for (int i : order) {
+			Database.getBufferPool().insertTuple(loader, bf.getId(), BTreeUtility.getBTreeTuple(new int[] { i, 2 * i }));
+		}
+		Database.getBufferPool().transactionComplete(loader);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	/**
+	 * The ids of the leaf pages in key order, checking that the tree holds all the tuples
+	 */
+	private List<PageId> leafChain(TransactionId tid) throws Exception {
+		ArrayList<PageId> chain = new ArrayList<PageId>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int count = 0;
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			assertEquals(count, ((IntField) t.getField(0)).getValue());
+			assertEquals(2 * count, ((IntField) t.getField(1)).getValue());
+			PageId pid = t.getRecordId().getPageId();
+			if (chain.isEmpty() || !chain.get(chain.size() - 1).equals(pid)) {
+				chain.add(pid);
+			}
+			count++;
+		}
+		it.close();
+		assertEquals(TUPLES, count);
+		return chain;
+	}
+
+	private static boolean inOrder(List<PageId> chain) {
+		for (int i = 1; i < chain.size(); i++) {
+			if (chain.get(i).getPageNumber() < chain.get(i - 1).getPageNumber()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Wait up to a second for the prefetcher to read the page into the buffer pool
+	 */
+	private static boolean becomesCached(PageId pid) throws Exception {
+		for (int i = 0; i < 100 && !Database.getBufferPool().isCached(pid); i++) {
+			Thread.sleep(10);
+		}
+		return Database.getBufferPool().isCached(pid);
+	}
+
+	@Test
+	public void prefetchReadsAhead() throws Exception {
+		bf.setPrefetchDepth(0);
+		List<PageId> chain = leafChain(tid);
+		Database.getBufferPool().transactionComplete(tid);
+		Database.resetBufferPool(500);
+
+		bf.setPrefetchDepth(4);
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		assertEquals(new IntField(0), it.next().getField(0));
+		for (int i = 1; i <= 4; i++) {
+			assertTrue(becomesCached(chain.get(i)));
+		}
+		assertFalse(Database.getBufferPool().isCached(chain.get(5)));
+
+		// moving on through the leaf pages requests the next ones
+		int count = 1;
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		assertEquals(TUPLES, count);
+	}
+
+	@Test
+	public void prefetchStopsAtEndOfRange() throws Exception {
+		bf.setPrefetchDepth(0);
+		List<PageId> chain = leafChain(tid);
+		Database.getBufferPool().transactionComplete(tid);
+		Database.resetBufferPool(500);
+
+		// the tuples with key 0 all are on the first leaf page
+		bf.setPrefetchDepth(8);
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(0)));
+		it.open();
+		assertTrue(it.hasNext());
+		it.next();
+		assertFalse(it.hasNext());
+		it.close();
+		Thread.sleep(100);
+		assertFalse(Database.getBufferPool().isCached(chain.get(1)));
+	}
+
+	@Test
+	public void defragment() throws Exception {
+		List<PageId> before = leafChain(tid);
+		assertFalse(inOrder(before));
+		Database.getBufferPool().transactionComplete(tid);
+
+		// a few swaps per transaction, until the leaf pages are in order
+		int rounds = 0;
+		while (true) {
+			tid = new TransactionId();
+			int moves = bf.defragment(tid, 5);
+			assertTrue(moves <= 5);
+			Database.getBufferPool().transactionComplete(tid);
+			if (moves == 0) {
+				break;
+			}
+			rounds++;
+		}
+		assertTrue(rounds > 1);
+
+		tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		List<PageId> after = leafChain(tid);
+		assertTrue(inOrder(after));
+		// the leaf pages use the same pages of the file as before
+		assertEquals(new HashSet<PageId>(before), new HashSet<PageId>(after));
+
+		// searches find the tuples at their new places
+		for (int i = 0; i < TUPLES; i += 97) {
+			DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(i)));
+			it.open();
+			assertEquals(new IntField(2 * i), it.next().getField(1));
+			assertFalse(it.hasNext());
+			it.close();
+		}
+	}
+
+	@Test
+	public void abortedDefragment() throws Exception {
+		List<PageId> before = leafChain(tid);
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		assertEquals(10, bf.defragment(tid, 10));
+		Database.getBufferPool().transactionComplete(tid, false);
+
+		tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		assertEquals(before, leafChain(tid));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeLeafChainTest.class);
+	}
+}
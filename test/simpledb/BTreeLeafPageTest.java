@@ -14,6 +14,7 @@ import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
@@ -158,6 +159,24 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.getHighKey() and setHighKey()
+	 */
+	@Test public void highKey() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		assertNull(page.getHighKey());
+
+		page.setRightSiblingId(new BTreePageId(pid.getTableId(), 1, BTreePageId.LEAF));
+		page.setHighKey(new IntField(70000));
+		page = new BTreeLeafPage(pid, page.getPageData(), 0);
+		assertEquals(new IntField(70000), page.getHighKey());
+		assertEquals(EXAMPLE_VALUES.length, page.getNumTuples());
+
+		// the last page of the tree has no high key
+		page.setRightSiblingId(null);
+		assertNull(page.getHighKey());
+	}
+
 	/**
 	 * Unit test for BTreeLeafPage.iterator()
 	 */
@@ -0,0 +1,46 @@
+package simpledb;
+
+import java.util.Random;
+
+import simpledb.Predicate.Op;
+
+/**
+ * Microbenchmark for point lookups in a B+ tree whose leaves do not fit in
+ * the buffer pool, so most probes read pages from the file.  Builds a tree
+ * with keys 1..keys and reports lookups per second.  Run with
+ * <pre>
+ *     java -cp bin/src:bin/test simpledb.BTreeLookupBenchmark [keys] [lookups]
+ * </pre>
+ */
+public class BTreeLookupBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int numKeys = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int numLookups = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+        BTreeFile bf = BTreeUtility.createBTreeFile(2, numKeys, null, null, 0);
+        System.out.printf("%d keys, %d pages%n", numKeys, bf.numPages());
+
+        Random rand = new Random(42);
+        for (int round = 0; round < 3; round++) {
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            TransactionId tid = new TransactionId();
+            long start = System.nanoTime();
+            int found = 0;
+            for (int i = 0; i < numLookups; i++) {
+                IntField key = new IntField(rand.nextInt(numKeys) + 1);
+                DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, key));
+                it.open();
+                while (it.hasNext()) {
+                    it.next();
+                    found++;
+                }
+                it.close();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("round %d: %d lookups (%d found) in %.2f s, %.0f lookups/s%n",
+                    round, numLookups, found, seconds, numLookups / seconds);
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+}
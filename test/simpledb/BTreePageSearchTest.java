@@ -0,0 +1,130 @@
+package simpledb;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreePageSearchTest extends SimpleDbTestBase {
+	private BTreePageId leafId;
+	private BTreePageId internalId;
+
+	@Before public void addTable() throws Exception {
+		this.leafId = new BTreePageId(-1, -1, BTreePageId.LEAF);
+		this.internalId = new BTreePageId(-1, -1, BTreePageId.INTERNAL);
+		Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+	}
+
+	private static Tuple tuple(int key, int value) {
+		Tuple t = new Tuple(Utility.getTupleDesc(2));
+		t.setField(0, new IntField(key));
+		t.setField(1, new IntField(value));
+		return t;
+	}
+
+	/**
+	 * Leaf with keys 10 20 20 20 30 40, and an empty slot left behind by a
+	 * deleted tuple between the duplicates.
+	 */
+	private BTreeLeafPage leaf() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(leafId, BTreeLeafPage.createEmptyPageData(), 0);
+		int[] keys = { 10, 20, 20, 20, 20, 30, 40 };
+		for (int i = 0; i < keys.length; i++) {
+			page.insertTuple(tuple(keys[i], i));
+		}
+		Iterator<Tuple> it = page.iterator();
+		Tuple victim = null;
+		for (int i = 0; i < 3; i++) {
+			victim = it.next();
+		}
+		page.deleteTuple(victim);
+		return page;
+	}
+
+	private static int firstKey(Iterator<Tuple> it) {
+		return ((IntField) it.next().getField(0)).getValue();
+	}
+
+	/**
+	 * Unit test for BTreeLeafPage.lowerBound() and upperBound()
+	 */
+	@Test public void leafBounds() throws Exception {
+		BTreeLeafPage page = leaf();
+		assertEquals(6, page.getNumTuples());
+		assertEquals(0, page.lowerBound(new IntField(5)));
+		assertEquals(0, page.lowerBound(new IntField(10)));
+		assertEquals(1, page.upperBound(new IntField(10)));
+		assertEquals(1, page.lowerBound(new IntField(20)));
+		assertEquals(4, page.upperBound(new IntField(20)));
+		assertEquals(4, page.lowerBound(new IntField(25)));
+		assertEquals(4, page.upperBound(new IntField(25)));
+		assertEquals(6, page.lowerBound(new IntField(50)));
+		for (int i = 0; i < page.getNumTuples(); i++) {
+			assertEquals(new int[] { 10, 20, 20, 20, 30, 40 }[i],
+					((IntField) page.keyAt(i)).getValue());
+		}
+	}
+
+	/**
+	 * Unit test for BTreeLeafPage.iterator(int) and reverseIterator(int)
+	 */
+	@Test public void leafIteratorsFromPosition() throws Exception {
+		BTreeLeafPage page = leaf();
+		assertEquals(30, firstKey(page.iterator(page.upperBound(new IntField(20)))));
+		assertEquals(20, firstKey(page.iterator(page.lowerBound(new IntField(20)))));
+		assertFalse(page.iterator(page.lowerBound(new IntField(50))).hasNext());
+
+		assertEquals(20, firstKey(page.reverseIterator(page.upperBound(new IntField(20)) - 1)));
+		assertEquals(10, firstKey(page.reverseIterator(page.lowerBound(new IntField(20)) - 1)));
+		assertFalse(page.reverseIterator(page.lowerBound(new IntField(5)) - 1).hasNext());
+
+		Iterator<Tuple> it = page.iterator(page.lowerBound(new IntField(20)));
+		int n = 0;
+		while (it.hasNext()) {
+			it.next();
+			n++;
+		}
+		assertEquals(5, n);
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.findChild() and findReverseChild()
+	 */
+	@Test public void internalFindChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(internalId, BTreeInternalPage.createEmptyPageData(), 0);
+		int[] keys = { 10, 20, 30 };
+		for (int i = 0; i < keys.length; i++) {
+			page.insertEntry(new BTreeEntry(new IntField(keys[i]),
+					new BTreePageId(-1, i + 1, BTreePageId.LEAF),
+					new BTreePageId(-1, i + 2, BTreePageId.LEAF)));
+		}
+		assertEquals(20, ((IntField) page.keyAt(2)).getValue());
+
+		assertEquals(1, page.findChild(null).getPageNumber());
+		assertEquals(1, page.findChild(new IntField(5)).getPageNumber());
+		assertEquals(1, page.findChild(new IntField(10)).getPageNumber());
+		assertEquals(2, page.findChild(new IntField(15)).getPageNumber());
+		assertEquals(4, page.findChild(new IntField(35)).getPageNumber());
+
+		assertEquals(4, page.findReverseChild(null).getPageNumber());
+		assertEquals(1, page.findReverseChild(new IntField(5)).getPageNumber());
+		assertEquals(2, page.findReverseChild(new IntField(10)).getPageNumber());
+		assertEquals(3, page.findReverseChild(new IntField(25)).getPageNumber());
+		assertEquals(4, page.findReverseChild(new IntField(30)).getPageNumber());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreePageSearchTest.class);
+	}
+}
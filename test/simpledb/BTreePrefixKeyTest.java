@@ -0,0 +1,242 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreePrefixKeyTest extends SimpleDbTestBase {
+	private static final TupleDesc STRING_INT = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+
+	private TransactionId tid;
+	private BTreeFile bf;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		// small pages so that a few thousand tuples make a tree with several levels
+		BufferPool.setPageSize(1024);
+		Database.reset();
+		Database.resetBufferPool(2000);
+		tid = new TransactionId();
+		File f = File.createTempFile("prefix", ".dat");
+		f.deleteOnExit();
+		bf = new BTreeFile(f, 0, STRING_INT);
+		Database.getCatalog().addTable(bf);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private static StringField string(String s) {
+		return new StringField(s, Type.STRING_LEN);
+	}
+
+	private Tuple tuple(String key, int value) {
+		Tuple t = new Tuple(STRING_INT);
+		t.setField(0, string(key));
+		t.setField(1, new IntField(value));
+		return t;
+	}
+
+	/**
+	 * An internal page of bf holding the specified keys, whose children are leaf pages 1, 2, ...
+	 */
+	private BTreeInternalPage internalPage(String... keys) throws Exception {
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL);
+		BTreeInternalPage page = new BTreeInternalPage(pid, BTreeInternalPage.createEmptyPageData(), 0);
+		for (int i = 0; i < keys.length; i++) {
+			page.insertEntry(new BTreeEntry(string(keys[i]), new BTreePageId(bf.getId(), i + 1, BTreePageId.LEAF),
+					new BTreePageId(bf.getId(), i + 2, BTreePageId.LEAF)));
+		}
+		return page;
+	}
+
+	private static List<Field> keys(BTreeInternalPage page) {
+		ArrayList<Field> keys = new ArrayList<Field>();
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext()) {
+			keys.add(it.next().getKey());
+		}
+		return keys;
+	}
+
+	private int count(Op op, String key) throws Exception {
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(op, string(key)));
+		it.open();
+		int n = 0;
+		while (it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		return n;
+	}
+
+	@Test
+	public void shortestSeparator() throws Exception {
+		assertEquals(string("b"), BTreeFile.shortestSeparator(string("apple"), string("banana")));
+		assertEquals(string("appli"), BTreeFile.shortestSeparator(string("apple"), string("application")));
+		assertEquals(string("apple-"), BTreeFile.shortestSeparator(string("apple"), string("apple-pie")));
+		assertEquals(string("apple"), BTreeFile.shortestSeparator(string("apple"), string("apple")));
+		assertEquals(new IntField(7), BTreeFile.shortestSeparator(new IntField(3), new IntField(7)));
+	}
+
+	@Test
+	public void pageStoresCommonPrefixOnce() throws Exception {
+		String prefix = "customer-record-";
+		BTreeInternalPage page = internalPage(prefix + "0001", prefix + "0002", prefix + "0003-with-a-long-suffix");
+		List<Field> keys = keys(page);
+		assertEquals(string(prefix + "0001"), keys.get(0));
+		assertFalse(keys.get(0) instanceof PrefixField);
+		// the keys share prefix + "000"; the rest of the last key is cut to KEY_SUFFIX_LEN characters
+		assertTrue(keys.get(2) instanceof PrefixField);
+		assertEquals(prefix + "0003-with-a-lon", keys.get(2).toString());
+
+		// the keys survive a round trip through the page data, prefix flags included
+		BTreeInternalPage copy = new BTreeInternalPage(page.getId(), page.getPageData(), 0);
+		List<Field> copied = keys(copy);
+		assertEquals(keys, copied);
+		for (int i = 0; i < keys.size(); i++) {
+			assertEquals(keys.get(i) instanceof PrefixField, copied.get(i) instanceof PrefixField);
+		}
+	}
+
+	@Test
+	public void shorterCommonPrefixCutsKeys() throws Exception {
+		String prefix = "a-common-prefix-of-thirty-two---";
+		BTreeInternalPage page = internalPage(prefix + "0001-abc", prefix + "0002-abc");
+		assertFalse(keys(page).get(1) instanceof PrefixField);
+
+		// a key that shares only "a-" with the others leaves them 2 + KEY_SUFFIX_LEN characters
+		page.insertEntry(new BTreeEntry(string("a-different"), new BTreePageId(bf.getId(), 3, BTreePageId.LEAF),
+				new BTreePageId(bf.getId(), 4, BTreePageId.LEAF)));
+		List<Field> keys = keys(page);
+		assertTrue(keys.get(0) instanceof PrefixField);
+		assertEquals(prefix.substring(0, 2 + BTreeInternalPage.KEY_SUFFIX_LEN), keys.get(0).toString());
+		assertEquals(string("a-different"), keys.get(2));
+		assertFalse(keys.get(2) instanceof PrefixField);
+
+		// f starts with the prefix keys, so it may be in any child on their left
+		Field f = string(prefix + "0002-abc");
+		assertEquals(new BTreePageId(bf.getId(), 1, BTreePageId.LEAF), page.findChild(f));
+		assertEquals(new BTreePageId(bf.getId(), 3, BTreePageId.LEAF), page.findReverseChild(f));
+	}
+
+	@Test
+	public void prefixKeyBounds() throws Exception {
+		PrefixField p = new PrefixField("abc");
+		// the keys on the left of p are less than it or start with it
+		assertTrue(BTreeInternalPage.mayPrecede(string("abcz"), p, 1));
+		assertTrue(BTreeInternalPage.mayPrecede(string("abb"), p, 1));
+		assertFalse(BTreeInternalPage.mayPrecede(string("abd"), p, 1));
+		assertFalse(BTreeInternalPage.mayPrecede(string("abcz"), string("abc"), 1));
+		// and the keys on its right are greater than or equal to it
+		assertTrue(BTreeInternalPage.mayFollow(p, string("abcde"), 1));
+		assertFalse(BTreeInternalPage.mayFollow(p, string("abd"), 1));
+		assertFalse(BTreeInternalPage.mayFollow(string("abc"), string("abcde"), 1));
+		assertTrue(BTreeInternalPage.isCutOf(p, string("abcdef"), 1));
+		assertFalse(BTreeInternalPage.isCutOf(string("abc"), string("abcdef"), 1));
+	}
+
+	@Test
+	public void splitsPushUpShortSeparators() throws Exception {
+		ArrayList<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < 3000; i++) {
+			order.add(i);
+		}
+		Collections.shuffle(order, new Random(3));
+		for (int i : order) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(String.format("%c%05d-payload", 'a' + i % 7, i), i));
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid, rootPtr.getRootId(),
+				Permissions.READ_ONLY);
+		for (Field key : keys(root)) {
+			// the separators stop after the characters that tell the pages apart
+			assertTrue(key.toString().length() < "a00000-payload".length());
+		}
+
+		for (int i = 0; i < 3000; i += 41) {
+			assertEquals(1, count(Op.EQUALS, String.format("%c%05d-payload", 'a' + i % 7, i)));
+		}
+		assertEquals(3000 / 7 + 1, count(Op.LESS_THAN, "b"));
+		assertEquals(3000 - 3000 / 7 - 1, count(Op.GREATER_THAN_OR_EQ, "b"));
+	}
+
+	@Test
+	public void keysLongerThanPrefixAndSuffix() throws Exception {
+		// keys that share more than KEY_PREFIX_LEN characters and differ only after
+		// KEY_PREFIX_LEN + KEY_SUFFIX_LEN of them, so internal pages hold prefix keys
+		String prefix = "an-even-longer-common-prefix-shared-by-all-keys-";
+		ArrayList<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < 1500; i++) {
+			order.add(i);
+		}
+		Collections.shuffle(order, new Random(5));
+		for (int i : order) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(prefix + String.format("%05d", i), i));
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		for (int i = 0; i < 1500; i += 29) {
+			assertEquals(1, count(Op.EQUALS, prefix + String.format("%05d", i)));
+		}
+		assertEquals(700, count(Op.LESS_THAN, prefix + "00700"));
+
+		// delete every other tuple, which merges pages and moves keys between them
+		for (int i = 0; i < 1500; i += 2) {
+			DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, string(prefix + String.format("%05d", i))));
+			it.open();
+			Tuple t = it.next();
+			it.close();
+			Database.getBufferPool().deleteTuple(tid, t);
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		assertEquals(750, count(Op.GREATER_THAN_OR_EQ, ""));
+		assertEquals(0, count(Op.EQUALS, prefix + "00100"));
+		assertEquals(1, count(Op.EQUALS, prefix + "00101"));
+	}
+
+	@Test
+	public void bulkLoadSeparators() throws Exception {
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for (int i = 0; i < 2000; i++) {
+			tuples.add(tuple(String.format("key-%06d-with-some-more-text", i), i));
+		}
+		TupleIterator sorted = new TupleIterator(STRING_INT, tuples);
+		sorted.open();
+		bf.bulkLoad(tid, sorted, 1.0);
+		sorted.close();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		for (int i = 0; i < 2000; i += 37) {
+			assertEquals(1, count(Op.EQUALS, String.format("key-%06d-with-some-more-text", i)));
+		}
+		assertEquals(1000, count(Op.GREATER_THAN_OR_EQ, "key-001000"));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreePrefixKeyTest.class);
+	}
+}
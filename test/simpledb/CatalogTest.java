@@ -93,6 +93,41 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDatabaseFile(id2));
     }
 
+    private static class ClosingFile extends SkeletonFile {
+    	int closed = 0;
+
+    	ClosingFile(int tableid) {
+    		super(tableid, Utility.getTupleDesc(2));
+    	}
+
+    	public void close() {
+    		closed++;
+    	}
+    }
+
+    /**
+     * Files replaced by a table of the same name or id, and files dropped by
+     * clear(), are closed
+     */
+    @Test public void closeDroppedFiles() throws Exception {
+    	ClosingFile byName = new ClosingFile(r.nextInt());
+    	ClosingFile byId = new ClosingFile(r.nextInt());
+    	ClosingFile kept = new ClosingFile(byId.getId());
+    	Database.getCatalog().addTable(byName, name);
+    	Database.getCatalog().addTable(byId, SystemTestUtil.getUUID());
+    	Database.getCatalog().addTable(kept, name);
+    	assertEquals(1, byName.closed);
+    	assertEquals(1, byId.closed);
+    	assertEquals(0, kept.closed);
+
+    	// adding the same file again does not close it
+    	Database.getCatalog().addTable(kept, name);
+    	assertEquals(0, kept.closed);
+
+    	Database.getCatalog().clear();
+    	assertEquals(1, kept.closed);
+    }
+
     /**
      * JUnit suite target
      */
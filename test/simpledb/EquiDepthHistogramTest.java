@@ -0,0 +1,154 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import simpledb.Predicate.Op;
+
+public class EquiDepthHistogramTest {
+
+	private static Field[] ints(ArrayList<Integer> values) {
+		Field[] fields = new Field[values.size()];
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = new IntField(values.get(i));
+		}
+		return fields;
+	}
+
+	/**
+	 * Half of the values are 7, the rest are spread over 0..9999.
+	 */
+	private static ArrayList<Integer> skewed() {
+		ArrayList<Integer> values = new ArrayList<Integer>();
+		Random r = new Random(17);
+		for (int i = 0; i < 10000; i++) {
+			values.add(i % 2 == 0 ? 7 : r.nextInt(10000));
+		}
+		return values;
+	}
+
+	/**
+	 * The most common values are estimated exactly, and do not distort
+	 * the estimates of the other values.
+	 */
+	@Test public void mostCommonValuesTest() {
+		ArrayList<Integer> values = skewed();
+		EquiDepthHistogram h = new EquiDepthHistogram(100, 20, ints(values));
+		int sevens = 0;
+		for (int v : values) {
+			if (v == 7)
+				sevens++;
+		}
+		Assert.assertEquals(new IntField(7), h.mostCommonValues()[0]);
+		Assert.assertEquals((double) sevens / values.size(), h.estimateSelectivity(Op.EQUALS, new IntField(7)), 1e-9);
+		Assert.assertEquals(1.0 - (double) sevens / values.size(), h.estimateSelectivity(Op.NOT_EQUALS, new IntField(7)), 1e-9);
+		Assert.assertEquals(0.5 / 10000, h.estimateSelectivity(Op.EQUALS, new IntField(8)), 0.0002);
+
+		// an equi-width histogram spreads the 7s over their bucket
+		IntHistogram w = new IntHistogram(100, 0, 9999);
+		for (int v : values)
+			w.addValue(v);
+		Assert.assertTrue(w.estimateSelectivity(Op.EQUALS, 7) < 0.01);
+	}
+
+	/**
+	 * Range predicates over skewed data stay accurate, since dense ranges get
+	 * narrow buckets.
+	 */
+	@Test public void rangeTest() {
+		ArrayList<Integer> values = new ArrayList<Integer>();
+		Random r = new Random(3);
+		for (int i = 0; i < 20000; i++) {
+			// most values are small, a few are very large
+			values.add(i % 10 == 0 ? r.nextInt(1000000) : r.nextInt(100));
+		}
+		EquiDepthHistogram h = new EquiDepthHistogram(100, 20, ints(values));
+		IntHistogram w = new IntHistogram(100, 0, 999999);
+		for (int v : values)
+			w.addValue(v);
+		for (int c : new int[] { 10, 50, 90, 500000 }) {
+			int less = 0;
+			for (int v : values) {
+				if (v < c)
+					less++;
+			}
+			double actual = (double) less / values.size();
+			Assert.assertEquals(actual, h.estimateSelectivity(Op.LESS_THAN, new IntField(c)), 0.02);
+			Assert.assertEquals(1.0 - actual, h.estimateSelectivity(Op.GREATER_THAN_OR_EQ, new IntField(c)), 0.02);
+		}
+		// the equi-width histogram puts all the small values in its first bucket
+		Assert.assertTrue(Math.abs(w.estimateSelectivity(Op.LESS_THAN, 50) - 0.45) > 0.3);
+
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.LESS_THAN, new IntField(-1)), 1e-9);
+		Assert.assertEquals(1.0, h.estimateSelectivity(Op.LESS_THAN_OR_EQ, new IntField(1000000)), 1e-9);
+		Assert.assertEquals(1.0, h.estimateRangeFraction(null, null), 1e-9);
+	}
+
+	/**
+	 * Strings are compared as strings, not only by their first characters.
+	 */
+	@Test public void stringTest() {
+		Field[] values = new Field[3000];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = new StringField(i % 3 == 0 ? "customer-common" : "customer-" + i, Type.STRING_LEN);
+		}
+		EquiDepthHistogram h = new EquiDepthHistogram(100, 20, values);
+		Assert.assertEquals(1.0 / 3, h.estimateSelectivity(Op.EQUALS, new StringField("customer-common", Type.STRING_LEN)), 1e-9);
+		Assert.assertEquals(1.0 / 3000, h.estimateSelectivity(Op.EQUALS, new StringField("customer-1", Type.STRING_LEN)), 0.001);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.EQUALS, new StringField("a", Type.STRING_LEN)), 1e-9);
+		Assert.assertEquals(2001, h.numDistinct());
+	}
+
+	@Test public void emptyTest() {
+		EquiDepthHistogram h = new EquiDepthHistogram(100, 20, new Field[0]);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.EQUALS, new IntField(3)), 1e-9);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.LESS_THAN, new IntField(3)), 1e-9);
+		Assert.assertEquals(1.0, h.avgSelectivity(), 1e-9);
+	}
+
+	/**
+	 * A two-dimensional histogram sees that correlated columns select the
+	 * same tuples.
+	 */
+	@Test public void jointTest() {
+		int n = 10000;
+		Field[] a = new Field[n];
+		Field[] b = new Field[n];
+		Field[] c = new Field[n];
+		Random r = new Random(5);
+		for (int i = 0; i < n; i++) {
+			a[i] = new IntField(i);
+			b[i] = new IntField(i + r.nextInt(10));
+			c[i] = new IntField(r.nextInt(n));
+		}
+		EquiDepthHistogram ha = new EquiDepthHistogram(100, 20, a);
+		EquiDepthHistogram hb = new EquiDepthHistogram(100, 20, b);
+		EquiDepthHistogram hc = new EquiDepthHistogram(100, 20, c);
+		Field[] ba = JointHistogram.gridBounds(10, a);
+		Field[] bb = JointHistogram.gridBounds(10, b);
+		Field[] bc = JointHistogram.gridBounds(10, c);
+		Assert.assertEquals(9, ba.length);
+		int[] ca = new int[n], cb = new int[n], cc = new int[n];
+		for (int i = 0; i < n; i++) {
+			ca[i] = JointHistogram.cell(ba, a[i]);
+			cb[i] = JointHistogram.cell(bb, b[i]);
+			cc[i] = JointHistogram.cell(bc, c[i]);
+		}
+
+		// a < 1000 and b < 1000 select nearly the same 10% of the tuples
+		JointHistogram ab = new JointHistogram(ba, bb, ca, cb);
+		double sel = ab.estimateSelectivity(ha, Op.LESS_THAN, new IntField(1000), hb, Op.LESS_THAN, new IntField(1000));
+		Assert.assertEquals(0.1, sel, 0.01);
+		// and a < 1000 and b > 5000 select none of them
+		sel = ab.estimateSelectivity(ha, Op.LESS_THAN, new IntField(1000), hb, Op.GREATER_THAN, new IntField(5000));
+		Assert.assertEquals(0.0, sel, 0.001);
+
+		// a and c are independent
+		JointHistogram ac = new JointHistogram(ba, bc, ca, cc);
+		sel = ac.estimateSelectivity(ha, Op.LESS_THAN, new IntField(1000), hc, Op.LESS_THAN, new IntField(1000));
+		Assert.assertEquals(0.01, sel, 0.005);
+	}
+}
@@ -0,0 +1,62 @@
+package simpledb;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+public class HyperLogLogTest {
+
+	private static HyperLogLog sketch(int from, int to) {
+		HyperLogLog h = new HyperLogLog(12);
+		for (int i = from; i < to; i++) {
+			h.add(new IntField(i));
+		}
+		return h;
+	}
+
+	/**
+	 * The estimate is within a few standard errors of the number of distinct
+	 * values, however often each of them is added.
+	 */
+	@Test public void estimateTest() {
+		for (int n : new int[] { 10, 1000, 100000 }) {
+			HyperLogLog h = sketch(0, n);
+			Assert.assertEquals(n, h.estimate(), 0.05 * n);
+			// adding the values again changes nothing
+			Random r = new Random(n);
+			for (int i = 0; i < n; i++) {
+				h.add(new IntField(r.nextInt(n)));
+			}
+			Assert.assertEquals(n, h.estimate(), 0.05 * n);
+		}
+		Assert.assertEquals(0.0, new HyperLogLog(12).estimate(), 1e-9);
+	}
+
+	@Test public void stringTest() {
+		HyperLogLog h = new HyperLogLog(12);
+		for (int i = 0; i < 20000; i++) {
+			h.add(new StringField("customer-" + (i % 5000), Type.STRING_LEN));
+		}
+		Assert.assertEquals(5000, h.estimate(), 250);
+	}
+
+	/**
+	 * A merged sketch estimates the union of the values of both sketches.
+	 */
+	@Test public void mergeTest() {
+		HyperLogLog a = sketch(0, 30000);
+		HyperLogLog b = sketch(20000, 50000);
+		HyperLogLog union = new HyperLogLog(a);
+		union.merge(b);
+		Assert.assertEquals(50000, union.estimate(), 2500);
+		Assert.assertEquals(sketch(0, 50000).estimate(), union.estimate(), 1e-9);
+		// the copy is not changed by the merge
+		Assert.assertEquals(a.estimate(), sketch(0, 30000).estimate(), 1e-9);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void mergePrecisionTest() {
+		new HyperLogLog(12).merge(new HyperLogLog(10));
+	}
+}
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Vector;
 
 import org.junit.Assert;
@@ -263,6 +264,21 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
                         .getStatsMap());
 
         Assert.assertTrue(cardinality == 800 || cardinality == 2000);
+
+        // Neither side is a key: each of the 20 values of the columns matches
+        // 10000 / 20 tuples on each side
+        cardinality = j.estimateJoinCardinality(new LogicalJoinNode("t1", "t2",
+                "c" + Integer.toString(3), "c" + Integer.toString(4),
+                Predicate.Op.EQUALS), stats2.estimateTableCardinality(1.0),
+                stats2.estimateTableCardinality(1.0), false, false, TableStats
+                        .getStatsMap());
+        Assert.assertEquals(10000.0 * 10000 / 20, cardinality, 0.05 * 10000 * 10000 / 20);
+        // A filtered side has no more distinct values than tuples
+        cardinality = j.estimateJoinCardinality(new LogicalJoinNode("t1", "t2",
+                "c" + Integer.toString(3), "c" + Integer.toString(4),
+                Predicate.Op.EQUALS), 5, stats2.estimateTableCardinality(1.0),
+                false, false, TableStats.getStatsMap());
+        Assert.assertEquals(5.0 * 10000 / 20, cardinality, 0.05 * 5 * 10000 / 20);
     }
 
     /**
@@ -621,4 +637,148 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * Check that each join of the order joins two different plans, as
+     * LogicalPlan.physicalPlan builds them, so that there are no cross
+     * products, and return how many of the joins join two plans that each
+     * join several tables already.
+     */
+    private static int checkJoinOrder(Vector<LogicalJoinNode> order) {
+        HashMap<String, HashSet<String>> plans = new HashMap<String, HashSet<String>>();
+        int bushy = 0;
+        for (LogicalJoinNode j : order) {
+            HashSet<String> plan1 = planOf(plans, j.t1Alias);
+            HashSet<String> plan2 = planOf(plans, j.t2Alias);
+            Assert.assertNotSame(plan1, plan2);
+            if (plan1.size() > 1 && plan2.size() > 1) {
+                bushy++;
+            }
+            plan1.addAll(plan2);
+            for (String alias : plan2) {
+                plans.put(alias, plan1);
+            }
+        }
+        return bushy;
+    }
+
+    private static HashSet<String> planOf(HashMap<String, HashSet<String>> plans, String alias) {
+        if (!plans.containsKey(alias)) {
+            HashSet<String> plan = new HashSet<String>();
+            plan.add(alias);
+            plans.put(alias, plan);
+        }
+        return plans.get(alias);
+    }
+
+    /**
+     * Order a chain of 14 joins by dynamic programming, which only has to
+     * consider the connected sets of joins, and check that the order has no
+     * cross products.
+     */
+    @Test(timeout = 10000)
+    public void chainOrderJoinsTest() throws ParsingException {
+        int n = 15;
+        LogicalPlan lp = new LogicalPlan();
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        stats.put(tableName1, stats1);
+        stats.put(tableName2, stats2);
+        for (int i = 0; i < n; i++) {
+            lp.addScan(i % 3 == 0 ? tableId2 : tableId1, "t" + i);
+            filterSelectivities.put("t" + i, i == n / 2 ? 0.01 : 1.0);
+            if (i > 0) {
+                nodes.add(new LogicalJoinNode("t" + (i - 1), "t" + i, "c1", "c2",
+                        Predicate.Op.EQUALS));
+            }
+        }
+
+        JoinOptimizer.setDpThreshold(JoinOptimizer.MAX_DP_JOINS);
+        try {
+            JoinOptimizer jo = new JoinOptimizer(lp, nodes);
+            Vector<LogicalJoinNode> result = jo.orderJoins(stats, filterSelectivities, false);
+            Assert.assertEquals(JoinOptimizer.Strategy.DYNAMIC_PROGRAMMING, jo.getStrategy());
+            Assert.assertEquals(nodes.size(), result.size());
+            Assert.assertTrue(result.containsAll(nodes));
+            checkJoinOrder(result);
+        } finally {
+            JoinOptimizer.setDpThreshold(JoinOptimizer.DEFAULT_DP_THRESHOLD);
+        }
+    }
+
+    /**
+     * Two selective key joins, a with b and d with c, are best done first and
+     * their small results joined, which is a bushy plan.
+     */
+    @Test
+    public void bushyOrderJoinsTest() throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        for (String name : new String[] { "a", "b", "c", "d" }) {
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, 2000, null, null, "c");
+            Database.getCatalog().addTable(f, name, "c0");
+            lp.addScan(f.getId(), name);
+            stats.put(name, new TableStats(f.getId(), 101));
+            filterSelectivities.put(name, name.equals("a") || name.equals("d") ? 0.01 : 1.0);
+        }
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        nodes.add(new LogicalJoinNode("b", "c", "c1", "c1", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("a", "b", "c1", "c0", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("d", "c", "c1", "c0", Predicate.Op.EQUALS));
+
+        Vector<LogicalJoinNode> result = new JoinOptimizer(lp, nodes).orderJoins(
+                stats, filterSelectivities, false);
+        Assert.assertEquals(nodes.size(), result.size());
+        Assert.assertEquals(1, checkJoinOrder(result));
+        Assert.assertEquals(nodes.get(0), result.get(2));
+    }
+
+    /**
+     * A star join of 25 tables is beyond the dynamic programming threshold;
+     * the heuristic must still find an order without cross products, within
+     * its planning-time budget.
+     */
+    @Test(timeout = 10000)
+    public void greedyOrderJoinsTest() throws ParsingException {
+        int n = 25;
+        LogicalPlan lp = new LogicalPlan();
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        stats.put(tableName1, stats1);
+        stats.put(tableName2, stats2);
+        for (int i = 0; i < n; i++) {
+            lp.addScan(i % 2 == 0 ? tableId2 : tableId1, "t" + i);
+            filterSelectivities.put("t" + i, 1.0 / (i + 1));
+            if (i > 0) {
+                nodes.add(new LogicalJoinNode("t0", "t" + i, "c" + (i % 10), "c1",
+                        Predicate.Op.EQUALS));
+            }
+        }
+
+        long budget = JoinOptimizer.getPlanningBudget();
+        try {
+            JoinOptimizer.setPlanningBudget(200);
+            JoinOptimizer jo = new JoinOptimizer(lp, nodes);
+            long start = System.currentTimeMillis();
+            Vector<LogicalJoinNode> result = jo.orderJoins(stats, filterSelectivities, false);
+            Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+            Assert.assertEquals(JoinOptimizer.Strategy.GREEDY, jo.getStrategy());
+            Assert.assertEquals(nodes.size(), result.size());
+            Assert.assertTrue(result.containsAll(nodes));
+            Assert.assertTrue(result.get(0).t1Alias.equals("t0") || result.get(0).t2Alias.equals("t0"));
+
+            // below the threshold the same query is ordered by dynamic programming
+            JoinOptimizer.setDpThreshold(JoinOptimizer.MAX_DP_JOINS);
+            Vector<LogicalJoinNode> few = new Vector<LogicalJoinNode>(nodes.subList(0, 8));
+            jo = new JoinOptimizer(lp, few);
+            Assert.assertEquals(few.size(), jo.orderJoins(stats, filterSelectivities, false).size());
+            Assert.assertEquals(JoinOptimizer.Strategy.DYNAMIC_PROGRAMMING, jo.getStrategy());
+        } finally {
+            JoinOptimizer.setPlanningBudget(budget);
+            JoinOptimizer.setDpThreshold(JoinOptimizer.DEFAULT_DP_THRESHOLD);
+        }
+    }
 }
@@ -0,0 +1,73 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.Vector;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Microbenchmark for the time {@link JoinOptimizer#orderJoins} takes to plan
+ * chain joins (each table joins the next) and star joins (every table joins
+ * the first) of 5 to 25 tables; queries with more than
+ * {@link JoinOptimizer#getDpThreshold} joins are ordered by the greedy
+ * heuristic.  The tables are small, since only their statistics matter.  Run
+ * with
+ * <pre>
+ *     java -cp bin/src:bin/test simpledb.JoinOrderBenchmark [repetitions]
+ * </pre>
+ */
+public class JoinOrderBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int repetitions = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int maxTables = 25;
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        int[] tableIds = new int[maxTables];
+        for (int i = 0; i < maxTables; i++) {
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, 100 * (i + 1), 1000, null, null, "c");
+            Database.getCatalog().addTable(f, "t" + i);
+            tableIds[i] = f.getId();
+            stats.put("t" + i, new TableStats(f.getId(), TableStats.IOCOSTPERPAGE));
+        }
+
+        for (int n = 5; n <= maxTables; n++) {
+            LogicalPlan lp = new LogicalPlan();
+            HashMap<String, Double> selectivities = new HashMap<String, Double>();
+            for (int i = 0; i < n; i++) {
+                lp.addScan(tableIds[i], "t" + i);
+                selectivities.put("t" + i, 1.0);
+            }
+            Vector<LogicalJoinNode> chain = new Vector<LogicalJoinNode>();
+            Vector<LogicalJoinNode> star = new Vector<LogicalJoinNode>();
+            for (int i = 1; i < n; i++) {
+                chain.add(new LogicalJoinNode("t" + (i - 1), "t" + i, "c1", "c0", Predicate.Op.EQUALS));
+                star.add(new LogicalJoinNode("t0", "t" + i, "c0", "c0", Predicate.Op.EQUALS));
+            }
+            JoinOptimizer jo = new JoinOptimizer(lp, star);
+            jo.orderJoins(stats, selectivities, false);
+            System.out.printf("%2d tables: chain %8.3f ms, star %8.3f ms (%s)%n", n,
+                    time(lp, chain, stats, selectivities, repetitions),
+                    time(lp, star, stats, selectivities, repetitions), jo.getStrategy());
+        }
+    }
+
+    /**
+     * The average time in milliseconds orderJoins takes to order the joins
+     */
+    private static double time(LogicalPlan lp, Vector<LogicalJoinNode> joins, HashMap<String, TableStats> stats,
+            HashMap<String, Double> selectivities, int repetitions) throws ParsingException {
+        // the first repetitions warm up the JIT
+        for (int i = 0; i < 3; i++) {
+            new JoinOptimizer(lp, joins).orderJoins(stats, selectivities, false);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < repetitions; i++) {
+            Vector<LogicalJoinNode> order = new JoinOptimizer(lp, joins).orderJoins(stats, selectivities, false);
+            if (order.size() != joins.size()) {
+                throw new IllegalStateException("lost a join");
+            }
+        }
+        return (System.nanoTime() - start) / 1e6 / repetitions;
+    }
+}
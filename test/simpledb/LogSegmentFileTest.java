@@ -0,0 +1,127 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogSegmentFileTest {
+    private static final int SEGMENT_SIZE = 64;
+
+    private File manifest;
+    private LogSegmentFile log;
+
+    @Before public void setUp() throws IOException {
+        manifest = File.createTempFile("segments", ".log");
+        log = new LogSegmentFile(manifest, SEGMENT_SIZE);
+        log.reset();
+    }
+
+    @After public void tearDown() throws IOException {
+        log.reset();
+        log.close();
+        manifest.delete();
+    }
+
+    /**
+     * Values written across a segment boundary read back unchanged.
+     */
+    @Test public void spanSegments() throws IOException {
+        for (long i = 0; i < 20; i++) {
+            log.writeLong(i);
+        }
+        log.writeUTF("simpledb.HeapPage");
+        assertEquals(20 * 8 + 2 + "simpledb.HeapPage".length(), log.length());
+
+        log.seek(0);
+        for (long i = 0; i < 20; i++) {
+            assertEquals(i, log.readLong());
+        }
+        assertEquals("simpledb.HeapPage", log.readUTF());
+    }
+
+    /**
+     * Moving into a segment also creates the next one, zero-filled, in the
+     * background.
+     */
+    @Test public void preallocateNextSegment() throws IOException {
+        log.writeInt(1);
+        assertEquals(2, log.listSegments().size());
+
+        log.seek(SEGMENT_SIZE * 2 - 4);
+        log.writeInt(2);
+        assertEquals(3, log.listSegments().size());
+        assertEquals(SEGMENT_SIZE, log.segmentFile(2).length());
+        assertFalse(new File(log.segmentFile(2).getPath() + ".tmp").exists());
+
+        log.seek(SEGMENT_SIZE * 2);
+        assertEquals(0, log.readInt());
+    }
+
+    /**
+     * Truncation deletes whole segments before the LSN and keeps the LSNs of
+     * everything after it.
+     */
+    @Test public void truncateBefore() throws IOException {
+        for (long i = 0; i < 40; i++) {
+            log.writeLong(i);
+        }
+        assertEquals(6, log.listSegments().size());
+
+        log.truncateBefore(8 * 20);
+        assertEquals(8 * 20, log.getFirstLsn());
+        assertFalse(log.segmentFile(0).exists());
+        assertFalse(log.segmentFile(1).exists());
+        assertTrue(log.segmentFile(2).exists());
+
+        log.seek(8 * 20);
+        for (long i = 20; i < 40; i++) {
+            assertEquals(i, log.readLong());
+        }
+    }
+
+    /**
+     * The first live LSN and the checkpoint survive reopening the log.
+     */
+    @Test public void manifestSurvivesReopen() throws IOException {
+        for (long i = 0; i < 40; i++) {
+            log.writeLong(i);
+        }
+        log.setCheckpoint(8 * 30);
+        log.truncateBefore(8 * 25);
+        log.force();
+        log.close();
+
+        log = new LogSegmentFile(manifest, SEGMENT_SIZE);
+        assertEquals(8 * 25, log.getFirstLsn());
+        assertEquals(8 * 30, log.getCheckpoint());
+        log.seek(8 * 30);
+        assertEquals(30, log.readLong());
+    }
+
+    /**
+     * Cutting off the tail zeroes it, so a later scan stops there.
+     */
+    @Test public void truncateAfter() throws IOException {
+        for (long i = 1; i <= 20; i++) {
+            log.writeLong(i);
+        }
+        log.truncateAfter(8 * 5);
+        assertEquals(8 * 5, log.length());
+        assertEquals(8 * 5, log.getFilePointer());
+        assertEquals(0, log.readLong());
+        assertFalse(log.segmentFile(3).exists());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentFileTest.class);
+    }
+}
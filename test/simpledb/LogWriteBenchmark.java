@@ -0,0 +1,53 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Microbenchmark for the log append path.  Appends UPDATE records for a
+ * heap page (plus the BEGIN and COMMIT records of their transactions) and
+ * reports how many records per second LogFile can take.  Run with
+ * <pre>
+ *     java -cp bin/src:bin/test simpledb.LogWriteBenchmark [records] [recordsPerXaction]
+ * </pre>
+ * Only the last record of each transaction forces the log, so with many
+ * records per transaction the result is dominated by serializing records
+ * rather than by fsync.
+ */
+public class LogWriteBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int numRecords = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int perXaction = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        File logFile = File.createTempFile("logbench", ".log");
+        logFile.deleteOnExit();
+        File dataFile = File.createTempFile("logbench", ".dat");
+        dataFile.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(dataFile.getAbsolutePath(), 2);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage before = new HeapPage(pid, HeapPage.createEmptyPageData());
+        HeapPage after = new HeapPage(pid, HeapPage.createEmptyPageData());
+
+        for (int round = 0; round < 3; round++) {
+            LogFile log = new LogFile(logFile);
+            long start = System.nanoTime();
+            int records = 0;
+            while (records < numRecords) {
+                TransactionId tid = new TransactionId();
+                log.logXactionBegin(tid);
+                records++;
+                for (int i = 0; i < perXaction && records < numRecords; i++) {
+                    log.logWrite(tid, before, after);
+                    records++;
+                }
+                log.logCommit(tid);
+                records++;
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("round %d: %d records in %.2f s, %.0f records/s%n",
+                    round, records, seconds, records / seconds);
+            log.shutdown();
+        }
+    }
+}
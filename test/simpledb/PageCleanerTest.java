@@ -0,0 +1,189 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageCleanerTest extends SimpleDbTestBase {
+    private File file;
+    private HeapFile hf;
+
+    // heap file that remembers the sizes of the runs passed to writePages
+    class RunCountingHeapFile extends HeapFile {
+        final List<Integer> runs = new ArrayList<Integer>();
+        // set by a test to hold writePages until it is released
+        volatile CountDownLatch writing;
+        volatile CountDownLatch release;
+
+        public RunCountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public void writePages(List<Page> pages) throws IOException {
+            runs.add(pages.size());
+            if (writing != null) {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            super.writePages(pages);
+        }
+    }
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("cleaner", ".dat");
+        file.deleteOnExit();
+        hf = new RunCountingHeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, "cleaner");
+        // no interval: the cleaner only runs when woken up, so that the test
+        // decides when committed pages are written
+        Database.getBufferPool().startPageCleaner(0);
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().stopPageCleaner();
+    }
+
+    private void insertAndCommit(int n) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < n; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+        }
+        t.commit();
+    }
+
+    private int tuplesOnDisk() {
+        int count = 0;
+        for (int i = 0; i < hf.numPages(); i++) {
+            HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+            Iterator<Tuple> it = p.iterator();
+            while (it.hasNext()) {
+                it.next();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Committing only logs the pages; the cleaner writes them afterwards.
+     */
+    @Test public void commitLeavesPagesToCleaner() throws Exception {
+        insertAndCommit(10);
+        assertEquals(1, Database.getBufferPool().numUnflushedPages());
+        assertEquals(0, tuplesOnDisk());
+
+        assertEquals(1, Database.getBufferPool().flushCommittedPages());
+        assertEquals(0, Database.getBufferPool().numUnflushedPages());
+        assertEquals(10, tuplesOnDisk());
+    }
+
+    /**
+     * Adjacent committed pages are written with a single writePages call.
+     */
+    @Test public void coalesceAdjacentPages() throws Exception {
+        insertAndCommit(504 * 3);
+        Database.getBufferPool().flushCommittedPages();
+        RunCountingHeapFile counting = (RunCountingHeapFile) hf;
+        assertEquals(1, counting.runs.size());
+        assertEquals(3, (int) counting.runs.get(0));
+        assertEquals(504 * 3, tuplesOnDisk());
+    }
+
+    /**
+     * Pages dirtied again by a running transaction are not written.
+     */
+    @Test public void skipPagesOfRunningTransactions() throws Exception {
+        insertAndCommit(1);
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(1, 2));
+        assertEquals(0, Database.getBufferPool().flushCommittedPages());
+        t.commit();
+        assertEquals(1, Database.getBufferPool().flushCommittedPages());
+        assertEquals(2, tuplesOnDisk());
+    }
+
+    /**
+     * Pages are written without holding the buffer pool, and a page that is
+     * committed again while it is being written is written again.
+     */
+    @Test public void writeOutsideBufferPool() throws Exception {
+        insertAndCommit(10);
+        final RunCountingHeapFile counting = (RunCountingHeapFile) hf;
+        counting.writing = new CountDownLatch(1);
+        counting.release = new CountDownLatch(1);
+        Thread cleaner = new Thread() {
+            public void run() {
+                try {
+                    Database.getBufferPool().flushCommittedPages();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        cleaner.start();
+        counting.writing.await();
+
+        insertAndCommit(1);
+        counting.writing = null;
+        counting.release.countDown();
+        cleaner.join();
+        assertEquals(10, tuplesOnDisk());
+        assertEquals(1, Database.getBufferPool().numUnflushedPages());
+        assertEquals(1, Database.getBufferPool().flushCommittedPages());
+        assertEquals(11, tuplesOnDisk());
+    }
+
+    /**
+     * Stopping the cleaner writes everything that is still pending.
+     */
+    @Test public void stopFlushesPendingPages() throws Exception {
+        insertAndCommit(10);
+        Database.getBufferPool().stopPageCleaner();
+        assertEquals(0, Database.getBufferPool().numUnflushedPages());
+        assertEquals(10, tuplesOnDisk());
+    }
+
+    /**
+     * Committed pages that the cleaner never wrote are redone by recovery.
+     */
+    @Test public void recoverUnwrittenCommits() throws Exception {
+        insertAndCommit(10);
+        assertEquals(0, tuplesOnDisk());
+
+        // crash before the cleaner got to the page: stop the cleaner and
+        // throw away whatever it wrote on the way out
+        Database.getBufferPool().stopPageCleaner();
+        Database.reset();
+        file.delete();
+        hf = new RunCountingHeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, "cleaner");
+        Database.getLogFile().recover();
+        assertEquals(10, tuplesOnDisk());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCleanerTest.class);
+    }
+}
@@ -0,0 +1,91 @@
+package simpledb;
+
+import java.io.File;
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ParallelRedoTest extends SimpleDbTestBase {
+    private File file;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("redo", ".dat");
+        file.deleteOnExit();
+        hf = new HeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, "redo");
+    }
+
+    private HeapPage pageWithTuples(int pageno, int n) throws Exception {
+        HeapPage p = new HeapPage(new HeapPageId(hf.getId(), pageno), HeapPage.createEmptyPageData());
+        for (int i = 0; i < n; i++) {
+            p.insertTuple(Utility.getHeapTuple(i, 2));
+        }
+        return p;
+    }
+
+    private int tuplesOnDisk(int pageno) {
+        HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), pageno));
+        int count = 0;
+        Iterator<Tuple> it = p.iterator();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * The last image submitted for a page is the one left on disk.
+     */
+    @Test public void lastImageWins() throws Exception {
+        ParallelRedo redo = new ParallelRedo(4);
+        for (int version = 1; version <= 20; version++) {
+            for (int pageno = 0; pageno < 8; pageno++) {
+                redo.submit(pageWithTuples(pageno, version + pageno));
+            }
+        }
+        redo.finish();
+        for (int pageno = 0; pageno < 8; pageno++) {
+            assertEquals(20 + pageno, tuplesOnDisk(pageno));
+        }
+    }
+
+    /**
+     * Recovery with several redo threads installs committed pages.
+     */
+    @Test public void recoverWithSeveralThreads() throws Exception {
+        Database.getBufferPool().startPageCleaner(1000 * 60);
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 504 * 3; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+        }
+        t.commit();
+
+        // crash before the cleaner wrote the pages
+        Database.getBufferPool().stopPageCleaner();
+        Database.reset();
+        file.delete();
+        hf = new HeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, "redo");
+        Database.getLogFile().setRedoThreads(3);
+        Database.getLogFile().recover();
+        for (int pageno = 0; pageno < 3; pageno++) {
+            assertEquals(504, tuplesOnDisk(pageno));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelRedoTest.class);
+    }
+}
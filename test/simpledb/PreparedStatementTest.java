@@ -0,0 +1,192 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PreparedStatementTest extends SimpleDbTestBase {
+	private static final int IO_COST = 1000;
+
+	private TransactionId tid;
+	private ArrayList<ArrayList<Integer>> tuples1;
+	private ArrayList<ArrayList<Integer>> tuples2;
+	private String name1;
+	private String name2;
+	private Parser parser;
+
+	private String addTable(ArrayList<ArrayList<Integer>> tuples) throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 500, 20, null, tuples, "c");
+		String name = "t" + SystemTestUtil.getUUID().replace("-", "");
+		Database.getCatalog().addTable(hf, name);
+		TableStats.setTableStats(name, new TableStats(hf.getId(), IO_COST));
+		return name;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		tuples1 = new ArrayList<ArrayList<Integer>>();
+		tuples2 = new ArrayList<ArrayList<Integer>>();
+		name1 = addTable(tuples1);
+		name2 = addTable(tuples2);
+		parser = new Parser();
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private int count(PreparedStatement ps) throws Exception {
+		Query q = ps.executeQuery(tid);
+		q.start();
+		int count = 0;
+		while (q.hasNext()) {
+			q.next();
+			count++;
+		}
+		q.close();
+		return count;
+	}
+
+	private static int countLess(ArrayList<ArrayList<Integer>> tuples, int column, int value) {
+		int count = 0;
+		for (ArrayList<Integer> t : tuples) {
+			if (t.get(column) < value)
+				count++;
+		}
+		return count;
+	}
+
+	@Test
+	public void normalize() {
+		ArrayList<String> literals = new ArrayList<String>();
+		assertEquals("SELECT * FROM t1 WHERE t1.c0 < ? AND t1.c1 = ? AND t1.c2 = ?",
+				StatementCache.normalize("SELECT *  FROM t1\n WHERE t1.c0 < 15 AND t1.c1 = 'it''s' AND t1.c2 = ?;", literals));
+		assertEquals(Arrays.asList("15", "it's", null), literals);
+
+		// a minus sign is part of a number unless it follows an operand
+		literals.clear();
+		assertEquals("SELECT * FROM t1 WHERE t1.c0 > ? AND t1.c1 = (? - ?)",
+				StatementCache.normalize("SELECT * FROM t1 WHERE t1.c0 > -5 AND t1.c1 = (-2 - 3)", literals));
+		assertEquals(Arrays.asList("-5", "-2", "3"), literals);
+	}
+
+	@Test
+	public void parameters() throws Exception {
+		PreparedStatement ps = parser.prepareStatement("SELECT * FROM " + name1 + " WHERE " + name1 + ".c0 < ?;");
+		assertEquals(1, ps.getParameterCount());
+		assertFalse(ps.hasAllParameters());
+		for (int v : new int[] { 0, 5, 12, 20 }) {
+			ps.setInt(1, v);
+			assertEquals(countLess(tuples1, 0, v), count(ps));
+		}
+		ps.clearParameters();
+		try {
+			count(ps);
+			fail("a parameter without a value should not be accepted");
+		} catch (ParsingException e) {
+			// expected
+		}
+		ps.setString(1, "five");
+		try {
+			count(ps);
+			fail("a string should not be compared with an INT field");
+		} catch (ParsingException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Statements that differ only in their constants share a plan, which is
+	 * planned again once the statistics of one of its tables are replaced or the
+	 * catalog changes.
+	 */
+	@Test
+	public void cache() throws Exception {
+		StatementCache cache = Database.getStatementCache();
+		String join = "SELECT * FROM " + name1 + ", " + name2 + " WHERE " + name1 + ".c0 = " + name2 + ".c0 AND "
+				+ name1 + ".c1 < ";
+		PreparedStatement a = parser.prepareStatement(join + "5;");
+		assertEquals(1, cache.size());
+		long hits = cache.hits();
+		PreparedStatement b = parser.prepareStatement(join + " 10;");
+		assertEquals(a.getSql(), b.getSql());
+		assertEquals(1, cache.size());
+		assertEquals(hits + 1, cache.hits());
+
+		int expected = 0;
+		for (ArrayList<Integer> t1 : tuples1) {
+			for (ArrayList<Integer> t2 : tuples2) {
+				if (t1.get(0).equals(t2.get(0)) && t1.get(1) < 10)
+					expected++;
+			}
+		}
+		// the joins are ordered once, and the plan is run again with other constants
+		assertEquals(expected, count(b));
+		assertEquals(expected, count(b));
+
+		long misses = cache.misses();
+		TableStats.setTableStats(name2, new TableStats(Database.getCatalog().getTableId(name2), IO_COST));
+		assertEquals(expected, count(b));
+		assertEquals(misses + 1, cache.misses());
+		assertEquals(expected, count(b));
+		assertEquals(misses + 1, cache.misses());
+
+		addTable(new ArrayList<ArrayList<Integer>>());
+		assertEquals(expected, count(b));
+		assertEquals(misses + 2, cache.misses());
+	}
+
+	@Test
+	public void invalidStatements() throws Exception {
+		try {
+			parser.prepareStatement("DELETE FROM " + name1 + " WHERE " + name1 + ".c0 < 3;");
+			fail("only SELECT statements can be prepared");
+		} catch (ParsingException e) {
+			// expected
+		}
+		try {
+			parser.prepareStatement("SELECT * FROM " + name1 + " WHERE " + name1 + ".c0 IN (SELECT " + name2
+					+ ".c0 FROM " + name2 + ");");
+			fail("subqueries cannot be prepared");
+		} catch (ParsingException e) {
+			// expected
+		}
+		assertEquals(0, Database.getStatementCache().size());
+	}
+
+	/**
+	 * SELECT statements run by the parser are planned for their own constants
+	 * and not cached; prepared statements it runs are.
+	 */
+	@Test
+	public void processNextStatement() throws Exception {
+		parser.processNextStatement("SELECT * FROM " + name1 + " WHERE " + name1 + ".c0 < 3;");
+		parser.processNextStatement("SELECT * FROM " + name1 + " WHERE " + name1 + ".c0 < 4;");
+		assertEquals(0, Database.getStatementCache().size());
+		assertEquals(0, Database.getStatementCache().misses());
+
+		parser.processPreparedStatement(parser.prepareStatement("SELECT * FROM " + name1 + " WHERE " + name1 + ".c0 < -3;"));
+		parser.processPreparedStatement(parser.prepareStatement("SELECT * FROM " + name1 + " WHERE " + name1 + ".c0 < 4;"));
+		assertEquals(1, Database.getStatementCache().size());
+		// only the first statement was parsed
+		assertEquals(1, Database.getStatementCache().misses());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(PreparedStatementTest.class);
+	}
+}
@@ -0,0 +1,141 @@
+package simpledb;
+
+import java.io.File;
+import java.util.NoSuchElementException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SavepointTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private HeapFile other;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = File.createTempFile("savepoint", ".dat");
+        f.deleteOnExit();
+        hf = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, "savepoint");
+        other = Utility.createEmptyHeapFile(File.createTempFile("other", ".dat").getAbsolutePath(), 2);
+    }
+
+    private void insert(Transaction t, int from, int n) throws Exception {
+        for (int i = from; i < from + n; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+        }
+    }
+
+    private int count(TransactionId tid, int tableId) throws Exception {
+        SeqScan scan = new SeqScan(tid, tableId, "");
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        return n;
+    }
+
+    private int countCommitted() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        int n = count(t.getId(), hf.getId());
+        t.commit();
+        return n;
+    }
+
+    /**
+     * Rolling back to a savepoint keeps the updates made before it.
+     */
+    @Test public void rollbackToKeepsEarlierUpdates() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 0, 5);
+        t.savepoint("a");
+        insert(t, 5, 600);
+        assertEquals(605, count(t.getId(), hf.getId()));
+
+        t.rollbackTo("a");
+        assertEquals(5, count(t.getId(), hf.getId()));
+        insert(t, 10, 3);
+        t.commit();
+        assertEquals(8, countCommitted());
+    }
+
+    /**
+     * Updates after the savepoint are undone even if a checkpoint already
+     * wrote them to disk, and aborting afterwards undoes everything.
+     */
+    @Test public void rollbackToAfterFlushThenAbort() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 0, 5);
+        t.savepoint("a");
+        insert(t, 5, 5);
+        Database.getBufferPool().flushAllPages();
+        insert(t, 10, 5);
+
+        t.rollbackTo("a");
+        assertEquals(5, count(t.getId(), hf.getId()));
+        t.abort();
+        assertEquals(0, countCommitted());
+    }
+
+    /**
+     * Rolling back to an older savepoint removes the newer ones.
+     */
+    @Test public void nestedSavepoints() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 0, 1);
+        t.savepoint("a");
+        insert(t, 1, 1);
+        t.savepoint("b");
+        insert(t, 2, 1);
+
+        t.rollbackTo("b");
+        assertEquals(2, count(t.getId(), hf.getId()));
+        t.rollbackTo("a");
+        assertEquals(1, count(t.getId(), hf.getId()));
+        try {
+            t.rollbackTo("b");
+            fail("savepoint b should be gone");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+        t.commit();
+        assertEquals(1, countCommitted());
+    }
+
+    /**
+     * Read locks taken after the savepoint are released, locks on pages the
+     * transaction had before are kept.
+     */
+    @Test public void releaseLocksTakenAfterSavepoint() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 0, 1);
+        HeapPageId written = new HeapPageId(hf.getId(), 0);
+        HeapPageId read = new HeapPageId(other.getId(), 0);
+        t.savepoint("a");
+        count(t.getId(), other.getId());
+        assertTrue(Database.getBufferPool().holdsLock(t.getId(), read));
+
+        t.rollbackTo("a");
+        assertFalse(Database.getBufferPool().holdsLock(t.getId(), read));
+        assertTrue(Database.getBufferPool().holdsLock(t.getId(), written));
+        t.commit();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SavepointTest.class);
+    }
+}
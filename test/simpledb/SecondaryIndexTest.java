@@ -0,0 +1,292 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private HeapFile hf;
+	private ArrayList<ArrayList<Integer>> tuples;
+	private SecondaryIndex index;
+
+	/**
+	 * TableStats that estimate the same selectivity for every predicate
+	 */
+	private static class FixedSelectivityStats extends TableStats {
+		private static final long serialVersionUID = 1L;
+
+		private final double selectivity;
+
+		FixedSelectivityStats(int tableid, double selectivity) {
+			super(tableid, 1000);
+			this.selectivity = selectivity;
+		}
+
+		public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+			return selectivity;
+		}
+	}
+
+	private static File tempFile() throws Exception {
+		File f = File.createTempFile("index", ".dat");
+		f.deleteOnExit();
+		return f;
+	}
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tuples = new ArrayList<ArrayList<Integer>>();
+		hf = SystemTestUtil.createRandomHeapFile(2, 2000, 500, null, tuples, "c");
+		tid = new TransactionId();
+		index = new SecondaryIndex(hf.getId(), 1, tempFile());
+		Database.getCatalog().addIndex(index);
+		index.build(tid);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		Database.reset();
+	}
+
+	/**
+	 * The tuples of the table whose second field satisfies the predicate
+	 */
+	private List<ArrayList<Integer>> expected(Op op, int value) {
+		ArrayList<ArrayList<Integer>> matching = new ArrayList<ArrayList<Integer>>();
+		for (ArrayList<Integer> t : tuples) {
+			if (new IntField(t.get(1)).compare(op, new IntField(value))) {
+				matching.add(t);
+			}
+		}
+		return matching;
+	}
+
+	/**
+	 * Read all tuples from the iterator, checking that they are sorted on the second field
+	 */
+	private List<ArrayList<Integer>> readAll(DbFileIterator it) throws Exception {
+		ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+		it.open();
+		int prev = Integer.MIN_VALUE;
+		while (it.hasNext()) {
+			ArrayList<Integer> t = SystemTestUtil.tupleToList(it.next());
+			assertTrue(t.get(1) >= prev);
+			prev = t.get(1);
+			result.add(t);
+		}
+		it.close();
+		return result;
+	}
+
+	private static void assertSameTuples(List<ArrayList<Integer>> expected, List<ArrayList<Integer>> actual) {
+		Comparator<ArrayList<Integer>> byValues = new Comparator<ArrayList<Integer>>() {
+			public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+				int c = a.get(0).compareTo(b.get(0));
+				return c != 0 ? c : a.get(1).compareTo(b.get(1));
+			}
+		};
+		ArrayList<ArrayList<Integer>> e = new ArrayList<ArrayList<Integer>>(expected);
+		ArrayList<ArrayList<Integer>> a = new ArrayList<ArrayList<Integer>>(actual);
+		Collections.sort(e, byValues);
+		Collections.sort(a, byValues);
+		assertEquals(e, a);
+	}
+
+	@Test
+	public void lookups() throws Exception {
+		for (Op op : new Op[] { Op.EQUALS, Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ }) {
+			int value = tuples.get(17).get(1);
+			assertSameTuples(expected(op, value),
+					readAll(index.iterator(tid, new IndexPredicate(op, new IntField(value)))));
+		}
+	}
+
+	@Test
+	public void catalog() throws Exception {
+		assertSame(index, Database.getCatalog().getIndex(hf.getId(), 1));
+		assertNull(Database.getCatalog().getIndex(hf.getId(), 0));
+		assertEquals(1, Database.getCatalog().getIndexes(hf.getId()).size());
+		assertSame(index.getFile(), Database.getCatalog().getDatabaseFile(index.getFile().getId()));
+
+		// index files are not listed as tables
+		Iterator<Integer> it = Database.getCatalog().tableIdIterator();
+		while (it.hasNext()) {
+			assertTrue(it.next() != index.getFile().getId());
+		}
+	}
+
+	@Test
+	public void indexScan() throws Exception {
+		int value = tuples.get(3).get(1);
+		IndexScan scan = new IndexScan(tid, index, "t", new IndexPredicate(Op.EQUALS, new IntField(value)));
+		assertEquals("t.c1", scan.getTupleDesc().getFieldName(1));
+		SystemTestUtil.matchTuples(scan, expected(Op.EQUALS, value));
+
+		scan.open();
+		scan.rewind(new IndexPredicate(Op.GREATER_THAN, new IntField(value)));
+		int count = 0;
+		while (scan.hasNext()) {
+			assertTrue(((IntField) scan.next().getField(1)).getValue() > value);
+			count++;
+		}
+		scan.close();
+		assertEquals(expected(Op.GREATER_THAN, value).size(), count);
+	}
+
+	@Test
+	public void insertAndDelete() throws Exception {
+		Tuple t = new Tuple(hf.getTupleDesc());
+		t.setField(0, new IntField(-1));
+		t.setField(1, new IntField(1000));
+		Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+		List<ArrayList<Integer>> found = readAll(index.iterator(tid, new IndexPredicate(Op.EQUALS, new IntField(1000))));
+		assertEquals(1, found.size());
+		assertEquals(-1, (int) found.get(0).get(0));
+
+		// delete every tuple with the smallest key through the buffer pool
+		int value = tuples.get(0).get(1);
+		DbFileIterator it = index.iterator(tid, new IndexPredicate(Op.EQUALS, new IntField(value)));
+		ArrayList<Tuple> victims = new ArrayList<Tuple>();
+		it.open();
+		while (it.hasNext()) {
+			victims.add(it.next());
+		}
+		it.close();
+		assertFalse(victims.isEmpty());
+		for (Tuple v : victims) {
+			Database.getBufferPool().deleteTuple(tid, v);
+		}
+		assertTrue(readAll(index.iterator(tid, new IndexPredicate(Op.EQUALS, new IntField(value)))).isEmpty());
+		assertEquals(2001 - victims.size(), readAll(index.iterator(tid, new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(Integer.MIN_VALUE)))).size());
+	}
+
+	@Test
+	public void abortRestoresIndex() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		for (int i = 0; i < 500; i++) {
+			Tuple t = new Tuple(hf.getTupleDesc());
+			t.setField(0, new IntField(i));
+			t.setField(1, new IntField(1000 + i));
+			Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+		}
+		Database.getBufferPool().transactionComplete(tid, false);
+
+		tid = new TransactionId();
+		assertTrue(readAll(index.iterator(tid, new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(1000)))).isEmpty());
+		int value = tuples.get(5).get(1);
+		assertSameTuples(expected(Op.LESS_THAN, value),
+				readAll(index.iterator(tid, new IndexPredicate(Op.LESS_THAN, new IntField(value)))));
+	}
+
+	/**
+	 * The scan at the bottom of a plan made of single-child operators
+	 */
+	private static OpIterator leaf(OpIterator plan) {
+		while (plan instanceof Operator) {
+			plan = ((Operator) plan).getChildren()[0];
+		}
+		return plan;
+	}
+
+	private OpIterator plan(double selectivity, String field) throws Exception {
+		return plan(selectivity, field, "*");
+	}
+
+	private OpIterator plan(double selectivity, String field, String project) throws Exception {
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t." + field, Op.EQUALS, "7");
+		lp.addProjectField(project, null);
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		stats.put(Database.getCatalog().getTableName(hf.getId()), new FixedSelectivityStats(hf.getId(), selectivity));
+		return lp.physicalPlan(tid, stats, false);
+	}
+
+	@Test
+	public void plannerChoosesIndexScan() throws Exception {
+		OpIterator plan = plan(0.001, "c1");
+		assertTrue(leaf(plan) instanceof IndexScan);
+		plan.open();
+		int count = 0;
+		while (plan.hasNext()) {
+			plan.next();
+			count++;
+		}
+		plan.close();
+		assertEquals(expected(Op.EQUALS, 7).size(), count);
+
+		// not selective enough, or no index on the field
+		assertTrue(leaf(plan(0.5, "c1")) instanceof SeqScan);
+		assertTrue(leaf(plan(0.001, "c0")) instanceof SeqScan);
+	}
+
+	@Test
+	public void indexOnlyScan() throws Exception {
+		int value = tuples.get(3).get(1);
+		IndexScan scan = new IndexScan(tid, index, "t", new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(value)), true);
+		assertTrue(scan.isIndexOnly());
+		assertEquals(1, scan.getTupleDesc().numFields());
+		assertEquals("t.c1", scan.getTupleDesc().getFieldName(0));
+		scan.open();
+		int count = 0;
+		while (scan.hasNext()) {
+			assertTrue(((IntField) scan.next().getField(0)).getValue() <= value);
+			count++;
+		}
+		scan.close();
+		assertEquals(expected(Op.LESS_THAN_OR_EQ, value).size(), count);
+
+		for (Op op : new Op[] { Op.EQUALS, Op.NOT_EQUALS, Op.LESS_THAN, Op.GREATER_THAN_OR_EQ }) {
+			assertEquals(expected(op, value).size(), index.count(tid, new IndexPredicate(op, new IntField(value))));
+		}
+	}
+
+	@Test
+	public void plannerChoosesIndexOnlyScan() throws Exception {
+		// the index holds every field the query needs, so it beats a scan even when not selective
+		OpIterator plan = plan(0.5, "c1", "t.c1");
+		assertTrue(leaf(plan) instanceof IndexScan);
+		assertTrue(((IndexScan) leaf(plan)).isIndexOnly());
+		plan.open();
+		int count = 0;
+		while (plan.hasNext()) {
+			assertEquals(new IntField(7), plan.next().getField(0));
+			count++;
+		}
+		plan.close();
+		assertEquals(expected(Op.EQUALS, 7).size(), count);
+
+		// the other field has to come from the heap file
+		assertTrue(leaf(plan(0.5, "c1", "t.c0")) instanceof SeqScan);
+		assertFalse(((IndexScan) leaf(plan(0.001, "c1"))).isIndexOnly());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void onlyHeapFiles() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10, null, null, 0);
+		new SecondaryIndex(bf.getId(), 1, tempFile());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SecondaryIndexTest.class);
+	}
+}
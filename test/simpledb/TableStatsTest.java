@@ -1,7 +1,10 @@
 package simpledb;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -151,4 +154,281 @@ public class TableStatsTest extends SimpleDbTestBase {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, belowMin), 0.001);
 		}
 	}
+
+	/**
+	 * Verify that predicates on two independent columns select about the product
+	 * of their selectivities, and predicates on one column their intersection
+	 */
+	@Test public void estimateConjunctionSelectivityTest() {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		final Field half = new IntField(16);
+		final Field quarter = new IntField(8);
+
+		Assert.assertEquals(0.25, s.estimateSelectivity(0, Predicate.Op.LESS_THAN, half, 1, Predicate.Op.GREATER_THAN, half), 0.05);
+		Assert.assertEquals(0.125, s.estimateSelectivity(2, Predicate.Op.LESS_THAN, quarter, 9, Predicate.Op.LESS_THAN, half), 0.05);
+		Assert.assertEquals(1.0/32.0 * 0.5, s.estimateSelectivity(3, Predicate.Op.EQUALS, half, 4, Predicate.Op.LESS_THAN, half), 0.01);
+		Assert.assertEquals(s.estimateSelectivity(5, Predicate.Op.EQUALS, half, 0, Predicate.Op.LESS_THAN, half),
+				s.estimateSelectivity(0, Predicate.Op.LESS_THAN, half, 5, Predicate.Op.EQUALS, half), 1e-9);
+		Assert.assertEquals(32, s.numDistinct(0));
+	}
+
+	/**
+	 * Verify that statistics from a sample of the pages of a HeapFile are close
+	 * to those from a full scan
+	 */
+	@Test public void sampledHeapFileTest() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(10, 40000, 32, null, null);
+		Assert.assertTrue(hf.numPages() > 4 * TableStats.MIN_SAMPLE_PAGES);
+		TableStats full = new TableStats(hf.getId(), IO_COST);
+		TableStats sampled = new TableStats(hf.getId(), IO_COST, 0.1);
+
+		Assert.assertEquals(40000, full.totalTuples());
+		Assert.assertEquals(40000, sampled.totalTuples(), 400);
+		Assert.assertEquals(full.estimateScanCost(), sampled.estimateScanCost(), 0.001);
+		for (int col = 0; col < 10; col++) {
+			Assert.assertEquals(full.estimateSelectivity(col, Predicate.Op.LESS_THAN, new IntField(16)),
+					sampled.estimateSelectivity(col, Predicate.Op.LESS_THAN, new IntField(16)), 0.03);
+			Assert.assertEquals(full.estimateSelectivity(col, Predicate.Op.EQUALS, new IntField(7)),
+					sampled.estimateSelectivity(col, Predicate.Op.EQUALS, new IntField(7)), 0.01);
+		}
+
+		// a small table is scanned in full whatever the rate
+		Assert.assertEquals(10200, new TableStats(this.tableId, IO_COST, 0.01).totalTuples());
+	}
+
+	/**
+	 * Verify that the number of distinct values is estimated from a sample of
+	 * the pages of a table, both for columns with few values and for columns
+	 * with nearly as many values as tuples
+	 */
+	@Test public void sampledDistinctValuesTest() throws Exception {
+		ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+		SystemTestUtil.createRandomHeapFile(2, 40000, 1000000, null, rows);
+		for (int i = 0; i < rows.size(); i++) {
+			rows.get(i).set(1, i % 32);
+		}
+		HeapFile hf = JoinOptimizerTest.createDuplicateHeapFile(rows, 2, "c");
+		Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+		HashSet<Integer> distinct = new HashSet<Integer>();
+		for (ArrayList<Integer> row : rows) {
+			distinct.add(row.get(0));
+		}
+
+		TableStats full = new TableStats(hf.getId(), IO_COST);
+		TableStats sampled = new TableStats(hf.getId(), IO_COST, 0.1);
+		Assert.assertEquals(distinct.size(), full.numDistinct(0), 0.05 * distinct.size());
+		Assert.assertEquals(32, full.numDistinct(1));
+		Assert.assertEquals(distinct.size(), sampled.numDistinct(0), 0.25 * distinct.size());
+		Assert.assertEquals(32, sampled.numDistinct(1), 1);
+
+		// sketches of two tables merge into the sketch of their union
+		HyperLogLog union = full.distinctSketch(1);
+		union.merge(new TableStats(this.tableId, IO_COST).distinctSketch(0));
+		Assert.assertEquals(32, union.estimate(), 1);
+	}
+
+	/**
+	 * Verify that distinct values inserted into a sampled table add to the
+	 * number of distinct values once each, not scaled up like the sample
+	 */
+	@Test public void sampledInsertedDistinctValuesTest() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 150000, 1000000, null, null);
+		TableStats sampled = new TableStats(hf.getId(), IO_COST, 0.1);
+		Assert.assertNull(sampled.distinctSketch(0));
+		int before = sampled.numDistinct(0);
+		for (int i = 0; i < 20000; i++) {
+			sampled.addTuple(tupleOf(2, 2000000 + i), true);
+		}
+		Assert.assertEquals(20000, sampled.numDistinct(0) - before, 2000);
+	}
+
+	/**
+	 * Verify that the histograms are built from a bounded sample of the tuples
+	 * read, while the number of tuples and of distinct values still count all
+	 * of them
+	 */
+	@Test public void maxSampleRowsTest() throws Exception {
+		ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, 1000000, null, rows);
+		HashSet<Integer> distinct = new HashSet<Integer>();
+		int less = 0;
+		for (ArrayList<Integer> row : rows) {
+			distinct.add(row.get(0));
+			if (row.get(1) < 500000)
+				less++;
+		}
+		TableStats full = new TableStats(hf.getId(), IO_COST);
+		TableStats.setMaxSampleRows(1000);
+		try {
+			TableStats bounded = new TableStats(hf.getId(), IO_COST);
+			Assert.assertEquals(20000, bounded.totalTuples());
+			Assert.assertEquals(full.estimateScanCost(), bounded.estimateScanCost(), 0.001);
+			Assert.assertEquals((double) less / 20000,
+					bounded.estimateSelectivity(1, Predicate.Op.LESS_THAN, new IntField(500000)), 0.05);
+			Assert.assertEquals(distinct.size(), bounded.numDistinct(0), 0.05 * distinct.size());
+			Assert.assertEquals(full.numDistinct(0), bounded.numDistinct(0));
+		} finally {
+			TableStats.setMaxSampleRows(TableStats.DEFAULT_MAX_SAMPLE_ROWS);
+		}
+	}
+
+	/**
+	 * Verify that statistics from a sample of the leaf pages of a BTreeFile are
+	 * close to those from a full scan
+	 */
+	@Test public void sampledBTreeFileTest() throws Exception {
+		// small pages so that the tree has many leaf pages
+		BufferPool.setPageSize(1024);
+		Database.reset();
+		Database.resetBufferPool(2000);
+		try {
+			File f = File.createTempFile("sampled", ".dat");
+			f.deleteOnExit();
+			BTreeFile bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+			TransactionId tid = new TransactionId();
+			Random r = new Random(9);
+			for (int i = 0; i < 30000; i++) {
+				Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[] { r.nextInt(100000), i % 100 }));
+			}
+			Database.getBufferPool().transactionComplete(tid);
+			Assert.assertTrue(bf.numPages() > 2 * TableStats.MIN_SAMPLE_PAGES);
+
+			TableStats full = new TableStats(bf.getId(), IO_COST);
+			TableStats sampled = new TableStats(bf.getId(), IO_COST, 0.1);
+			Assert.assertEquals(30000, full.totalTuples());
+			Assert.assertEquals(30000, sampled.totalTuples(), 3000);
+			Assert.assertEquals(full.estimateIndexScanCost(0.5), sampled.estimateIndexScanCost(0.5), 0.15 * full.estimateIndexScanCost(0.5));
+			// each leaf holds a narrow range of keys, so the sampled keys vary more than the other field
+			Assert.assertEquals(0.5, sampled.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(50000)), 0.15);
+			Assert.assertEquals(0.5, sampled.estimateSelectivity(1, Predicate.Op.LESS_THAN, new IntField(50)), 0.05);
+			Assert.assertEquals(0.01, sampled.estimateSelectivity(1, Predicate.Op.EQUALS, new IntField(42)), 0.005);
+		} finally {
+			BufferPool.resetPageSize();
+			Database.reset();
+		}
+	}
+
+	/**
+	 * Verify that computeStatistics reuses the saved statistics of tables that
+	 * have not changed, and recomputes the others
+	 */
+	@Test public void savedStatisticsTest() throws Exception {
+		File statsFile = File.createTempFile("table", ".stats");
+		statsFile.delete();
+		statsFile.deleteOnExit();
+		HeapFile other = SystemTestUtil.createRandomHeapFile(2, 10, 32, null, null);
+		String otherName = Database.getCatalog().getTableName(other.getId());
+		HeapFile unchanged = SystemTestUtil.createRandomHeapFile(2, 10, 32, null, null);
+		String unchangedName = Database.getCatalog().getTableName(unchanged.getId());
+
+		TableStats.computeStatistics(statsFile);
+		Assert.assertTrue(statsFile.exists());
+		Assert.assertEquals(10200, TableStats.getTableStats(this.tableName).totalTuples());
+		Assert.assertEquals(10, TableStats.getTableStats(otherName).totalTuples());
+
+		// a tuple counted only in the saved stats shows whether they are used
+		TableStats.getTableStats(unchangedName).addTuple(tupleOf(2, 0), true);
+		TableStats.saveStatistics(statsFile);
+
+		// tuples that fit on the existing page change the file all the same;
+		// many tuples add pages; the stats of both tables are recomputed
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < 5; i++) {
+			Database.getBufferPool().insertTuple(tid, other.getId(), tupleOf(2, i));
+		}
+		for (int i = 0; i < 2040; i++) {
+			Database.getBufferPool().insertTuple(tid, this.tableId, tupleOf(10, i % 32));
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		Assert.assertEquals(1, other.numPages());
+
+		TableStats.computeStatistics(statsFile);
+		Assert.assertEquals(12240, TableStats.getTableStats(this.tableName).totalTuples(), 200);
+		Assert.assertEquals(15, TableStats.getTableStats(otherName).totalTuples());
+		Assert.assertEquals(11, TableStats.getTableStats(unchangedName).totalTuples());
+	}
+
+	/**
+	 * Verify that inserts and deletes update the statistics of a table
+	 */
+	@Test public void incrementalUpdateTest() throws Exception {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		TableStats.setTableStats(this.tableName, s);
+		Assert.assertEquals(0.0, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(40)), 0.0);
+
+		// values above the largest one seen so far widen the last bucket
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < 200; i++) {
+			Database.getBufferPool().insertTuple(tid, this.tableId, tupleOf(10, 40));
+		}
+		Assert.assertEquals(10400, s.totalTuples());
+		Assert.assertEquals(200, s.modifications());
+		Assert.assertEquals(200.0 / 10400, s.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(31)), 0.01);
+		Assert.assertTrue(s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(40)) > 0.0);
+		Assert.assertEquals(33, s.numDistinct(0));
+
+		// deleting the tuples with a value removes them again
+		DbFileIterator it = f.iterator(tid);
+		it.open();
+		ArrayList<Tuple> zeros = new ArrayList<Tuple>();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if (((IntField) t.getField(0)).getValue() == 0)
+				zeros.add(t);
+		}
+		it.close();
+		Database.getBufferPool().transactionComplete(tid);
+		// a few at a time, so that the dirty pages fit in the buffer pool
+		for (int i = 0; i < zeros.size(); i++) {
+			if (i % 20 == 0) {
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+			Database.getBufferPool().deleteTuple(tid, zeros.get(i));
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		Assert.assertEquals(10400 - zeros.size(), s.totalTuples());
+		Assert.assertEquals(0.0, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(0)), 0.001);
+		Assert.assertEquals(0.0, s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(1)), 0.001);
+	}
+
+	/**
+	 * Verify that the statistics of a table are computed again once enough of
+	 * its tuples have changed
+	 */
+	@Test public void refreshTest() throws Exception {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		TableStats.setTableStats(this.tableName, s);
+		try {
+			TableStats.setRefreshThreshold(0.1);
+			TransactionId tid = new TransactionId();
+			for (int i = 0; i < 1000; i++) {
+				Database.getBufferPool().insertTuple(tid, this.tableId, tupleOf(10, i % 32));
+			}
+			Assert.assertSame(s, TableStats.getTableStats(this.tableName));
+			for (int i = 0; i < 100; i++) {
+				Database.getBufferPool().insertTuple(tid, this.tableId, tupleOf(10, i % 32));
+			}
+			Database.getBufferPool().transactionComplete(tid);
+
+			// the new statistics are computed in the background, after the inserts commit
+			for (int i = 0; i < 500 && TableStats.getTableStats(this.tableName) == s; i++) {
+				Thread.sleep(10);
+			}
+			TableStats refreshed = TableStats.getTableStats(this.tableName);
+			Assert.assertNotSame(s, refreshed);
+			Assert.assertEquals(0, refreshed.modifications());
+			Assert.assertEquals(11300, refreshed.totalTuples(), 200);
+		} finally {
+			TableStats.setRefreshThreshold(TableStats.DEFAULT_REFRESH_THRESHOLD);
+		}
+	}
+
+	private static Tuple tupleOf(int columns, int value) {
+		Tuple t = new Tuple(Utility.getTupleDesc(columns));
+		for (int i = 0; i < columns; i++) {
+			t.setField(i, new IntField(value));
+		}
+		return t;
+	}
 }